@@ -21,6 +21,8 @@ import java.io.*;
 import java.lang.reflect.InvocationTargetException;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class Parser {
     static boolean explain = false;
@@ -187,23 +189,19 @@ public class Parser {
 
         // now look for group by fields
         ZGroupBy gby = q.getGroupBy();
-        String groupByField = null;
+        List<String> groupByFields = new ArrayList<>();
         if (gby != null) {
             @SuppressWarnings("unchecked")
             List<ZExp> gbs = gby.getGroupBy();
-            if (gbs.size() > 1) {
-                throw new simpledb.ParsingException(
-                        "At most one grouping field expression supported.");
-            }
-            if (gbs.size() == 1) {
-                ZExp gbe = gbs.get(0);
+            for (ZExp gbe : gbs) {
                 if (!(gbe instanceof ZConstant)) {
                     throw new simpledb.ParsingException(
                             "Complex grouping expressions (" + gbe
                                     + ") not supported.");
                 }
-                groupByField = ((ZConstant) gbe).getValue();
+                String groupByField = ((ZConstant) gbe).getValue();
                 System.out.println("GROUP BY FIELD : " + groupByField);
+                groupByFields.add(groupByField);
             }
 
         }
@@ -212,8 +210,7 @@ public class Parser {
         // validity
         @SuppressWarnings("unchecked")
         List<ZSelectItem> selectList = q.getSelect();
-        String aggField = null;
-        String aggFun = null;
+        boolean hasAgg = false;
 
         for (int i = 0; i < selectList.size(); i++) {
             ZSelectItem si = selectList.get(i);
@@ -223,20 +220,18 @@ public class Parser {
                         "Expressions in SELECT list are not supported.");
             }
             if (si.getAggregate() != null) {
-                if (aggField != null) {
-                    throw new simpledb.ParsingException(
-                            "Aggregates over multiple fields not supported.");
-                }
-                aggField = ((ZConstant) ((ZExpression) si.getExpression())
+                String aggField = ((ZConstant) ((ZExpression) si.getExpression())
                         .getOperand(0)).getValue();
-                aggFun = si.getAggregate();
+                String aggFun = si.getAggregate();
                 System.out.println("Aggregate field is " + aggField
                         + ", agg fun is : " + aggFun);
                 lp.addProjectField(aggField, aggFun);
+                lp.addAggregate(aggFun, aggField);
+                hasAgg = true;
             } else {
-                if (groupByField != null
-                        && !(groupByField.equals(si.getTable() + "."
-                        + si.getColumn()) || groupByField.equals(si
+                if (!groupByFields.isEmpty()
+                        && !(groupByFields.contains(si.getTable() + "."
+                        + si.getColumn()) || groupByFields.contains(si
                         .getColumn()))) {
                     throw new simpledb.ParsingException("Non-aggregate field "
                             + si.getColumn()
@@ -246,30 +241,27 @@ public class Parser {
             }
         }
 
-        if (groupByField != null && aggFun == null) {
+        if (!groupByFields.isEmpty() && !hasAgg) {
             throw new simpledb.ParsingException("GROUP BY without aggregation.");
         }
 
-        if (aggFun != null) {
-            lp.addAggregate(aggFun, aggField, groupByField);
+        for (String groupByField : groupByFields) {
+            lp.addGroupByField(groupByField);
         }
         // sort the data
 
         if (q.getOrderBy() != null) {
             @SuppressWarnings("unchecked")
             List<ZOrderBy> obys = q.getOrderBy();
-            if (obys.size() > 1) {
-                throw new simpledb.ParsingException(
-                        "Multi-attribute ORDER BY is not supported.");
-            }
-            ZOrderBy oby = obys.get(0);
-            if (!(oby.getExpression() instanceof ZConstant)) {
-                throw new simpledb.ParsingException(
-                        "Complex ORDER BY's are not supported");
-            }
-            ZConstant f = (ZConstant) oby.getExpression();
+            for (ZOrderBy oby : obys) {
+                if (!(oby.getExpression() instanceof ZConstant)) {
+                    throw new simpledb.ParsingException(
+                            "Complex ORDER BY's are not supported");
+                }
+                ZConstant f = (ZConstant) oby.getExpression();
 
-            lp.addOrderBy(f.getValue(), oby.getAscOrder());
+                lp.addOrderBy(f.getValue(), oby.getAscOrder());
+            }
 
         }
         return lp;
@@ -278,12 +270,80 @@ public class Parser {
     private Transaction curtrans = null;
     private boolean inUserTrans = false;
 
+    /**
+     * Zql cannot parse LIMIT clauses, so a trailing "LIMIT n [OFFSET m]" is
+     * removed from the statement text before it is parsed, and applied to the
+     * logical plan of the statement afterwards. DELETE and INSERT ... VALUES
+     * have no such plan and reject the clause.
+     */
+    private static final Pattern LIMIT_CLAUSE = Pattern.compile(
+            "\\s+limit\\s+(\\d+)(?:\\s+offset\\s+(\\d+))?\\s*(;?)\\s*$", Pattern.CASE_INSENSITIVE);
+    private int limit = OrderBy.NO_LIMIT, offset = 0;
+
+    /**
+     * Remove the LIMIT clause from a statement and remember its values for
+     * {@link #applyLimit}.
+     */
+    private String stripLimit(String s) throws simpledb.ParsingException {
+        limit = OrderBy.NO_LIMIT;
+        offset = 0;
+        Matcher m = LIMIT_CLAUSE.matcher(s);
+        if (!m.find()) {
+            return s;
+        }
+        try {
+            limit = Integer.parseInt(m.group(1));
+            offset = m.group(2) == null ? 0 : Integer.parseInt(m.group(2));
+        } catch (NumberFormatException e) {
+            throw new simpledb.ParsingException("LIMIT or OFFSET out of range");
+        }
+        return s.substring(0, m.start()) + m.group(3);
+    }
+
+    /**
+     * Zql cannot parse CREATE STATISTICS either: "CREATE STATISTICS ON a, b
+     * FROM t" declares the columns a and b of table t as a column group (see
+     * {@link TableStats#addColumnGroup}).
+     */
+    private static final Pattern CREATE_STATISTICS = Pattern.compile(
+            "\\s*create\\s+statistics\\s+on\\s+([\\w.]+(?:\\s*,\\s*[\\w.]+)+)\\s+from\\s+(\\w+)\\s*;?\\s*",
+            Pattern.CASE_INSENSITIVE);
+
+    private void handleCreateStatistics(Matcher m) throws simpledb.ParsingException {
+        String tableName = m.group(2);
+        String[] fields = m.group(1).split("\\s*,\\s*");
+        try {
+            TableStats.addColumnGroup(tableName, fields);
+        } catch (NoSuchElementException | IllegalArgumentException e) {
+            throw new simpledb.ParsingException("Cannot create statistics on " + tableName + ": " + e.getMessage());
+        }
+        System.out.println("Added column group " + Arrays.toString(fields) + " of table " + tableName);
+    }
+
+    /**
+     * Fail statements that have no plan to apply a LIMIT clause to, rather
+     * than silently ignoring the clause.
+     */
+    private void rejectLimit(String statement) throws simpledb.ParsingException {
+        if (limit != OrderBy.NO_LIMIT) {
+            throw new simpledb.ParsingException("LIMIT is only supported in SELECT and INSERT ... SELECT, not in "
+                    + statement);
+        }
+    }
+
+    private void applyLimit(LogicalPlan lp) throws simpledb.ParsingException {
+        if (limit != OrderBy.NO_LIMIT) {
+            lp.setLimit(limit, offset);
+        }
+    }
+
     public Query handleQueryStatement(ZQuery s, TransactionId tId)
             throws IOException,
             simpledb.ParsingException, Zql.ParseException {
         Query query = new Query(tId);
 
         LogicalPlan lp = parseQueryLogicalPlan(tId, s);
+        applyLimit(lp);
         OpIterator physicalPlan = lp.physicalPlan(tId,
                 TableStats.getStatsMap(), explain);
         query.setPhysicalPlan(physicalPlan);
@@ -339,6 +399,7 @@ public class Parser {
         OpIterator newTups;
 
         if (s.getValues() != null) {
+            rejectLimit("INSERT ... VALUES");
             @SuppressWarnings("unchecked")
             List<ZExp> values = s.getValues();
             if (td.numFields() != values.size()) {
@@ -383,6 +444,7 @@ public class Parser {
         } else {
             ZQuery zq = s.getQuery();
             LogicalPlan lp = parseQueryLogicalPlan(tId, zq);
+            applyLimit(lp);
             newTups = lp.physicalPlan(tId, TableStats.getStatsMap(), explain);
         }
         Query insertQ = new Query(tId);
@@ -393,6 +455,7 @@ public class Parser {
     public Query handleDeleteStatement(ZDelete s, TransactionId tid)
             throws
             simpledb.ParsingException, IOException, ParseException {
+        rejectLimit("DELETE");
         int id;
         try {
             id = Database.getCatalog().getTableId(s.getTable()); // will fall
@@ -465,12 +528,14 @@ public class Parser {
 
     public LogicalPlan generateLogicalPlan(TransactionId tid, String s)
             throws simpledb.ParsingException, IOException {
-        ByteArrayInputStream bis = new ByteArrayInputStream(s.getBytes());
+        ByteArrayInputStream bis = new ByteArrayInputStream(stripLimit(s).getBytes());
         ZqlParser p = new ZqlParser(bis);
         try {
             ZStatement stmt = p.readStatement();
             if (stmt instanceof ZQuery) {
-                return parseQueryLogicalPlan(tid, (ZQuery) stmt);
+                LogicalPlan lp = parseQueryLogicalPlan(tid, (ZQuery) stmt);
+                applyLimit(lp);
+                return lp;
             }
         } catch (Zql.ParseException e) {
             throw new simpledb.ParsingException(
@@ -503,7 +568,14 @@ public class Parser {
 
     private void processNextStatementImpl(InputStream is, boolean expectNoErrors) {
         try {
-            ZqlParser p = new ZqlParser(is);
+            String statement = new String(is.readAllBytes(), StandardCharsets.UTF_8);
+            Matcher createStatistics = CREATE_STATISTICS.matcher(statement);
+            if (createStatistics.matches()) {
+                handleCreateStatistics(createStatistics);
+                return;
+            }
+            statement = stripLimit(statement);
+            ZqlParser p = new ZqlParser(new ByteArrayInputStream(statement.getBytes(StandardCharsets.UTF_8)));
             ZStatement s = p.readStatement();
 
             Query query = null;
@@ -511,7 +583,8 @@ public class Parser {
                 handleTransactStatement((ZTransactStmt) s);
             else {
                 if (!this.inUserTrans) {
-                    curtrans = new Transaction();
+                    // a stand-alone SELECT runs on a snapshot, without locks
+                    curtrans = new Transaction(s instanceof ZQuery);
                     curtrans.start();
                     System.out.println("Started a new transaction tid = "
                             + curtrans.getId().getId());
@@ -583,8 +656,8 @@ public class Parser {
 
     // Basic SQL completions
     public static final String[] SQL_COMMANDS = {"select", "from", "where",
-            "group by", "max(", "min(", "avg(", "count", "rollback", "commit",
-            "insert", "delete", "values", "into"};
+            "group by", "limit", "offset", "max(", "min(", "avg(", "count", "rollback", "commit",
+            "insert", "delete", "values", "into", "create statistics"};
 
     public static void main(String[] argv) throws IOException {
 
@@ -601,7 +674,17 @@ public class Parser {
     static final String usage = "Usage: parser catalogFile [-explain] [-f queryFile]";
     static final int SLEEP_TIME = 1000;
 
+    // the statistics file next to the catalog
+    private File statsFile = null;
+
     protected void shutdown() {
+        if (statsFile != null) {
+            try {
+                TableStats.saveStatistics(statsFile);
+            } catch (IOException e) {
+                System.out.println("Unable to save table stats: " + e.getMessage());
+            }
+        }
         System.out.println("Bye");
     }
 
@@ -610,7 +693,9 @@ public class Parser {
     protected void start(String[] argv) throws IOException {
         // first add tables to database
         Database.getCatalog().loadSchema(argv[0]);
-        TableStats.computeStatistics();
+        // the statistics of a table are read or computed on first use
+        statsFile = new File(argv[0] + ".stats");
+        TableStats.loadStatistics(statsFile);
 
         String queryFile = null;
 
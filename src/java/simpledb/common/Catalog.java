@@ -10,19 +10,29 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * The Catalog keeps track of all available tables in the database and their
  * associated schemas. For now, this is a stub catalog that must be populated
  * with tables by a user program before it can be used -- eventually, this
  * should be converted to a catalog that reads a catalog table from disk.
+ * <p>
+ * Besides its primary key, a table may have column groups: groups of
+ * correlated columns whose statistics are kept together (see
+ * {@link simpledb.optimizer.TableStats#addColumnGroup}).
  *
  * @Threadsafe
  */
 public class Catalog {
 
+    // a column group after the fields of a table in a schema file
+    private static final Pattern COLUMN_GROUP = Pattern.compile("group\\s*\\(([^)]*)\\)", Pattern.CASE_INSENSITIVE);
+
     private Map<String, DbFile> fileMap;
     private Map<Integer, String> pkeyMap;
+    private final Map<Integer, List<int[]>> groupMap = new ConcurrentHashMap<>();
 
     /**
      * Constructor. Creates a new, empty catalog.
@@ -47,6 +57,8 @@ public class Catalog {
      */
     public void addTable(DbFile file, String name, String pkeyField) {
         // TODO: some code goes here (OK)
+        // a file added again under another name is renamed
+        fileMap.values().removeIf(f -> f.getId() == file.getId());
         fileMap.put(name, file);
         pkeyMap.put(file.getId(), pkeyField);
     }
@@ -120,6 +132,28 @@ public class Catalog {
         return pkeyMap.get(tableid);
     }
 
+    /**
+     * Declare a group of correlated columns of a table
+     *
+     * @param tableid the id of the table
+     * @param fields  the indexes of the columns of the group
+     */
+    public void addColumnGroup(int tableid, int[] fields) {
+        groupMap.compute(tableid, (id, groups) -> {
+            List<int[]> added = groups == null ? new ArrayList<>() : new ArrayList<>(groups);
+            added.add(fields.clone());
+            return Collections.unmodifiableList(added);
+        });
+    }
+
+    /**
+     * @return the column groups declared for a table, as the indexes of
+     *         their columns, in the order they were declared
+     */
+    public List<int[]> getColumnGroups(int tableid) {
+        return groupMap.getOrDefault(tableid, Collections.emptyList());
+    }
+
     public Iterator<Integer> tableIdIterator() {
         // TODO: some code goes here (OK)
         Set<Integer> tableidSet = pkeyMap.keySet();
@@ -143,11 +177,13 @@ public class Catalog {
         // TODO: some code goes here (OK)
         pkeyMap.clear();
         fileMap.clear();
+        groupMap.clear();
     }
 
     /**
      * Reads the schema from a file and creates the appropriate tables in the
-     * database.
+     * database. A table may be followed by the column groups of its
+     * correlated columns, e.g. "city (name string, zip int) group (name, zip)".
      *
      * @param catalogFile
      */
@@ -192,6 +228,23 @@ public class Catalog {
                 HeapFile tabHf = new HeapFile(new File(baseFolder + "/" + name + ".dat"), t);
                 addTable(tabHf, name, primaryKey);
                 System.out.println("Added table : " + name + " with schema " + t);
+                Matcher groups = COLUMN_GROUP.matcher(line.substring(line.indexOf(")") + 1));
+                while (groups.find()) {
+                    String[] groupNames = groups.group(1).trim().split("\\s*,\\s*");
+                    if (groupNames.length < 2) {
+                        System.out.println("A column group needs at least two columns : " + line);
+                        System.exit(0);
+                    }
+                    int[] groupFields = new int[groupNames.length];
+                    for (int i = 0; i < groupFields.length; i++) {
+                        groupFields[i] = names.indexOf(groupNames[i]);
+                        if (groupFields[i] < 0) {
+                            System.out.println("Unknown field " + groupNames[i] + " in column group");
+                            System.exit(0);
+                        }
+                    }
+                    addColumnGroup(tabHf.getId(), groupFields);
+                }
             }
         } catch (IOException e) {
             e.printStackTrace();
@@ -2,6 +2,7 @@ package simpledb.common;
 
 import simpledb.storage.BufferPool;
 import simpledb.storage.LogFile;
+import simpledb.storage.SyncManager;
 
 import java.io.File;
 import java.io.IOException;
@@ -24,9 +25,11 @@ public class Database {
 
     private final static String LOGFILENAME = "log";
     private final LogFile _logfile;
+    private final SyncManager _syncmanager;
 
     private Database() {
         _catalog = new Catalog();
+        _syncmanager = new SyncManager();
         _bufferpool = new BufferPool(BufferPool.DEFAULT_PAGES);
         LogFile tmp = null;
         try {
@@ -46,6 +49,13 @@ public class Database {
         return _instance.get()._logfile;
     }
 
+    /**
+     * Return the sync manager (durability policy) of the static Database instance
+     */
+    public static SyncManager getSyncManager() {
+        return _instance.get()._syncmanager;
+    }
+
     /**
      * Return the buffer pool of the static Database instance
      */
@@ -77,6 +87,20 @@ public class Database {
         return _instance.get()._bufferpool;
     }
 
+    /**
+     * Method used for testing -- replace the sync manager and return it
+     */
+    public static SyncManager resetSyncManager(SyncManager syncManager) {
+        try {
+            java.lang.reflect.Field syncManagerF = Database.class.getDeclaredField("_syncmanager");
+            syncManagerF.setAccessible(true);
+            syncManagerF.set(_instance.get(), syncManager);
+        } catch (NoSuchFieldException | IllegalAccessException | IllegalArgumentException | SecurityException e) {
+            e.printStackTrace();
+        }
+        return _instance.get()._syncmanager;
+    }
+
     // reset the database, used for unit tests only.
     public static void reset() {
         _instance.set(new Database());
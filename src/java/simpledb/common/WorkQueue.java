@@ -0,0 +1,56 @@
+package simpledb.common;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * WorkQueue is a daemon thread that processes requests in the background,
+ * one at a time and in the order they were made. A request that is still
+ * pending is not queued again.
+ *
+ * @param <T> the type of the requests
+ */
+public abstract class WorkQueue<T> extends Thread {
+
+    private final Set<T> pending = new LinkedHashSet<>(); // protected by this
+
+    protected WorkQueue(String name) {
+        super(name);
+        setDaemon(true);
+    }
+
+    /**
+     * Ask the thread to process a request
+     */
+    public synchronized void request(T request) {
+        if (pending.add(request)) {
+            notify();
+        }
+    }
+
+    /**
+     * Process a request, on the thread of the queue
+     */
+    protected abstract void process(T request);
+
+    @Override
+    public final void run() {
+        while (true) {
+            T request;
+            synchronized (this) {
+                try {
+                    while (pending.isEmpty()) {
+                        wait();
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                Iterator<T> it = pending.iterator();
+                request = it.next();
+                it.remove();
+            }
+            process(request);
+        }
+    }
+}
@@ -4,6 +4,7 @@ import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.execution.Aggregator.Op;
 import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
 import simpledb.storage.TupleDesc;
 import simpledb.transaction.TransactionAbortedException;
 
@@ -11,17 +12,24 @@ import java.util.NoSuchElementException;
 
 /**
  * The Aggregation operator that computes an aggregate (e.g., sum, avg, max,
- * min). Note that we only support aggregates over a single column, grouped by a
- * single column.
+ * min), or several aggregates in one pass, grouped by zero or more columns.
+ * In parallel mode, several threads aggregate partitions of the child and
+ * their partial aggregates are merged.
  */
-public class Aggregate extends Operator {
+public class Aggregate extends Operator implements BatchSource {
 
     private static final long serialVersionUID = 1L;
 
+    /**
+     * Number of threads used by a parallel Aggregate by default
+     */
+    public static final int DEFAULT_WORKERS = Runtime.getRuntime().availableProcessors();
+
     private OpIterator child;
-    private int aFieldIndex;
-    private int gFieldIndex;
-    private Aggregator.Op aop;
+    private int[] aFieldIndexes;
+    private int[] gFieldIndexes;
+    private Aggregator.Op[] aops;
+    private int workers;
 
     private Aggregator aggregator;
     private OpIterator iterator;
@@ -41,10 +49,47 @@ public class Aggregate extends Operator {
      */
     public Aggregate(OpIterator child, int afield, int gfield, Aggregator.Op aop) {
         // TODO: some code goes here (OK)
+        this(child, new int[] { afield },
+                gfield == Aggregator.NO_GROUPING ? new int[0] : new int[] { gfield },
+                new Aggregator.Op[] { aop });
+    }
+
+    /**
+     * Constructor for several aggregates over a composite grouping.
+     *
+     * @param child   The OpIterator that is feeding us tuples.
+     * @param afields The columns over which we are computing aggregates.
+     * @param gfields The columns over which we are grouping the result; empty
+     *                if there is no grouping
+     * @param aops    The aggregation operator to use for every column in afields
+     */
+    public Aggregate(OpIterator child, int[] afields, int[] gfields, Aggregator.Op[] aops) {
+        this(child, afields, gfields, aops, 1);
+    }
+
+    /**
+     * Constructor for an Aggregate that uses several threads.
+     *
+     * @param child   The OpIterator that is feeding us tuples.
+     * @param afields The columns over which we are computing aggregates.
+     * @param gfields The columns over which we are grouping the result; empty
+     *                if there is no grouping
+     * @param aops    The aggregation operator to use for every column in afields
+     * @param workers The number of threads aggregating the child; 1 aggregates
+     *                in the calling thread
+     */
+    public Aggregate(OpIterator child, int[] afields, int[] gfields, Aggregator.Op[] aops, int workers) {
+        if (afields.length == 0 || afields.length != aops.length) {
+            throw new IllegalArgumentException("need at least one aggregate and one operator per aggregate");
+        }
+        if (workers < 1) {
+            throw new IllegalArgumentException("need at least one worker");
+        }
         this.child = child;
-        this.aFieldIndex = afield;
-        this.gFieldIndex = gfield;
-        this.aop = aop;
+        this.aFieldIndexes = afields;
+        this.gFieldIndexes = gfields;
+        this.aops = aops;
+        this.workers = workers;
 
         initAggregator(child);
     }
@@ -56,7 +101,14 @@ public class Aggregate extends Operator {
      */
     public int groupField() {
         // TODO: some code goes here (OK)
-        return this.gFieldIndex;
+        return this.gFieldIndexes.length == 0 ? Aggregator.NO_GROUPING : this.gFieldIndexes[0];
+    }
+
+    /**
+     * @return the indexes of all groupby fields in the <b>INPUT</b> tuples
+     */
+    public int[] groupFields() {
+        return this.gFieldIndexes;
     }
 
     /**
@@ -65,10 +117,10 @@ public class Aggregate extends Operator {
      */
     public String groupFieldName() {
         // TODO: some code goes here (OK)
-        if (Aggregator.NO_GROUPING == this.gFieldIndex) {
+        if (Aggregator.NO_GROUPING == groupField()) {
             return null;
         }
-        return child.getTupleDesc().getFieldName(this.gFieldIndex);
+        return child.getTupleDesc().getFieldName(this.gFieldIndexes[0]);
     }
 
     /**
@@ -76,7 +128,14 @@ public class Aggregate extends Operator {
      */
     public int aggregateField() {
         // TODO: some code goes here (OK)
-        return this.aFieldIndex;
+        return this.aFieldIndexes[0];
+    }
+
+    /**
+     * @return the indexes of all aggregate fields in the <b>INPUT</b> tuples
+     */
+    public int[] aggregateFields() {
+        return this.aFieldIndexes;
     }
 
     /**
@@ -84,7 +143,7 @@ public class Aggregate extends Operator {
      */
     public String aggregateFieldName() {
         // TODO: some code goes here (OK)
-        return this.child.getTupleDesc().getFieldName(this.aFieldIndex);
+        return this.child.getTupleDesc().getFieldName(this.aFieldIndexes[0]);
     }
 
     /**
@@ -92,7 +151,21 @@ public class Aggregate extends Operator {
      */
     public Aggregator.Op aggregateOp() {
         // TODO: some code goes here (OK)
-        return this.aop;
+        return this.aops[0];
+    }
+
+    /**
+     * @return the aggregate operators of all aggregate fields
+     */
+    public Aggregator.Op[] aggregateOps() {
+        return this.aops;
+    }
+
+    /**
+     * @return the number of threads aggregating the child
+     */
+    public int getWorkers() {
+        return this.workers;
     }
 
     public static String nameOfAggregatorOp(Aggregator.Op aop) {
@@ -102,9 +175,13 @@ public class Aggregate extends Operator {
     public void open() throws NoSuchElementException, DbException, TransactionAbortedException {
         // TODO: some code goes here (OK)
         child.open();
-        while (child.hasNext()) {
-            Tuple next = child.next();
-            this.aggregator.mergeTupleIntoGroup(next);
+        if (this.workers > 1) {
+            ((MultiAggregator) this.aggregator).mergeTuplesInParallel(child, this.workers);
+        } else {
+            while (child.hasNext()) {
+                Tuple next = child.next();
+                this.aggregator.mergeTupleIntoGroup(next);
+            }
         }
         this.iterator = this.aggregator.iterator();
         this.iterator.open();
@@ -131,11 +208,58 @@ public class Aggregate extends Operator {
         this.child.rewind();
     }
 
+    /**
+     * Return a BatchIterator that merges whole batches of the child into the
+     * groups (see {@link Aggregator#mergeBatch}), then returns the groups in
+     * batches. A parallel Aggregate reads its child through the tuple
+     * interface, as its workers do.
+     */
+    public BatchIterator batchIterator() {
+        if (this.workers > 1) {
+            return new TupleBatcher(this);
+        }
+        BatchIterator childBatches = BatchIterator.of(child);
+        return new BatchIterator() {
+            private BatchIterator groups;
+
+            public void open() throws DbException, TransactionAbortedException {
+                childBatches.open();
+                for (TupleBatch batch = childBatches.nextBatch(); batch != null; batch = childBatches.nextBatch()) {
+                    aggregator.mergeBatch(batch);
+                }
+                groups = new TupleBatcher(aggregator.iterator());
+                groups.open();
+            }
+
+            public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+                return groups.nextBatch();
+            }
+
+            public void rewind() throws DbException, TransactionAbortedException {
+                groups.rewind();
+            }
+
+            public TupleDesc getTupleDesc() {
+                return Aggregate.this.getTupleDesc();
+            }
+
+            public void close() {
+                if (groups != null) {
+                    groups.close();
+                    groups = null;
+                }
+                aggregator.close();
+                childBatches.close();
+            }
+        };
+    }
+
     /**
      * Returns the TupleDesc of this Aggregate. If there is no group by field, this
      * will have one field - the aggregate column. If there is a group by field, the
      * first field will be the group by field, and the second will be the aggregate
-     * value column.
+     * value column. With several group by fields or aggregates, the group by
+     * fields come first, followed by one column per aggregate.
      * <p>
      * The name of an aggregate column should be informative. For example:
      * "aggName(aop) (child_td.getFieldName(afield))" where aop and afield are given
@@ -143,24 +267,15 @@ public class Aggregate extends Operator {
      */
     public TupleDesc getTupleDesc() {
         // TODO: some code goes here (OK)
-        TupleDesc td = child.getTupleDesc();
-        String aggFieldName = this.aop.toString() + " " + td.getFieldName(this.aFieldIndex);
-        Type[] typeAr;
-        String[] fieldAr;
-        if (this.gFieldIndex == Aggregator.NO_GROUPING) {
-            typeAr = new Type[] { td.getFieldType(this.aFieldIndex) };
-            fieldAr = new String[] { aggFieldName };
-        } else {
-            typeAr = new Type[] { td.getFieldType(this.gFieldIndex), td.getFieldType(this.aFieldIndex) };
-            fieldAr = new String[] { td.getFieldName(this.gFieldIndex), aggFieldName };
-        }
-
-        return new TupleDesc(typeAr, fieldAr);
+        // all aggregates produce integers
+        return MultiAggregator.resultTupleDesc(child.getTupleDesc(), this.gFieldIndexes, this.aFieldIndexes,
+                this.aops);
     }
 
     public void close() {
         // TODO: some code goes here (OK)
         this.iterator = null;
+        this.aggregator.close();
         child.close();
         super.close();
     }
@@ -179,6 +294,14 @@ public class Aggregate extends Operator {
     }
 
     private void initAggregator(OpIterator child) {
+        if (this.aFieldIndexes.length > 1 || this.gFieldIndexes.length > 1 || this.workers > 1) {
+            this.aggregator = new MultiAggregator(child.getTupleDesc(), gFieldIndexes, aFieldIndexes, aops,
+                    AggregationTable.DEFAULT_MEMORY_PAGES);
+            return;
+        }
+        int aFieldIndex = aFieldIndexes[0];
+        int gFieldIndex = groupField();
+        Aggregator.Op aop = aops[0];
         Type type = this.child.getTupleDesc().getFieldType(aFieldIndex);
         switch (type) {
             case INT_TYPE:
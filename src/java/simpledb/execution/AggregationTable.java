@@ -0,0 +1,619 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.BufferPool;
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
+import simpledb.storage.TupleDesc;
+import simpledb.storage.TupleSpillFile;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * AggregationTable is the hash table behind the {@link Aggregator}s. It
+ * computes any number of aggregates over groups of one or more fields, keeping
+ * one mutable {@link Accumulator} per group and aggregate, and only builds
+ * output tuples when they are read.
+ * <p>
+ * The number of groups kept in memory is bounded by a memory budget. Once the
+ * table is full, tuples of groups that are not in memory are spilled to one of
+ * {@link HashEquiJoin#NUM_PARTITIONS} partitions on disk, by the hash of their
+ * group; reading the result aggregates every spilled partition with a table of
+ * its own, which may spill again with different hash bits. Partial aggregates
+ * merged from other tables (see {@link #mergePartial}) are spilled in the same
+ * way, as their running count, sum, minimum and maximum.
+ */
+class AggregationTable {
+
+    /**
+     * Default memory budget of a table, in pages
+     */
+    static final int DEFAULT_MEMORY_PAGES = 256;
+
+    /**
+     * Estimated memory used by a group besides its key and accumulators: the
+     * hash map entry and the key object
+     */
+    private static final int GROUP_OVERHEAD_BYTES = 64;
+
+    /**
+     * Estimated memory used by one accumulator
+     */
+    private static final int ACCUMULATOR_BYTES = 40;
+
+    /**
+     * The running aggregate of one group.
+     */
+    static final class Accumulator {
+        long count = 0;
+        long sum = 0;
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+
+        void add(Field f) {
+            if (f instanceof IntField) {
+                add(((IntField) f).getValue());
+            } else {
+                count++;
+            }
+        }
+
+        void add(int v) {
+            count++;
+            sum += v;
+            min = Math.min(min, v);
+            max = Math.max(max, v);
+        }
+
+        /**
+         * Add the first n values of a column of a batch with the given
+         * selection vector (see {@link TupleBatch#getSelection()}).
+         */
+        void addAll(int[] col, int[] sel, int n) {
+            long s = 0;
+            int lo = min;
+            int hi = max;
+            for (int i = 0; i < n; i++) {
+                int v = col[sel == null ? i : sel[i]];
+                s += v;
+                lo = Math.min(lo, v);
+                hi = Math.max(hi, v);
+            }
+            count += n;
+            sum += s;
+            min = lo;
+            max = hi;
+        }
+
+        /**
+         * Add the partial aggregate of other, computed over other tuples of
+         * the same group.
+         */
+        void merge(Accumulator other) {
+            count += other.count;
+            sum += other.sum;
+            min = Math.min(min, other.min);
+            max = Math.max(max, other.max);
+        }
+
+        /**
+         * @return the value of the aggregate op over the group
+         */
+        int value(Aggregator.Op op) {
+            switch (op) {
+                case MIN:
+                    return min;
+                case MAX:
+                    return max;
+                case SUM:
+                    return (int) sum;
+                case AVG:
+                    return (int) (sum / count);
+                case COUNT:
+                    return (int) count;
+                default:
+                    throw new IllegalArgumentException("unsupported aggregation operator " + op);
+            }
+        }
+    }
+
+    /**
+     * The values of the group-by fields of a group.
+     */
+    static final class GroupKey {
+        final Field[] fields;
+        private final int hash;
+
+        GroupKey(Field[] fields) {
+            this.fields = fields;
+            this.hash = Arrays.hashCode(fields);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof GroupKey && Arrays.equals(fields, ((GroupKey) o).fields);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * An iterator over groups whose reads can fail, since spilled groups are
+     * read back from disk.
+     */
+    interface GroupCursor {
+        boolean hasNext() throws DbException;
+
+        Map.Entry<GroupKey, Accumulator[]> next() throws DbException;
+    }
+
+    private final int[] gbFields;
+    private final int[] aFields;
+    private final Aggregator.Op[] ops;
+    private final int memoryPages;
+    private final int depth;
+
+    private final Map<GroupKey, Accumulator[]> groups = new HashMap<>();
+    private int maxGroups = -1;
+    private TupleDesc spillTd;
+    private TupleSpillFile[] partitions;
+    // spilled partial aggregates: the group-by fields followed by the count,
+    // sum, min and max of every aggregate, with longs as two ints
+    private TupleDesc partialTd;
+    private TupleSpillFile[] partialPartitions;
+
+    /**
+     * Create an empty table.
+     *
+     * @param gbFields    the group-by fields of the input tuples; empty if there
+     *                    is no grouping
+     * @param aFields     the aggregate fields of the input tuples
+     * @param ops         the aggregation operator of every aggregate field
+     * @param memoryPages the memory budget in pages
+     */
+    AggregationTable(int[] gbFields, int[] aFields, Aggregator.Op[] ops, int memoryPages) {
+        this(gbFields, aFields, ops, memoryPages, 0);
+    }
+
+    private AggregationTable(int[] gbFields, int[] aFields, Aggregator.Op[] ops, int memoryPages, int depth) {
+        if (aFields.length != ops.length) {
+            throw new IllegalArgumentException("need one aggregation operator per aggregate field");
+        }
+        for (Aggregator.Op op : ops) {
+            switch (op) {
+                case MIN:
+                case MAX:
+                case SUM:
+                case AVG:
+                case COUNT:
+                    break;
+                default:
+                    throw new IllegalArgumentException("unsupported aggregation operator " + op);
+            }
+        }
+        this.gbFields = gbFields;
+        this.aFields = aFields;
+        this.ops = ops;
+        this.memoryPages = memoryPages;
+        this.depth = depth;
+    }
+
+    /**
+     * Add a tuple to its group.
+     */
+    void merge(Tuple t) throws DbException {
+        Field[] keyFields = new Field[gbFields.length];
+        for (int i = 0; i < gbFields.length; i++) {
+            keyFields[i] = t.getField(gbFields[i]);
+        }
+        GroupKey key = new GroupKey(keyFields);
+        Accumulator[] accs = accumulators(key, t.getTupleDesc());
+        if (accs == null) {
+            spill(key, t);
+            return;
+        }
+        for (int i = 0; i < aFields.length; i++) {
+            accs[i].add(t.getField(aFields[i]));
+        }
+    }
+
+    /**
+     * Add every row of a batch to its group. Without grouping, every
+     * aggregate is computed in one loop over its column.
+     */
+    void merge(TupleBatch batch) throws DbException {
+        TupleDesc td = batch.getTupleDesc();
+        if (gbFields.length == 0) {
+            Accumulator[] accs = accumulators(new GroupKey(new Field[0]), td);
+            for (int i = 0; i < aFields.length; i++) {
+                if (td.getFieldType(aFields[i]) == Type.INT_TYPE) {
+                    accs[i].addAll(batch.getIntColumn(aFields[i]), batch.getSelection(), batch.size());
+                } else {
+                    accs[i].count += batch.size();
+                }
+            }
+            return;
+        }
+        for (int row = 0; row < batch.size(); row++) {
+            Field[] keyFields = new Field[gbFields.length];
+            for (int i = 0; i < gbFields.length; i++) {
+                keyFields[i] = batch.getField(gbFields[i], row);
+            }
+            GroupKey key = new GroupKey(keyFields);
+            Accumulator[] accs = accumulators(key, td);
+            if (accs == null) {
+                spill(key, batch.getTuple(row));
+                continue;
+            }
+            for (int i = 0; i < aFields.length; i++) {
+                if (td.getFieldType(aFields[i]) == Type.INT_TYPE) {
+                    accs[i].add(batch.getInt(aFields[i], row));
+                } else {
+                    accs[i].count++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Return the accumulators of a group, creating them if the group is new.
+     *
+     * @param td the TupleDesc of the input tuples
+     * @return the accumulators, or null if the group is new and the table is
+     *         full, so that its tuples must be spilled
+     */
+    private Accumulator[] accumulators(GroupKey key, TupleDesc td) {
+        Accumulator[] accs = groups.get(key);
+        if (accs == null) {
+            if (isFull(key)) {
+                return null;
+            }
+            accs = new Accumulator[ops.length];
+            for (int i = 0; i < accs.length; i++) {
+                accs[i] = new Accumulator();
+            }
+            groups.put(key, accs);
+        }
+        return accs;
+    }
+
+    /**
+     * @return true if no new group can be kept in memory, so that the tuples
+     *         of the new group key must be spilled
+     */
+    private boolean isFull(GroupKey key) {
+        if (maxGroups < 0) {
+            int keySize = 0;
+            for (Field f : key.fields) {
+                keySize += f.getType().getLen();
+            }
+            maxGroups = Math.max(1, memoryPages * BufferPool.getPageSize()
+                    / (keySize + GROUP_OVERHEAD_BYTES + ops.length * ACCUMULATOR_BYTES));
+        }
+        return gbFields.length > 0 && groups.size() >= maxGroups && depth < HashEquiJoin.MAX_DEPTH;
+    }
+
+    /**
+     * Merge the groups of a table that aggregated other tuples with the same
+     * group-by fields and aggregates into this table, and close it. Merged
+     * groups that do not fit in memory are spilled like new groups.
+     */
+    void mergePartial(AggregationTable partial) throws DbException {
+        try {
+            GroupCursor it = partial.groups();
+            while (it.hasNext()) {
+                Map.Entry<GroupKey, Accumulator[]> group = it.next();
+                mergeGroup(group.getKey(), group.getValue());
+            }
+        } finally {
+            partial.close();
+        }
+    }
+
+    /**
+     * Add the partial aggregates of a group to the group.
+     */
+    private void mergeGroup(GroupKey key, Accumulator[] partialAccs) throws DbException {
+        Accumulator[] accs = groups.get(key);
+        if (accs == null) {
+            if (isFull(key)) {
+                spillPartial(key, partialAccs);
+            } else {
+                groups.put(key, partialAccs);
+            }
+            return;
+        }
+        for (int i = 0; i < accs.length; i++) {
+            accs[i].merge(partialAccs[i]);
+        }
+    }
+
+    /**
+     * Spill the group-by and aggregate fields of a tuple to the partition of
+     * its group.
+     */
+    private void spill(GroupKey key, Tuple t) throws DbException {
+        if (partitions == null) {
+            partitions = new TupleSpillFile[HashEquiJoin.NUM_PARTITIONS];
+            Type[] types = new Type[gbFields.length + aFields.length];
+            for (int i = 0; i < gbFields.length; i++) {
+                types[i] = t.getTupleDesc().getFieldType(gbFields[i]);
+            }
+            for (int i = 0; i < aFields.length; i++) {
+                types[gbFields.length + i] = t.getTupleDesc().getFieldType(aFields[i]);
+            }
+            spillTd = new TupleDesc(types);
+        }
+        int part = HashEquiJoin.partition(key.hashCode(), depth);
+        try {
+            if (partitions[part] == null) {
+                partitions[part] = new TupleSpillFile(spillTd);
+            }
+            Tuple spilled = new Tuple(spillTd);
+            for (int i = 0; i < gbFields.length; i++) {
+                spilled.setField(i, key.fields[i]);
+            }
+            for (int i = 0; i < aFields.length; i++) {
+                spilled.setField(gbFields.length + i, t.getField(aFields[i]));
+            }
+            partitions[part].append(spilled);
+        } catch (IOException e) {
+            throw new DbException("cannot spill aggregation partition: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Spill the partial aggregates of a group to the partition of the group.
+     */
+    private void spillPartial(GroupKey key, Accumulator[] accs) throws DbException {
+        if (partialPartitions == null) {
+            partialPartitions = new TupleSpillFile[HashEquiJoin.NUM_PARTITIONS];
+            Type[] types = new Type[key.fields.length + 6 * ops.length];
+            Arrays.fill(types, Type.INT_TYPE);
+            for (int i = 0; i < key.fields.length; i++) {
+                types[i] = key.fields[i].getType();
+            }
+            partialTd = new TupleDesc(types);
+        }
+        int part = HashEquiJoin.partition(key.hashCode(), depth);
+        try {
+            if (partialPartitions[part] == null) {
+                partialPartitions[part] = new TupleSpillFile(partialTd);
+            }
+            Tuple spilled = new Tuple(partialTd);
+            int f = 0;
+            for (Field field : key.fields) {
+                spilled.setField(f++, field);
+            }
+            for (Accumulator acc : accs) {
+                spilled.setField(f++, new IntField((int) (acc.count >>> 32)));
+                spilled.setField(f++, new IntField((int) acc.count));
+                spilled.setField(f++, new IntField((int) (acc.sum >>> 32)));
+                spilled.setField(f++, new IntField((int) acc.sum));
+                spilled.setField(f++, new IntField(acc.min));
+                spilled.setField(f++, new IntField(acc.max));
+            }
+            partialPartitions[part].append(spilled);
+        } catch (IOException e) {
+            throw new DbException("cannot spill aggregation partition: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Add a partial aggregate spilled by {@link #spillPartial} to its group.
+     */
+    private void mergeSpilledPartial(Tuple t) throws DbException {
+        int numKeyFields = t.getTupleDesc().numFields() - 6 * ops.length;
+        Field[] keyFields = new Field[numKeyFields];
+        for (int i = 0; i < numKeyFields; i++) {
+            keyFields[i] = t.getField(i);
+        }
+        Accumulator[] accs = new Accumulator[ops.length];
+        int f = numKeyFields;
+        for (int i = 0; i < accs.length; i++) {
+            accs[i] = new Accumulator();
+            accs[i].count = ((long) intValue(t, f++) << 32) | (intValue(t, f++) & 0xffffffffL);
+            accs[i].sum = ((long) intValue(t, f++) << 32) | (intValue(t, f++) & 0xffffffffL);
+            accs[i].min = intValue(t, f++);
+            accs[i].max = intValue(t, f++);
+        }
+        mergeGroup(new GroupKey(keyFields), accs);
+    }
+
+    private static int intValue(Tuple t, int field) {
+        return ((IntField) t.getField(field)).getValue();
+    }
+
+    /**
+     * @return the number of partitions spilled to disk so far
+     */
+    int numSpilledPartitions() {
+        int n = 0;
+        for (int part = 0; part < HashEquiJoin.NUM_PARTITIONS; part++) {
+            if (isSpilled(part)) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    private boolean isSpilled(int part) {
+        return (partitions != null && partitions[part] != null)
+                || (partialPartitions != null && partialPartitions[part] != null);
+    }
+
+    /**
+     * Return a cursor over all groups: first those in memory, then those of
+     * every spilled partition, which is aggregated when it is reached.
+     */
+    GroupCursor groups() {
+        return new GroupCursor() {
+            private final Iterator<Map.Entry<GroupKey, Accumulator[]>> inMemory = groups.entrySet().iterator();
+            private AggregationTable child;
+            private GroupCursor spilled;
+            private int nextPartition = 0;
+
+            public boolean hasNext() throws DbException {
+                if (inMemory.hasNext()) {
+                    return true;
+                }
+                while (spilled == null || !spilled.hasNext()) {
+                    if (child != null) {
+                        child.close();
+                        child = null;
+                    }
+                    while (nextPartition < HashEquiJoin.NUM_PARTITIONS && !isSpilled(nextPartition)) {
+                        nextPartition++;
+                    }
+                    if (nextPartition >= HashEquiJoin.NUM_PARTITIONS) {
+                        return false;
+                    }
+                    child = aggregatePartition(nextPartition++);
+                    spilled = child.groups();
+                }
+                return true;
+            }
+
+            public Map.Entry<GroupKey, Accumulator[]> next() throws DbException {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return inMemory.hasNext() ? inMemory.next() : spilled.next();
+            }
+        };
+    }
+
+    private AggregationTable aggregatePartition(int part) throws DbException {
+        // spilled tuples hold the group-by fields followed by the aggregate fields
+        int[] childGbFields = new int[gbFields.length];
+        for (int i = 0; i < childGbFields.length; i++) {
+            childGbFields[i] = i;
+        }
+        int[] childAFields = new int[aFields.length];
+        for (int i = 0; i < childAFields.length; i++) {
+            childAFields[i] = gbFields.length + i;
+        }
+        AggregationTable table = new AggregationTable(childGbFields, childAFields, ops, memoryPages, depth + 1);
+        try {
+            if (partitions != null && partitions[part] != null) {
+                try (TupleSpillFile.TupleReader reader = partitions[part].iterator()) {
+                    while (reader.hasNext()) {
+                        table.merge(reader.next());
+                    }
+                }
+            }
+            if (partialPartitions != null && partialPartitions[part] != null) {
+                try (TupleSpillFile.TupleReader reader = partialPartitions[part].iterator()) {
+                    while (reader.hasNext()) {
+                        table.mergeSpilledPartial(reader.next());
+                    }
+                }
+            }
+        } catch (IOException e) {
+            table.close();
+            throw new DbException("cannot read aggregation partition: " + e.getMessage());
+        } catch (DbException e) {
+            table.close();
+            throw e;
+        }
+        return table;
+    }
+
+    /**
+     * Delete the spilled partitions and drop all groups.
+     */
+    void close() {
+        groups.clear();
+        if (partitions != null) {
+            for (TupleSpillFile p : partitions) {
+                if (p != null) {
+                    p.close();
+                }
+            }
+            partitions = null;
+        }
+        if (partialPartitions != null) {
+            for (TupleSpillFile p : partialPartitions) {
+                if (p != null) {
+                    p.close();
+                }
+            }
+            partialPartitions = null;
+        }
+    }
+
+    /**
+     * Return an OpIterator over the result tuples of the table: the values of
+     * the group-by fields followed by the values of the aggregates.
+     *
+     * @param td the TupleDesc of the result tuples
+     */
+    OpIterator iterator(TupleDesc td) {
+        return new AggregateIterator(td);
+    }
+
+    private class AggregateIterator extends Operator {
+        private static final long serialVersionUID = 1L;
+        private final TupleDesc td;
+        private transient GroupCursor it;
+
+        AggregateIterator(TupleDesc td) {
+            this.td = td;
+        }
+
+        @Override
+        public void rewind() throws DbException, TransactionAbortedException {
+            close();
+            open();
+        }
+
+        @Override
+        public void open() throws DbException, TransactionAbortedException {
+            it = groups();
+            super.open();
+        }
+
+        @Override
+        protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+            if (!it.hasNext())
+                return null;
+            Map.Entry<GroupKey, Accumulator[]> group = it.next();
+            Tuple t = new Tuple(td);
+            Field[] key = group.getKey().fields;
+            for (int i = 0; i < key.length; i++) {
+                t.setField(i, key[i]);
+            }
+            Accumulator[] accs = group.getValue();
+            for (int i = 0; i < accs.length; i++) {
+                t.setField(key.length + i, new IntField(accs[i].value(ops[i])));
+            }
+            return t;
+        }
+
+        @Override
+        public OpIterator[] getChildren() {
+            return null;
+        }
+
+        @Override
+        public void setChildren(OpIterator[] children) {
+        }
+
+        @Override
+        public TupleDesc getTupleDesc() {
+            return td;
+        }
+    }
+}
@@ -1,13 +1,15 @@
 package simpledb.execution;
 
 import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
 import simpledb.storage.TupleIterator;
 
 import java.io.Serializable;
 
 /**
- * The common interface for any class that can compute an aggregate over a
- * list of Tuples.
+ * The common interface for any class that can compute an aggregate, or
+ * several aggregates at once (see {@link MultiAggregator}), over a list of
+ * Tuples.
  */
 public interface Aggregator extends Serializable {
     int NO_GROUPING = -1;
@@ -78,6 +80,17 @@ public interface Aggregator extends Serializable {
      */
     void mergeTupleIntoGroup(Tuple tup);
 
+    /**
+     * Merge every row of a batch into the aggregate of its group.
+     *
+     * @param batch the rows containing an aggregate field and a group-by field
+     */
+    default void mergeBatch(TupleBatch batch) {
+        for (int i = 0; i < batch.size(); i++) {
+            mergeTupleIntoGroup(batch.getTuple(i));
+        }
+    }
+
     /**
      * Create a OpIterator over group aggregate results.
      *
@@ -85,4 +98,11 @@ public interface Aggregator extends Serializable {
      */
     OpIterator iterator();
 
+    /**
+     * Release the resources held by the aggregator, e.g. groups spilled to
+     * disk, and forget all groups.
+     */
+    default void close() {
+    }
+
 }
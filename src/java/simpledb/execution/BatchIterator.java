@@ -0,0 +1,63 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.TupleBatch;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+/**
+ * BatchIterator is the batch counterpart of {@link OpIterator}: instead of
+ * one tuple at a time, it returns {@link TupleBatch}es of up to
+ * {@link TupleBatch#DEFAULT_CAPACITY} rows, so that the cost of the calls
+ * between operators is spread over a whole batch.
+ * <p>
+ * The operators that can run on batches implement {@link BatchSource}; the
+ * others are read through a {@link TupleBatcher}. A {@link BatchedPlan} runs a
+ * plan on batches and returns its result as tuples.
+ */
+public interface BatchIterator {
+
+    /**
+     * Opens the iterator. This must be called before any of the other methods.
+     *
+     * @throws DbException when there are problems opening/accessing the database.
+     */
+    void open() throws DbException, TransactionAbortedException;
+
+    /**
+     * Returns the next batch. Batches may have fewer rows than their capacity,
+     * but never none.
+     *
+     * @return the next batch, or null if there are no more rows
+     * @throws IllegalStateException If the iterator has not been opened
+     */
+    TupleBatch nextBatch() throws DbException, TransactionAbortedException;
+
+    /**
+     * Resets the iterator to the start.
+     *
+     * @throws DbException when rewind is unsupported.
+     */
+    void rewind() throws DbException, TransactionAbortedException;
+
+    /**
+     * @return the TupleDesc of the rows of the batches
+     */
+    TupleDesc getTupleDesc();
+
+    /**
+     * Closes the iterator.
+     */
+    void close();
+
+    /**
+     * Return a BatchIterator over the tuples of an operator: its own batch
+     * implementation if it has one, or else an adapter.
+     */
+    static BatchIterator of(OpIterator it) {
+        if (it instanceof BatchSource) {
+            return ((BatchSource) it).batchIterator();
+        }
+        return new TupleBatcher(it);
+    }
+}
@@ -0,0 +1,15 @@
+package simpledb.execution;
+
+/**
+ * A BatchSource is an operator that can also return its tuples in batches.
+ * An operator should be read either through its tuple interface or through
+ * one of its batch iterators at a time, not both.
+ */
+public interface BatchSource {
+
+    /**
+     * Return a new, unopened BatchIterator over the tuples of this operator,
+     * which reads the children of the operator in batches as well.
+     */
+    BatchIterator batchIterator();
+}
@@ -0,0 +1,81 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.NoSuchElementException;
+
+/**
+ * BatchedPlan is an operator that runs its child plan on batches (see
+ * {@link BatchIterator}) and returns the rows of the batches as tuples. The
+ * tuples keep the RecordIds of the scanned tuples, except for joined ones.
+ * <p>
+ * {@link simpledb.optimizer.LogicalPlan} runs a query through a BatchedPlan
+ * if all of its operators have batch implementations.
+ */
+public class BatchedPlan extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private OpIterator child;
+    private transient BatchIterator batches;
+    private transient TupleBatch batch;
+    private transient int row;
+
+    /**
+     * Constructor.
+     *
+     * @param child the plan to run on batches
+     */
+    public BatchedPlan(OpIterator child) {
+        this.child = child;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException, TransactionAbortedException {
+        batches = BatchIterator.of(child);
+        batches.open();
+        batch = null;
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        if (batches != null) {
+            batches.close();
+            batches = null;
+        }
+        batch = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        batches.rewind();
+        batch = null;
+    }
+
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        while (batch == null || row == batch.size()) {
+            batch = batches.nextBatch();
+            row = 0;
+            if (batch == null) {
+                return null;
+            }
+        }
+        return batch.getTuple(row++);
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{this.child};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child = children[0];
+    }
+}
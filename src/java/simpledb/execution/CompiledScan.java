@@ -0,0 +1,146 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.NoSuchElementException;
+
+/**
+ * CompiledScan is an operator that runs a pipeline of filters and an optional
+ * projection over a scan as one loop generated for the pipeline (see
+ * {@link PipelineCompiler}). It reads the scan in batches, selects the rows
+ * that satisfy all predicates with the generated code, and projects the
+ * selected rows without copying them.
+ */
+public class CompiledScan extends Operator implements BatchSource {
+
+    private static final long serialVersionUID = 1L;
+    private OpIterator scan;
+    private final Predicate[] predicates;
+    private final int[] fields;
+    private final TupleDesc td;
+    private transient BatchIterator batches;
+    private transient TupleBatch batch;
+    private transient int row;
+
+    /**
+     * Constructor.
+     *
+     * @param scan       the scan to read
+     * @param predicates the predicates that the returned tuples satisfy; their
+     *                   fields are fields of the scan
+     * @param fields     the fields of the scan to return, or null to return all
+     * @param td         the TupleDesc of the returned tuples
+     */
+    public CompiledScan(OpIterator scan, Predicate[] predicates, int[] fields, TupleDesc td) {
+        this.scan = scan;
+        this.predicates = predicates;
+        this.fields = fields;
+        this.td = td;
+    }
+
+    /**
+     * @return the predicates of the pipeline, over the fields of the scan
+     */
+    public Predicate[] getPredicates() {
+        return predicates;
+    }
+
+    /**
+     * @return the fields of the scan that are returned, or null if all are
+     */
+    public int[] getFields() {
+        return fields;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void open() throws DbException, NoSuchElementException, TransactionAbortedException {
+        batches = batchIterator();
+        batches.open();
+        batch = null;
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        if (batches != null) {
+            batches.close();
+            batches = null;
+        }
+        batch = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        batches.rewind();
+        batch = null;
+    }
+
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        while (batch == null || row == batch.size()) {
+            batch = batches.nextBatch();
+            row = 0;
+            if (batch == null) {
+                return null;
+            }
+        }
+        return batch.getTuple(row++);
+    }
+
+    /**
+     * Return a BatchIterator over the selected and projected rows of the
+     * batches of the scan.
+     */
+    public BatchIterator batchIterator() {
+        BatchIterator child = BatchIterator.of(scan);
+        return new BatchIterator() {
+            private PipelineCompiler.Kernel kernel;
+
+            public void open() throws DbException, TransactionAbortedException {
+                if (kernel == null) {
+                    kernel = PipelineCompiler.kernel(predicates, scan.getTupleDesc());
+                }
+                child.open();
+            }
+
+            public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+                for (TupleBatch b = child.nextBatch(); b != null; b = child.nextBatch()) {
+                    int[] rows = new int[b.size()];
+                    int n = kernel.select(b, rows);
+                    if (n > 0) {
+                        TupleBatch selected = b.select(rows, n);
+                        return fields == null ? selected : selected.project(fields, td);
+                    }
+                }
+                return null;
+            }
+
+            public void rewind() throws DbException, TransactionAbortedException {
+                child.rewind();
+            }
+
+            public TupleDesc getTupleDesc() {
+                return td;
+            }
+
+            public void close() {
+                child.close();
+            }
+        };
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{this.scan};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.scan = children[0];
+    }
+}
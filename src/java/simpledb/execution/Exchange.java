@@ -0,0 +1,572 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.storage.TupleSpillFile;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Exchange is a Volcano-style exchange operator that runs several plan
+ * fragments below it on worker threads, one thread per fragment, and passes
+ * their tuples in batches through bounded queues to one or more outputs.
+ * Usually every fragment is a copy of the same subtree over a morsel-driven
+ * scan of a heap file (see {@link #partition}).
+ * <p>
+ * The tuples of the fragments are routed to the outputs by the mode of the
+ * exchange:
+ * <ul>
+ * <li>GATHER: all tuples go to a single output.</li>
+ * <li>REPARTITION: a tuple goes to the output chosen by the hash of one of
+ * its fields, so that every output sees all tuples with the same value.</li>
+ * <li>BROADCAST: every tuple goes to every output.</li>
+ * </ul>
+ * The Exchange itself reads output 0; the outputs of an exchange with several
+ * outputs are read with {@link #getOutput}, typically by the fragments of
+ * another exchange. The workers start when the first output is opened and
+ * stop when all opened outputs are closed. Since a worker waits while the
+ * queue of any output is full, all outputs must be read concurrently.
+ */
+public class Exchange extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Number of worker threads used by default
+     */
+    public static final int DEFAULT_WORKERS = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Number of tuples passed through a queue at a time
+     */
+    static final int BATCH_SIZE = 1024;
+
+    /**
+     * Number of batches a queue holds before the workers wait for its output
+     */
+    static final int QUEUE_BATCHES = 4;
+
+    /**
+     * How the tuples of the fragments are routed to the outputs.
+     */
+    public enum Mode {
+        GATHER, REPARTITION, BROADCAST;
+
+        public String toString() {
+            return name().toLowerCase();
+        }
+    }
+
+    /**
+     * Name of the worker threads
+     */
+    static final String WORKER_NAME = "simpledb-exchange-worker";
+
+    // marks the end of the tuples of one fragment in a queue
+    private static final List<Tuple> END_OF_FRAGMENT = new ArrayList<>();
+
+    private OpIterator[] fragments;
+    private final Mode mode;
+    private final int hashField;
+    private final Output[] outputs;
+
+    // the workers running for the opened outputs, or null
+    private transient Run current;
+    // the last run that was stopped, whose workers may not have finished yet
+    private transient Run stopping;
+
+    /**
+     * One run of the fragments: the workers and the queues of the outputs.
+     */
+    private static final class Run {
+        ExecutorService pool;
+        List<Future<Void>> workers = new ArrayList<>();
+        BlockingQueue<List<Tuple>>[] queues;
+        int openOutputs = 0;
+        volatile boolean stopped = false;
+    }
+
+    /**
+     * Constructor for an exchange that gathers the tuples of all fragments.
+     *
+     * @param fragments the plan fragments to run, one per worker thread; all
+     *                  must have the same TupleDesc
+     */
+    public Exchange(OpIterator[] fragments) {
+        this(fragments, Mode.GATHER, -1, 1);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param fragments  the plan fragments to run, one per worker thread; all
+     *                   must have the same TupleDesc
+     * @param mode       how tuples are routed to the outputs
+     * @param hashField  the field whose hash picks the output of a tuple in
+     *                   REPARTITION mode; ignored otherwise
+     * @param numOutputs the number of outputs; 1 in GATHER mode
+     */
+    public Exchange(OpIterator[] fragments, Mode mode, int hashField, int numOutputs) {
+        if (fragments.length == 0) {
+            throw new IllegalArgumentException("need at least one fragment");
+        }
+        if (numOutputs < 1 || (mode == Mode.GATHER && numOutputs != 1)) {
+            throw new IllegalArgumentException("a " + mode + " exchange cannot have " + numOutputs + " outputs");
+        }
+        this.fragments = fragments;
+        this.mode = mode;
+        this.hashField = hashField;
+        this.outputs = new Output[numOutputs];
+        for (int i = 0; i < numOutputs; i++) {
+            this.outputs[i] = new Output(i);
+        }
+    }
+
+    /**
+     * Make n copies of a subtree that together return the tuples of the
+     * subtree, for the fragments of an exchange. The copies share the pages of
+     * the table scanned by the leftmost {@link SeqScan} of the subtree, which
+     * they claim in morsels as they go (see {@link SeqScan#partition}), and
+     * read all tuples of their other inputs. The path from the root of the
+     * subtree to that scan may only go through filters (including join
+     * filters), projections, compiled scans and the outer side of joins.
+     *
+     * @param subtree the subtree to copy; it is not modified
+     * @param n       the number of copies
+     * @throws IllegalArgumentException if the subtree cannot be partitioned
+     */
+    public static OpIterator[] partition(OpIterator subtree, int n) {
+        SeqScan[] scans = null;
+        OpIterator[] copies = new OpIterator[n];
+        for (int i = 0; i < n; i++) {
+            OpIterator copy = deepCopy(subtree);
+            Operator parent = null;
+            OpIterator node = copy;
+            while (!(node instanceof SeqScan)) {
+                if (!(node instanceof Filter || node instanceof JoinFilter || node instanceof Project
+                        || node instanceof CompiledScan || node instanceof Join || node instanceof HashEquiJoin
+                        || node instanceof SortMergeJoin)) {
+                    throw new IllegalArgumentException("cannot partition the input of " + node.getClass().getSimpleName());
+                }
+                parent = (Operator) node;
+                node = parent.getChildren()[0];
+            }
+            if (scans == null) {
+                scans = ((SeqScan) node).partition(n);
+                if (scans == null) {
+                    throw new IllegalArgumentException("cannot partition a scan of " + ((SeqScan) node).getTableName());
+                }
+            }
+            if (parent == null) {
+                copies[i] = scans[i];
+            } else {
+                OpIterator[] children = parent.getChildren().clone();
+                children[0] = scans[i];
+                parent.setChildren(children);
+                copies[i] = copy;
+            }
+        }
+        return copies;
+    }
+
+    private static OpIterator deepCopy(OpIterator subtree) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                out.writeObject(subtree);
+            }
+            try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+                return (OpIterator) in.readObject();
+            }
+        } catch (IOException | ClassNotFoundException e) {
+            throw new IllegalArgumentException("cannot copy the subtree: " + e.getMessage(), e);
+        }
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * @return the number of worker threads
+     */
+    public int getWorkers() {
+        return fragments.length;
+    }
+
+    /**
+     * @return the number of outputs
+     */
+    public int getOutputs() {
+        return outputs.length;
+    }
+
+    /**
+     * @return a short description of the exchange, e.g. "Exchange(gather,4)"
+     */
+    public String getName() {
+        return "Exchange(" + mode + "," + fragments.length + ")";
+    }
+
+    /**
+     * @return the output i of this exchange
+     */
+    public Operator getOutput(int i) {
+        return outputs[i];
+    }
+
+    public TupleDesc getTupleDesc() {
+        return fragments[0].getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException, TransactionAbortedException {
+        outputs[0].open();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        outputs[0].close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        outputs[0].rewind();
+    }
+
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        return outputs[0].fetchNext();
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return fragments;
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.fragments = children;
+    }
+
+    /**
+     * Start the workers, unless they are running for other outputs.
+     *
+     * @return the run of the workers
+     */
+    @SuppressWarnings("unchecked")
+    private synchronized Run start() {
+        if (current == null) {
+            if (stopping != null) {
+                // the workers of the last run may still be claiming morsels
+                awaitStop(stopping);
+                stopping = null;
+            }
+            for (OpIterator fragment : fragments) {
+                resetScans(fragment);
+            }
+            Run run = new Run();
+            run.queues = new BlockingQueue[outputs.length];
+            for (int i = 0; i < run.queues.length; i++) {
+                run.queues[i] = new ArrayBlockingQueue<>(QUEUE_BATCHES * fragments.length);
+            }
+            run.pool = Executors.newFixedThreadPool(fragments.length, r -> {
+                Thread t = new Thread(r, WORKER_NAME);
+                t.setDaemon(true);
+                return t;
+            });
+            for (OpIterator fragment : fragments) {
+                run.workers.add(run.pool.submit(() -> {
+                    try {
+                        produce(fragment, run.queues);
+                    } finally {
+                        // once the run is stopped nobody reads the queues, and
+                        // a put into a full one would never return
+                        if (!run.stopped) {
+                            for (BlockingQueue<List<Tuple>> q : run.queues) {
+                                q.put(END_OF_FRAGMENT);
+                            }
+                        }
+                    }
+                    return null;
+                }));
+            }
+            current = run;
+        }
+        current.openOutputs++;
+        return current;
+    }
+
+    /**
+     * Make the morsel-driven scans of a fragment read their table again. The
+     * fragments of exchanges below reset their own scans.
+     */
+    private static void resetScans(OpIterator node) {
+        if (node instanceof SeqScan) {
+            ((SeqScan) node).resetPartitions();
+        } else if (node instanceof Operator && !(node instanceof Exchange) && !(node instanceof Output)) {
+            OpIterator[] children = ((Operator) node).getChildren();
+            if (children != null) {
+                for (OpIterator child : children) {
+                    if (child != null) {
+                        resetScans(child);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Run a fragment and route its tuples to the queues of the outputs.
+     */
+    private void produce(OpIterator fragment, BlockingQueue<List<Tuple>>[] out)
+            throws DbException, TransactionAbortedException, InterruptedException {
+        List<List<Tuple>> batches = new ArrayList<>();
+        for (int i = 0; i < out.length; i++) {
+            batches.add(new ArrayList<>(BATCH_SIZE));
+        }
+        try {
+            fragment.open();
+            while (fragment.hasNext()) {
+                Tuple t = fragment.next();
+                if (mode == Mode.BROADCAST) {
+                    for (int i = 0; i < out.length; i++) {
+                        add(batches, i, t, out);
+                    }
+                } else {
+                    int i = mode == Mode.GATHER ? 0
+                            : (t.getField(hashField).hashCode() & Integer.MAX_VALUE) % out.length;
+                    add(batches, i, t, out);
+                }
+            }
+        } finally {
+            fragment.close();
+        }
+        for (int i = 0; i < out.length; i++) {
+            if (!batches.get(i).isEmpty()) {
+                out[i].put(batches.get(i));
+            }
+        }
+    }
+
+    private static void add(List<List<Tuple>> batches, int i, Tuple t, BlockingQueue<List<Tuple>>[] out)
+            throws InterruptedException {
+        List<Tuple> batch = batches.get(i);
+        batch.add(t);
+        if (batch.size() == BATCH_SIZE) {
+            out[i].put(batch);
+            batches.set(i, new ArrayList<>(BATCH_SIZE));
+        }
+    }
+
+    /**
+     * Throw the failure of a worker of a run, if any has failed.
+     */
+    private static void checkWorkers(Run run) throws DbException, TransactionAbortedException {
+        for (Future<Void> f : run.workers) {
+            if (!f.isDone()) {
+                continue;
+            }
+            try {
+                f.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new DbException("interrupted while reading an exchange");
+            } catch (CancellationException e) {
+                throw new DbException("exchange was stopped");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof DbException)
+                    throw (DbException) e.getCause();
+                if (e.getCause() instanceof TransactionAbortedException)
+                    throw (TransactionAbortedException) e.getCause();
+                throw new RuntimeException(e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Release an output of a run, and stop its workers once all its opened
+     * outputs are released, or right away if force is set. Stopping waits
+     * until the workers have closed their fragments, so that a new run of
+     * the fragments does not overlap with the old one.
+     */
+    private void release(Run run, boolean force) {
+        synchronized (this) {
+            run.openOutputs--;
+            if ((run.openOutputs > 0 && !force) || run.stopped) {
+                return;
+            }
+            run.stopped = true;
+            if (current == run) {
+                current = null;
+                stopping = run;
+            }
+        }
+        awaitStop(run);
+    }
+
+    private static void awaitStop(Run run) {
+        run.pool.shutdownNow();
+        // make room for workers that were about to put a batch
+        for (BlockingQueue<List<Tuple>> q : run.queues) {
+            q.clear();
+        }
+        try {
+            run.pool.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * One output of the exchange. An output of a BROADCAST exchange keeps
+     * the tuples it read in a spill file, so that it can be rewound; the
+     * output of a GATHER exchange is rewound by running the fragments again.
+     */
+    private class Output extends Operator {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int index;
+        private transient Run run;
+        private transient BlockingQueue<List<Tuple>> queue;
+        private transient Iterator<Tuple> batch;
+        private transient int endedFragments;
+        private transient TupleSpillFile spool;
+        private transient TupleSpillFile.TupleReader replay;
+
+        Output(int index) {
+            this.index = index;
+        }
+
+        public TupleDesc getTupleDesc() {
+            return Exchange.this.getTupleDesc();
+        }
+
+        public void open() throws DbException, NoSuchElementException, TransactionAbortedException {
+            run = start();
+            queue = run.queues[index];
+            batch = null;
+            endedFragments = 0;
+            if (mode == Mode.BROADCAST) {
+                try {
+                    spool = new TupleSpillFile(getTupleDesc());
+                } catch (IOException e) {
+                    throw new DbException("cannot spool exchange output: " + e.getMessage());
+                }
+            }
+            super.open();
+        }
+
+        public void close() {
+            super.close();
+            if (run == null) {
+                return;
+            }
+            closeSpool();
+            Run r = run;
+            run = null;
+            queue = null;
+            release(r, false);
+        }
+
+        private void closeSpool() {
+            if (replay != null) {
+                replay.close();
+                replay = null;
+            }
+            if (spool != null) {
+                spool.close();
+                spool = null;
+            }
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            switch (mode) {
+                case GATHER:
+                    closeSpool();
+                    Run r = run;
+                    run = null;
+                    if (r != null) {
+                        release(r, true);
+                    }
+                    open();
+                    break;
+                case BROADCAST:
+                    // read the rest of the tuples into the spool, then replay it
+                    while (fetchNext() != null) {
+                    }
+                    if (replay != null) {
+                        replay.close();
+                    }
+                    try {
+                        replay = spool.iterator();
+                    } catch (IOException e) {
+                        throw new DbException("cannot replay exchange output: " + e.getMessage());
+                    }
+                    break;
+                default:
+                    throw new DbException("the outputs of a " + mode + " exchange cannot be rewound");
+            }
+        }
+
+        protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+            if (replay != null) {
+                return replay.hasNext() ? replay.next() : null;
+            }
+            while (batch == null || !batch.hasNext()) {
+                if (endedFragments == fragments.length) {
+                    checkWorkers(run);
+                    return null;
+                }
+                List<Tuple> next;
+                try {
+                    next = queue.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new DbException("interrupted while reading an exchange");
+                }
+                if (next == END_OF_FRAGMENT) {
+                    endedFragments++;
+                    checkWorkers(run);
+                } else {
+                    batch = next.iterator();
+                }
+            }
+            Tuple t = batch.next();
+            if (spool != null) {
+                try {
+                    spool.append(t);
+                } catch (IOException e) {
+                    throw new DbException("cannot spool exchange output: " + e.getMessage());
+                }
+            }
+            return t;
+        }
+
+        @Override
+        public OpIterator[] getChildren() {
+            return new OpIterator[] { Exchange.this };
+        }
+
+        @Override
+        public void setChildren(OpIterator[] children) {
+        }
+    }
+}
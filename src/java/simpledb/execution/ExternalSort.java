@@ -0,0 +1,330 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.BufferPool;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleCursor;
+import simpledb.storage.TupleDesc;
+import simpledb.storage.TupleSpillFile;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.*;
+
+/**
+ * ExternalSort sorts a stream of tuples within a memory budget. Tuples are
+ * buffered until the budget is full, then the buffer is sorted and spilled as
+ * a sorted run to a {@link TupleSpillFile} in a temporary directory of the
+ * sort. Reading the result merges the runs with a loser tree; if there are
+ * more runs than fit in memory at once, groups of runs are merged into longer
+ * runs first.
+ * <p>
+ * Inputs that fit in memory are sorted in memory and never touch disk. If
+ * only the first tuples of the ordering are needed (a limit is given), and
+ * they fit in memory, they are kept in a bounded heap instead.
+ */
+public class ExternalSort {
+
+    /**
+     * Default memory budget of a sort, in pages
+     */
+    public static final int DEFAULT_MEMORY_PAGES = 256;
+
+    /**
+     * Value of limit when all tuples are needed
+     */
+    public static final int NO_LIMIT = -1;
+
+    private final TupleDesc td;
+    private final Comparator<Tuple> comparator;
+    private final int memoryPages;
+    private final int maxTuplesInMemory;
+    private final int limit;
+
+    private final List<Tuple> buffer = new ArrayList<>();
+    // top-N mode: the smallest limit tuples seen so far, largest on top
+    private final PriorityQueue<Tuple> topN;
+    private final List<TupleSpillFile> runs = new ArrayList<>();
+    private File spillDir;
+    private boolean sorted = false;
+
+    /**
+     * Create an empty sort.
+     *
+     * @param td          the TupleDesc of the tuples to sort
+     * @param comparator  the sort order
+     * @param memoryPages the memory budget in pages; at least 3 are used so
+     *                    that two runs can be merged
+     */
+    public ExternalSort(TupleDesc td, Comparator<Tuple> comparator, int memoryPages) {
+        this(td, comparator, memoryPages, NO_LIMIT);
+    }
+
+    /**
+     * Create an empty sort that only returns the first tuples of the
+     * ordering.
+     *
+     * @param td          the TupleDesc of the tuples to sort
+     * @param comparator  the sort order
+     * @param memoryPages the memory budget in pages; at least 3 are used so
+     *                    that two runs can be merged
+     * @param limit       the number of tuples to return, or NO_LIMIT
+     */
+    public ExternalSort(TupleDesc td, Comparator<Tuple> comparator, int memoryPages, int limit) {
+        this.td = td;
+        this.comparator = comparator;
+        this.memoryPages = Math.max(3, memoryPages);
+        this.maxTuplesInMemory = Math.max(1, this.memoryPages * BufferPool.getPageSize() / td.getSize());
+        this.limit = limit;
+        this.topN = limit >= 0 && limit <= maxTuplesInMemory
+                ? new PriorityQueue<>(Math.max(1, limit), comparator.reversed())
+                : null;
+    }
+
+    /**
+     * Sort all remaining tuples of an open iterator.
+     */
+    public static ExternalSort sort(OpIterator child, Comparator<Tuple> comparator, int memoryPages)
+            throws DbException, TransactionAbortedException {
+        ExternalSort sort = new ExternalSort(child.getTupleDesc(), comparator, memoryPages);
+        while (child.hasNext()) {
+            sort.add(child.next());
+        }
+        return sort;
+    }
+
+    /**
+     * Add a tuple to the sort; may spill a sorted run to disk.
+     */
+    public void add(Tuple t) throws DbException {
+        if (sorted) {
+            throw new IllegalStateException("cannot add tuples to a sort that was read");
+        }
+        if (topN != null) {
+            if (topN.size() < limit) {
+                topN.add(t);
+            } else if (limit > 0 && comparator.compare(t, topN.peek()) < 0) {
+                topN.poll();
+                topN.add(t);
+            }
+            return;
+        }
+        buffer.add(t);
+        if (buffer.size() >= maxTuplesInMemory) {
+            spillBuffer();
+        }
+    }
+
+    private void spillBuffer() throws DbException {
+        buffer.sort(comparator);
+        // with a limit, no run needs more than the first limit tuples
+        int n = limit >= 0 ? Math.min(limit, buffer.size()) : buffer.size();
+        try {
+            TupleSpillFile run = newRun();
+            for (Tuple t : buffer.subList(0, n)) {
+                run.append(t);
+            }
+            run.finish();
+            runs.add(run);
+        } catch (IOException e) {
+            throw new DbException("cannot write sorted run: " + e.getMessage());
+        }
+        buffer.clear();
+    }
+
+    private TupleSpillFile newRun() throws IOException {
+        if (spillDir == null) {
+            spillDir = Files.createTempDirectory("simpledb-sort").toFile();
+            spillDir.deleteOnExit();
+        }
+        return new TupleSpillFile(td, spillDir);
+    }
+
+    /**
+     * @return the number of sorted runs written to disk so far
+     */
+    public int numRuns() {
+        return runs.size();
+    }
+
+    /**
+     * Return an iterator over the sorted tuples. May be called several times,
+     * e.g. to rewind; no tuples can be added afterwards. An iterator that is
+     * dropped before it is exhausted must be closed.
+     */
+    public TupleCursor iterator() throws DbException {
+        if (!sorted) {
+            sorted = true;
+            if (topN != null) {
+                buffer.addAll(topN);
+                topN.clear();
+                buffer.sort(comparator);
+            } else if (runs.isEmpty()) {
+                buffer.sort(comparator);
+                if (limit >= 0 && buffer.size() > limit) {
+                    buffer.subList(limit, buffer.size()).clear();
+                }
+            } else {
+                if (!buffer.isEmpty()) {
+                    spillBuffer();
+                }
+                mergeDownTo(memoryPages - 1);
+            }
+        }
+        if (runs.isEmpty()) {
+            return TupleCursor.of(Collections.unmodifiableList(buffer).iterator());
+        }
+        return new MergeIterator(runs, limit);
+    }
+
+    /**
+     * Merge groups of runs into longer runs until at most maxFanIn are left.
+     */
+    private void mergeDownTo(int maxFanIn) throws DbException {
+        while (runs.size() > maxFanIn) {
+            List<TupleSpillFile> group = new ArrayList<>(runs.subList(0, maxFanIn));
+            runs.subList(0, maxFanIn).clear();
+            MergeIterator it = new MergeIterator(group, limit);
+            try {
+                TupleSpillFile merged = newRun();
+                while (it.hasNext()) {
+                    merged.append(it.next());
+                }
+                merged.finish();
+                runs.add(merged);
+            } catch (IOException e) {
+                throw new DbException("cannot write merged run: " + e.getMessage());
+            } finally {
+                it.close();
+            }
+            for (TupleSpillFile run : group) {
+                run.close();
+            }
+        }
+    }
+
+    /**
+     * Delete all runs and drop buffered tuples.
+     */
+    public void close() {
+        for (TupleSpillFile run : runs) {
+            run.close();
+        }
+        runs.clear();
+        buffer.clear();
+        if (topN != null) {
+            topN.clear();
+        }
+        if (spillDir != null) {
+            spillDir.delete();
+            spillDir = null;
+        }
+    }
+
+    /**
+     * k-way merge of sorted runs with a loser tree. The leaves of the tree
+     * are the current tuples of the runs; every inner node holds the run
+     * that lost the comparison at that node, and tree[0] the overall winner.
+     * Replacing the winner only replays the path from its leaf to the root,
+     * i.e. log2(k) comparisons per tuple.
+     */
+    private class MergeIterator implements TupleCursor {
+        private final List<TupleSpillFile.TupleReader> readers = new ArrayList<>();
+        private final Tuple[] heads; // null once a run is exhausted
+        private final int[] tree;
+        private final int k;
+        private int remaining;
+
+        MergeIterator(List<TupleSpillFile> sources, int limit) throws DbException {
+            k = sources.size();
+            heads = new Tuple[k];
+            tree = new int[Math.max(1, k)];
+            remaining = limit >= 0 ? limit : Integer.MAX_VALUE;
+            try {
+                for (TupleSpillFile run : sources) {
+                    TupleSpillFile.TupleReader reader = run.iterator();
+                    readers.add(reader);
+                    heads[readers.size() - 1] = reader.hasNext() ? reader.next() : null;
+                }
+            } catch (IOException e) {
+                close();
+                throw new DbException("cannot read sorted run: " + e.getMessage());
+            }
+
+            // every inner node receives the winners of both of its subtrees;
+            // the first one waits there for the second
+            Arrays.fill(tree, -1);
+            for (int i = 0; i < k; i++) {
+                int winner = i;
+                int t = (i + k) / 2;
+                while (t > 0 && tree[t] != -1) {
+                    if (beats(tree[t], winner)) {
+                        int loser = winner;
+                        winner = tree[t];
+                        tree[t] = loser;
+                    }
+                    t /= 2;
+                }
+                if (t > 0) {
+                    tree[t] = winner;
+                } else {
+                    tree[0] = winner;
+                }
+            }
+        }
+
+        /**
+         * @return true if the current tuple of run a sorts before that of run
+         * b; exhausted runs sort last, ties go to the earlier run
+         */
+        private boolean beats(int a, int b) {
+            if (heads[b] == null) {
+                return heads[a] != null || a < b;
+            }
+            if (heads[a] == null) {
+                return false;
+            }
+            int c = comparator.compare(heads[a], heads[b]);
+            return c < 0 || (c == 0 && a < b);
+        }
+
+        public boolean hasNext() {
+            if (k == 0 || remaining <= 0 || heads[tree[0]] == null) {
+                close();
+                return false;
+            }
+            return true;
+        }
+
+        public Tuple next() throws DbException {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            int w = tree[0];
+            Tuple result = heads[w];
+            TupleSpillFile.TupleReader reader = readers.get(w);
+            heads[w] = reader.hasNext() ? reader.next() : null;
+
+            // replay the matches on the path from leaf w to the root
+            int winner = w;
+            for (int t = (w + k) / 2; t > 0; t /= 2) {
+                if (beats(tree[t], winner)) {
+                    int loser = winner;
+                    winner = tree[t];
+                    tree[t] = loser;
+                }
+            }
+            tree[0] = winner;
+            remaining--;
+            return result;
+        }
+
+        public void close() {
+            for (TupleSpillFile.TupleReader reader : readers) {
+                reader.close();
+            }
+        }
+    }
+}
@@ -2,6 +2,7 @@ package simpledb.execution;
 
 import simpledb.common.DbException;
 import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
 import simpledb.storage.TupleDesc;
 import simpledb.transaction.TransactionAbortedException;
 
@@ -10,7 +11,7 @@ import java.util.NoSuchElementException;
 /**
  * Filter is an operator that implements a relational select.
  */
-public class Filter extends Operator {
+public class Filter extends Operator implements BatchSource {
 
     private static final long serialVersionUID = 1L;
 
@@ -79,6 +80,41 @@ public class Filter extends Operator {
         return null;
     }
 
+    /**
+     * Return a BatchIterator that applies the predicate to whole batches of
+     * the child, see {@link Predicate#filter(TupleBatch)}.
+     */
+    public BatchIterator batchIterator() {
+        BatchIterator child = BatchIterator.of(children[0]);
+        return new BatchIterator() {
+            public void open() throws DbException, TransactionAbortedException {
+                child.open();
+            }
+
+            public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+                for (TupleBatch batch = child.nextBatch(); batch != null; batch = child.nextBatch()) {
+                    TupleBatch selected = p.filter(batch);
+                    if (selected.size() > 0) {
+                        return selected;
+                    }
+                }
+                return null;
+            }
+
+            public void rewind() throws DbException, TransactionAbortedException {
+                child.rewind();
+            }
+
+            public TupleDesc getTupleDesc() {
+                return child.getTupleDesc();
+            }
+
+            public void close() {
+                child.close();
+            }
+        };
+    }
+
     @Override
     public OpIterator[] getChildren() {
         // TODO: some code goes here (OK)
@@ -1,16 +1,23 @@
 package simpledb.execution;
 
 import simpledb.common.DbException;
+import simpledb.storage.BufferPool;
+import simpledb.storage.Field;
 import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
 import simpledb.storage.TupleDesc;
+import simpledb.storage.TupleSpillFile;
 import simpledb.transaction.TransactionAbortedException;
 
+import java.io.IOException;
 import java.util.*;
 
 /**
- * The Join operator implements the relational join operation.
+ * The HashEquiJoin operator implements the relational equi-join with a hybrid
+ * hash join that stays within a memory budget, spilling partitions to disk.
+ * Its batch implementation probes whole batches of the probe input.
  */
-public class HashEquiJoin extends Operator {
+public class HashEquiJoin extends Operator implements BatchSource {
 
     private static final long serialVersionUID = 1L;
     private final JoinPredicate pred;
@@ -28,9 +35,24 @@ public class HashEquiJoin extends Operator {
      * @param child2 Iterator for the right(inner) relation to join
      */
     public HashEquiJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        this(p, child1, child2, DEFAULT_MEMORY_PAGES);
+    }
+
+    /**
+     * Constructor. Accepts to children to join, the predicate to join them on
+     * and the memory budget of the join
+     *
+     * @param p           The predicate to use to join the children
+     * @param child1      Iterator for the left(outer) relation to join; its
+     *                    tuples are put in the hash table
+     * @param child2      Iterator for the right(inner) relation to join
+     * @param memoryPages Number of pages of child1 tuples kept in memory
+     */
+    public HashEquiJoin(JoinPredicate p, OpIterator child1, OpIterator child2, int memoryPages) {
         this.pred = p;
         this.child1 = child1;
         this.child2 = child2;
+        this.memoryPages = memoryPages;
         comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
     }
 
@@ -50,53 +72,398 @@ public class HashEquiJoin extends Operator {
         return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
     }
 
-    final Map<Object, List<Tuple>> map = new HashMap<>();
-    public final static int MAP_SIZE = 20000;
+    /**
+     * Default memory budget of the join, in pages of build (child1) tuples
+     */
+    public static final int DEFAULT_MEMORY_PAGES = 256;
+
+    /**
+     * Number of partitions an input is split into when the build side does
+     * not fit in memory
+     */
+    static final int NUM_PARTITIONS = 16;
+
+    /**
+     * Number of times a partition may be re-partitioned. Deeper partitions
+     * (heavily skewed keys) are joined chunk by chunk instead.
+     */
+    static final int MAX_DEPTH = 4;
+
+    /**
+     * @return the number of times the tuples of both inputs are written to
+     *         and read back from partitions when the build input has
+     *         buildPages pages, assuming evenly distributed keys
+     */
+    public static int spillPasses(double buildPages, int memoryPages) {
+        int passes = 0;
+        while (buildPages > memoryPages && passes < MAX_DEPTH) {
+            buildPages /= NUM_PARTITIONS;
+            passes++;
+        }
+        return passes;
+    }
+
+    private final int memoryPages;
+
+    /**
+     * A stream of tuples that can be rewound: either a child of the join or a
+     * spilled partition.
+     */
+    private interface TupleSource {
+        boolean hasNext() throws DbException, TransactionAbortedException;
+
+        Tuple next() throws DbException, TransactionAbortedException;
+
+        void rewind() throws DbException, TransactionAbortedException;
+
+        void close();
+    }
+
+    private static TupleSource childSource(OpIterator child) {
+        return new TupleSource() {
+            public boolean hasNext() throws DbException, TransactionAbortedException {
+                return child.hasNext();
+            }
+
+            public Tuple next() throws DbException, TransactionAbortedException {
+                return child.next();
+            }
+
+            public void rewind() throws DbException, TransactionAbortedException {
+                child.rewind();
+            }
+
+            public void close() {
+                // the join closes its children itself
+            }
+        };
+    }
+
+    /**
+     * The rows of a BatchIterator, which can also be read batch by batch.
+     */
+    private static class BatchTupleSource implements TupleSource {
+        private final BatchIterator batches;
+        private TupleBatch batch = null;
+        private int row = 0;
+
+        BatchTupleSource(BatchIterator batches) {
+            this.batches = batches;
+        }
+
+        public boolean hasNext() throws DbException, TransactionAbortedException {
+            while (batch == null || row == batch.size()) {
+                batch = batches.nextBatch();
+                row = 0;
+                if (batch == null) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public Tuple next() throws DbException, TransactionAbortedException {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return batch.getTuple(row++);
+        }
+
+        /**
+         * @return the rows not read yet of the current batch, or else the next
+         *         batch; null if there are no more rows
+         */
+        TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+            if (!hasNext()) {
+                return null;
+            }
+            TupleBatch rest = batch;
+            if (row > 0) {
+                int[] sel = batch.getSelection();
+                int[] rows = new int[batch.size() - row];
+                for (int i = 0; i < rows.length; i++) {
+                    rows[i] = sel == null ? row + i : sel[row + i];
+                }
+                rest = batch.select(rows, rows.length);
+            }
+            batch = null;
+            return rest;
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            batches.rewind();
+            batch = null;
+        }
+
+        public void close() {
+            // the join closes its children itself
+        }
+    }
+
+    /**
+     * A spilled partition; the file is only opened once it is read.
+     */
+    private static class SpillSource implements TupleSource {
+        private final TupleSpillFile file;
+        private TupleSpillFile.TupleReader reader = null;
+
+        SpillSource(TupleSpillFile file) {
+            this.file = file;
+        }
+
+        public boolean hasNext() throws DbException {
+            if (reader == null) {
+                try {
+                    reader = file.iterator();
+                } catch (IOException e) {
+                    throw new DbException("cannot read spilled partition: " + e.getMessage());
+                }
+            }
+            return reader.hasNext();
+        }
+
+        public Tuple next() throws DbException {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return reader.next();
+        }
+
+        public void rewind() {
+            if (reader != null) {
+                reader.close();
+                reader = null;
+            }
+        }
+
+        public void close() {
+            rewind();
+            file.close();
+        }
+    }
+
+    /**
+     * One pass of the join over a pair of inputs: either the children, or a
+     * build and probe partition spilled by an earlier pass.
+     */
+    private static class Pass {
+        final int depth;
+        final TupleSource build;
+        final TupleSource probe;
+        final TupleSpillFile[] buildSpills = new TupleSpillFile[NUM_PARTITIONS];
+        final TupleSpillFile[] probeSpills = new TupleSpillFile[NUM_PARTITIONS];
+
+        Pass(int depth, TupleSource build, TupleSource probe) {
+            this.depth = depth;
+            this.build = build;
+            this.probe = probe;
+        }
+
+        /**
+         * Too deep to re-partition: join in chunks of build tuples instead
+         */
+        boolean chunked() {
+            return depth >= MAX_DEPTH;
+        }
+
+        void close() {
+            build.close();
+            probe.close();
+            for (int i = 0; i < NUM_PARTITIONS; i++) {
+                if (buildSpills[i] != null) {
+                    buildSpills[i].close();
+                }
+                if (probeSpills[i] != null) {
+                    probeSpills[i].close();
+                }
+            }
+        }
+    }
+
+    transient private Pass pass = null;
+    transient private Deque<Pass> pendingPasses = null;
+    transient private Map<Field, List<Tuple>> table = null;
+    transient private Iterator<Tuple> listIt = null;
+    transient private TupleBatch probeBatch = null;
+    transient private int probeRow = 0;
+
+    /**
+     * Maximum number of build tuples held in memory at once
+     */
+    private int maxTuplesInMemory() {
+        return Math.max(1, memoryPages * BufferPool.getPageSize() / child1.getTupleDesc().getSize());
+    }
+
+    /**
+     * Partition of a join key at the given depth. Every depth uses different
+     * bits of the (mixed) hash code, so a partition is split further when it
+     * is re-partitioned.
+     */
+    static int partition(Field f, int depth) {
+        return partition(f.hashCode(), depth);
+    }
+
+    /**
+     * Partition of a hash code at the given depth; also used to partition
+     * spilled aggregation groups.
+     */
+    static int partition(int h, int depth) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return (h >>> (depth * 4)) & (NUM_PARTITIONS - 1);
+    }
+
+    /**
+     * Build the hash table of a pass. The build input is partitioned; while
+     * the in-memory partitions exceed the memory budget the largest one is
+     * spilled, and the remaining ones make up the hash table.
+     */
+    private void startPass(Pass p) throws DbException, TransactionAbortedException {
+        pass = p;
+        table = new HashMap<>();
+        if (p.chunked()) {
+            loadChunk();
+            return;
+        }
+
+        int budget = maxTuplesInMemory();
+        List<List<Tuple>> inMemory = new ArrayList<>(NUM_PARTITIONS);
+        for (int i = 0; i < NUM_PARTITIONS; i++) {
+            inMemory.add(new ArrayList<>());
+        }
+        int total = 0;
+        try {
+            while (p.build.hasNext()) {
+                Tuple t = p.build.next();
+                int part = partition(t.getField(pred.getField1()), p.depth);
+                if (p.buildSpills[part] != null) {
+                    p.buildSpills[part].append(t);
+                    continue;
+                }
+                inMemory.get(part).add(t);
+                if (++total > budget) {
+                    // spill the largest partition still in memory
+                    int victim = 0;
+                    for (int i = 1; i < NUM_PARTITIONS; i++) {
+                        if (inMemory.get(i).size() > inMemory.get(victim).size()) {
+                            victim = i;
+                        }
+                    }
+                    p.buildSpills[victim] = new TupleSpillFile(child1.getTupleDesc());
+                    for (Tuple spilled : inMemory.get(victim)) {
+                        p.buildSpills[victim].append(spilled);
+                    }
+                    total -= inMemory.get(victim).size();
+                    inMemory.set(victim, new ArrayList<>());
+                }
+            }
+        } catch (IOException e) {
+            throw new DbException("cannot spill hash join partition: " + e.getMessage());
+        }
+
+        for (List<Tuple> part : inMemory) {
+            for (Tuple t : part) {
+                table.computeIfAbsent(t.getField(pred.getField1()), k -> new ArrayList<>()).add(t);
+            }
+        }
+    }
+
+    /**
+     * Load the next chunk of build tuples of a chunked pass.
+     */
+    private void loadChunk() throws DbException, TransactionAbortedException {
+        table.clear();
+        int budget = maxTuplesInMemory();
+        for (int cnt = 0; cnt < budget && pass.build.hasNext(); cnt++) {
+            Tuple t = pass.build.next();
+            table.computeIfAbsent(t.getField(pred.getField1()), k -> new ArrayList<>()).add(t);
+        }
+    }
+
+    /**
+     * The probe input of the current pass is exhausted: queue a pass for every
+     * spilled partition and start the next pass, if any.
+     *
+     * @return false if there are no more passes
+     */
+    private boolean nextPass() throws DbException, TransactionAbortedException {
+        for (int i = 0; i < NUM_PARTITIONS; i++) {
+            TupleSpillFile build = pass.buildSpills[i];
+            TupleSpillFile probe = pass.probeSpills[i];
+            pass.buildSpills[i] = null;
+            pass.probeSpills[i] = null;
+            if (build == null) {
+                continue;
+            }
+            if (probe == null) {
+                // no probe tuple fell into this partition: nothing to join
+                build.close();
+                continue;
+            }
+            pendingPasses.push(new Pass(pass.depth + 1, new SpillSource(build), new SpillSource(probe)));
+        }
+        pass.close();
+        pass = null;
+        table = null;
 
-    private boolean loadMap() throws DbException, TransactionAbortedException {
-        int cnt = 0;
-        map.clear();
-        while (child1.hasNext()) {
-            t1 = child1.next();
-            List<Tuple> list = map.computeIfAbsent(t1.getField(pred.getField1()), k -> new ArrayList<>());
-            list.add(t1);
-            if (cnt++ == MAP_SIZE)
-                return true;
+        if (pendingPasses.isEmpty()) {
+            return false;
         }
-        return cnt > 0;
+        startPass(pendingPasses.pop());
+        return true;
+    }
 
+    private void closePasses() {
+        if (pass != null) {
+            pass.close();
+            pass = null;
+        }
+        if (pendingPasses != null) {
+            for (Pass p : pendingPasses) {
+                p.close();
+            }
+            pendingPasses.clear();
+        }
+        table = null;
+        listIt = null;
+        probeBatch = null;
     }
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child1.open();
         child2.open();
-        loadMap();
+        pendingPasses = new ArrayDeque<>();
+        startPass(new Pass(0, childSource(child1), childSource(child2)));
         super.open();
     }
 
     public void close() {
         super.close();
+        closePasses();
         child2.close();
         child1.close();
         this.t1 = null;
         this.t2 = null;
-        this.listIt = null;
-        this.map.clear();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
+        closePasses();
         child1.rewind();
         child2.rewind();
+        startPass(new Pass(0, childSource(child1), childSource(child2)));
     }
 
-    transient Iterator<Tuple> listIt = null;
-
     /**
      * Returns the next tuple generated by the join, or null if there are no
      * more tuples. Logically, this is the next tuple in r1 cross r2 that
-     * satisfies the join predicate. There are many possible implementations;
-     * the simplest is a nested loops join.
+     * satisfies the join predicate. This implementation is a hybrid hash join:
+     * child1 is the build input and child2 the probe input; partitions of the
+     * build input that do not fit in memory are spilled to disk together with
+     * their probe tuples and joined in later passes.
      * <p>
      * Note that the tuples returned from this particular implementation of Join
      * are simply the concatenation of joining tuples from the left and right
@@ -127,32 +494,132 @@ public class HashEquiJoin extends Operator {
     }
 
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-        if (listIt != null && listIt.hasNext()) {
-            return processList();
-        }
-
-        // loop around child2
-        while (child2.hasNext()) {
-            t2 = child2.next();
+        while (pass != null) {
+            if (listIt != null && listIt.hasNext()) {
+                return processList();
+            }
+            listIt = null;
 
-            // if match, create a combined tuple and fill it with the values
-            // from both tuples
-            List<Tuple> l = map.get(t2.getField(pred.getField2()));
-            if (l == null)
+            if (pass.probe.hasNext()) {
+                t2 = pass.probe.next();
+                Field key = t2.getField(pred.getField2());
+                if (!pass.chunked()) {
+                    int part = partition(key, pass.depth);
+                    if (pass.buildSpills[part] != null) {
+                        // the matching build tuples are on disk: join later
+                        spillProbe(part, t2);
+                        continue;
+                    }
+                }
+                List<Tuple> l = table.get(key);
+                if (l != null) {
+                    listIt = l.iterator();
+                }
                 continue;
-            listIt = l.iterator();
-
-            return processList();
+            }
 
+            // probe input is done: next chunk of a chunked pass, or next pass
+            if (pass.chunked() && pass.build.hasNext()) {
+                loadChunk();
+                pass.probe.rewind();
+                continue;
+            }
+            if (!nextPass()) {
+                return null;
+            }
         }
+        return null;
+    }
 
-        // child2 is done: advance child1
-        child2.rewind();
-        if (loadMap()) {
-            return fetchNext();
+    private void spillProbe(int part, Tuple t) throws DbException {
+        try {
+            if (pass.probeSpills[part] == null) {
+                pass.probeSpills[part] = new TupleSpillFile(child2.getTupleDesc());
+            }
+            pass.probeSpills[part].append(t);
+        } catch (IOException e) {
+            throw new DbException("cannot spill hash join partition: " + e.getMessage());
         }
+    }
 
-        return null;
+    /**
+     * Return a BatchIterator over the joined rows. The children are read in
+     * batches; the first pass looks up the rows of every batch of the probe
+     * input in the hash table and copies the matches into the output batch
+     * column by column, while passes over spilled partitions join tuple by
+     * tuple as {@link #fetchNext()} does.
+     */
+    public BatchIterator batchIterator() {
+        BatchIterator buildBatches = BatchIterator.of(child1);
+        BatchIterator probeBatches = BatchIterator.of(child2);
+        return new BatchIterator() {
+            public void open() throws DbException, TransactionAbortedException {
+                buildBatches.open();
+                probeBatches.open();
+                pendingPasses = new ArrayDeque<>();
+                startPass(new Pass(0, new BatchTupleSource(buildBatches), new BatchTupleSource(probeBatches)));
+            }
+
+            public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+                return fetchNextBatch();
+            }
+
+            public void rewind() throws DbException, TransactionAbortedException {
+                closePasses();
+                buildBatches.rewind();
+                probeBatches.rewind();
+                startPass(new Pass(0, new BatchTupleSource(buildBatches), new BatchTupleSource(probeBatches)));
+            }
+
+            public TupleDesc getTupleDesc() {
+                return comboTD;
+            }
+
+            public void close() {
+                closePasses();
+                probeBatches.close();
+                buildBatches.close();
+            }
+        };
+    }
+
+    private TupleBatch fetchNextBatch() throws DbException, TransactionAbortedException {
+        TupleBatch out = new TupleBatch(comboTD);
+        while (!out.isFull() && pass != null) {
+            if (pass.depth > 0) {
+                Tuple t = fetchNext();
+                if (t == null) {
+                    break;
+                }
+                out.add(t);
+                continue;
+            }
+            if (listIt != null && listIt.hasNext()) {
+                out.add(listIt.next(), probeBatch, probeRow - 1);
+                continue;
+            }
+            listIt = null;
+            if (probeBatch == null || probeRow == probeBatch.size()) {
+                probeBatch = ((BatchTupleSource) pass.probe).nextBatch();
+                probeRow = 0;
+                if (probeBatch == null && !nextPass()) {
+                    break;
+                }
+                continue;
+            }
+            int row = probeRow++;
+            Field key = probeBatch.getField(pred.getField2(), row);
+            int part = partition(key, pass.depth);
+            if (pass.buildSpills[part] != null) {
+                spillProbe(part, probeBatch.getTuple(row));
+                continue;
+            }
+            List<Tuple> l = table.get(key);
+            if (l != null) {
+                listIt = l.iterator();
+            }
+        }
+        return out.size() == 0 ? null : out;
     }
 
     @Override
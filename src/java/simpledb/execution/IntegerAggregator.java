@@ -1,17 +1,10 @@
 package simpledb.execution;
 
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
-import java.util.Set;
-
 import simpledb.common.DbException;
 import simpledb.common.Type;
-import simpledb.storage.Field;
-import simpledb.storage.IntField;
 import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
 import simpledb.storage.TupleDesc;
-import simpledb.transaction.TransactionAbortedException;
 
 /**
  * Knows how to compute some aggregate over a set of IntFields.
@@ -26,15 +19,8 @@ public class IntegerAggregator implements Aggregator {
     private Op aggOp;
     private TupleDesc td;
 
-    // key: group by field | value: tuple for that group (aggregate value + optional
-    // group by value)
-    private Map<Field, Tuple> aggValues;
-    // key: group by field | value: count of original tuples in that group
-    private Map<Field, Integer> groupByCount;
-
-    // keep track of sum for each group (bc. int avg loses accuracy during
-    // calculation)
-    private Map<Field, Integer> groupBySum;
+    // one accumulator per group; spills groups to disk beyond its memory budget
+    private final AggregationTable groups;
 
     /**
      * Aggregate constructor
@@ -48,14 +34,23 @@ public class IntegerAggregator implements Aggregator {
      */
 
     public IntegerAggregator(int gbfield, Type gbfieldtype, int afield, Op what) {
+        this(gbfield, gbfieldtype, afield, what, AggregationTable.DEFAULT_MEMORY_PAGES);
+    }
+
+    /**
+     * Aggregate constructor with a memory budget for the groups
+     *
+     * @param memoryPages the number of pages of groups kept in memory; the
+     *                    other groups are spilled to disk
+     */
+    public IntegerAggregator(int gbfield, Type gbfieldtype, int afield, Op what, int memoryPages) {
         // TODO: some code goes here (OK)
         this.gbFieldIdx = gbfield;
         this.gbFieldType = gbfieldtype;
         this.aFieldIdx = afield;
         this.aggOp = what;
-        this.aggValues = new HashMap<>();
-        this.groupByCount = new HashMap<>();
-        this.groupBySum = new HashMap<>();
+        this.groups = new AggregationTable(gbfield == NO_GROUPING ? new int[0] : new int[] { gbfield },
+                new int[] { afield }, new Op[] { what }, memoryPages);
     }
 
     /**
@@ -66,88 +61,43 @@ public class IntegerAggregator implements Aggregator {
      */
     public void mergeTupleIntoGroup(Tuple tup) {
         // TODO: some code goes here (OK)
-        IntField aggField = (IntField) tup.getField(this.aFieldIdx);
-        TupleDesc td = tup.getTupleDesc();
-        String aggFieldName = this.aggOp.toString() + " " + td.getFieldName(this.aFieldIdx);
+        initTupleDesc(tup.getTupleDesc());
+
+        try {
+            this.groups.merge(tup);
+        } catch (DbException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Merge every row of a batch into the aggregate, grouping as indicated in
+     * the constructor
+     */
+    public void mergeBatch(TupleBatch batch) {
+        initTupleDesc(batch.getTupleDesc());
+        try {
+            this.groups.merge(batch);
+        } catch (DbException e) {
+            throw new RuntimeException(e);
+        }
+    }
 
-        // only return aggregate values
-        if (this.gbFieldIdx == Aggregator.NO_GROUPING) {
-            if (this.aggValues.size() == 0) {
+    private void initTupleDesc(TupleDesc td) {
+        if (this.td == null) {
+            String aggFieldName = this.aggOp.toString() + " " + td.getFieldName(this.aFieldIdx);
+            if (this.gbFieldIdx == Aggregator.NO_GROUPING) {
+                // only return aggregate values
                 Type[] typeAr = new Type[] { td.getFieldType(this.aFieldIdx) };
                 String[] fieldAr = new String[] { aggFieldName };
                 this.td = new TupleDesc(typeAr, fieldAr);
-            }
-
-            calculateAggregateValue(null, aggField, td);
-
-        } else {
-            // return aggregate values + group by values
-
-            if (this.aggValues.size() == 0) {
+            } else {
+                // return aggregate values + group by values
                 Type[] typeAr = new Type[] { td.getFieldType(this.gbFieldIdx), td.getFieldType(this.aFieldIdx) };
                 String[] fieldAr = new String[] { td.getFieldName(this.gbFieldIdx), aggFieldName };
                 this.td = new TupleDesc(typeAr, fieldAr);
             }
-
-            Field gbField = tup.getField(this.gbFieldIdx);
-            calculateAggregateValue(gbField, aggField, td);
-        }
-    }
-
-    private void calculateAggregateValue(Field gbField, IntField aggField, TupleDesc td) {
-        Tuple tuple = aggValues.getOrDefault(gbField, null);
-        if (tuple == null) {
-            tuple = new Tuple(this.td);
-            if (this.gbFieldIdx != Aggregator.NO_GROUPING) {
-                tuple.setField(0, gbField);
-                tuple.setField(1, aggField);
-            } else {
-                tuple.setField(0, aggField);
-            }
-            groupByCount.put(gbField, 0);
-            groupBySum.put(gbField, 0);
-        }
-        Integer aggValue;
-        if (this.gbFieldIdx == Aggregator.NO_GROUPING) {
-            aggValue = ((IntField) tuple.getField(0)).getValue();
-        } else {
-            aggValue = ((IntField) tuple.getField(1)).getValue();
-        }
-        // number of fields for that group
-        int curCount = groupByCount.get(gbField);
-
-        switch (this.aggOp) {
-            case AVG:
-                int sum = groupBySum.get(gbField) + aggField.getValue();
-                groupBySum.put(gbField, sum);
-                aggValue = sum / (curCount + 1);
-                break;
-            case COUNT:
-                aggValue = curCount + 1;
-                break;
-            case MAX:
-                aggValue = Math.max(aggValue, aggField.getValue());
-                break;
-            case MIN:
-                aggValue = Math.min(aggValue, aggField.getValue());
-                break;
-            case SUM:
-                if (curCount != 0) {
-                    aggValue += aggField.getValue();
-                }
-                break;
-            default:
-                throw new IllegalArgumentException(
-                        "THe aggregation operator " + this.aggOp.toString() + " is not supported");
-        }
-
-        if (this.gbFieldIdx == Aggregator.NO_GROUPING) {
-            tuple.setField(0, new IntField(aggValue));
-        } else {
-            tuple.setField(1, new IntField(aggValue));
         }
-        aggValues.put(gbField, tuple);
-        groupByCount.put(gbField, curCount + 1);
     }
 
     /**
@@ -160,53 +110,14 @@ public class IntegerAggregator implements Aggregator {
      */
     public OpIterator iterator() {
         // TODO: some code goes here (OK)
-        return new IntegerAggregrateIterator(aggValues.entrySet(), this.td);
+        return this.groups.iterator(this.td);
     }
 
-    private static class IntegerAggregrateIterator extends Operator {
-        private Set<Map.Entry<Field, Tuple>> entries;
-        private TupleDesc td;
-        private Iterator<Map.Entry<Field, Tuple>> iterator;
-
-        IntegerAggregrateIterator(Set<Map.Entry<Field, Tuple>> entries, TupleDesc td) {
-            this.entries = entries;
-            this.td = td;
-        }
-
-        @Override
-        public void rewind() throws DbException, TransactionAbortedException {
-            close();
-            open();
-        }
-
-        @Override
-        public void open() throws DbException, TransactionAbortedException {
-            this.iterator = this.entries.iterator();
-            super.open();
-        }
-
-        @Override
-        protected Tuple fetchNext() throws DbException, TransactionAbortedException {
-            if (!this.iterator.hasNext())
-                return null;
-
-            Map.Entry<Field, Tuple> nextEntry = iterator.next();
-            return nextEntry.getValue();
-        }
-
-        @Override
-        public OpIterator[] getChildren() {
-            return null;
-        }
-
-        @Override
-        public void setChildren(OpIterator[] children) {
-        }
-
-        @Override
-        public TupleDesc getTupleDesc() {
-            return this.td;
-        }
+    /**
+     * Delete the groups spilled to disk.
+     */
+    public void close() {
+        this.groups.close();
     }
 
 }
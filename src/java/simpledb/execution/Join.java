@@ -1,25 +1,43 @@
 package simpledb.execution;
 
 import simpledb.common.DbException;
+import simpledb.storage.BufferPool;
 import simpledb.storage.Field;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 import simpledb.transaction.TransactionAbortedException;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 
 /**
- * The Join operator implements the relational join operation.
+ * The Join operator implements the relational join operation as a block
+ * nested-loop join: it buffers a block of outer tuples and scans the inner
+ * relation once per block.
  */
 public class Join extends Operator {
 
     private static final long serialVersionUID = 1L;
 
+    /**
+     * Default size of a block of outer tuples, in pages
+     */
+    public static final int DEFAULT_BLOCK_PAGES = 50;
+
     private JoinPredicate p;
     private OpIterator[] children;
+    private final int blockPages;
 
-    private Tuple curTuple1;
+    private transient List<Tuple> block;
+    // outer tuples of the block by join key; only used for equality joins
+    private transient Map<Field, List<Tuple>> blockIndex;
+    private transient boolean innerScanned;
+    private transient Tuple curTuple2;
+    private transient Iterator<Tuple> candidates;
 
     /**
      * Constructor. Accepts two children to join and the predicate to join them on
@@ -30,10 +48,33 @@ public class Join extends Operator {
      */
     public Join(JoinPredicate p, OpIterator child1, OpIterator child2) {
         // TODO: some code goes here (OK)
+        this(p, child1, child2, DEFAULT_BLOCK_PAGES);
+    }
+
+    /**
+     * Constructor. Accepts two children to join, the predicate to join them on
+     * and the number of pages of outer tuples to buffer per scan of the inner
+     * relation.
+     *
+     * @param p          The predicate to use to join the children
+     * @param child1     Iterator for the left(outer) relation to join
+     * @param child2     Iterator for the right(inner) relation to join
+     * @param blockPages Size of a block of outer tuples, in pages
+     */
+    public Join(JoinPredicate p, OpIterator child1, OpIterator child2, int blockPages) {
         this.p = p;
+        this.blockPages = blockPages;
         children = new OpIterator[] { child1, child2 };
     }
 
+    /**
+     * @return the number of tuples of the specified size that fit in a block
+     *         of blockPages pages
+     */
+    public static int blockTuples(int blockPages, int tupleSize) {
+        return Math.max(1, blockPages * BufferPool.getPageSize() / tupleSize);
+    }
+
     public JoinPredicate getJoinPredicate() {
         // TODO: some code goes here (OK)
         return p;
@@ -70,12 +111,21 @@ public class Join extends Operator {
         super.open();
         children[0].open();
         children[1].open();
+        block = new ArrayList<>();
+        blockIndex = p.getOperator() == Predicate.Op.EQUALS ? new HashMap<>() : null;
+        innerScanned = false;
+        curTuple2 = null;
+        candidates = null;
     }
 
     public void close() {
         // TODO: some code goes here (OK)
         children[0].close();
         children[1].close();
+        block = null;
+        blockIndex = null;
+        curTuple2 = null;
+        candidates = null;
         super.close();
     }
 
@@ -106,35 +156,78 @@ public class Join extends Operator {
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         // TODO: some code goes here (OK)
 
-        // Need to handle edge case When children[0] iterates to the last element
-        while (children[0].hasNext() || curTuple1 != null) {
-            // Need a pointer for keeping track of the cur element in children[0]
-            if (curTuple1 == null) {
-                curTuple1 = children[0].next();
+        while (true) {
+            // outer tuples of the block that may match the current inner tuple
+            if (candidates != null) {
+                while (candidates.hasNext()) {
+                    Tuple t1 = candidates.next();
+                    if (p.filter(t1, curTuple2)) {
+                        return merge(t1, curTuple2);
+                    }
+                }
+                candidates = null;
             }
 
-            while (children[1].hasNext()) {
-                Tuple t2 = children[1].next();
-                if (p.filter(curTuple1, t2)) {
-                    Iterator<Field> fields1 = curTuple1.fields();
-                    Iterator<Field> fields2 = t2.fields();
-                    Tuple res = new Tuple(getTupleDesc());
+            if (!block.isEmpty() && children[1].hasNext()) {
+                curTuple2 = children[1].next();
+                if (blockIndex != null) {
+                    List<Tuple> matches = blockIndex.get(curTuple2.getField(p.getField2()));
+                    candidates = matches == null ? null : matches.iterator();
+                } else {
+                    candidates = block.iterator();
+                }
+                continue;
+            }
 
-                    int i = 0;
-                    while (fields1.hasNext()) {
-                        res.setField(i++, fields1.next());
-                    }
-                    while (fields2.hasNext()) {
-                        res.setField(i++, fields2.next());
-                    }
+            // inner relation done for this block: load the next one
+            if (!loadBlock()) {
+                return null;
+            }
+        }
+    }
 
-                    return res;
-                }
+    /**
+     * Read the next block of outer tuples, rewinding the inner relation if it
+     * was already scanned for the previous block.
+     *
+     * @return false if the outer relation is exhausted
+     */
+    private boolean loadBlock() throws TransactionAbortedException, DbException {
+        block.clear();
+        if (blockIndex != null) {
+            blockIndex.clear();
+        }
+        int maxTuples = blockTuples(blockPages, children[0].getTupleDesc().getSize());
+        while (block.size() < maxTuples && children[0].hasNext()) {
+            Tuple t1 = children[0].next();
+            block.add(t1);
+            if (blockIndex != null) {
+                blockIndex.computeIfAbsent(t1.getField(p.getField1()), k -> new ArrayList<>()).add(t1);
             }
+        }
+        if (block.isEmpty()) {
+            return false;
+        }
+        if (innerScanned) {
             children[1].rewind();
-            curTuple1 = null;
         }
-        return null;
+        innerScanned = true;
+        return true;
+    }
+
+    private Tuple merge(Tuple t1, Tuple t2) {
+        Iterator<Field> fields1 = t1.fields();
+        Iterator<Field> fields2 = t2.fields();
+        Tuple res = new Tuple(getTupleDesc());
+
+        int i = 0;
+        while (fields1.hasNext()) {
+            res.setField(i++, fields1.next());
+        }
+        while (fields2.hasNext()) {
+            res.setField(i++, fields2.next());
+        }
+        return res;
     }
 
     @Override
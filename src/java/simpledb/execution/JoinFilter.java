@@ -0,0 +1,81 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.NoSuchElementException;
+
+/**
+ * JoinFilter applies a join predicate to two fields of the same tuple. It
+ * evaluates a join of two tables that its child has joined already, e.g. the
+ * second join of a.x = b.x AND a.y = b.y.
+ */
+public class JoinFilter extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final JoinPredicate p;
+    private OpIterator child;
+
+    /**
+     * Constructor.
+     *
+     * @param p     The predicate to filter tuples with; both of its fields are
+     *              fields of the tuples of child
+     * @param child The child operator
+     */
+    public JoinFilter(JoinPredicate p, OpIterator child) {
+        this.p = p;
+        this.child = child;
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return p;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException, TransactionAbortedException {
+        child.open();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+    }
+
+    /**
+     * Returns the next tuple of the child that satisfies the predicate, or
+     * null if there are no more tuples.
+     *
+     * @see JoinPredicate#filter
+     */
+    protected Tuple fetchNext() throws NoSuchElementException, TransactionAbortedException, DbException {
+        while (child.hasNext()) {
+            Tuple t = child.next();
+            if (p.filter(t, t)) {
+                return t;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{child};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child = children[0];
+    }
+}
@@ -0,0 +1,35 @@
+package simpledb.execution;
+
+import simpledb.common.WorkQueue;
+
+/**
+ * KernelCompiler compiles the sources generated by {@link PipelineCompiler}
+ * in the background, so that queries never wait for the Java compiler. Until
+ * the class of a source is defined, the scans that need it interpret their
+ * predicates.
+ */
+class KernelCompiler extends WorkQueue<String> {
+
+    private KernelCompiler() {
+        super("simpledb-kernel-compiler");
+    }
+
+    static KernelCompiler startCompiler() {
+        KernelCompiler compiler = new KernelCompiler();
+        compiler.start();
+        return compiler;
+    }
+
+    /**
+     * Define the class of a source
+     */
+    @Override
+    protected void process(String source) {
+        try {
+            PipelineCompiler.defineKernel(source);
+        } catch (RuntimeException e) {
+            // the compiler failed on the source; the scans that need it
+            // keep interpreting their predicates
+        }
+    }
+}
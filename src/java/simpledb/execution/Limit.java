@@ -0,0 +1,107 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.NoSuchElementException;
+
+/**
+ * Limit is an operator that implements a relational LIMIT ... OFFSET. It
+ * skips the first offset tuples of its child and returns at most limit of
+ * the following ones; once it has returned limit tuples it stops pulling
+ * tuples from its child.
+ */
+public class Limit extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private OpIterator child;
+    private final int limit;
+    private final int offset;
+    private transient int skipped;
+    private transient int returned;
+
+    /**
+     * Constructor.
+     *
+     * @param limit  the maximum number of tuples to return
+     * @param offset the number of tuples to skip first
+     * @param child  The child operator
+     */
+    public Limit(int limit, int offset, OpIterator child) {
+        if (limit < 0 || offset < 0) {
+            throw new IllegalArgumentException("LIMIT and OFFSET must not be negative");
+        }
+        this.child = child;
+        this.limit = limit;
+        this.offset = offset;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        skipped = 0;
+        returned = 0;
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+        skipped = 0;
+        returned = 0;
+    }
+
+    /**
+     * Operator.fetchNext implementation. Skips the first offset tuples of the
+     * child, then returns tuples from the child until limit tuples were
+     * returned.
+     *
+     * @return The next tuple, or null if there are no more tuples
+     */
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (returned >= limit) {
+            return null;
+        }
+        while (skipped < offset) {
+            if (!child.hasNext()) {
+                return null;
+            }
+            child.next();
+            skipped++;
+        }
+        if (!child.hasNext()) {
+            return null;
+        }
+        returned++;
+        return child.next();
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{this.child};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child = children[0];
+    }
+}
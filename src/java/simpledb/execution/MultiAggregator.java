@@ -0,0 +1,259 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Knows how to compute several aggregates at once over groups of one or more
+ * fields. Aggregates over StringFields only support COUNT.
+ */
+public class MultiAggregator implements Aggregator {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Number of tuples handed to a worker at a time when the child cannot be
+     * scanned in partitions
+     */
+    static final int BATCH_SIZE = 1024;
+
+    private final TupleDesc td;
+    private final int[] gbfields;
+    private final int[] afields;
+    private final Op[] what;
+    private final int memoryPages;
+
+    // one accumulator per group and aggregate; spills groups to disk beyond
+    // its memory budget
+    private final AggregationTable groups;
+
+    /**
+     * Aggregate constructor
+     *
+     * @param childTd     the TupleDesc of the tuples to aggregate
+     * @param gbfields    the 0-based indexes of the group-by fields in the
+     *                    tuple; empty if there is no grouping
+     * @param afields     the 0-based indexes of the aggregate fields in the
+     *                    tuple
+     * @param what        the aggregation operator of every aggregate field
+     * @param memoryPages the number of pages of groups kept in memory; the
+     *                    other groups are spilled to disk
+     * @throws IllegalArgumentException if an operator is not supported for
+     *                                  the type of its field
+     */
+    public MultiAggregator(TupleDesc childTd, int[] gbfields, int[] afields, Op[] what, int memoryPages) {
+        for (int i = 0; i < afields.length; i++) {
+            if (childTd.getFieldType(afields[i]) == Type.STRING_TYPE && what[i] != Op.COUNT) {
+                throw new IllegalArgumentException("Aggregates over strings only support the COUNT operator");
+            }
+        }
+        this.td = resultTupleDesc(childTd, gbfields, afields, what);
+        this.gbfields = gbfields;
+        this.afields = afields;
+        this.what = what;
+        this.memoryPages = memoryPages;
+        this.groups = new AggregationTable(gbfields, afields, what, memoryPages);
+    }
+
+    /**
+     * @return the TupleDesc of the result tuples: the group-by fields,
+     *         followed by one INT_TYPE field per aggregate, named
+     *         "aggName(aop) (child_td.getFieldName(afield))"
+     */
+    public static TupleDesc resultTupleDesc(TupleDesc childTd, int[] gbfields, int[] afields, Op[] what) {
+        Type[] typeAr = new Type[gbfields.length + afields.length];
+        String[] fieldAr = new String[typeAr.length];
+        for (int i = 0; i < gbfields.length; i++) {
+            typeAr[i] = childTd.getFieldType(gbfields[i]);
+            fieldAr[i] = childTd.getFieldName(gbfields[i]);
+        }
+        for (int i = 0; i < afields.length; i++) {
+            typeAr[gbfields.length + i] = Type.INT_TYPE;
+            fieldAr[gbfields.length + i] = what[i].toString() + " " + childTd.getFieldName(afields[i]);
+        }
+        return new TupleDesc(typeAr, fieldAr);
+    }
+
+    /**
+     * Merge a new tuple into the aggregates of its group
+     *
+     * @param tup the Tuple containing the aggregate fields and group-by fields
+     */
+    public void mergeTupleIntoGroup(Tuple tup) {
+        try {
+            this.groups.merge(tup);
+        } catch (DbException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Merge every row of a batch into the aggregates of its group
+     */
+    public void mergeBatch(TupleBatch batch) {
+        try {
+            this.groups.merge(batch);
+        } catch (DbException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Merge all tuples of an open child into their groups using several
+     * threads. Every thread aggregates its share of the tuples into a table
+     * of its own, with an equal share of the memory budget; the partial
+     * aggregates of all threads are then merged into this aggregator.
+     * <p>
+     * If the child is a {@link SeqScan} of a heap file, the threads scan the
+     * table themselves, claiming morsels of pages from a shared cursor (see
+     * {@link SeqScan#partition}). Otherwise the calling thread reads the child
+     * and hands batches of tuples to the threads.
+     *
+     * @param child   the open child feeding the tuples
+     * @param workers the number of threads
+     */
+    public void mergeTuplesInParallel(OpIterator child, int workers)
+            throws DbException, TransactionAbortedException {
+        SeqScan[] scans = child instanceof SeqScan ? ((SeqScan) child).partition(workers) : null;
+        AggregationTable[] partials = new AggregationTable[workers];
+        for (int i = 0; i < workers; i++) {
+            partials[i] = new AggregationTable(gbfields, afields, what, Math.max(1, memoryPages / workers));
+        }
+        BlockingQueue<List<Tuple>> batches = new ArrayBlockingQueue<>(2 * workers);
+        List<Tuple> endOfInput = new ArrayList<>();
+
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int i = 0; i < workers; i++) {
+            AggregationTable partial = partials[i];
+            if (scans != null) {
+                OpIterator scan = scans[i];
+                tasks.add(() -> {
+                    scan.open();
+                    try {
+                        while (scan.hasNext()) {
+                            partial.merge(scan.next());
+                        }
+                    } finally {
+                        scan.close();
+                    }
+                    return null;
+                });
+            } else {
+                tasks.add(() -> {
+                    for (List<Tuple> batch = batches.take(); batch != endOfInput; batch = batches.take()) {
+                        for (Tuple t : batch) {
+                            partial.merge(t);
+                        }
+                    }
+                    return null;
+                });
+            }
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        boolean aggregated = false;
+        try {
+            List<Future<Void>> results = new ArrayList<>();
+            for (Callable<Void> task : tasks) {
+                results.add(pool.submit(task));
+            }
+            if (scans == null) {
+                List<Tuple> batch = new ArrayList<>(BATCH_SIZE);
+                while (child.hasNext()) {
+                    batch.add(child.next());
+                    if (batch.size() == BATCH_SIZE) {
+                        handOver(batches, batch, results);
+                        batch = new ArrayList<>(BATCH_SIZE);
+                    }
+                }
+                if (!batch.isEmpty()) {
+                    handOver(batches, batch, results);
+                }
+                for (int i = 0; i < workers; i++) {
+                    handOver(batches, endOfInput, results);
+                }
+            }
+            for (Future<Void> f : results) {
+                f.get();
+            }
+            aggregated = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DbException("interrupted during parallel aggregation");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof DbException)
+                throw (DbException) e.getCause();
+            if (e.getCause() instanceof TransactionAbortedException)
+                throw (TransactionAbortedException) e.getCause();
+            throw new RuntimeException(e.getCause());
+        } finally {
+            pool.shutdownNow();
+            if (!aggregated) {
+                awaitQuietly(pool);
+                for (AggregationTable partial : partials) {
+                    partial.close();
+                }
+            }
+        }
+
+        for (AggregationTable partial : partials) {
+            this.groups.mergePartial(partial);
+        }
+    }
+
+    private static void awaitQuietly(ExecutorService pool) {
+        try {
+            pool.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Put a batch into the queue of the workers, unless a worker has failed.
+     */
+    private static void handOver(BlockingQueue<List<Tuple>> batches, List<Tuple> batch, List<Future<Void>> workers)
+            throws InterruptedException, ExecutionException {
+        while (!batches.offer(batch, 10, TimeUnit.MILLISECONDS)) {
+            for (Future<Void> f : workers) {
+                if (f.isDone()) {
+                    // throws the failure of the worker
+                    f.get();
+                }
+            }
+        }
+    }
+
+    /**
+     * Create a OpIterator over group aggregate results.
+     *
+     * @return a OpIterator whose tuples hold the values of the group-by fields
+     *         followed by the values of the aggregates
+     */
+    public OpIterator iterator() {
+        return this.groups.iterator(this.td);
+    }
+
+    /**
+     * Delete the groups spilled to disk.
+     */
+    public void close() {
+        this.groups.close();
+    }
+
+}
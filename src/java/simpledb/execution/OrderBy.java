@@ -3,6 +3,7 @@ package simpledb.execution;
 import simpledb.common.DbException;
 import simpledb.storage.Field;
 import simpledb.storage.Tuple;
+import simpledb.storage.TupleCursor;
 import simpledb.storage.TupleDesc;
 import simpledb.transaction.TransactionAbortedException;
 
@@ -10,17 +11,29 @@ import java.util.*;
 
 /**
  * OrderBy is an operator that implements a relational ORDER BY.
+ * <p>
+ * Tuples are sorted on one or more fields with an {@link ExternalSort}, so
+ * results that do not fit in the memory budget are sorted in runs on disk.
+ * If the number of tuples needed is known (e.g. from a LIMIT), only the
+ * first tuples of the ordering are kept, in a bounded heap.
  */
 public class OrderBy extends Operator {
 
     private static final long serialVersionUID = 1L;
+
+    /**
+     * Value of limit when all tuples are returned
+     */
+    public static final int NO_LIMIT = -1;
+
     private OpIterator child;
     private final TupleDesc td;
-    private final List<Tuple> childTups = new ArrayList<>();
-    private final int orderByField;
-    private final String orderByFieldName;
-    private Iterator<Tuple> it;
-    private final boolean asc;
+    private final int[] orderByFields;
+    private final boolean[] ascs;
+    private final int memoryPages;
+    private final int limit;
+    private transient ExternalSort sort;
+    private transient TupleCursor it;
 
     /**
      * Creates a new OrderBy node over the tuples from the iterator.
@@ -30,23 +43,67 @@ public class OrderBy extends Operator {
      * @param child        the tuples to sort.
      */
     public OrderBy(int orderbyField, boolean asc, OpIterator child) {
+        this(new int[]{orderbyField}, new boolean[]{asc}, child);
+    }
+
+    /**
+     * Creates a new OrderBy node that sorts on several fields.
+     *
+     * @param orderbyFields the fields to which the sort is applied, most
+     *                      significant first.
+     * @param asc           for every field, true if its sort order is ascending.
+     * @param child         the tuples to sort.
+     */
+    public OrderBy(int[] orderbyFields, boolean[] asc, OpIterator child) {
+        this(orderbyFields, asc, child, ExternalSort.DEFAULT_MEMORY_PAGES, NO_LIMIT);
+    }
+
+    /**
+     * Creates a new OrderBy node with a memory budget and an optional limit.
+     *
+     * @param orderbyFields the fields to which the sort is applied, most
+     *                      significant first.
+     * @param asc           for every field, true if its sort order is ascending.
+     * @param child         the tuples to sort.
+     * @param memoryPages   the memory budget of the sort, in pages.
+     * @param limit         the number of tuples to return, or NO_LIMIT.
+     */
+    public OrderBy(int[] orderbyFields, boolean[] asc, OpIterator child, int memoryPages, int limit) {
+        if (orderbyFields.length == 0 || orderbyFields.length != asc.length) {
+            throw new IllegalArgumentException("need at least one field and one sort order per field");
+        }
         this.child = child;
         td = child.getTupleDesc();
-        this.orderByField = orderbyField;
-        this.orderByFieldName = td.getFieldName(orderbyField);
-        this.asc = asc;
+        this.orderByFields = orderbyFields;
+        this.ascs = asc;
+        this.memoryPages = memoryPages;
+        this.limit = limit;
     }
 
     public boolean isASC() {
-        return this.asc;
+        return this.ascs[0];
     }
 
     public int getOrderByField() {
-        return this.orderByField;
+        return this.orderByFields[0];
     }
 
     public String getOrderFieldName() {
-        return this.orderByFieldName;
+        return td.getFieldName(this.orderByFields[0]);
+    }
+
+    /**
+     * @return the fields to which the sort is applied, most significant first
+     */
+    public int[] getOrderByFields() {
+        return this.orderByFields;
+    }
+
+    /**
+     * @return the number of tuples returned, or NO_LIMIT
+     */
+    public int getLimit() {
+        return this.limit;
     }
 
     public TupleDesc getTupleDesc() {
@@ -56,21 +113,30 @@ public class OrderBy extends Operator {
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child.open();
-        // load all the tuples in a collection, and sort it
+        // sort all the tuples, spilling sorted runs to disk if needed
+        sort = new ExternalSort(td, new TupleComparator(orderByFields, ascs), memoryPages, limit);
         while (child.hasNext())
-            childTups.add(child.next());
-        childTups.sort(new TupleComparator(orderByField, asc));
-        it = childTups.iterator();
+            sort.add(child.next());
+        it = sort.iterator();
         super.open();
     }
 
     public void close() {
         super.close();
-        it = null;
+        if (it != null) {
+            it.close();
+            it = null;
+        }
+        if (sort != null) {
+            sort.close();
+            sort = null;
+        }
+        child.close();
     }
 
-    public void rewind() {
-        it = childTups.iterator();
+    public void rewind() throws DbException {
+        it.close();
+        it = sort.iterator();
     }
 
     /**
@@ -80,7 +146,7 @@ public class OrderBy extends Operator {
      * @return The next tuple in the ordering, or null if there are no more
      *         tuples
      */
-    protected Tuple fetchNext() throws NoSuchElementException {
+    protected Tuple fetchNext() throws NoSuchElementException, DbException, TransactionAbortedException {
         if (it != null && it.hasNext()) {
             return it.next();
         } else
@@ -99,24 +165,38 @@ public class OrderBy extends Operator {
 
 }
 
+/**
+ * Compares tuples on one or more fields; later fields break ties between
+ * earlier ones.
+ */
 class TupleComparator implements Comparator<Tuple> {
-    final int field;
-    final boolean asc;
+    final int[] fields;
+    final boolean[] asc;
 
     public TupleComparator(int field, boolean asc) {
-        this.field = field;
+        this(new int[]{field}, new boolean[]{asc});
+    }
+
+    public TupleComparator(int[] fields, boolean[] asc) {
+        if (fields.length != asc.length) {
+            throw new IllegalArgumentException("need one sort order per field");
+        }
+        this.fields = fields;
         this.asc = asc;
     }
 
     public int compare(Tuple o1, Tuple o2) {
-        Field t1 = (o1).getField(field);
-        Field t2 = (o2).getField(field);
-        if (t1.compare(Predicate.Op.EQUALS, t2))
-            return 0;
-        if (t1.compare(Predicate.Op.GREATER_THAN, t2))
-            return asc ? 1 : -1;
-        else
-            return asc ? -1 : 1;
+        for (int i = 0; i < fields.length; i++) {
+            Field t1 = (o1).getField(fields[i]);
+            Field t2 = (o2).getField(fields[i]);
+            if (t1.compare(Predicate.Op.EQUALS, t2))
+                continue;
+            if (t1.compare(Predicate.Op.GREATER_THAN, t2))
+                return asc[i] ? 1 : -1;
+            else
+                return asc[i] ? -1 : 1;
+        }
+        return 0;
     }
 
 }
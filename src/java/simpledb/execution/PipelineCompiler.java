@@ -0,0 +1,378 @@
+package simpledb.execution;
+
+import simpledb.common.Type;
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.TupleBatch;
+import simpledb.storage.TupleDesc;
+
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.ToolProvider;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Constructor;
+import java.net.URI;
+import java.security.CodeSource;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * PipelineCompiler fuses a pipeline of filters and a projection over a scan
+ * into a {@link CompiledScan}, and generates the code that evaluates the
+ * filters of such a pipeline: the Java source of a class with a single loop
+ * over the rows of a batch, which compares the int columns of the batch with
+ * the operands directly. The source is compiled with the system Java compiler
+ * and the class is defined at runtime in this package.
+ * <p>
+ * Sources are compiled in the background by a {@link KernelCompiler}: a scan
+ * interprets its predicates until the class generated for them is defined,
+ * and then switches to it between two batches.
+ * <p>
+ * Generated classes are cached by their source, which only depends on the
+ * fields, types and operators of the predicates, so that pipelines that
+ * differ in their operands share a class. Without a Java compiler (e.g. on a
+ * JRE), the filters are evaluated batch by batch with
+ * {@link Predicate#filter(simpledb.storage.TupleBatch)}.
+ */
+public class PipelineCompiler {
+
+    /**
+     * The filters of a pipeline, evaluated on a batch.
+     */
+    interface Kernel {
+        /**
+         * Write the column indexes (see {@link TupleBatch#getSelection()}) of
+         * the rows of a batch that satisfy all predicates to rows, in order.
+         *
+         * @return the number of rows written
+         */
+        int select(TupleBatch batch, int[] rows);
+    }
+
+    private static final String CLASS_NAME = "$CLASS";
+
+    // constructor of the class generated for a source, or empty if the source
+    // could not be compiled; sources that are still compiled are missing
+    private static final Map<String, Optional<Constructor<?>>> kernels = new ConcurrentHashMap<>();
+    private static final Set<String> requested = ConcurrentHashMap.newKeySet();
+    private static final AtomicInteger generated = new AtomicInteger();
+
+    // started when the first source is compiled
+    private static class CompilerHolder {
+        static final KernelCompiler COMPILER = KernelCompiler.startCompiler();
+    }
+
+    private PipelineCompiler() {
+    }
+
+    /**
+     * Fuse a plan made of an optional projection over filters over a
+     * {@link SeqScan} into a {@link CompiledScan}. The filters and projection
+     * of a CompiledScan below the projection or filters are fused as well.
+     *
+     * @param plan the plan to fuse
+     * @return the fused plan, or plan if it has no such shape or no filters
+     */
+    public static OpIterator compile(OpIterator plan) {
+        OpIterator node = plan;
+        Project project = null;
+        if (node instanceof Project) {
+            project = (Project) node;
+            node = project.getChildren()[0];
+        }
+        Deque<Predicate> predicates = new ArrayDeque<>();
+        while (node instanceof Filter) {
+            predicates.push(((Filter) node).getPredicate());
+            node = ((Filter) node).getChildren()[0];
+        }
+        // fields of the scan that the fields above node refer to
+        int[] fields = null;
+        CompiledScan fused = null;
+        if (node instanceof CompiledScan) {
+            fused = (CompiledScan) node;
+            fields = fused.getFields();
+            Deque<Predicate> above = predicates;
+            predicates = new ArrayDeque<>(Arrays.asList(fused.getPredicates()));
+            for (Predicate p : above) {
+                int field = fields == null ? p.getField() : fields[p.getField()];
+                predicates.add(new Predicate(field, p.getOp(), p.getOperand()));
+            }
+            node = fused.getChildren()[0];
+        }
+        if (!(node instanceof SeqScan) || predicates.isEmpty()) {
+            return plan;
+        }
+
+        TupleDesc td = node.getTupleDesc();
+        if (project != null) {
+            List<Integer> projected = project.getFieldList();
+            int[] projectedFields = new int[projected.size()];
+            for (int i = 0; i < projectedFields.length; i++) {
+                projectedFields[i] = fields == null ? projected.get(i) : fields[projected.get(i)];
+            }
+            fields = projectedFields;
+            td = project.getTupleDesc();
+        } else if (fused != null) {
+            td = fused.getTupleDesc();
+        }
+        return new CompiledScan(node, predicates.toArray(new Predicate[0]), fields, td);
+    }
+
+    /**
+     * @return true if predicate p compares an int field with an int operand
+     */
+    private static boolean isIntComparison(Predicate p, TupleDesc td) {
+        return td.getFieldType(p.getField()) == Type.INT_TYPE && p.getOperand() instanceof IntField;
+    }
+
+    private static String operator(Predicate.Op op) {
+        switch (op) {
+            case EQUALS:
+            case LIKE:
+                return "==";
+            case NOT_EQUALS:
+                return "!=";
+            default:
+                return op.toString();
+        }
+    }
+
+    /**
+     * Generate the source of a Kernel for predicates over batches with the
+     * given TupleDesc. The operands are passed to the constructor of the
+     * class: those of int comparisons in an int array, the others in a Field
+     * array, both indexed by predicate.
+     */
+    static String source(Predicate[] predicates, TupleDesc td) {
+        StringBuilder members = new StringBuilder();
+        StringBuilder init = new StringBuilder();
+        StringBuilder columns = new StringBuilder();
+        StringBuilder condition = new StringBuilder();
+        boolean[] declared = new boolean[td.numFields()];
+        for (int j = 0; j < predicates.length; j++) {
+            Predicate p = predicates[j];
+            if (j > 0) {
+                condition.append("\n                    && ");
+            }
+            int f = p.getField();
+            if (isIntComparison(p, td)) {
+                members.append("    private final int k").append(j).append(";\n");
+                init.append("        this.k").append(j).append(" = ints[").append(j).append("];\n");
+                if (!declared[f]) {
+                    declared[f] = true;
+                    columns.append("        final int[] c").append(f).append(" = b.getIntColumn(").append(f)
+                            .append(");\n");
+                }
+                condition.append("c").append(f).append("[r] ").append(operator(p.getOp())).append(" k").append(j);
+            } else {
+                members.append("    private final simpledb.storage.Field f").append(j).append(";\n");
+                init.append("        this.f").append(j).append(" = fields[").append(j).append("];\n");
+                condition.append("b.getField(").append(f).append(", i).compare(simpledb.execution.Predicate.Op.")
+                        .append(p.getOp().name()).append(", f").append(j).append(")");
+            }
+        }
+        String loop = "            for (int i = 0; i < n; i++) {\n"
+                + "                final int r = %s;\n"
+                + "                if (" + condition + ") {\n"
+                + "                    rows[k++] = r;\n"
+                + "                }\n"
+                + "            }\n";
+        return "package simpledb.execution;\n\n"
+                + "final class " + CLASS_NAME + " implements PipelineCompiler.Kernel {\n"
+                + members
+                + "\n"
+                + "    public " + CLASS_NAME + "(int[] ints, simpledb.storage.Field[] fields) {\n"
+                + init
+                + "    }\n\n"
+                + "    public int select(simpledb.storage.TupleBatch b, int[] rows) {\n"
+                + "        final int n = b.size();\n"
+                + "        final int[] sel = b.getSelection();\n"
+                + columns
+                + "        int k = 0;\n"
+                + "        if (sel == null) {\n"
+                + String.format(loop, "i")
+                + "        } else {\n"
+                + String.format(loop, "sel[i]")
+                + "        }\n"
+                + "        return k;\n"
+                + "    }\n"
+                + "}\n";
+    }
+
+    /**
+     * Return a Kernel for predicates over batches with the given TupleDesc:
+     * an instance of the class generated for them, or else one that
+     * interprets them. If the class is not defined yet, its source is
+     * compiled in the background and the Kernel interprets the predicates
+     * until the class is ready.
+     */
+    static Kernel kernel(Predicate[] predicates, TupleDesc td) {
+        String source = source(predicates, td);
+        Optional<Constructor<?>> constructor = kernels.get(source);
+        if (constructor != null) {
+            return instantiate(constructor, predicates, td);
+        }
+        if (requested.add(source)) {
+            CompilerHolder.COMPILER.request(source);
+        }
+        Kernel interpreter = interpreter(predicates);
+        return new Kernel() {
+            private Kernel current = interpreter;
+            private boolean defined = false;
+
+            public int select(TupleBatch batch, int[] rows) {
+                if (!defined) {
+                    Optional<Constructor<?>> constructor = kernels.get(source);
+                    if (constructor != null) {
+                        defined = true;
+                        current = constructor.isPresent() ? instantiate(constructor, predicates, td) : interpreter;
+                    }
+                }
+                return current.select(batch, rows);
+            }
+        };
+    }
+
+    /**
+     * @return true if the class generated for predicates over batches with
+     *         the given TupleDesc is defined
+     */
+    public static boolean isCompiled(Predicate[] predicates, TupleDesc td) {
+        Optional<Constructor<?>> constructor = kernels.get(source(predicates, td));
+        return constructor != null && constructor.isPresent();
+    }
+
+    /**
+     * @return an instance of the class generated for the predicates, or an
+     *         interpreter if there is none
+     */
+    private static Kernel instantiate(Optional<Constructor<?>> constructor, Predicate[] predicates, TupleDesc td) {
+        if (constructor.isPresent()) {
+            int[] ints = new int[predicates.length];
+            Field[] fields = new Field[predicates.length];
+            for (int j = 0; j < predicates.length; j++) {
+                if (isIntComparison(predicates[j], td)) {
+                    ints[j] = ((IntField) predicates[j].getOperand()).getValue();
+                } else {
+                    fields[j] = predicates[j].getOperand();
+                }
+            }
+            try {
+                return (Kernel) constructor.get().newInstance(ints, fields);
+            } catch (ReflectiveOperationException e) {
+                // interpret the predicates below
+            }
+        }
+        return interpreter(predicates);
+    }
+
+    /**
+     * @return a Kernel that applies the predicates one after the other
+     */
+    static Kernel interpreter(Predicate[] predicates) {
+        return (batch, rows) -> {
+            for (Predicate p : predicates) {
+                batch = p.filter(batch);
+            }
+            System.arraycopy(batch.getSelection(), 0, rows, 0, batch.size());
+            return batch.size();
+        };
+    }
+
+    /**
+     * Compile the source of a Kernel and define its class, for
+     * {@link #kernel} to use.
+     */
+    static void defineKernel(String source) {
+        Constructor<?> constructor = null;
+        try {
+            constructor = define(source);
+        } finally {
+            kernels.put(source, Optional.ofNullable(constructor));
+        }
+    }
+
+    /**
+     * Compile the source of a Kernel and define its class.
+     *
+     * @return the constructor of the class, or null if it cannot be compiled
+     */
+    private static Constructor<?> define(String source) {
+        JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+        if (javac == null) {
+            return null;
+        }
+        // every definition in this package needs a class name of its own
+        String name = "GeneratedKernel" + generated.incrementAndGet();
+        String code = source.replace(CLASS_NAME, name);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        JavaFileObject input = new SimpleJavaFileObject(
+                URI.create("string:///simpledb/execution/" + name + ".java"), JavaFileObject.Kind.SOURCE) {
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                return code;
+            }
+        };
+        JavaFileManager files = new ForwardingJavaFileManager<JavaFileManager>(
+                javac.getStandardFileManager(null, null, null)) {
+            @Override
+            public JavaFileObject getJavaFileForOutput(Location location, String className,
+                                                       JavaFileObject.Kind kind, FileObject sibling) {
+                return new SimpleJavaFileObject(URI.create("bytes:///" + className + kind.extension), kind) {
+                    @Override
+                    public OutputStream openOutputStream() {
+                        return bytes;
+                    }
+                };
+            }
+        };
+        List<String> options = Arrays.asList("-classpath", classPath(), "-proc:none", "-g:none");
+        try {
+            boolean compiled = javac.getTask(null, files, new DiagnosticCollector<>(), options, null,
+                    Collections.singletonList(input)).call();
+            files.close();
+            if (!compiled) {
+                return null;
+            }
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            Class<?> kernel = lookup.defineClass(bytes.toByteArray());
+            return kernel.getConstructor(int[].class, Field[].class);
+        } catch (IOException | ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the class path of the generated code: the location of the
+     *         SimpleDB classes and the class path of the JVM
+     */
+    private static String classPath() {
+        String path = System.getProperty("java.class.path");
+        CodeSource code = PipelineCompiler.class.getProtectionDomain().getCodeSource();
+        if (code != null) {
+            try {
+                path = new File(code.getLocation().toURI()).getPath() + File.pathSeparator + path;
+            } catch (Exception e) {
+                // the class path of the JVM has to do
+            }
+        }
+        return path;
+    }
+}
@@ -1,64 +1,251 @@
 package simpledb.execution;
 
-import simpledb.optimizer.LogicalJoinNode;
-
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.Set;
+import java.util.Arrays;
 
 /**
  * A PlanCache is a helper class that can be used to store the best
- * way to order a given set of joins
+ * ways to order given sets of joins.
+ * <p>
+ * A set of joins is a bitmask of the indexes of its joins in the query (bit i
+ * stands for join i), so a query may have at most {@link #MAX_JOINS} joins.
+ * A plan of a set is the plan of the set without its last join, extended
+ * with that join: plans are kept as entries in primitive arrays that refer
+ * to the entry they extend, and the sets are looked up in an open-addressing
+ * hash table, so that caching a plan allocates no objects.
+ * <p>
+ * Besides the cheapest plan of a set, the cache keeps the cheapest plan for
+ * every order the output of a plan may be sorted in, since a plan that
+ * costs more but returns sorted tuples may make the joins above it cheaper.
+ * Orders are bitmasks as well, of fields chosen by the caller; 0 means that
+ * the output is not sorted.
  */
 public class PlanCache {
-    final Map<Set<LogicalJoinNode>, List<LogicalJoinNode>> bestOrders = new HashMap<>();
-    final Map<Set<LogicalJoinNode>, Double> bestCosts = new HashMap<>();
-    final Map<Set<LogicalJoinNode>, Integer> bestCardinalities = new HashMap<>();
+    /**
+     * Maximum number of joins of a query
+     */
+    public static final int MAX_JOINS = Long.SIZE;
+
+    private static final int NONE = -1;
+
+    // plan entries
+    private long[] sets = new long[64];
+    private double[] costs = new double[64];
+    private int[] cards = new int[64];
+    private long[] orders = new long[64];
+    private int[] parents = new int[64];
+    private int[] lastJoins = new int[64];
+    private int[] algorithms = new int[64];
+    private boolean[] swapped = new boolean[64];
+    // next entry of the same set, or NONE
+    private int[] nexts = new int[64];
+    private int numPlans = 0;
+
+    // hash table from sets to their first entry; 0 marks an empty slot
+    private long[] keys = new long[64];
+    private int[] heads = new int[64];
+    // the sets in the order they were added
+    private long[] setList = new long[64];
+    private int numSets = 0;
+
+    private int slot(long set) {
+        int mask = keys.length - 1;
+        int i = (int) ((set * 0x9E3779B97F4A7C15L) >>> 40) & mask;
+        while (keys[i] != 0 && keys[i] != set) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    private void growTable() {
+        long[] oldKeys = keys;
+        int[] oldHeads = heads;
+        keys = new long[oldKeys.length * 2];
+        heads = new int[oldKeys.length * 2];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0) {
+                int s = slot(oldKeys[i]);
+                keys[s] = oldKeys[i];
+                heads[s] = oldHeads[i];
+            }
+        }
+    }
+
+    private int newPlan() {
+        if (numPlans == sets.length) {
+            int n = sets.length * 2;
+            sets = Arrays.copyOf(sets, n);
+            costs = Arrays.copyOf(costs, n);
+            cards = Arrays.copyOf(cards, n);
+            orders = Arrays.copyOf(orders, n);
+            parents = Arrays.copyOf(parents, n);
+            lastJoins = Arrays.copyOf(lastJoins, n);
+            algorithms = Arrays.copyOf(algorithms, n);
+            swapped = Arrays.copyOf(swapped, n);
+            nexts = Arrays.copyOf(nexts, n);
+        }
+        return numPlans++;
+    }
 
     /**
-     * Add a new cost, cardinality and ordering for a particular join set.  Does not verify that the
-     * new cost is less than any previously added cost -- simply adds or replaces an existing plan for the
-     * specified join set
+     * Add a plan for a set of joins, unless the cache has a plan for the set
+     * that is as cheap and whose output is sorted in the same order. A
+     * costlier plan with the same order is replaced.
      *
-     * @param s     the set of joins for which a new ordering (plan) is being added
-     * @param cost  the estimated cost of the specified plan
-     * @param card  the estimatied cardinality of the specified plan
-     * @param order the ordering of the joins in the plan
+     * @param set       the set of joins of the plan; may not be empty
+     * @param cost      the estimated cost of the plan
+     * @param card      the estimated cardinality of the plan
+     * @param order     the fields the output of the plan is sorted on
+     * @param parent    the plan this plan extends, or -1 if it has one join
+     * @param join      the index of the join the plan adds to parent
+     * @param algorithm the join operator of that join, chosen by the caller
+     * @param swap      true if the inputs of that join are swapped
+     * @return the plan, or -1 if it was not added
      */
-    public void addPlan(Set<LogicalJoinNode> s, double cost, int card, List<LogicalJoinNode> order) {
-        bestOrders.put(s, order);
-        bestCosts.put(s, cost);
-        bestCardinalities.put(s, card);
+    public int addPlan(long set, double cost, int card, long order, int parent, int join, int algorithm,
+                       boolean swap) {
+        int s = slot(set);
+        int plan = NONE;
+        if (keys[s] == 0) {
+            plan = newPlan();
+            nexts[plan] = NONE;
+            keys[s] = set;
+            heads[s] = plan;
+            if (numSets == setList.length) {
+                setList = Arrays.copyOf(setList, numSets * 2);
+            }
+            setList[numSets++] = set;
+            if (numSets * 2 > keys.length) {
+                growTable();
+            }
+        } else {
+            for (int p = heads[s]; p != NONE; p = nexts[p]) {
+                if (orders[p] == order) {
+                    if (costs[p] <= cost) {
+                        return NONE;
+                    }
+                    plan = p;
+                    break;
+                }
+            }
+            if (plan == NONE) {
+                plan = newPlan();
+                nexts[plan] = heads[s];
+                heads[s] = plan;
+            }
+        }
+        sets[plan] = set;
+        costs[plan] = cost;
+        cards[plan] = card;
+        orders[plan] = order;
+        parents[plan] = parent;
+        lastJoins[plan] = join;
+        algorithms[plan] = algorithm;
+        swapped[plan] = swap;
+        return plan;
     }
 
     /**
-     * Find the best join order in the cache for the specified plan
-     *
-     * @param s the set of joins to look up the best order for
-     * @return the best order for s in the cache
+     * @return the number of sets of joins that have plans
      */
-    public List<LogicalJoinNode> getOrder(Set<LogicalJoinNode> s) {
-        return bestOrders.get(s);
+    public int numSets() {
+        return numSets;
     }
 
     /**
-     * Find the cost of the best join order in the cache for the specified plan
+     * @return the i-th set of joins that a plan was added for
+     */
+    public long getSet(int i) {
+        return setList[i];
+    }
+
+    /**
+     * Find the plans of a set of joins in the cache, the cheapest one for
+     * every order of the output, as a list that continues with
+     * {@link #nextPlan}.
      *
-     * @param s the set of joins to look up the best cost for
-     * @return the cost of the best order for s in the cache
+     * @return the first plan of set, or -1 if there is none
+     */
+    public int firstPlan(long set) {
+        int s = slot(set);
+        return keys[s] == 0 ? NONE : heads[s];
+    }
+
+    /**
+     * @return the plan after plan in the plans of its set, or -1 if there is
+     *         none
      */
-    public double getCost(Set<LogicalJoinNode> s) {
-        return bestCosts.get(s);
+    public int nextPlan(int plan) {
+        return nexts[plan];
     }
 
     /**
-     * Find the cardinality of the best join order in the cache for the specified plan
+     * Find the cheapest plan in the cache for the specified set of joins
      *
-     * @param s the set of joins to look up the best cardinality for
-     * @return the cardinality of the best order for s in the cache
+     * @return the best plan for set, or -1 if there is none
+     */
+    public int bestPlan(long set) {
+        int best = NONE;
+        for (int p = firstPlan(set); p != NONE; p = nexts[p]) {
+            if (best == NONE || costs[p] < costs[best]) {
+                best = p;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @return the set of joins of a plan
+     */
+    public long getSetOf(int plan) {
+        return sets[plan];
+    }
+
+    /**
+     * @return the estimated cost of a plan
+     */
+    public double getCost(int plan) {
+        return costs[plan];
+    }
+
+    /**
+     * @return the estimated cardinality of a plan
+     */
+    public int getCard(int plan) {
+        return cards[plan];
+    }
+
+    /**
+     * @return the fields the output of a plan is sorted on
+     */
+    public long getOrder(int plan) {
+        return orders[plan];
+    }
+
+    /**
+     * @return the plan a plan extends, or -1 if it has a single join
+     */
+    public int getParent(int plan) {
+        return parents[plan];
+    }
+
+    /**
+     * @return the index of the last join of a plan
+     */
+    public int getLastJoin(int plan) {
+        return lastJoins[plan];
+    }
+
+    /**
+     * @return the join operator of the last join of a plan
+     */
+    public int getAlgorithm(int plan) {
+        return algorithms[plan];
+    }
+
+    /**
+     * @return true if the inputs of the last join of a plan are swapped
      */
-    public int getCard(Set<LogicalJoinNode> s) {
-        return bestCardinalities.get(s);
+    public boolean isSwapped(int plan) {
+        return swapped[plan];
     }
 }
@@ -1,7 +1,9 @@
 package simpledb.execution;
 
 import simpledb.storage.Field;
+import simpledb.storage.IntField;
 import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
 
 import java.io.Serializable;
 import java.util.Objects;
@@ -103,6 +105,76 @@ public class Predicate implements Serializable {
         return t.getField(field).compare(op, operand);
     }
 
+    /**
+     * Apply the predicate to every row of a batch. Integer comparisons are
+     * made in one loop per operator over the column.
+     *
+     * @param batch the batch to filter
+     * @return a view of the rows of batch that satisfy the predicate
+     */
+    public TupleBatch filter(TupleBatch batch) {
+        int n = batch.size();
+        int[] sel = batch.getSelection();
+        int[] rows = new int[n];
+        int selected = 0;
+        if (operand instanceof IntField && batch.getTupleDesc().getFieldType(field) == operand.getType()) {
+            int[] col = batch.getIntColumn(field);
+            int v = ((IntField) operand).getValue();
+            switch (op) {
+                case EQUALS:
+                case LIKE:
+                    for (int i = 0; i < n; i++) {
+                        int r = sel == null ? i : sel[i];
+                        rows[selected] = r;
+                        selected += col[r] == v ? 1 : 0;
+                    }
+                    break;
+                case NOT_EQUALS:
+                    for (int i = 0; i < n; i++) {
+                        int r = sel == null ? i : sel[i];
+                        rows[selected] = r;
+                        selected += col[r] != v ? 1 : 0;
+                    }
+                    break;
+                case GREATER_THAN:
+                    for (int i = 0; i < n; i++) {
+                        int r = sel == null ? i : sel[i];
+                        rows[selected] = r;
+                        selected += col[r] > v ? 1 : 0;
+                    }
+                    break;
+                case GREATER_THAN_OR_EQ:
+                    for (int i = 0; i < n; i++) {
+                        int r = sel == null ? i : sel[i];
+                        rows[selected] = r;
+                        selected += col[r] >= v ? 1 : 0;
+                    }
+                    break;
+                case LESS_THAN:
+                    for (int i = 0; i < n; i++) {
+                        int r = sel == null ? i : sel[i];
+                        rows[selected] = r;
+                        selected += col[r] < v ? 1 : 0;
+                    }
+                    break;
+                case LESS_THAN_OR_EQ:
+                    for (int i = 0; i < n; i++) {
+                        int r = sel == null ? i : sel[i];
+                        rows[selected] = r;
+                        selected += col[r] <= v ? 1 : 0;
+                    }
+                    break;
+            }
+        } else {
+            for (int i = 0; i < n; i++) {
+                if (batch.getField(field, i).compare(op, operand)) {
+                    rows[selected++] = sel == null ? i : sel[i];
+                }
+            }
+        }
+        return batch.select(rows, selected);
+    }
+
     /**
      * Returns something useful, like "f = field_id op = op_string operand =
      * operand_string"
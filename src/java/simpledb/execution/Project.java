@@ -3,6 +3,7 @@ package simpledb.execution;
 import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
 import simpledb.storage.TupleDesc;
 import simpledb.transaction.TransactionAbortedException;
 
@@ -12,7 +13,7 @@ import java.util.NoSuchElementException;
 /**
  * Project is an operator that implements a relational projection.
  */
-public class Project extends Operator {
+public class Project extends Operator implements BatchSource {
 
     private static final long serialVersionUID = 1L;
     private OpIterator child;
@@ -49,6 +50,13 @@ public class Project extends Operator {
         return td;
     }
 
+    /**
+     * @return the ids of the fields of the child that are projected out
+     */
+    public List<Integer> getFieldList() {
+        return outFieldIds;
+    }
+
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child.open();
@@ -82,6 +90,40 @@ public class Project extends Operator {
         return newTuple;
     }
 
+    /**
+     * Return a BatchIterator whose batches are views of the projected columns
+     * of the batches of the child; no values are copied.
+     */
+    public BatchIterator batchIterator() {
+        BatchIterator childBatches = BatchIterator.of(child);
+        int[] fields = new int[outFieldIds.size()];
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = outFieldIds.get(i);
+        }
+        return new BatchIterator() {
+            public void open() throws DbException, TransactionAbortedException {
+                childBatches.open();
+            }
+
+            public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+                TupleBatch batch = childBatches.nextBatch();
+                return batch == null ? null : batch.project(fields, td);
+            }
+
+            public void rewind() throws DbException, TransactionAbortedException {
+                childBatches.rewind();
+            }
+
+            public TupleDesc getTupleDesc() {
+                return td;
+            }
+
+            public void close() {
+                childBatches.close();
+            }
+        };
+    }
+
     @Override
     public OpIterator[] getChildren() {
         return new OpIterator[]{this.child};
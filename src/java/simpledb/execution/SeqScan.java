@@ -3,8 +3,11 @@ package simpledb.execution;
 import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Type;
+import simpledb.storage.DbFile;
 import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapFile;
 import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
 import simpledb.storage.TupleDesc;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
@@ -17,7 +20,7 @@ import java.util.NoSuchElementException;
  * each tuple of a table in no particular order (e.g., as they are laid out on
  * disk).
  */
-public class SeqScan implements OpIterator {
+public class SeqScan implements OpIterator, BatchSource {
 
     private static final long serialVersionUID = 1L;
 
@@ -25,6 +28,13 @@ public class SeqScan implements OpIterator {
     private int tableid;
     private DbFileIterator dbFileIter;
     private TransactionId tid;
+    // shared with the other scans of a partitioned scan, or null
+    private HeapFile.MorselCursor morsels;
+
+    /**
+     * Number of pages that a partitioned scan claims at a time
+     */
+    public static final int MORSEL_PAGES = 4;
 
     /**
      * Creates a sequential scan over the specified table as a part of the specified
@@ -83,12 +93,103 @@ public class SeqScan implements OpIterator {
         this(tid, tableId, Database.getCatalog().getTableName(tableId));
     }
 
+    /**
+     * Split this scan into n morsel-driven scans, which together return every
+     * tuple of the table once and can be run by different threads. The scans
+     * claim morsels of {@link #MORSEL_PAGES} pages from a shared cursor as
+     * they go, so that the work is balanced between threads; pages are read
+     * through the buffer pool under the locks of the transaction, as usual.
+     * The scans cannot be rewound one by one: they are run again after
+     * {@link #resetPartitions()}.
+     *
+     * @param n the number of scans
+     * @return the scans, or null if the table cannot be scanned in partitions
+     */
+    public SeqScan[] partition(int n) {
+        if (!(Database.getCatalog().getDatabaseFile(tableid) instanceof HeapFile)) {
+            return null;
+        }
+        HeapFile.MorselCursor cursor = new HeapFile.MorselCursor(MORSEL_PAGES);
+        SeqScan[] scans = new SeqScan[n];
+        for (int i = 0; i < n; i++) {
+            scans[i] = new SeqScan(tid, tableid, tableAlias);
+            scans[i].morsels = cursor;
+        }
+        return scans;
+    }
+
+    /**
+     * If this scan is one of the scans of {@link #partition}, make all of
+     * them read the table again when they are opened next. Must not be called
+     * while any of them is open.
+     */
+    public void resetPartitions() {
+        if (this.morsels != null) {
+            this.morsels.reset();
+        }
+    }
+
     public void open() throws DbException, TransactionAbortedException {
         // TODO: some code goes here (OK)
-        this.dbFileIter = Database.getCatalog().getDatabaseFile(this.tableid).iterator(this.tid);
+        this.dbFileIter = fileIterator();
         this.dbFileIter.open();
     }
 
+    private DbFileIterator fileIterator() {
+        DbFile file = Database.getCatalog().getDatabaseFile(this.tableid);
+        if (this.morsels != null) {
+            return ((HeapFile) file).iterator(this.tid, this.morsels);
+        }
+        return file.iterator(this.tid);
+    }
+
+    /**
+     * Return a BatchIterator over the tuples of the table, which copies the
+     * fields of the tuples of every page it reads into the columns of the
+     * batches. A batch iterator of a partitioned scan claims morsels like the
+     * scan itself.
+     */
+    public BatchIterator batchIterator() {
+        TupleDesc td = getTupleDesc();
+        return new BatchIterator() {
+            private DbFileIterator it;
+
+            public void open() throws DbException, TransactionAbortedException {
+                it = fileIterator();
+                it.open();
+            }
+
+            public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+                if (!it.hasNext()) {
+                    return null;
+                }
+                TupleBatch batch = new TupleBatch(td);
+                while (!batch.isFull() && it.hasNext()) {
+                    batch.add(it.next());
+                }
+                return batch;
+            }
+
+            public void rewind() throws DbException, TransactionAbortedException {
+                if (morsels != null) {
+                    throw new DbException("a partitioned scan cannot be rewound");
+                }
+                it.rewind();
+            }
+
+            public TupleDesc getTupleDesc() {
+                return td;
+            }
+
+            public void close() {
+                if (it != null) {
+                    it.close();
+                    it = null;
+                }
+            }
+        };
+    }
+
     /**
      * Returns the TupleDesc with field names from the underlying HeapFile, prefixed
      * with the tableAlias string from the constructor. This prefix becomes useful
@@ -141,6 +242,9 @@ public class SeqScan implements OpIterator {
 
     public void rewind() throws DbException, NoSuchElementException, TransactionAbortedException {
         // TODO: some code goes here (OK)
+        if (this.morsels != null) {
+            throw new DbException("a partitioned scan cannot be rewound");
+        }
         close();
         open();
     }
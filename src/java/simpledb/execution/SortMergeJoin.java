@@ -0,0 +1,362 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.index.BTreeScan;
+import simpledb.storage.Field;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleCursor;
+import simpledb.storage.TupleDesc;
+import simpledb.storage.TupleSpillFile;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * The SortMergeJoin operator joins two inputs by sorting both on their join
+ * fields (with an {@link ExternalSort}) and merging them. Inputs that are
+ * already sorted on the join field, such as a {@link BTreeScan} on its key,
+ * are not sorted again.
+ * <p>
+ * Besides equality, SortMergeJoin supports the inequality (band) predicates
+ * &lt;, &lt;=, &gt; and &gt;=: since both inputs are sorted, the inner tuples
+ * matching an outer tuple form a contiguous range of the sorted inner input.
+ */
+public class SortMergeJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final JoinPredicate pred;
+    private OpIterator child1, child2;
+    private final TupleDesc comboTD;
+    private final int memoryPages;
+
+    // sorted inputs
+    private transient ExternalSort sort1, sort2;
+    private transient TupleCursor left;
+    // equality joins: the inner input, streamed
+    private transient TupleCursor right;
+    private transient Tuple rightPeek;
+    private transient List<Tuple> group;
+    private transient Field groupKey;
+    // inequality joins: the inner input, materialized for random access
+    private transient TupleSpillFile sortedRight;
+    private transient TupleSpillFile.TupleReader startCursor;
+    private transient Tuple startPeek;
+    private transient long start;
+
+    private transient Tuple t1;
+    private transient TupleCursor matches;
+
+    /**
+     * Constructor. Accepts two children to join and the predicate to join them
+     * on.
+     *
+     * @param p      The predicate to use to join the children; one of =, &lt;,
+     *               &lt;=, &gt; or &gt;=
+     * @param child1 Iterator for the left(outer) relation to join
+     * @param child2 Iterator for the right(inner) relation to join
+     */
+    public SortMergeJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        this(p, child1, child2, ExternalSort.DEFAULT_MEMORY_PAGES);
+    }
+
+    /**
+     * Constructor. Accepts two children to join, the predicate to join them on
+     * and the memory budget in pages of each sort.
+     */
+    public SortMergeJoin(JoinPredicate p, OpIterator child1, OpIterator child2, int memoryPages) {
+        if (!supports(p.getOperator())) {
+            throw new IllegalArgumentException("SortMergeJoin does not support " + p.getOperator());
+        }
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.memoryPages = memoryPages;
+        this.comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    /**
+     * @return true if SortMergeJoin can evaluate join predicates with op
+     */
+    public static boolean supports(Predicate.Op op) {
+        switch (op) {
+            case EQUALS:
+            case LESS_THAN:
+            case LESS_THAN_OR_EQ:
+            case GREATER_THAN:
+            case GREATER_THAN_OR_EQ:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return true if child returns its tuples in ascending order of field:
+     *         child is an index scan on field, a sort-merge join on field
+     *         (the merge follows the outer input, and both join fields of
+     *         an equality join), or a filter over such an operator
+     */
+    public static boolean isSortedOn(OpIterator child, int field) {
+        if (child instanceof Filter || child instanceof JoinFilter) {
+            return isSortedOn(((Operator) child).getChildren()[0], field);
+        }
+        if (child instanceof SortMergeJoin) {
+            SortMergeJoin j = (SortMergeJoin) child;
+            return field == j.pred.getField1() || (j.isEquiJoin()
+                    && field == j.child1.getTupleDesc().numFields() + j.pred.getField2());
+        }
+        return child instanceof BTreeScan && ((BTreeScan) child).getSortField() == field;
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(pred.getField2());
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    private boolean isEquiJoin() {
+        return pred.getOperator() == Predicate.Op.EQUALS;
+    }
+
+    public void open() throws DbException, NoSuchElementException, TransactionAbortedException {
+        child1.open();
+        child2.open();
+        startMerge();
+        super.open();
+    }
+
+    /**
+     * Sort the inputs (unless they are sorted already) and position the
+     * merge at their first tuples.
+     */
+    private void startMerge() throws DbException, TransactionAbortedException {
+        left = sortedInput(child1, pred.getField1(), true);
+        if (isEquiJoin()) {
+            right = sortedInput(child2, pred.getField2(), false);
+            rightPeek = nextRight();
+        } else {
+            if (sortedRight == null) {
+                TupleCursor in = sortedInput(child2, pred.getField2(), false);
+                try {
+                    sortedRight = new TupleSpillFile(child2.getTupleDesc());
+                    while (in.hasNext()) {
+                        sortedRight.append(in.next());
+                    }
+                } catch (IOException e) {
+                    throw new DbException("cannot materialize sorted input: " + e.getMessage());
+                }
+                if (sort2 != null) {
+                    sort2.close();
+                    sort2 = null;
+                }
+            }
+            start = 0;
+            startCursor = openSortedRight(0);
+            startPeek = startCursor.hasNext() ? startCursor.next() : null;
+        }
+        group = new ArrayList<>();
+        groupKey = null;
+        matches = null;
+        t1 = null;
+    }
+
+    private TupleCursor sortedInput(OpIterator child, int field, boolean outer)
+            throws DbException, TransactionAbortedException {
+        if (isSortedOn(child, field)) {
+            return new TupleCursor() {
+                public boolean hasNext() throws DbException, TransactionAbortedException {
+                    return child.hasNext();
+                }
+
+                public Tuple next() throws DbException, TransactionAbortedException {
+                    return child.next();
+                }
+            };
+        }
+
+        ExternalSort sort = outer ? sort1 : sort2;
+        if (sort == null) {
+            sort = ExternalSort.sort(child, new TupleComparator(field, true), memoryPages);
+            if (outer) {
+                sort1 = sort;
+            } else {
+                sort2 = sort;
+            }
+        }
+        return sort.iterator();
+    }
+
+    private TupleSpillFile.TupleReader openSortedRight(long from) throws DbException {
+        try {
+            return sortedRight.iterator(from);
+        } catch (IOException e) {
+            throw new DbException("cannot read sorted input: " + e.getMessage());
+        }
+    }
+
+    private Tuple nextRight() throws DbException, TransactionAbortedException {
+        return right.hasNext() ? right.next() : null;
+    }
+
+    public void close() {
+        super.close();
+        closeMerge();
+        if (sortedRight != null) {
+            sortedRight.close();
+            sortedRight = null;
+        }
+        child2.close();
+        child1.close();
+    }
+
+    private void closeMerge() {
+        closeCursors();
+        if (sort1 != null) {
+            sort1.close();
+            sort1 = null;
+        }
+        if (sort2 != null) {
+            sort2.close();
+            sort2 = null;
+        }
+        startCursor = null;
+        matches = null;
+        left = null;
+        right = null;
+        group = null;
+    }
+
+    /**
+     * Close the cursors of the current merge, releasing the sorted runs and
+     * spill files they read.
+     */
+    private void closeCursors() {
+        for (TupleCursor cursor : new TupleCursor[]{left, right, startCursor, matches}) {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        // sorted inputs are kept, so a rewind does not sort again
+        closeCursors();
+        if (isSortedOn(child1, pred.getField1())) {
+            child1.rewind();
+        }
+        if (isEquiJoin() && isSortedOn(child2, pred.getField2())) {
+            child2.rewind();
+        }
+        startMerge();
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples. The output is ordered by the join field of the outer
+     * relation.
+     *
+     * @return The next matching tuple.
+     * @see JoinPredicate#filter
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (matches != null) {
+                if (matches.hasNext()) {
+                    Tuple t2 = matches.next();
+                    // for inequality joins the matches end at the first failure
+                    if (isEquiJoin() || pred.filter(t1, t2)) {
+                        return merge(t1, t2);
+                    }
+                }
+                matches.close();
+                matches = null;
+            }
+
+            if (!left.hasNext()) {
+                return null;
+            }
+            t1 = left.next();
+            matches = isEquiJoin() ? equalMatches() : rangeMatches();
+        }
+    }
+
+    /**
+     * The inner tuples with the same key as t1. Advances the inner input past
+     * smaller keys and buffers the group of equal keys, which is reused when
+     * the next outer tuple has the same key.
+     */
+    private TupleCursor equalMatches() throws DbException, TransactionAbortedException {
+        Field key = t1.getField(pred.getField1());
+        if (groupKey != null && groupKey.equals(key)) {
+            return TupleCursor.of(group.iterator());
+        }
+        group.clear();
+        groupKey = key;
+        while (rightPeek != null && rightPeek.getField(pred.getField2()).compare(Predicate.Op.LESS_THAN, key)) {
+            rightPeek = nextRight();
+        }
+        while (rightPeek != null && rightPeek.getField(pred.getField2()).equals(key)) {
+            group.add(rightPeek);
+            rightPeek = nextRight();
+        }
+        return TupleCursor.of(group.iterator());
+    }
+
+    /**
+     * The inner tuples matching t1 under an inequality predicate. For t1 &lt;
+     * t2 (and &lt;=) these are a suffix of the sorted inner input whose start
+     * only moves forward as t1 grows; for &gt; (and &gt;=) a prefix, which is
+     * read until the first tuple that does not match.
+     */
+    private TupleCursor rangeMatches() throws DbException {
+        Predicate.Op op = pred.getOperator();
+        if (op == Predicate.Op.LESS_THAN || op == Predicate.Op.LESS_THAN_OR_EQ) {
+            while (startPeek != null && !pred.filter(t1, startPeek)) {
+                start++;
+                startPeek = startCursor.hasNext() ? startCursor.next() : null;
+            }
+            if (startPeek == null) {
+                return null;
+            }
+            return openSortedRight(start);
+        }
+        return openSortedRight(0);
+    }
+
+    private Tuple merge(Tuple t1, Tuple t2) {
+        int td1n = t1.getTupleDesc().numFields();
+        int td2n = t2.getTupleDesc().numFields();
+
+        Tuple t = new Tuple(comboTD);
+        for (int i = 0; i < td1n; i++)
+            t.setField(i, t1.getField(i));
+        for (int i = 0; i < td2n; i++)
+            t.setField(td1n + i, t2.getField(i));
+        return t;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{this.child1, this.child2};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+    }
+}
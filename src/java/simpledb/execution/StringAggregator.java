@@ -2,16 +2,9 @@ package simpledb.execution;
 
 import simpledb.common.DbException;
 import simpledb.common.Type;
-import simpledb.storage.Field;
-import simpledb.storage.IntField;
 import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
 import simpledb.storage.TupleDesc;
-import simpledb.transaction.TransactionAbortedException;
-
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
-import java.util.Set;
 
 /**
  * Knows how to compute some aggregate over a set of StringFields.
@@ -26,9 +19,8 @@ public class StringAggregator implements Aggregator {
     private Op aOp;
     private TupleDesc td;
 
-    // key: group by field | value: tuple for that group (group by field value,
-    // aggregate value)
-    private Map<Field, Tuple> aggValues;
+    // one accumulator per group; spills groups to disk beyond its memory budget
+    private final AggregationTable groups;
 
     /**
      * Aggregate constructor
@@ -43,6 +35,17 @@ public class StringAggregator implements Aggregator {
      */
 
     public StringAggregator(int gbfield, Type gbfieldtype, int afield, Op what) {
+        this(gbfield, gbfieldtype, afield, what, AggregationTable.DEFAULT_MEMORY_PAGES);
+    }
+
+    /**
+     * Aggregate constructor with a memory budget for the groups
+     *
+     * @param memoryPages the number of pages of groups kept in memory; the
+     *                    other groups are spilled to disk
+     * @throws IllegalArgumentException if what != COUNT
+     */
+    public StringAggregator(int gbfield, Type gbfieldtype, int afield, Op what, int memoryPages) {
         // TODO: some code goes here (OK)
         this.gbFieldIdx = gbfield;
         this.gbFieldType = gbfieldtype;
@@ -51,7 +54,8 @@ public class StringAggregator implements Aggregator {
         if (!Op.COUNT.equals(what)) {
             throw new IllegalArgumentException("String Aggregator only supports COUNT operator");
         }
-        this.aggValues = new HashMap<>();
+        this.groups = new AggregationTable(gbfield == NO_GROUPING ? new int[0] : new int[] { gbfield },
+                new int[] { afield }, new Op[] { what }, memoryPages);
     }
 
     /**
@@ -62,62 +66,41 @@ public class StringAggregator implements Aggregator {
      */
     public void mergeTupleIntoGroup(Tuple tup) {
         // TODO: some code goes here (OK)
-        Field aggField = tup.getField(this.aFieldIdx);
-        TupleDesc td = tup.getTupleDesc();
-        String aggFieldName = this.aOp.toString() + " " + td.getFieldName(this.aFieldIdx);
+        initTupleDesc(tup.getTupleDesc());
 
-        if (this.gbFieldIdx == Aggregator.NO_GROUPING) {
-            if (this.td == null) {
-                Type[] typeAr = new Type[] { Type.INT_TYPE };
-                String[] fieldAr = new String[] { aggFieldName };
-                this.td = new TupleDesc(typeAr, fieldAr);
-            }
-            calculateAggregateValue(null, aggField);
-        } else {
-            if (this.td == null) {
-                Type[] typeAr = new Type[] { td.getFieldType(this.gbFieldIdx), Type.INT_TYPE };
-                String[] fieldAr = new String[] { td.getFieldName(this.gbFieldIdx), aggFieldName };
-                this.td = new TupleDesc(typeAr, fieldAr);
-            }
+        try {
+            this.groups.merge(tup);
+        } catch (DbException e) {
+            throw new RuntimeException(e);
+        }
+    }
 
-            Field gbField = tup.getField(this.gbFieldIdx);
-            calculateAggregateValue(gbField, aggField);
+    /**
+     * Merge every row of a batch into the aggregate, grouping as indicated in
+     * the constructor
+     */
+    public void mergeBatch(TupleBatch batch) {
+        initTupleDesc(batch.getTupleDesc());
+        try {
+            this.groups.merge(batch);
+        } catch (DbException e) {
+            throw new RuntimeException(e);
         }
     }
 
-    private void calculateAggregateValue(Field gbField, Field aggField) {
-        Tuple tup = this.aggValues.getOrDefault(gbField, null);
-        if (tup == null) {
-            tup = new Tuple(this.td);
+    private void initTupleDesc(TupleDesc td) {
+        if (this.td == null) {
+            String aggFieldName = this.aOp.toString() + " " + td.getFieldName(this.aFieldIdx);
             if (this.gbFieldIdx == Aggregator.NO_GROUPING) {
-                tup.setField(0, new IntField(0));
+                Type[] typeAr = new Type[] { Type.INT_TYPE };
+                String[] fieldAr = new String[] { aggFieldName };
+                this.td = new TupleDesc(typeAr, fieldAr);
             } else {
-                tup.setField(0, gbField);
-                tup.setField(1, new IntField(0));
+                Type[] typeAr = new Type[] { td.getFieldType(this.gbFieldIdx), Type.INT_TYPE };
+                String[] fieldAr = new String[] { td.getFieldName(this.gbFieldIdx), aggFieldName };
+                this.td = new TupleDesc(typeAr, fieldAr);
             }
         }
-
-        Integer aggValue;
-        if (this.gbFieldIdx == Aggregator.NO_GROUPING) {
-            aggValue = ((IntField) tup.getField(0)).getValue();
-        } else {
-            aggValue = ((IntField) tup.getField(1)).getValue();
-        }
-
-        switch (this.aOp) {
-            case COUNT:
-                aggValue++;
-                break;
-            default:
-                throw new IllegalArgumentException("Unsupported operator for String aggreagte: " + this.aOp.toString());
-        }
-
-        if (this.gbFieldIdx == Aggregator.NO_GROUPING) {
-            tup.setField(0, new IntField(aggValue));
-        } else {
-            tup.setField(1, new IntField(aggValue));
-        }
-        aggValues.put(gbField, tup);
     }
 
     /**
@@ -130,52 +113,14 @@ public class StringAggregator implements Aggregator {
      */
     public OpIterator iterator() {
         // TODO: some code goes here (OK)
-        return new StringAggregatorIterator(aggValues.entrySet(), td);
+        return this.groups.iterator(this.td);
     }
 
-    private static class StringAggregatorIterator extends Operator {
-        private Set<Map.Entry<Field, Tuple>> entries;
-        private TupleDesc td;
-        private Iterator<Map.Entry<Field, Tuple>> iterator;
-
-        StringAggregatorIterator(Set<Map.Entry<Field, Tuple>> entries, TupleDesc td) {
-            this.entries = entries;
-            this.td = td;
-        }
-
-        @Override
-        public void rewind() throws DbException, TransactionAbortedException {
-            close();
-            open();
-        }
-
-        @Override
-        public void open() throws DbException, TransactionAbortedException {
-            iterator = entries.iterator();
-            super.open();
-        }
-
-        @Override
-        protected Tuple fetchNext() throws DbException, TransactionAbortedException {
-            if (!iterator.hasNext())
-                return null;
-            Map.Entry<Field, Tuple> next = iterator.next();
-            return next.getValue();
-        }
-
-        @Override
-        public OpIterator[] getChildren() {
-            return null;
-        }
-
-        @Override
-        public void setChildren(OpIterator[] children) {
-        }
-
-        @Override
-        public TupleDesc getTupleDesc() {
-            return td;
-        }
+    /**
+     * Delete the groups spilled to disk.
+     */
+    public void close() {
+        this.groups.close();
     }
 
 }
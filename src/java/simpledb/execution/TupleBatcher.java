@@ -0,0 +1,63 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.TupleBatch;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+/**
+ * TupleBatcher is a BatchIterator that reads the tuples of an OpIterator and
+ * returns them in batches, for operators without a batch implementation.
+ */
+public class TupleBatcher implements BatchIterator {
+
+    private final OpIterator child;
+    private final int capacity;
+
+    /**
+     * Constructor.
+     *
+     * @param child the OpIterator to read the tuples from
+     */
+    public TupleBatcher(OpIterator child) {
+        this(child, TupleBatch.DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param child    the OpIterator to read the tuples from
+     * @param capacity the maximum number of rows of a batch
+     */
+    public TupleBatcher(OpIterator child, int capacity) {
+        this.child = child;
+        this.capacity = capacity;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        child.open();
+    }
+
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        if (!child.hasNext()) {
+            return null;
+        }
+        TupleBatch batch = new TupleBatch(child.getTupleDesc(), capacity);
+        while (!batch.isFull() && child.hasNext()) {
+            batch.add(child.next());
+        }
+        return batch;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void close() {
+        child.close();
+    }
+}
@@ -144,12 +144,12 @@ public class BTreeFile implements DbFile {
         RandomAccessFile rf = new RandomAccessFile(f, "rw");
         if (id.pgcateg() == BTreePageId.ROOT_PTR) {
             rf.write(data);
-            rf.close();
         } else {
             rf.seek(BTreeRootPtrPage.getPageSize() + (long) (page.getId().getPageNumber() - 1) * BufferPool.getPageSize());
             rf.write(data);
-            rf.close();
         }
+        Database.getSyncManager().sync(f, rf.getChannel());
+        rf.close();
     }
 
     /**
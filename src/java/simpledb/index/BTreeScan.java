@@ -28,6 +28,7 @@ public class BTreeScan implements OpIterator {
     private transient DbFileIterator it;
     private String tablename;
     private String alias;
+    private int keyField = -1;
 
     /**
      * Creates a B+ tree scan over the specified table as a part of the
@@ -85,6 +86,9 @@ public class BTreeScan implements OpIterator {
         } else {
             this.it = ((BTreeFile) Database.getCatalog().getDatabaseFile(tableid)).indexIterator(tid, ipred);
         }
+        if (Database.getCatalog().getDatabaseFile(tableid) instanceof BTreeFile) {
+            this.keyField = ((BTreeFile) Database.getCatalog().getDatabaseFile(tableid)).keyField();
+        }
         myTd = Database.getCatalog().getTupleDesc(tableid);
         String[] newNames = new String[myTd.numFields()];
         Type[] newTypes = new Type[myTd.numFields()];
@@ -98,6 +102,14 @@ public class BTreeScan implements OpIterator {
         myTd = new TupleDesc(newTypes, newNames);
     }
 
+    /**
+     * @return the index of the field the tuples are returned in ascending
+     *         order of (the key field of the B+ tree), or -1 if unknown
+     */
+    public int getSortField() {
+        return this.keyField;
+    }
+
     public BTreeScan(TransactionId tid, int tableid, IndexPredicate ipred) {
         this(tid, tableid, Database.getCatalog().getTableName(tableid), ipred);
     }
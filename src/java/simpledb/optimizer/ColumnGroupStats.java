@@ -0,0 +1,238 @@
+package simpledb.optimizer;
+
+import simpledb.common.Type;
+import simpledb.execution.Predicate;
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.StringField;
+import simpledb.storage.Tuple;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Statistics over a group of columns of a table that are correlated, such as
+ * a city and its zip code: a reservoir sample of the values of the group in
+ * the same tuples, and a sketch of the number of distinct combinations.
+ * <p>
+ * The selectivity of several predicates over the columns of the group is the
+ * fraction of the sampled combinations that satisfy all of them, which holds
+ * however the columns depend on each other, unlike the product of the
+ * selectivities of the predicates. Predicates that too few sampled
+ * combinations satisfy fall back to the average frequency of a combination
+ * (for equalities on every column, if it is too low for the sample) or to
+ * the product, capped by what the sample allows.
+ */
+public class ColumnGroupStats {
+
+    /**
+     * Maximum number of combinations in the sample
+     */
+    static final int SAMPLE_SIZE = 4096;
+
+    /**
+     * The sample estimates selectivities that at least this many sampled
+     * combinations satisfy
+     */
+    static final int MIN_SAMPLE_MATCHES = 10;
+
+    private final int[] fields;
+    private final Type[] types;
+    // the sample: sample[0..sampled) of the seen combinations
+    private Field[][] sample = new Field[64][];
+    private int sampled = 0;
+    private long seen = 0;
+    private final Random random;
+    // the distinct combinations
+    private final HyperLogLog sketch;
+
+    /**
+     * Create statistics over a group of columns
+     *
+     * @param fields the indexes of the columns of the group, in the table
+     * @param types  the types of those columns
+     * @param seed   the seed of the sample, so that it is repeatable
+     */
+    public ColumnGroupStats(int[] fields, Type[] types, long seed) {
+        this(fields, types, seed, new HyperLogLog());
+    }
+
+    private ColumnGroupStats(int[] fields, Type[] types, long seed, HyperLogLog sketch) {
+        this.fields = fields.clone();
+        this.types = types.clone();
+        this.random = new Random(seed);
+        this.sketch = sketch;
+    }
+
+    /**
+     * @return the indexes of the columns of the group
+     */
+    public int[] getFields() {
+        return fields.clone();
+    }
+
+    /**
+     * @return true if field is a column of the group
+     */
+    public boolean hasField(int field) {
+        return indexOf(field) >= 0;
+    }
+
+    private int indexOf(int field) {
+        for (int i = 0; i < fields.length; i++) {
+            if (fields[i] == field) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Add the combination of the values of the group in a tuple of the table
+     */
+    public synchronized void addTuple(Tuple t) {
+        long hash = 0xcbf29ce484222325L;
+        Field[] values = new Field[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            values[i] = t.getField(fields[i]);
+            hash = (hash ^ values[i].hashCode()) * 0x100000001b3L;
+        }
+        sketch.addLong(hash);
+
+        // reservoir sampling: the n-th combination replaces a sampled one
+        // with probability SAMPLE_SIZE / n
+        seen++;
+        if (sampled < SAMPLE_SIZE) {
+            if (sampled == sample.length) {
+                sample = Arrays.copyOf(sample, Math.min(SAMPLE_SIZE, sampled * 2));
+            }
+            sample[sampled++] = values;
+        } else {
+            long r = (long) (random.nextDouble() * seen);
+            if (r < SAMPLE_SIZE) {
+                sample[(int) r] = values;
+            }
+        }
+    }
+
+    /**
+     * @return the number of distinct combinations added
+     */
+    public synchronized long numDistinct() {
+        return sketch.estimate();
+    }
+
+    /**
+     * Estimate the selectivity of a conjunction of predicates over columns
+     * of the group.
+     *
+     * @param preds       the predicates, over the fields of the table
+     * @param independent the selectivity of the predicates if the columns
+     *                    were independent
+     * @param distinct    the number of distinct combinations in the table
+     * @return the estimated fraction of the tuples that satisfy all of preds
+     */
+    public synchronized double estimateSelectivity(List<Predicate> preds, double independent, long distinct) {
+        if (sampled == 0) {
+            return independent;
+        }
+        int[] positions = new int[preds.size()];
+        boolean[] equal = new boolean[fields.length];
+        for (int p = 0; p < positions.length; p++) {
+            positions[p] = indexOf(preds.get(p).getField());
+            if (positions[p] < 0) {
+                throw new IllegalArgumentException("field " + preds.get(p).getField() + " is not in the group");
+            }
+            if (preds.get(p).getOp() == Predicate.Op.EQUALS) {
+                equal[positions[p]] = true;
+            }
+        }
+
+        int matches = 0;
+        for (int s = 0; s < sampled; s++) {
+            boolean match = true;
+            for (int p = 0; p < positions.length && match; p++) {
+                Predicate pred = preds.get(p);
+                match = sample[s][positions[p]].compare(pred.getOp(), pred.getOperand());
+            }
+            if (match) {
+                matches++;
+            }
+        }
+        if (matches >= MIN_SAMPLE_MATCHES) {
+            return (double) matches / sampled;
+        }
+
+        // too rare for the sample, which still bounds the selectivity
+        double bound = (double) MIN_SAMPLE_MATCHES / sampled;
+        boolean allEqual = true;
+        for (boolean e : equal) {
+            allEqual &= e;
+        }
+        double average = 1.0 / Math.max(1, distinct);
+        if (allEqual && average < bound) {
+            // a combination of values, which are about equally common; the
+            // sample is too small to tell them apart
+            return average;
+        }
+        return Math.min(bound, independent);
+    }
+
+    /**
+     * Write the statistics to out
+     */
+    public synchronized void write(DataOutput out) throws IOException {
+        out.writeInt(fields.length);
+        for (int i = 0; i < fields.length; i++) {
+            out.writeInt(fields[i]);
+            out.writeBoolean(types[i] == Type.INT_TYPE);
+        }
+        out.writeLong(seen);
+        out.writeInt(sampled);
+        for (int s = 0; s < sampled; s++) {
+            for (int i = 0; i < fields.length; i++) {
+                if (types[i] == Type.INT_TYPE) {
+                    out.writeInt(((IntField) sample[s][i]).getValue());
+                } else {
+                    out.writeUTF(((StringField) sample[s][i]).getValue());
+                }
+            }
+        }
+        sketch.write(out);
+    }
+
+    /**
+     * Read statistics that were written with {@link #write}
+     *
+     * @param seed the seed of the sample for the combinations added later
+     */
+    public static ColumnGroupStats read(DataInput in, long seed) throws IOException {
+        int n = in.readInt();
+        int[] fields = new int[n];
+        Type[] types = new Type[n];
+        for (int i = 0; i < n; i++) {
+            fields[i] = in.readInt();
+            types[i] = in.readBoolean() ? Type.INT_TYPE : Type.STRING_TYPE;
+        }
+        long seen = in.readLong();
+        int sampled = in.readInt();
+        Field[][] sample = new Field[Math.max(1, sampled)][];
+        for (int s = 0; s < sampled; s++) {
+            sample[s] = new Field[n];
+            for (int i = 0; i < n; i++) {
+                sample[s][i] = types[i] == Type.INT_TYPE
+                        ? new IntField(in.readInt())
+                        : new StringField(in.readUTF(), Type.STRING_LEN);
+            }
+        }
+        ColumnGroupStats g = new ColumnGroupStats(fields, types, seed, HyperLogLog.read(in));
+        g.sample = sample;
+        g.sampled = sampled;
+        g.seen = seen;
+        return g;
+    }
+}
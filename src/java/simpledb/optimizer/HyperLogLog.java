@@ -0,0 +1,112 @@
+package simpledb.optimizer;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * A HyperLogLog sketch, which estimates the number of distinct values added
+ * to it in a fixed amount of memory.
+ * <p>
+ * Every value is hashed to 64 bits; the first {@link #PRECISION} bits pick
+ * one of 2^PRECISION registers, which keeps the longest run of leading zeros
+ * seen in the remaining bits. The estimate is the bias-corrected harmonic
+ * mean of the registers, with linear counting for small cardinalities. The
+ * standard error is about 1.04 / sqrt(2^PRECISION), or 2.3% here.
+ */
+public class HyperLogLog {
+
+    /**
+     * Number of hash bits that pick a register
+     */
+    static final int PRECISION = 11;
+
+    private static final int REGISTERS = 1 << PRECISION;
+    private static final double ALPHA = 0.7213 / (1 + 1.079 / REGISTERS);
+
+    private final byte[] registers = new byte[REGISTERS];
+
+    /**
+     * Add an integer value to the sketch
+     */
+    public void addInt(int v) {
+        addHash(mix(v));
+    }
+
+    /**
+     * Add a long value, such as a hash of several values, to the sketch
+     */
+    public void addLong(long v) {
+        addHash(mix(v));
+    }
+
+    /**
+     * Add a string value to the sketch
+     */
+    public void addString(String s) {
+        // 64-bit FNV-1a, since String.hashCode has only 32 bits
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        addHash(mix(h));
+    }
+
+    private void addHash(long hash) {
+        int register = (int) (hash >>> (Long.SIZE - PRECISION));
+        // the run of zeros is at most 64 - PRECISION + 1 long
+        int rank = Long.numberOfLeadingZeros((hash << PRECISION) | (1L << (PRECISION - 1))) + 1;
+        if (rank > registers[register]) {
+            registers[register] = (byte) rank;
+        }
+    }
+
+    /**
+     * The finalizer of MurmurHash3, which spreads every bit of x over the
+     * whole hash
+     */
+    private static long mix(long x) {
+        x ^= x >>> 33;
+        x *= 0xff51afd7ed558ccdL;
+        x ^= x >>> 33;
+        x *= 0xc4ceb9fe1a85ec53L;
+        x ^= x >>> 33;
+        return x;
+    }
+
+    /**
+     * Write the registers of the sketch to out
+     */
+    public void write(DataOutput out) throws IOException {
+        out.write(registers);
+    }
+
+    /**
+     * Read a sketch that was written with {@link #write}
+     */
+    public static HyperLogLog read(DataInput in) throws IOException {
+        HyperLogLog h = new HyperLogLog();
+        in.readFully(h.registers);
+        return h;
+    }
+
+    /**
+     * @return the estimated number of distinct values added to the sketch
+     */
+    public long estimate() {
+        double sum = 0;
+        int zeros = 0;
+        for (byte r : registers) {
+            sum += 1.0 / (1L << r);
+            if (r == 0) {
+                zeros++;
+            }
+        }
+        double estimate = ALPHA * REGISTERS * REGISTERS / sum;
+        if (estimate <= 2.5 * REGISTERS && zeros > 0) {
+            estimate = REGISTERS * Math.log((double) REGISTERS / zeros);
+        }
+        return Math.round(estimate);
+    }
+}
@@ -2,11 +2,85 @@ package simpledb.optimizer;
 
 import simpledb.execution.Predicate;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
 /**
- * A class to represent a fixed-width histogram over a single integer-based field.
+ * A class to represent a compressed histogram over a single integer-based
+ * field: the most common values with their frequencies, and equi-depth
+ * buckets over the other values.
+ * <p>
+ * The histogram is built from a reservoir sample of the values it receives,
+ * so its size is bounded however many values are added, and it is exact as
+ * long as the sample holds all of them. A value is a most common value if it
+ * is more frequent than an average bucket; the other values are split into
+ * buckets that hold about the same number of values each, without splitting
+ * the occurrences of a value across buckets. Unlike equi-width buckets,
+ * equi-depth buckets are narrow where the values are dense, and most common
+ * values do not skew the estimates for the values around them. The number of
+ * distinct values in a bucket is scaled up from the sample to all values
+ * with {@link TableStats#scaleDistinct}, as values that are rare in the
+ * sample stand for many unsampled ones.
+ * <p>
+ * Once the histogram is built, {@link #insertValue} and {@link #deleteValue}
+ * keep it up to date with the changes to the table by adjusting the count of
+ * the value or bucket that a value falls into, without rebuilding it; the
+ * sample is not changed.
+ * <p>
+ * {@link #write} saves the histogram without its sample, so a histogram
+ * that was {@link #read} back takes changes through insertValue and
+ * deleteValue only.
+ * <p>
+ * Adding values is not thread-safe; the other methods are.
  */
 public class IntHistogram {
 
+    /**
+     * Maximum number of values in the sample the histogram is built from
+     */
+    static final int SAMPLE_SIZE = 8192;
+
+    // the sample is drawn in the same way on every run, so that plans are
+    // repeatable
+    private static final long SEED = 0x5EED;
+
+    private final int buckets;
+    private final int min;
+    private final int max;
+
+    // the sample: sample[0..sampled) of the first count values
+    private int[] sample = new int[64];
+    private int sampled = 0;
+    private long count = 0;
+    private int seenMin = Integer.MAX_VALUE;
+    private int seenMax = Integer.MIN_VALUE;
+    // reservoir sampling with skips (algorithm L): the index of the next
+    // value that replaces a sampled one, and the current weight
+    private final Random random = new Random(SEED);
+    private long nextReplaced;
+    private double w;
+
+    // the histogram, built from the sample when it is needed
+    private Summary summary; // protected by this
+
+    /**
+     * The most common values and buckets of the histogram, with the
+     * estimated number of values in each. Bucket i holds the other values in
+     * [lows[i], highs[i]], with an estimated distinct[i] different ones.
+     */
+    private static class Summary {
+        int[] mcvs;
+        double[] mcvCounts;
+        int[] lows;
+        int[] highs;
+        double[] counts;
+        double[] distinct;
+        double total;
+    }
+
     /**
      * Create a new IntHistogram.
      * <p>
@@ -24,7 +98,10 @@ public class IntHistogram {
      * @param max     The maximum integer value that will ever be passed to this class for histogramming
      */
     public IntHistogram(int buckets, int min, int max) {
-        // TODO: some code goes here
+        // TODO: some code goes here (OK)
+        this.buckets = Math.max(1, buckets);
+        this.min = min;
+        this.max = max;
     }
 
     /**
@@ -33,7 +110,311 @@ public class IntHistogram {
      * @param v Value to add to the histogram
      */
     public void addValue(int v) {
-        // TODO: some code goes here
+        // TODO: some code goes here (OK)
+        if (v < seenMin) {
+            seenMin = v;
+        }
+        if (v > seenMax) {
+            seenMax = v;
+        }
+        if (sampled < SAMPLE_SIZE) {
+            if (sampled == sample.length) {
+                sample = Arrays.copyOf(sample, Math.min(SAMPLE_SIZE, sampled * 2));
+            }
+            sample[sampled++] = v;
+            if (sampled == SAMPLE_SIZE) {
+                w = Math.exp(Math.log(random.nextDouble()) / SAMPLE_SIZE);
+                nextReplaced = count + 1 + skip();
+            }
+        } else if (count == nextReplaced) {
+            sample[random.nextInt(SAMPLE_SIZE)] = v;
+            w *= Math.exp(Math.log(random.nextDouble()) / SAMPLE_SIZE);
+            nextReplaced = count + 1 + skip();
+        }
+        count++;
+        summary = null;
+    }
+
+    /**
+     * @return the number of values to pass over before the next one that
+     *         replaces a sampled value
+     */
+    private long skip() {
+        double s = Math.floor(Math.log(random.nextDouble()) / Math.log(1 - w));
+        return s >= Long.MAX_VALUE / 2 ? Long.MAX_VALUE / 2 : (long) s;
+    }
+
+    /**
+     * @return the histogram of the values added so far
+     */
+    private synchronized Summary summary() {
+        if (summary == null) {
+            summary = summarize();
+        }
+        return summary;
+    }
+
+    /**
+     * Build the histogram from the sample: the values more frequent than
+     * 1/buckets become most common values, and the rest are split into the
+     * remaining buckets.
+     */
+    private Summary summarize() {
+        int[] sorted = Arrays.copyOf(sample, sampled);
+        Arrays.sort(sorted);
+        int n = sorted.length;
+
+        // the runs of equal values in the sample
+        int[] values = new int[n];
+        int[] counts = new int[n];
+        int runs = 0;
+        for (int i = 0; i < n; i++) {
+            if (runs > 0 && values[runs - 1] == sorted[i]) {
+                counts[runs - 1]++;
+            } else {
+                values[runs] = sorted[i];
+                counts[runs++] = 1;
+            }
+        }
+
+        boolean[] common = new boolean[runs];
+        int numMcvs = 0;
+        int mcvCount = 0;
+        for (int r = 0; r < runs; r++) {
+            if ((long) counts[r] * buckets > n && numMcvs < buckets) {
+                common[r] = true;
+                numMcvs++;
+                mcvCount += counts[r];
+            }
+        }
+
+        // a sampled value stands for count / n values
+        double scale = (double) count / n;
+        Summary s = new Summary();
+        s.total = count;
+        s.mcvs = new int[numMcvs];
+        s.mcvCounts = new double[numMcvs];
+        for (int r = 0, m = 0; r < runs; r++) {
+            if (common[r]) {
+                s.mcvs[m] = values[r];
+                s.mcvCounts[m++] = counts[r] * scale;
+            }
+        }
+
+        int rest = n - mcvCount;
+        int numBuckets = rest == 0 ? 0 : Math.max(1, Math.min(buckets - numMcvs, runs - numMcvs));
+        s.lows = new int[numBuckets];
+        s.highs = new int[numBuckets];
+        s.counts = new double[numBuckets];
+        s.distinct = new double[numBuckets];
+        int[] sampledCounts = new int[numBuckets];
+        int b = 0;
+        int inBucket = 0;
+        int done = 0;
+        for (int r = 0; r < runs; r++) {
+            if (common[r]) {
+                continue;
+            }
+            if (s.distinct[b] == 0) {
+                // buckets are contiguous, so every value falls into one
+                s.lows[b] = b == 0 ? values[r] : s.highs[b - 1] + 1;
+            }
+            s.highs[b] = values[r];
+            s.distinct[b]++;
+            inBucket += counts[r];
+            done += counts[r];
+            // close the bucket once it holds its share of the values
+            if (b < numBuckets - 1 && (long) done * numBuckets >= (long) rest * (b + 1)) {
+                sampledCounts[b] = inBucket;
+                s.counts[b++] = inBucket * scale;
+                inBucket = 0;
+            }
+        }
+        if (numBuckets > 0) {
+            sampledCounts[b] = inBucket;
+            s.counts[b] = inBucket * scale;
+            numBuckets = s.distinct[b] == 0 ? b : b + 1;
+            s.lows = Arrays.copyOf(s.lows, numBuckets);
+            s.highs = Arrays.copyOf(s.highs, numBuckets);
+            s.counts = Arrays.copyOf(s.counts, numBuckets);
+            s.distinct = Arrays.copyOf(s.distinct, numBuckets);
+        }
+        // the distinct values of the sample of a bucket, scaled up to the
+        // values of the bucket; a bucket cannot hold more than its range
+        for (b = 0; b < numBuckets; b++) {
+            long distinct = TableStats.scaleDistinct((long) s.distinct[b], sampledCounts[b], Math.round(s.counts[b]));
+            s.distinct[b] = Math.max(s.distinct[b], Math.min(distinct, (long) s.highs[b] - s.lows[b] + 1));
+        }
+        return s;
+    }
+
+    /**
+     * Record that a value was added to the table, in the count of its most
+     * common value or bucket. A value past the ends of the buckets widens
+     * the first or last bucket. Values added with {@link #addValue} later
+     * rebuild the histogram from the sample, which drops these changes.
+     *
+     * @param v the value to add
+     */
+    public synchronized void insertValue(int v) {
+        if (count == 0) {
+            addValue(v);
+            return;
+        }
+        Summary s = summary();
+        seenMin = Math.min(seenMin, v);
+        seenMax = Math.max(seenMax, v);
+        s.total++;
+        int m = Arrays.binarySearch(s.mcvs, v);
+        if (m >= 0) {
+            s.mcvCounts[m]++;
+            return;
+        }
+        int n = s.lows.length;
+        if (n == 0) {
+            s.lows = new int[]{v};
+            s.highs = new int[]{v};
+            s.counts = new double[]{1};
+            s.distinct = new double[]{1};
+            return;
+        }
+        int b = bucket(s, v);
+        if (b < 0) {
+            b = v < s.lows[0] ? 0 : n - 1;
+            s.lows[b] = Math.min(s.lows[b], v);
+            s.highs[b] = Math.max(s.highs[b], v);
+            s.distinct[b]++;
+        }
+        s.counts[b]++;
+    }
+
+    /**
+     * Record that a value was removed from the table, in the count of its
+     * most common value or bucket.
+     *
+     * @param v the value to remove
+     */
+    public synchronized void deleteValue(int v) {
+        if (count == 0) {
+            return;
+        }
+        Summary s = summary();
+        int m = Arrays.binarySearch(s.mcvs, v);
+        int b = m >= 0 ? -1 : bucket(s, v);
+        if (m >= 0 && s.mcvCounts[m] >= 1) {
+            s.mcvCounts[m]--;
+        } else if (b >= 0 && s.counts[b] >= 1) {
+            s.counts[b]--;
+        } else {
+            return;
+        }
+        s.total--;
+    }
+
+    /**
+     * Write the histogram, without its sample, to out
+     */
+    public synchronized void write(DataOutput out) throws IOException {
+        out.writeInt(buckets);
+        out.writeInt(min);
+        out.writeInt(max);
+        out.writeLong(count);
+        if (count == 0) {
+            return;
+        }
+        out.writeInt(seenMin);
+        out.writeInt(seenMax);
+        Summary s = summary();
+        out.writeDouble(s.total);
+        out.writeInt(s.mcvs.length);
+        for (int m = 0; m < s.mcvs.length; m++) {
+            out.writeInt(s.mcvs[m]);
+            out.writeDouble(s.mcvCounts[m]);
+        }
+        out.writeInt(s.lows.length);
+        for (int b = 0; b < s.lows.length; b++) {
+            out.writeInt(s.lows[b]);
+            out.writeInt(s.highs[b]);
+            out.writeDouble(s.counts[b]);
+            out.writeDouble(s.distinct[b]);
+        }
+    }
+
+    /**
+     * Read a histogram that was written with {@link #write}
+     */
+    public static IntHistogram read(DataInput in) throws IOException {
+        IntHistogram h = new IntHistogram(in.readInt(), in.readInt(), in.readInt());
+        h.count = in.readLong();
+        if (h.count == 0) {
+            return h;
+        }
+        h.seenMin = in.readInt();
+        h.seenMax = in.readInt();
+        Summary s = new Summary();
+        s.total = in.readDouble();
+        int numMcvs = in.readInt();
+        s.mcvs = new int[numMcvs];
+        s.mcvCounts = new double[numMcvs];
+        for (int m = 0; m < numMcvs; m++) {
+            s.mcvs[m] = in.readInt();
+            s.mcvCounts[m] = in.readDouble();
+        }
+        int numBuckets = in.readInt();
+        s.lows = new int[numBuckets];
+        s.highs = new int[numBuckets];
+        s.counts = new double[numBuckets];
+        s.distinct = new double[numBuckets];
+        for (int b = 0; b < numBuckets; b++) {
+            s.lows[b] = in.readInt();
+            s.highs[b] = in.readInt();
+            s.counts[b] = in.readDouble();
+            s.distinct[b] = in.readDouble();
+        }
+        h.summary = s;
+        return h;
+    }
+
+    /**
+     * @return the fraction of the values that are equal to v
+     */
+    private double equal(Summary s, int v) {
+        int m = Arrays.binarySearch(s.mcvs, v);
+        if (m >= 0) {
+            return s.mcvCounts[m] / s.total;
+        }
+        int b = bucket(s, v);
+        return b < 0 ? 0 : s.counts[b] / s.distinct[b] / s.total;
+    }
+
+    /**
+     * @return the fraction of the values that are less than v, assuming
+     *         that the values of a bucket are spread evenly over its range
+     */
+    private double less(Summary s, int v) {
+        double less = 0;
+        for (int m = 0; m < s.mcvs.length && s.mcvs[m] < v; m++) {
+            less += s.mcvCounts[m];
+        }
+        for (int b = 0; b < s.lows.length && s.lows[b] < v; b++) {
+            if (s.highs[b] < v) {
+                less += s.counts[b];
+            } else {
+                less += s.counts[b] * ((long) v - s.lows[b]) / ((long) s.highs[b] - s.lows[b] + 1);
+            }
+        }
+        return Math.min(1.0, less / s.total);
+    }
+
+    /**
+     * @return the bucket whose range holds v, or -1 if there is none
+     */
+    private static int bucket(Summary s, int v) {
+        int b = Arrays.binarySearch(s.highs, v);
+        if (b < 0) {
+            b = -b - 1;
+        }
+        return b < s.highs.length && s.lows[b] <= v ? b : -1;
     }
 
     /**
@@ -46,10 +427,32 @@ public class IntHistogram {
      * @param v  Value
      * @return Predicted selectivity of this particular operator and value
      */
-    public double estimateSelectivity(Predicate.Op op, int v) {
+    public synchronized double estimateSelectivity(Predicate.Op op, int v) {
 
-        // TODO: some code goes here
-        return -1.0;
+        // TODO: some code goes here (OK)
+        if (count == 0 || summary().total <= 0) {
+            return 0;
+        }
+        int low = Math.max(min, seenMin);
+        int high = Math.min(max, seenMax);
+        Summary s = summary();
+        switch (op) {
+            case EQUALS:
+            case LIKE:
+                return v < low || v > high ? 0 : equal(s, v);
+            case NOT_EQUALS:
+                return v < low || v > high ? 1 : 1 - equal(s, v);
+            case LESS_THAN:
+                return v <= low ? 0 : v > high ? 1 : less(s, v);
+            case GREATER_THAN_OR_EQ:
+                return v <= low ? 1 : v > high ? 0 : 1 - less(s, v);
+            case LESS_THAN_OR_EQ:
+                return v < low ? 0 : v >= high ? 1 : Math.min(1.0, less(s, v) + equal(s, v));
+            case GREATER_THAN:
+                return v < low ? 1 : v >= high ? 0 : Math.max(0.0, 1 - less(s, v) - equal(s, v));
+            default:
+                throw new IllegalArgumentException("Unsupported operator " + op);
+        }
     }
 
     /**
@@ -59,16 +462,42 @@ public class IntHistogram {
      *         join optimization. It may be needed if you want to
      *         implement a more efficient optimization
      */
-    public double avgSelectivity() {
-        // TODO: some code goes here
-        return 1.0;
+    public synchronized double avgSelectivity() {
+        // TODO: some code goes here (OK)
+        if (count == 0 || summary().total <= 0) {
+            return 1.0;
+        }
+        // the chance that two values drawn from the histogram are equal
+        Summary s = summary();
+        double avg = 0;
+        for (double c : s.mcvCounts) {
+            avg += (c / s.total) * (c / s.total);
+        }
+        for (int b = 0; b < s.lows.length; b++) {
+            avg += (s.counts[b] / s.total) * (s.counts[b] / s.total) / s.distinct[b];
+        }
+        return avg;
     }
 
     /**
      * @return A string describing this histogram, for debugging purposes
      */
-    public String toString() {
-        // TODO: some code goes here
-        return null;
+    public synchronized String toString() {
+        // TODO: some code goes here (OK)
+        StringBuilder sb = new StringBuilder("IntHistogram(" + count + " values, sample of " + sampled + ")");
+        if (count == 0) {
+            return sb.toString();
+        }
+        Summary s = summary();
+        sb.append(" mcvs:");
+        for (int m = 0; m < s.mcvs.length; m++) {
+            sb.append(' ').append(s.mcvs[m]).append('=').append(String.format("%.1f", s.mcvCounts[m]));
+        }
+        sb.append(" buckets:");
+        for (int b = 0; b < s.lows.length; b++) {
+            sb.append(" [").append(s.lows[b]).append(',').append(s.highs[b]).append("]=")
+                    .append(String.format("%.1f", s.counts[b])).append('/').append(Math.round(s.distinct[b]));
+        }
+        return sb.toString();
     }
 }
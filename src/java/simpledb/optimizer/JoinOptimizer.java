@@ -2,7 +2,9 @@ package simpledb.optimizer;
 
 import simpledb.ParsingException;
 import simpledb.common.Database;
+import simpledb.common.Type;
 import simpledb.execution.*;
+import simpledb.storage.BufferPool;
 import simpledb.storage.TupleDesc;
 
 import javax.swing.*;
@@ -16,8 +18,58 @@ import java.util.*;
  * logical plan.
  */
 public class JoinOptimizer {
+    /**
+     * Assumed fraction of tuple pairs that satisfy an inequality join
+     * predicate
+     */
+    static final double RANGE_JOIN_SELECTIVITY = 0.3;
+
+    /**
+     * The join operators the optimizer chooses from
+     */
+    public enum JoinAlgorithm {
+        /**
+         * {@link Join}, a block nested-loop join
+         */
+        NESTED_LOOP,
+        /**
+         * {@link HashEquiJoin}; equality joins only
+         */
+        HASH,
+        /**
+         * {@link SortMergeJoin}; its output is sorted on the join field of
+         * the outer input
+         */
+        SORT_MERGE
+    }
+
+    /**
+     * Default for {@link #getMaxExactTables}
+     */
+    public static final int DEFAULT_MAX_EXACT_TABLES = 16;
+
+    /**
+     * Default for {@link #getHeuristicBudgetMillis}
+     */
+    public static final long DEFAULT_HEURISTIC_BUDGET_MILLIS = 100;
+
+    // explain mode compares heuristic plans of up to this many tables with
+    // the exact plan
+    private static final int EXPLAIN_EXACT_TABLES = 20;
+    // simulated annealing stops after this many moves per join even if there
+    // is time left
+    private static final int ANNEALING_MOVES_PER_JOIN = 200;
+    // a plan that costs 10% more is accepted with probability 1/e at first
+    private static final double ANNEALING_START_TEMPERATURE = 0.1;
+
+    private static int maxExactTables = DEFAULT_MAX_EXACT_TABLES;
+    private static long heuristicBudgetMillis = DEFAULT_HEURISTIC_BUDGET_MILLIS;
+
     final LogicalPlan p;
     final List<LogicalJoinNode> joins;
+    // the join operator of every join of the plan returned by orderJoins
+    private final Map<LogicalJoinNode, JoinAlgorithm> algorithms = new IdentityHashMap<>();
+    private double planCost = -1;
 
     /**
      * Constructor
@@ -44,9 +96,83 @@ public class JoinOptimizer {
      */
     public static OpIterator instantiateJoin(LogicalJoinNode lj,
                                              OpIterator plan1, OpIterator plan2) throws ParsingException {
+        return instantiateJoin(lj, plan1, plan2, 0, 0, 0, 0);
+    }
+
+    /**
+     * Return the cheapest iterator for computing a given logical join, given
+     * estimates of the cardinality and scan cost of the left and right
+     * subplans. A {@link HashEquiJoin} or {@link SortMergeJoin} is used
+     * instead of a {@link Join} when its estimated cost is lower, e.g. for
+     * large equality joins, or for inputs that are already sorted on the join
+     * fields.
+     *
+     * @param lj    The join being considered
+     * @param plan1 The left join node's child
+     * @param plan2 The right join node's child
+     * @param card1 Estimated cardinality of plan1
+     * @param card2 Estimated cardinality of plan2
+     * @param cost1 Estimated cost of one full scan of plan1
+     * @param cost2 Estimated cost of one full scan of plan2
+     */
+    public static OpIterator instantiateJoin(LogicalJoinNode lj,
+                                             OpIterator plan1, OpIterator plan2,
+                                             int card1, int card2, double cost1, double cost2) throws ParsingException {
+        JoinPredicate p = joinPredicate(lj, plan1, plan2);
+        JoinAlgorithm algorithm = JoinAlgorithm.NESTED_LOOP;
+        if (!(lj instanceof LogicalSubplanJoinNode)) {
+            algorithm = chooseJoinAlgorithm(lj.p, card1, card2, cost1, cost2,
+                    plan1.getTupleDesc().getSize(), plan2.getTupleDesc().getSize(),
+                    SortMergeJoin.isSortedOn(plan1, p.getField1()), SortMergeJoin.isSortedOn(plan2, p.getField2()));
+        }
+        return instantiateJoin(p, plan1, plan2, algorithm);
+    }
+
+    /**
+     * Return an iterator for a join of two tables that a plan has joined
+     * already: the join predicate is applied to the tuples of the plan.
+     *
+     * @param lj   The join being considered
+     * @param plan The plan that joins both tables of lj
+     */
+    public static OpIterator instantiateJoinFilter(LogicalJoinNode lj, OpIterator plan) throws ParsingException {
+        return new JoinFilter(joinPredicate(lj, plan, plan), plan);
+    }
+
+    /**
+     * Return an iterator for computing a given logical join with the
+     * specified join operator, e.g. the one {@link #orderJoins} chose for
+     * it (see {@link #getJoinAlgorithm}).
+     *
+     * @param lj        The join being considered
+     * @param plan1     The left join node's child
+     * @param plan2     The right join node's child
+     * @param algorithm The join operator to use
+     */
+    public static OpIterator instantiateJoin(LogicalJoinNode lj, OpIterator plan1, OpIterator plan2,
+                                             JoinAlgorithm algorithm) throws ParsingException {
+        return instantiateJoin(joinPredicate(lj, plan1, plan2), plan1, plan2, algorithm);
+    }
 
-        int t1id = 0, t2id = 0;
-        OpIterator j;
+    private static OpIterator instantiateJoin(JoinPredicate p, OpIterator plan1, OpIterator plan2,
+                                              JoinAlgorithm algorithm) {
+        switch (algorithm) {
+            case HASH:
+                return new HashEquiJoin(p, plan1, plan2);
+            case SORT_MERGE:
+                return new SortMergeJoin(p, plan1, plan2);
+            default:
+                return new Join(p, plan1, plan2);
+        }
+    }
+
+    /**
+     * @return the predicate of a logical join over the tuples of its
+     *         subplans
+     */
+    private static JoinPredicate joinPredicate(LogicalJoinNode lj, OpIterator plan1, OpIterator plan2)
+            throws ParsingException {
+        int t1id, t2id;
 
         try {
             t1id = plan1.getTupleDesc().indexForFieldName(lj.f1QuantifiedName);
@@ -66,12 +192,15 @@ public class JoinOptimizer {
             }
         }
 
-        JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
-
-        j = new Join(p,plan1,plan2);
-
-        return j;
+        return new JoinPredicate(t1id, lj.p, t2id);
+    }
 
+    /**
+     * @return the join operator {@link #orderJoins} chose for a join of the
+     *         plan it returned, or null if it has not chosen one
+     */
+    public JoinAlgorithm getJoinAlgorithm(LogicalJoinNode j) {
+        return algorithms.get(j);
     }
 
     /**
@@ -101,14 +230,158 @@ public class JoinOptimizer {
             // You do not need to implement proper support for these for Lab 3.
             return card1 + cost1 + cost2;
         } else {
-            // Insert your code here.
-            // HINT: You may need to use the variable "j" if you implemented
-            // a join algorithm that's more complicated than a basic
-            // nested-loops join.
-            return -1.0;
+            int tupleSize1 = tupleSize(j.t1Alias);
+            int tupleSize2 = tupleSize(j.t2Alias);
+            JoinAlgorithm algorithm = chooseJoinAlgorithm(j.p, card1, card2, cost1, cost2,
+                    tupleSize1, tupleSize2, false, false);
+            return estimateJoinCost(algorithm, j.p, card1, card2, cost1, cost2,
+                    tupleSize1, tupleSize2, false, false);
         }
     }
 
+    /**
+     * Estimate the size in bytes of the tuples of a table of a join.
+     */
+    private int tupleSize(String tableAlias) {
+        Integer tableId = p == null ? null : p.getTableId(tableAlias);
+        if (tableId != null) {
+            return Database.getCatalog().getTupleDesc(tableId).getSize();
+        }
+        return Type.INT_TYPE.getLen();
+    }
+
+    /**
+     * @return true if algorithm can evaluate join predicates with op
+     */
+    static boolean supports(JoinAlgorithm algorithm, Predicate.Op op) {
+        switch (algorithm) {
+            case HASH:
+                return op == Predicate.Op.EQUALS;
+            case SORT_MERGE:
+                return SortMergeJoin.supports(op);
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Choose the join operator with the lowest estimated cost for a join of
+     * two inputs; see {@link #estimateJoinCost}.
+     *
+     * @param tupleSize1 size in bytes of the tuples of the outer input
+     * @param tupleSize2 size in bytes of the tuples of the inner input
+     * @param sorted1    true if the outer input is sorted on its join field
+     * @param sorted2    true if the inner input is sorted on its join field
+     */
+    static JoinAlgorithm chooseJoinAlgorithm(Predicate.Op op, int card1, int card2, double cost1, double cost2,
+                                             int tupleSize1, int tupleSize2, boolean sorted1, boolean sorted2) {
+        JoinAlgorithm best = JoinAlgorithm.NESTED_LOOP;
+        double bestCost = Double.MAX_VALUE;
+        for (JoinAlgorithm algorithm : JoinAlgorithm.values()) {
+            if (supports(algorithm, op)) {
+                double cost = estimateJoinCost(algorithm, op, card1, card2, cost1, cost2,
+                        tupleSize1, tupleSize2, sorted1, sorted2);
+                if (cost < bestCost) {
+                    best = algorithm;
+                    bestCost = cost;
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Estimate the cost of a join evaluated with a given operator; see
+     * {@link #chooseJoinAlgorithm}.
+     */
+    static double estimateJoinCost(JoinAlgorithm algorithm, Predicate.Op op, int card1, int card2,
+                                   double cost1, double cost2, int tupleSize1, int tupleSize2,
+                                   boolean sorted1, boolean sorted2) {
+        switch (algorithm) {
+            case HASH:
+                return estimateHashJoinCost(card1, card2, cost1, cost2, tupleSize1, tupleSize2);
+            case SORT_MERGE:
+                return estimateSortMergeJoinCost(op, card1, card2, cost1, cost2, tupleSize1, tupleSize2,
+                        sorted1, sorted2);
+            default:
+                return estimateNestedLoopJoinCost(op, card1, card2, cost1, cost2, tupleSize1);
+        }
+    }
+
+    /**
+     * Estimate the cost of a block nested-loop {@link Join}; see
+     * {@link #estimateJoinCost}.
+     *
+     * @param outerTupleSize size in bytes of the outer tuples
+     */
+    static double estimateNestedLoopJoinCost(Predicate.Op op, int card1, int card2,
+                                             double cost1, double cost2, int outerTupleSize) {
+        // Join is a block nested-loop join: the inner relation is scanned
+        // once per block of outer tuples. Equality joins look the inner
+        // tuples up in a hash of the block, other predicates are applied to
+        // every pair.
+        double blocks = Math.ceil((double) card1 / Join.blockTuples(Join.DEFAULT_BLOCK_PAGES, outerTupleSize));
+        double cpuCost = op == Predicate.Op.EQUALS
+                ? card1 + blocks * card2
+                : (double) card1 * card2;
+        return cost1 + blocks * cost2 + cpuCost;
+    }
+
+    /**
+     * Estimate the cost of a {@link HashEquiJoin}: one scan of each input,
+     * building a hash table of the outer tuples and probing it with the inner
+     * ones, and writing and reading back partitions of both inputs if the
+     * outer input does not fit in memory. Inserting a tuple into the hash
+     * table is taken to cost twice as much as looking one up, so the smaller
+     * input should be the outer one.
+     */
+    static double estimateHashJoinCost(int card1, int card2, double cost1, double cost2,
+                                       int tupleSize1, int tupleSize2) {
+        double pages1 = Math.ceil((double) card1 * tupleSize1 / BufferPool.getPageSize());
+        double pages2 = Math.ceil((double) card2 * tupleSize2 / BufferPool.getPageSize());
+        int passes = HashEquiJoin.spillPasses(pages1, HashEquiJoin.DEFAULT_MEMORY_PAGES);
+        return cost1 + cost2 + 2.0 * card1 + card2
+                + 2 * (pages1 + pages2) * passes * TableStats.IOCOSTPERPAGE;
+    }
+
+    /**
+     * Estimate the cost of a {@link SortMergeJoin}: one scan of each input,
+     * sorting the inputs that are not sorted yet, and the merge. Equality
+     * joins touch every tuple once during the merge; inequality joins read
+     * the matching range of the inner input for every outer tuple, which is
+     * estimated with the same selectivity as the join cardinality.
+     */
+    static double estimateSortMergeJoinCost(Predicate.Op op, int card1, int card2,
+                                            double cost1, double cost2, int tupleSize1, int tupleSize2,
+                                            boolean sorted1, boolean sorted2) {
+        double mergeCost = op == Predicate.Op.EQUALS
+                ? card1 + card2
+                : card1 + (double) card1 * card2 * RANGE_JOIN_SELECTIVITY;
+        return cost1 + cost2
+                + (sorted1 ? 0 : estimateSortCost(card1, tupleSize1, ExternalSort.DEFAULT_MEMORY_PAGES))
+                + (sorted2 ? 0 : estimateSortCost(card2, tupleSize2, ExternalSort.DEFAULT_MEMORY_PAGES))
+                + mergeCost;
+    }
+
+    /**
+     * Estimate the cost of an {@link ExternalSort} of card tuples: the
+     * comparisons, plus writing and reading every page once per merge pass
+     * if the input does not fit in memory.
+     */
+    static double estimateSortCost(int card, int tupleSize, int memoryPages) {
+        if (card <= 1) {
+            return card;
+        }
+        double cpuCost = card * (Math.log(card) / Math.log(2));
+        double pages = Math.ceil((double) card * tupleSize / BufferPool.getPageSize());
+        if (pages <= memoryPages) {
+            return cpuCost;
+        }
+        double runs = Math.ceil(pages / memoryPages);
+        double passes = Math.max(1, Math.ceil(Math.log(runs) / Math.log(memoryPages - 1)));
+        return cpuCost + 2 * pages * passes * TableStats.IOCOSTPERPAGE;
+    }
+
     /**
      * Estimate the cardinality of a join. The cardinality of a join is the
      * number of tuples produced by the join.
@@ -143,44 +416,83 @@ public class JoinOptimizer {
                                                    String field2PureName, int card1, int card2, boolean t1pkey,
                                                    boolean t2pkey, Map<String, TableStats> stats,
                                                    Map<String, Integer> tableAliasToId) {
-        int card = 1;
-        // TODO: some code goes here
-        return card <= 0 ? 1 : card;
+        // a key matches at most one tuple of the other table; without keys,
+        // a tuple matches the tuples of the other table with its value, of
+        // which there are card / (distinct values) if values are equally
+        // common and the values of the side with fewer values are all in the
+        // other side. Without distinct counts, every tuple of the smaller
+        // table is assumed to match the larger one.
+        double card;
+        if (joinOp == Predicate.Op.EQUALS) {
+            long distinct1 = numDistinct(table1Alias, field1PureName, card1, stats, tableAliasToId);
+            long distinct2 = numDistinct(table2Alias, field2PureName, card2, stats, tableAliasToId);
+            if (t1pkey && t2pkey) {
+                card = Math.min(card1, card2);
+            } else if (t1pkey) {
+                card = card2;
+            } else if (t2pkey) {
+                card = card1;
+            } else if (distinct1 > 0 && distinct2 > 0) {
+                card = (double) card1 * card2 / Math.max(distinct1, distinct2);
+            } else {
+                card = Math.max(card1, card2);
+            }
+        } else if (joinOp == Predicate.Op.NOT_EQUALS) {
+            card = (double) card1 * card2;
+        } else {
+            card = (double) card1 * card2 * RANGE_JOIN_SELECTIVITY;
+        }
+        return card <= 0 ? 1 : (int) Math.min(card, Integer.MAX_VALUE);
     }
 
     /**
-     * Helper method to enumerate all of the subsets of a given size of a
-     * specified vector.
-     *
-     * @param v    The vector whose subsets are desired
-     * @param size The size of the subsets of interest
-     * @return a set of all subsets of the specified size
-     */
-    public <T> Set<Set<T>> enumerateSubsets(List<T> v, int size) {
-        Set<Set<T>> els = new HashSet<>();
-        els.add(new HashSet<>());
-        // Iterator<Set> it;
-        // long start = System.currentTimeMillis();
-
-        for (int i = 0; i < size; i++) {
-            Set<Set<T>> newels = new HashSet<>();
-            for (Set<T> s : els) {
-                for (T t : v) {
-                    Set<T> news = new HashSet<>(s);
-                    if (news.add(t))
-                        newels.add(news);
-                }
-            }
-            els = newels;
+     * @return the estimated number of distinct values of a field of a table
+     *         in card of its tuples, or -1 if there are no statistics for the
+     *         field
+     */
+    private static long numDistinct(String tableAlias, String fieldPureName, int card,
+                                    Map<String, TableStats> stats, Map<String, Integer> tableAliasToId) {
+        Integer tableId = tableAlias == null ? null : tableAliasToId.get(tableAlias);
+        if (tableId == null) {
+            return -1;
         }
-
-        return els;
-
+        TableStats s = stats.get(Database.getCatalog().getTableName(tableId));
+        if (s == null) {
+            return -1;
+        }
+        int field;
+        try {
+            field = Database.getCatalog().getTupleDesc(tableId).indexForFieldName(fieldPureName);
+        } catch (NoSuchElementException e) {
+            return -1;
+        }
+        return Math.min(s.numDistinct(field), card);
     }
 
     /**
-     * Compute a logical, reasonably efficient join on the specified tables. See
-     * the Lab 3 description for hints on how this should be implemented.
+     * Compute a logical, reasonably efficient join on the specified tables.
+     * <p>
+     * The joins are ordered by dynamic programming over the sets of joins, as
+     * in Selinger's optimizer: the plans of a set of joins are built by
+     * adding a join to the plans of the rest of the set, trying both inputs
+     * as the outer one and every join operator that supports the join
+     * predicate. Sets of joins are bitmasks (see {@link PlanCache}), and only
+     * sets that join their tables without cross products are enumerated:
+     * the sets of size k + 1 are the sets of size k extended with a join of
+     * one of their tables. A join of two tables the set has joined already
+     * (in a cyclic join graph) adds no table; it filters the tuples of the
+     * plan. For every set, the cheapest plan is kept,
+     * plus the cheapest plan for every interesting order: sort-merge joins
+     * return tuples sorted on their join fields, which makes a later
+     * sort-merge join on these fields cheaper. The chosen join operators are
+     * available from {@link #getJoinAlgorithm}.
+     * <p>
+     * The number of sets grows exponentially with the number of tables, so
+     * queries with more than {@link #getMaxExactTables} tables are ordered
+     * greedily and by simulated annealing instead, within
+     * {@link #getHeuristicBudgetMillis}. In explain mode, the cost of such a
+     * plan is printed next to the cost of the exact plan when the query is
+     * small enough to find both.
      *
      * @param stats               Statistics for each table involved in the join, referenced by
      *                            base table names, not alias
@@ -198,166 +510,478 @@ public class JoinOptimizer {
             Map<String, TableStats> stats,
             Map<String, Double> filterSelectivities, boolean explain)
             throws ParsingException {
-        // Not necessary for labs 1 and 2.
+        algorithms.clear();
+        planCost = -1;
+        if (joins.isEmpty() || joins.size() >= PlanCache.MAX_JOINS) {
+            return joins;
+        }
+        JoinGraph g = new JoinGraph(stats, filterSelectivities);
+        if (g.numTables > Long.SIZE) {
+            // the joins cannot connect that many tables
+            return joins;
+        }
+
+        PlanCache pc = new PlanCache();
+        int best;
+        if (g.numTables > maxExactTables) {
+            best = orderJoinsHeuristic(g, pc, stats);
+            if (explain && best >= 0 && g.numTables <= EXPLAIN_EXACT_TABLES) {
+                PlanCache exact = new PlanCache();
+                int exactBest = orderJoinsExact(g, exact, stats);
+                System.out.println("Heuristic plan cost = " + pc.getCost(best)
+                        + ", exact plan cost = " + (exactBest < 0 ? "none" : exact.getCost(exactBest)));
+            }
+        } else {
+            best = orderJoinsExact(g, pc, stats);
+        }
+        if (best < 0) {
+            // the joins do not connect all tables without cross products
+            return joins;
+        }
+        planCost = pc.getCost(best);
+
+        int[] plans = new int[g.n];
+        for (int plan = best, k = g.n - 1; plan >= 0; plan = pc.getParent(plan), k--) {
+            plans[k] = plan;
+        }
+        List<LogicalJoinNode> order = new ArrayList<>();
+        for (int plan : plans) {
+            int j = pc.getLastJoin(plan);
+            LogicalJoinNode lj = pc.isSwapped(plan) ? g.swappedNodes[j] : g.nodes[j];
+            order.add(lj);
+            algorithms.put(lj, JoinAlgorithm.values()[pc.getAlgorithm(plan)]);
+        }
+        if (explain) {
+            printJoins(order, pc, plans, stats, filterSelectivities);
+        }
+        return order;
+    }
 
-        // TODO: some code goes here
-        return joins;
+    /**
+     * @return the estimated cost of the plan last returned by
+     *         {@link #orderJoins}, or -1 if it did not order the joins
+     */
+    public double getPlanCost() {
+        return planCost;
+    }
+
+    /**
+     * Order the joins of a query with more than this many tables with a
+     * heuristic search instead of dynamic programming
+     */
+    public static int getMaxExactTables() {
+        return maxExactTables;
+    }
+
+    public static void setMaxExactTables(int maxExactTables) {
+        JoinOptimizer.maxExactTables = maxExactTables;
+    }
+
+    /**
+     * The time in milliseconds the heuristic search may take to improve
+     * its first join order
+     */
+    public static long getHeuristicBudgetMillis() {
+        return heuristicBudgetMillis;
+    }
+
+    public static void setHeuristicBudgetMillis(long heuristicBudgetMillis) {
+        JoinOptimizer.heuristicBudgetMillis = heuristicBudgetMillis;
     }
 
     // ===================== Private Methods =================================
 
     /**
-     * This is a helper method that computes the cost and cardinality of joining
-     * joinToRemove to joinSet (joinSet should contain joinToRemove), given that
-     * all of the subsets of size joinSet.size() - 1 have already been computed
-     * and stored in PlanCache pc.
-     *
-     * @param stats               table stats for all of the tables, referenced by table names
-     *                            rather than alias (see {@link #orderJoins})
-     * @param filterSelectivities the selectivities of the filters over each of the tables
-     *                            (where tables are indentified by their alias or name if no
-     *                            alias is given)
-     * @param joinToRemove        the join to remove from joinSet
-     * @param joinSet             the set of joins being considered
-     * @param bestCostSoFar       the best way to join joinSet so far (minimum of previous
-     *                            invocations of computeCostAndCardOfSubplan for this joinSet,
-     *                            from returned CostCard)
-     * @param pc                  the PlanCache for this join; should have subplans for all
-     *                            plans of size joinSet.size()-1
-     * @return A {@link CostCard} objects desribing the cost, cardinality,
-     *         optimal subplan
-     * @throws ParsingException when stats, filterSelectivities, or pc object is missing
-     *                          tables involved in join
-     */
-    @SuppressWarnings("unchecked")
-    private CostCard computeCostAndCardOfSubplan(
-            Map<String, TableStats> stats,
-            Map<String, Double> filterSelectivities,
-            LogicalJoinNode joinToRemove, Set<LogicalJoinNode> joinSet,
-            double bestCostSoFar, PlanCache pc) throws ParsingException {
-
-        LogicalJoinNode j = joinToRemove;
-
-        List<LogicalJoinNode> prevBest;
-
-        if (this.p.getTableId(j.t1Alias) == null)
-            throw new ParsingException("Unknown table " + j.t1Alias);
-        if (this.p.getTableId(j.t2Alias) == null)
-            throw new ParsingException("Unknown table " + j.t2Alias);
-
-        String table1Name = Database.getCatalog().getTableName(
-                this.p.getTableId(j.t1Alias));
-        String table2Name = Database.getCatalog().getTableName(
-                this.p.getTableId(j.t2Alias));
-        String table1Alias = j.t1Alias;
-        String table2Alias = j.t2Alias;
-
-        Set<LogicalJoinNode> news = new HashSet<>(joinSet);
-        news.remove(j);
-
-        double t1cost, t2cost;
-        int t1card, t2card;
-        boolean leftPkey, rightPkey;
-
-        if (news.isEmpty()) { // base case -- both are base relations
-            prevBest = new ArrayList<>();
-            t1cost = stats.get(table1Name).estimateScanCost();
-            t1card = stats.get(table1Name).estimateTableCardinality(
-                    filterSelectivities.get(j.t1Alias));
-            leftPkey = isPkey(j.t1Alias, j.f1PureName);
-
-            t2cost = table2Alias == null ? 0 : stats.get(table2Name)
-                    .estimateScanCost();
-            t2card = table2Alias == null ? 0 : stats.get(table2Name)
-                    .estimateTableCardinality(
-                            filterSelectivities.get(j.t2Alias));
-            rightPkey = table2Alias != null && isPkey(table2Alias,
-                    j.f2PureName);
-        } else {
-            // news is not empty -- figure best way to join j to news
-            prevBest = pc.getOrder(news);
+     * The joins of the query and estimates about their tables, numbered for
+     * {@link #orderJoins}: sets of joins, tables and join fields are
+     * bitmasks of their numbers. The subquery of a join with a subquery
+     * counts as a table with no tuples.
+     */
+    private class JoinGraph {
+        final int n;
+        final LogicalJoinNode[] nodes;
+        final LogicalJoinNode[] swappedNodes;
+        // the tables of every join
+        final int[] table1;
+        final int[] table2;
+        final long[] tablesOf;
+        // the join fields of every join, or -1 for fields past the 64th
+        final int[] field1;
+        final int[] field2;
+        final long[] fieldsOf;
+        final boolean[] pkey1;
+        final boolean[] pkey2;
+        // joins on a primary key
+        long pkeyJoins;
+
+        int numTables;
+        // the joins of every table
+        final long[] adjacent = new long[Long.SIZE];
+        final int[] cards = new int[Long.SIZE];
+        final double[] costs = new double[Long.SIZE];
+        final int[] tupleSizes = new int[Long.SIZE];
+
+        JoinGraph(Map<String, TableStats> stats, Map<String, Double> filterSelectivities)
+                throws ParsingException {
+            n = joins.size();
+            nodes = joins.toArray(new LogicalJoinNode[0]);
+            swappedNodes = new LogicalJoinNode[n];
+            table1 = new int[n];
+            table2 = new int[n];
+            tablesOf = new long[n];
+            field1 = new int[n];
+            field2 = new int[n];
+            fieldsOf = new long[n];
+            pkey1 = new boolean[n];
+            pkey2 = new boolean[n];
+            Map<String, Integer> tables = new HashMap<>();
+            Map<String, Integer> fields = new HashMap<>();
+            for (int j = 0; j < n; j++) {
+                LogicalJoinNode lj = nodes[j];
+                table1[j] = table(stats, filterSelectivities, tables, lj.t1Alias);
+                field1[j] = field(fields, lj.f1QuantifiedName);
+                pkey1[j] = isPkey(lj.t1Alias, lj.f1PureName);
+                if (lj instanceof LogicalSubplanJoinNode) {
+                    table2[j] = numTables++;
+                    if (table2[j] < Long.SIZE) {
+                        tupleSizes[table2[j]] = ((LogicalSubplanJoinNode) lj).subPlan.getTupleDesc().getSize();
+                    }
+                    field2[j] = -1;
+                    swappedNodes[j] = lj;
+                } else {
+                    table2[j] = table(stats, filterSelectivities, tables, lj.t2Alias);
+                    field2[j] = field(fields, lj.f2QuantifiedName);
+                    pkey2[j] = isPkey(lj.t2Alias, lj.f2PureName);
+                    swappedNodes[j] = lj.swapInnerOuter();
+                }
+                if (numTables > Long.SIZE) {
+                    return;
+                }
+                tablesOf[j] = (1L << table1[j]) | (1L << table2[j]);
+                adjacent[table1[j]] |= 1L << j;
+                adjacent[table2[j]] |= 1L << j;
+                fieldsOf[j] = bit(field1[j]) | bit(field2[j]);
+                if (pkey1[j] || pkey2[j]) {
+                    pkeyJoins |= 1L << j;
+                }
+            }
+        }
 
-            // possible that we have not cached an answer, if subset
-            // includes a cross product
-            if (prevBest == null) {
-                return null;
+        /**
+         * @return the number of the table with an alias, numbering it and
+         *         estimating its cardinality, scan cost and tuple size if it
+         *         is new
+         * @throws ParsingException if the table is unknown or has no
+         *                          statistics or filter selectivity
+         */
+        private int table(Map<String, TableStats> stats, Map<String, Double> filterSelectivities,
+                          Map<String, Integer> tables, String alias) throws ParsingException {
+            Integer t = tables.get(alias);
+            if (t != null) {
+                return t;
             }
+            Integer tableId = p.getTableId(alias);
+            if (tableId == null) {
+                throw new ParsingException("Unknown table " + alias);
+            }
+            TableStats s = stats.get(Database.getCatalog().getTableName(tableId));
+            Double selectivity = filterSelectivities.get(alias);
+            if (s == null || selectivity == null) {
+                throw new ParsingException("No statistics for table " + alias);
+            }
+            t = numTables++;
+            tables.put(alias, t);
+            if (t < Long.SIZE) {
+                cards[t] = s.estimateTableCardinality(selectivity);
+                costs[t] = s.estimateScanCost();
+                tupleSizes[t] = Database.getCatalog().getTupleDesc(tableId).getSize();
+            }
+            return t;
+        }
 
-            double prevBestCost = pc.getCost(news);
-            int bestCard = pc.getCard(news);
-
-            // estimate cost of right subtree
-            if (doesJoin(prevBest, table1Alias)) { // j.t1 is in prevBest
-                t1cost = prevBestCost; // left side just has cost of whatever
-                // left
-                // subtree is
-                t1card = bestCard;
-                leftPkey = hasPkey(prevBest);
-
-                t2cost = j.t2Alias == null ? 0 : stats.get(table2Name)
-                        .estimateScanCost();
-                t2card = j.t2Alias == null ? 0 : stats.get(table2Name)
-                        .estimateTableCardinality(
-                                filterSelectivities.get(j.t2Alias));
-                rightPkey = j.t2Alias != null && isPkey(j.t2Alias,
-                        j.f2PureName);
-            } else if (doesJoin(prevBest, j.t2Alias)) { // j.t2 is in prevbest
-                // (both
-                // shouldn't be)
-                t2cost = prevBestCost; // left side just has cost of whatever
-                // left
-                // subtree is
-                t2card = bestCard;
-                rightPkey = hasPkey(prevBest);
-                t1cost = stats.get(table1Name).estimateScanCost();
-                t1card = stats.get(table1Name).estimateTableCardinality(
-                        filterSelectivities.get(j.t1Alias));
-                leftPkey = isPkey(j.t1Alias, j.f1PureName);
+        private int field(Map<String, Integer> fields, String name) {
+            int f = fields.computeIfAbsent(name, k -> fields.size());
+            return f < Long.SIZE ? f : -1;
+        }
 
-            } else {
-                // don't consider this plan if one of j.t1 or j.t2
-                // isn't a table joined in prevBest (cross product)
-                return null;
+        /**
+         * @return the tables joined by a set of joins
+         */
+        long tables(long set) {
+            long tables = 0;
+            for (long s = set; s != 0; s &= s - 1) {
+                tables |= tablesOf[Long.numberOfTrailingZeros(s)];
             }
+            return tables;
         }
 
-        // case where prevbest is left
-        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
+        /**
+         * @return all joins
+         */
+        long all() {
+            return (1L << n) - 1;
+        }
 
-        LogicalJoinNode j2 = j.swapInnerOuter();
-        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
-        if (cost2 < cost1) {
-            boolean tmp;
-            j = j2;
-            cost1 = cost2;
-            tmp = rightPkey;
-            rightPkey = leftPkey;
-            leftPkey = tmp;
+        /**
+         * @return the joins that join a table to the tables of a set of
+         *         joins, or two of these tables to each other
+         */
+        long candidates(long set) {
+            long tables = tables(set);
+            long adjacentJoins = 0;
+            for (long t = tables; t != 0; t &= t - 1) {
+                adjacentJoins |= adjacent[Long.numberOfTrailingZeros(t)];
+            }
+            return adjacentJoins & ~set;
         }
-        if (cost1 >= bestCostSoFar)
-            return null;
 
-        CostCard cc = new CostCard();
+        /**
+         * @return the size of the tuples of a join of some tables
+         */
+        int tupleSize(long tables) {
+            int size = 0;
+            for (long t = tables; t != 0; t &= t - 1) {
+                size += tupleSizes[Long.numberOfTrailingZeros(t)];
+            }
+            return size;
+        }
 
-        cc.card = estimateJoinCardinality(j, t1card, t2card, leftPkey,
-                rightPkey, stats);
-        cc.cost = cost1;
-        cc.plan = new ArrayList<>(prevBest);
-        cc.plan.add(j); // prevbest is left -- add new join to end
-        return cc;
+        /**
+         * @return the join fields of the joins not in a set
+         */
+        long fieldsNotIn(long set) {
+            long fields = 0;
+            for (long s = ~set & all(); s != 0; s &= s - 1) {
+                fields |= fieldsOf[Long.numberOfTrailingZeros(s)];
+            }
+            return fields;
+        }
     }
 
     /**
-     * Return true if the specified table is in the list of joins, false
-     * otherwise
+     * Cache the plans of every set of joins that connects its tables, in
+     * order of size, so that all plans of a set are cached when the set is
+     * extended.
+     *
+     * @return the cheapest plan of all joins, or -1 if there is none
      */
-    private boolean doesJoin(List<LogicalJoinNode> joinlist, String table) {
-        for (LogicalJoinNode j : joinlist) {
-            if (j.t1Alias.equals(table)
-                    || (j.t2Alias != null && j.t2Alias.equals(table)))
-                return true;
+    private int orderJoinsExact(JoinGraph g, PlanCache pc, Map<String, TableStats> stats) {
+        for (int j = 0; j < g.n; j++) {
+            addJoinPlans(g, pc, stats, -1, j);
+        }
+        for (int i = 0; i < pc.numSets(); i++) {
+            long set = pc.getSet(i);
+            for (long c = g.candidates(set); c != 0; c &= c - 1) {
+                int j = Long.numberOfTrailingZeros(c);
+                for (int plan = pc.firstPlan(set); plan >= 0; plan = pc.nextPlan(plan)) {
+                    addJoinPlans(g, pc, stats, plan, j);
+                }
+            }
+        }
+        return pc.bestPlan(g.all());
+    }
+
+    /**
+     * Order the joins greedily, adding the join that makes the cheapest plan
+     * at every step, and then improve the order by simulated annealing until
+     * the time budget runs out: a random join is moved to a random position,
+     * and the new order is kept if it is cheaper, or with a probability that
+     * shrinks with its extra cost and with the time left.
+     *
+     * @return the cheapest plan of the best order found, cached in pc, or -1
+     *         if there is none
+     */
+    private int orderJoinsHeuristic(JoinGraph g, PlanCache pc, Map<String, TableStats> stats) {
+        int[] order = new int[g.n];
+        PlanCache greedy = new PlanCache();
+        long set = 0;
+        for (int k = 0; k < g.n; k++) {
+            long candidates = k == 0 ? g.all() : g.candidates(set);
+            int bestJoin = -1;
+            double bestCost = 0;
+            for (long c = candidates; c != 0; c &= c - 1) {
+                int j = Long.numberOfTrailingZeros(c);
+                if (k == 0) {
+                    addJoinPlans(g, greedy, stats, -1, j);
+                } else {
+                    for (int plan = greedy.firstPlan(set); plan >= 0; plan = greedy.nextPlan(plan)) {
+                        addJoinPlans(g, greedy, stats, plan, j);
+                    }
+                }
+                double cost = greedy.getCost(greedy.bestPlan(set | (1L << j)));
+                if (bestJoin < 0 || cost < bestCost) {
+                    bestJoin = j;
+                    bestCost = cost;
+                }
+            }
+            if (bestJoin < 0) {
+                return -1;
+            }
+            order[k] = bestJoin;
+            set |= 1L << bestJoin;
+        }
+
+        double cost = orderCost(g, stats, order);
+        int[] best = order.clone();
+        double bestCost = cost;
+        Random random = new Random(g.n);
+        long start = System.currentTimeMillis();
+        long budget = Math.max(1, heuristicBudgetMillis);
+        int[] next = new int[g.n];
+        for (int moves = 0; moves < ANNEALING_MOVES_PER_JOIN * g.n && g.n > 1; moves++) {
+            long elapsed = System.currentTimeMillis() - start;
+            if (elapsed >= budget) {
+                break;
+            }
+            int from = random.nextInt(g.n);
+            int to = random.nextInt(g.n - 1);
+            if (to >= from) {
+                to++;
+            }
+            moveJoin(order, next, from, to);
+            double nextCost = orderCost(g, stats, next);
+            if (nextCost < 0) {
+                continue;
+            }
+            double temperature = ANNEALING_START_TEMPERATURE * (budget - elapsed) / budget;
+            if (nextCost < cost
+                    || random.nextDouble() < Math.exp((cost - nextCost) / (cost * temperature))) {
+                int[] t = order;
+                order = next;
+                next = t;
+                cost = nextCost;
+                if (cost < bestCost) {
+                    best = order.clone();
+                    bestCost = cost;
+                }
+            }
+        }
+        return orderPlan(g, pc, stats, best);
+    }
+
+    /**
+     * Copy order to moved, moving the join at position from to position to
+     */
+    private static void moveJoin(int[] order, int[] moved, int from, int to) {
+        System.arraycopy(order, 0, moved, 0, order.length);
+        if (from < to) {
+            System.arraycopy(order, from + 1, moved, from, to - from);
+        } else {
+            System.arraycopy(order, to, moved, to + 1, from - to);
+        }
+        moved[to] = order[from];
+    }
+
+    /**
+     * @return the cost of the cheapest plan of the joins in an order, or -1
+     *         if the order has a cross product
+     */
+    private double orderCost(JoinGraph g, Map<String, TableStats> stats, int[] order) {
+        PlanCache pc = new PlanCache();
+        int plan = orderPlan(g, pc, stats, order);
+        return plan < 0 ? -1 : pc.getCost(plan);
+    }
+
+    /**
+     * Cache the plans of the joins in an order, choosing their join
+     * operators and inputs
+     *
+     * @return the cheapest plan of all joins, or -1 if the order has a cross
+     *         product
+     */
+    private int orderPlan(JoinGraph g, PlanCache pc, Map<String, TableStats> stats, int[] order) {
+        addJoinPlans(g, pc, stats, -1, order[0]);
+        long set = 1L << order[0];
+        for (int k = 1; k < order.length; k++) {
+            int j = order[k];
+            if ((g.candidates(set) & (1L << j)) == 0) {
+                return -1;
+            }
+            for (int plan = pc.firstPlan(set); plan >= 0; plan = pc.nextPlan(plan)) {
+                addJoinPlans(g, pc, stats, plan, j);
+            }
+            set |= 1L << j;
+        }
+        return pc.bestPlan(set);
+    }
+
+    private static long bit(int i) {
+        return i < 0 ? 0 : 1L << i;
+    }
+
+    /**
+     * Cache the plans that add join j to a cached plan: with either input as
+     * the outer one, and with every join operator that supports j. The
+     * output of a sort-merge join is sorted on those of its join fields that
+     * joins not in the plan join on. If the plan has joined both tables of j
+     * already, j is applied as a filter to its tuples (see
+     * {@link #instantiateJoinFilter}).
+     *
+     * @param parent the plan to add j to, or -1 to cache the plans of j
+     *               alone
+     */
+    private void addJoinPlans(JoinGraph g, PlanCache pc, Map<String, TableStats> stats, int parent, int j) {
+        long set = parent < 0 ? 0 : pc.getSetOf(parent);
+        long tables = g.tables(set);
+        long newSet = set | (1L << j);
+        long later = g.fieldsNotIn(newSet);
+        boolean isSubqueryJoin = g.nodes[j] instanceof LogicalSubplanJoinNode;
+
+        // estimates about the inputs with t1 and t2 of j, one of which may
+        // be the parent plan
+        int t1 = g.table1[j];
+        int t2 = g.table2[j];
+        boolean joined1 = (tables & (1L << t1)) != 0;
+        boolean joined2 = (tables & (1L << t2)) != 0;
+        int card1 = joined1 ? pc.getCard(parent) : g.cards[t1];
+        int card2 = joined2 ? pc.getCard(parent) : g.cards[t2];
+        double cost1 = joined1 ? pc.getCost(parent) : g.costs[t1];
+        double cost2 = joined2 ? pc.getCost(parent) : g.costs[t2];
+        boolean pkey1 = joined1 ? (set & g.pkeyJoins) != 0 : g.pkey1[j];
+        boolean pkey2 = joined2 ? (set & g.pkeyJoins) != 0 : g.pkey2[j];
+        int size1 = joined1 ? g.tupleSize(tables) : g.tupleSizes[t1];
+        int size2 = joined2 ? g.tupleSize(tables) : g.tupleSizes[t2];
+        long order1 = joined1 ? pc.getOrder(parent) : 0;
+        long order2 = joined2 ? pc.getOrder(parent) : 0;
+
+        if (joined1 && joined2) {
+            // both tables are in the plan: j filters its tuples, with the
+            // selectivity j has on the cross product of its tables
+            double selectivity = (double) estimateJoinCardinality(g.nodes[j], g.cards[t1], g.cards[t2],
+                    g.pkey1[j], g.pkey2[j], stats) / Math.max(1.0, (double) g.cards[t1] * g.cards[t2]);
+            int card = (int) Math.min(card1, Math.ceil(card1 * selectivity));
+            pc.addPlan(newSet, cost1 + card1, card, order1 & later, parent, j,
+                    JoinAlgorithm.NESTED_LOOP.ordinal(), false);
+            return;
+        }
+
+        for (int swap = 0; swap < (isSubqueryJoin ? 1 : 2); swap++) {
+            LogicalJoinNode lj = swap == 0 ? g.nodes[j] : g.swappedNodes[j];
+            int outerCard = swap == 0 ? card1 : card2;
+            int innerCard = swap == 0 ? card2 : card1;
+            double outerCost = swap == 0 ? cost1 : cost2;
+            double innerCost = swap == 0 ? cost2 : cost1;
+            long outerField = bit(swap == 0 ? g.field1[j] : g.field2[j]);
+            long innerField = bit(swap == 0 ? g.field2[j] : g.field1[j]);
+            boolean sorted1 = ((swap == 0 ? order1 : order2) & outerField) != 0;
+            boolean sorted2 = ((swap == 0 ? order2 : order1) & innerField) != 0;
+            int card = estimateJoinCardinality(lj, outerCard, innerCard,
+                    swap == 0 ? pkey1 : pkey2, swap == 0 ? pkey2 : pkey1, stats);
+            for (JoinAlgorithm algorithm : JoinAlgorithm.values()) {
+                if (isSubqueryJoin ? algorithm != JoinAlgorithm.NESTED_LOOP : !supports(algorithm, lj.p)) {
+                    continue;
+                }
+                double cost = isSubqueryJoin
+                        ? estimateJoinCost(lj, outerCard, innerCard, outerCost, innerCost)
+                        : estimateJoinCost(algorithm, lj.p, outerCard, innerCard, outerCost, innerCost,
+                        swap == 0 ? size1 : size2, swap == 0 ? size2 : size1, sorted1, sorted2);
+                long order = 0;
+                if (algorithm == JoinAlgorithm.SORT_MERGE) {
+                    order = (outerField | (lj.p == Predicate.Op.EQUALS ? innerField : 0)) & later;
+                }
+                pc.addPlan(newSet, cost, card, order, parent, j, algorithm.ordinal(), swap == 1);
+            }
         }
-        return false;
     }
 
     /**
@@ -374,20 +998,6 @@ public class JoinOptimizer {
         return pkey1.equals(field);
     }
 
-    /**
-     * Return true if a primary key field is joined by one of the joins in
-     * joinlist
-     */
-    private boolean hasPkey(List<LogicalJoinNode> joinlist) {
-        for (LogicalJoinNode j : joinlist) {
-            if (isPkey(j.t1Alias, j.f1PureName)
-                    || (j.t2Alias != null && isPkey(j.t2Alias, j.f2PureName)))
-                return true;
-        }
-        return false;
-
-    }
-
     /**
      * Helper function to display a Swing window with a tree representation of
      * the specified list of joins. See {@link #orderJoins}, which may want to
@@ -395,12 +1005,13 @@ public class JoinOptimizer {
      *
      * @param js            the join plan to visualize
      * @param pc            the PlanCache accumulated whild building the optimal plan
+     * @param plans         the plans in pc of the first 1, 2, ... joins of js
      * @param stats         table statistics for base tables
      * @param selectivities the selectivities of the filters over each of the tables
      *                      (where tables are indentified by their alias or name if no
      *                      alias is given)
      */
-    private void printJoins(List<LogicalJoinNode> js, PlanCache pc,
+    private void printJoins(List<LogicalJoinNode> js, PlanCache pc, int[] plans,
                             Map<String, TableStats> stats,
                             Map<String, Double> selectivities) {
 
@@ -420,13 +1031,12 @@ public class JoinOptimizer {
 
         // int k;
         DefaultMutableTreeNode root = null, treetop = null;
-        HashSet<LogicalJoinNode> pathSoFar = new HashSet<>();
         boolean neither;
 
         System.out.println(js);
-        for (LogicalJoinNode j : js) {
-            pathSoFar.add(j);
-            System.out.println("PATH SO FAR = " + pathSoFar);
+        for (int k = 0; k < js.size(); k++) {
+            LogicalJoinNode j = js.get(k);
+            System.out.println("PATH SO FAR = " + js.subList(0, k + 1));
 
             String table1Name = Database.getCatalog().getTableName(
                     this.p.getTableId(j.t1Alias));
@@ -437,8 +1047,8 @@ public class JoinOptimizer {
             neither = true;
 
             root = new DefaultMutableTreeNode("Join " + j + " (Cost ="
-                    + pc.getCost(pathSoFar) + ", card = "
-                    + pc.getCard(pathSoFar) + ")");
+                    + pc.getCost(plans[k]) + ", card = "
+                    + pc.getCard(plans[k]) + ")");
             DefaultMutableTreeNode n = m.get(j.t1Alias);
             if (n == null) { // never seen this table before
                 n = new DefaultMutableTreeNode(j.t1Alias
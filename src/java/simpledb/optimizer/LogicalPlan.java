@@ -16,9 +16,9 @@ import java.util.*;
  * the parser and is ready to be processed by the optimizer.
  * <p>
  * A LogicalPlan consits of a collection of table scan nodes, join
- * nodes, filter nodes, a select list, and a group by field.
- * LogicalPlans can only represent queries with one aggregation field
- * and one group by field.
+ * nodes, filter nodes, a select list, and a list of group by fields.
+ * All aggregates of a query are computed by one aggregation node, grouped
+ * by all group by fields.
  * <p>
  * LogicalPlans can be converted to physical (optimized) plans using
  * the {@link #physicalPlan} method, which uses the
@@ -26,6 +26,23 @@ import java.util.*;
  * best implementations for joins.
  */
 public class LogicalPlan {
+    /**
+     * Smallest heap file, in pages, that a plan reads with several threads
+     */
+    static final int PARALLEL_MIN_PAGES = 64;
+
+    /**
+     * Smallest heap file, in pages, whose filters are compiled into one loop
+     * over its scan; smaller scans mostly end before the loop is compiled
+     */
+    static final int COMPILE_MIN_PAGES = 64;
+
+    /**
+     * Smallest heap file, in pages, that a plan whose operators all have a
+     * batch implementation reads on batches; smaller scans fill few batches
+     */
+    static final int BATCH_MIN_PAGES = 4;
+
     private List<LogicalJoinNode> joins;
     private final List<LogicalScanNode> tables;
     private final List<LogicalFilterNode> filters;
@@ -33,12 +50,14 @@ public class LogicalPlan {
     private final Map<String, Integer> tableMap;
 
     private final List<LogicalSelectListNode> selectList;
-    private String groupByField = null;
+    private final List<String> groupByFields = new ArrayList<>();
     private boolean hasAgg = false;
-    private String aggOp;
-    private String aggField;
-    private boolean oByAsc, hasOrderBy = false;
-    private String oByField;
+    private final List<String> aggOps = new ArrayList<>();
+    private final List<String> aggFields = new ArrayList<>();
+    private boolean hasOrderBy = false;
+    private final List<String> oByFields = new ArrayList<>();
+    private final List<Boolean> oByAscs = new ArrayList<>();
+    private int limit = OrderBy.NO_LIMIT, offset = 0;
     private String query;
     //    private Query owner;
 
@@ -89,6 +108,14 @@ public class LogicalPlan {
         return this.tableMap;
     }
 
+    /**
+     * @return true if field is the primary key of the table with the specified alias
+     */
+    private boolean isPrimaryKey(String alias, String field) {
+        Integer tableId = getTableId(alias);
+        return tableId != null && field.equals(Database.getCatalog().getPrimaryKey(tableId));
+    }
+
     /**
      * Add a new filter to the logical plan
      *
@@ -205,27 +232,55 @@ public class LogicalPlan {
 
     /**
      * Add an aggregate over the field with the specified grouping to
-     * the query.  SimpleDb only supports a single aggregate
-     * expression and GROUP BY field.
+     * the query.
      *
      * @param op     the aggregation operator
      * @param afield the field to aggregate over
-     * @param gfield the field to group by
+     * @param gfield the field to group by, or null
      * @throws ParsingException
      */
     public void addAggregate(String op, String afield, String gfield) throws ParsingException {
-        afield = disambiguateName(afield);
+        addAggregate(op, afield);
         if (gfield != null)
-            gfield = disambiguateName(gfield);
-        aggOp = op;
-        aggField = afield;
-        groupByField = gfield;
+            addGroupByField(gfield);
+    }
+
+    /**
+     * Add an aggregate over the field to the query. All aggregates of a
+     * query are computed in one pass, grouped by all fields added with
+     * {@link #addGroupByField}. Adding the same aggregate twice has no effect.
+     *
+     * @param op     the aggregation operator
+     * @param afield the field to aggregate over
+     * @throws ParsingException
+     */
+    public void addAggregate(String op, String afield) throws ParsingException {
+        afield = disambiguateName(afield);
         hasAgg = true;
+        for (int i = 0; i < aggOps.size(); i++) {
+            if (aggOps.get(i).equalsIgnoreCase(op) && aggFields.get(i).equals(afield))
+                return;
+        }
+        aggOps.add(op);
+        aggFields.add(afield);
     }
 
     /**
-     * Add an ORDER BY expression in the specified order on the specified field.  SimpleDb only supports
-     * a single ORDER BY field.
+     * Add a field to the GROUP BY list of the query. The result of the
+     * aggregation holds the group by fields in the order they were added.
+     *
+     * @param gfield the field to group by
+     * @throws ParsingException
+     */
+    public void addGroupByField(String gfield) throws ParsingException {
+        gfield = disambiguateName(gfield);
+        if (!groupByFields.contains(gfield))
+            groupByFields.add(gfield);
+    }
+
+    /**
+     * Add an ORDER BY expression in the specified order on the specified field. If called several
+     * times, the tuples are ordered on the fields in the order they were added.
      *
      * @param field the field to order by
      * @param asc   true if should be ordered in ascending order, false for descending order
@@ -233,11 +288,26 @@ public class LogicalPlan {
      */
     public void addOrderBy(String field, boolean asc) throws ParsingException {
         field = disambiguateName(field);
-        oByField = field;
-        oByAsc = asc;
+        oByFields.add(field);
+        oByAscs.add(asc);
         hasOrderBy = true;
     }
 
+    /**
+     * Add a LIMIT clause: only limit result tuples are returned, after skipping the first offset ones.
+     *
+     * @param limit  the maximum number of tuples to return
+     * @param offset the number of tuples to skip
+     * @throws ParsingException if limit or offset is negative
+     */
+    public void setLimit(int limit, int offset) throws ParsingException {
+        if (limit < 0 || offset < 0) {
+            throw new ParsingException("LIMIT and OFFSET must not be negative");
+        }
+        this.limit = limit;
+        this.offset = offset;
+    }
+
     /**
      * Given a name of a field, try to figure out what table it belongs to by looking
      * through all of the tables added via {@link #addScan}.
@@ -282,6 +352,90 @@ public class LogicalPlan {
 
     }
 
+    /**
+     * @return the number of threads to aggregate the output of node with: a
+     *         scan of a big heap file is aggregated by several threads, each
+     *         scanning part of its pages
+     */
+    private static int aggregateWorkers(OpIterator node) {
+        if (node instanceof SeqScan && isBigHeapFile((SeqScan) node, PARALLEL_MIN_PAGES)) {
+            return Aggregate.DEFAULT_WORKERS;
+        }
+        return 1;
+    }
+
+    /**
+     * @return true if every operator of the plan runs on batches of its
+     *         children (see {@link BatchSource}), so that no tuples are
+     *         turned into batches or back on the way
+     */
+    private static boolean isBatchable(OpIterator node) {
+        if (node instanceof SeqScan || node instanceof CompiledScan) {
+            return true;
+        }
+        if (node instanceof Aggregate && ((Aggregate) node).getWorkers() > 1) {
+            return false;
+        }
+        if (!(node instanceof Filter || node instanceof Project || node instanceof Aggregate
+                || node instanceof HashEquiJoin)) {
+            return false;
+        }
+        for (OpIterator child : ((Operator) node).getChildren()) {
+            if (!isBatchable(child)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the plan scans a heap file of at least minPages pages
+     */
+    private static boolean readsBigHeapFile(OpIterator node, int minPages) {
+        if (node instanceof SeqScan) {
+            return isBigHeapFile((SeqScan) node, minPages);
+        }
+        if (node instanceof Operator) {
+            for (OpIterator child : ((Operator) node).getChildren()) {
+                if (readsBigHeapFile(child, minPages)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean isBigHeapFile(SeqScan scan, int minPages) {
+        DbFile file = Database.getCatalog().getDatabaseFile(
+                Database.getCatalog().getTableId(scan.getTableName()));
+        return file instanceof HeapFile && ((HeapFile) file).numPages() >= minPages;
+    }
+
+    /**
+     * Run the filters and joins of a plan on {@link Exchange#DEFAULT_WORKERS}
+     * threads under a gathering {@link Exchange} if the leftmost table of the
+     * plan is a big heap file, so that every thread reads part of its pages.
+     *
+     * @return the plan to use instead of node
+     */
+    private static OpIterator parallelize(OpIterator node) {
+        if (Exchange.DEFAULT_WORKERS < 2 || node instanceof SeqScan) {
+            return node;
+        }
+        OpIterator leftmost = node;
+        while (leftmost instanceof Operator) {
+            leftmost = ((Operator) leftmost).getChildren()[0];
+        }
+        if (!(leftmost instanceof SeqScan) || !isBigHeapFile((SeqScan) leftmost, PARALLEL_MIN_PAGES)) {
+            return node;
+        }
+        try {
+            return new Exchange(Exchange.partition(node, Exchange.DEFAULT_WORKERS));
+        } catch (IllegalArgumentException e) {
+            return node;
+        }
+    }
+
     /**
      * Convert the aggregate operator name s into an Aggregator.op operation.
      *
@@ -316,6 +470,7 @@ public class LogicalPlan {
         Iterator<LogicalScanNode> tableIt = tables.iterator();
         Map<String, String> equivMap = new HashMap<>();
         Map<String, Double> filterSelectivities = new HashMap<>();
+        Map<String, List<Predicate>> tablePredicates = new HashMap<>();
         Map<String, TableStats> statsMap = new HashMap<>();
 
         while (tableIt.hasNext()) {
@@ -362,18 +517,47 @@ public class LogicalPlan {
             }
             subplanMap.put(lf.tableAlias, new Filter(p, subplan));
 
-            TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
-
-            double sel = s.estimateSelectivity(subplan.getTupleDesc().indexForFieldName(lf.fieldQuantifiedName), lf.p, f);
-            filterSelectivities.put(lf.tableAlias, filterSelectivities.get(lf.tableAlias) * sel);
+            tablePredicates.computeIfAbsent(lf.tableAlias, k -> new ArrayList<>()).add(p);
 
             //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
         }
 
+        // the filters of a table are estimated together, so that the
+        // statistics of its column groups can account for correlated columns
+        for (Map.Entry<String, List<Predicate>> entry : tablePredicates.entrySet()) {
+            TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(entry.getKey())));
+            filterSelectivities.put(entry.getKey(), s.estimateSelectivity(entry.getValue()));
+        }
+
+        // fuse the filters of every big table into one loop generated for its scan
+        for (Map.Entry<String, OpIterator> entry : subplanMap.entrySet()) {
+            OpIterator leaf = entry.getValue();
+            while (leaf instanceof Filter) {
+                leaf = ((Filter) leaf).getChildren()[0];
+            }
+            if (leaf != entry.getValue() && leaf instanceof SeqScan
+                    && isBigHeapFile((SeqScan) leaf, COMPILE_MIN_PAGES)) {
+                entry.setValue(PipelineCompiler.compile(entry.getValue()));
+            }
+        }
+
         JoinOptimizer jo = new JoinOptimizer(this, joins);
 
         joins = jo.orderJoins(statsMap, filterSelectivities, explain);
 
+        // estimated cardinality and scan cost of every subplan, used to pick
+        // a join algorithm if the optimizer has not picked one
+        Map<String, Integer> subplanCards = new HashMap<>();
+        Map<String, Double> subplanCosts = new HashMap<>();
+        Set<String> joinedSubplans = new HashSet<>();
+        for (String alias : subplanMap.keySet()) {
+            TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(alias)));
+            if (s != null) {
+                subplanCards.put(alias, s.estimateTableCardinality(filterSelectivities.get(alias)));
+                subplanCosts.put(alias, s.estimateScanCost());
+            }
+        }
+
         for (LogicalJoinNode lj : joins) {
             OpIterator plan1;
             OpIterator plan2;
@@ -392,6 +576,14 @@ public class LogicalPlan {
 
             plan1 = subplanMap.get(t1name);
 
+            if (!isSubqueryJoin && t1name.equals(t2name)) {
+                // an earlier join has joined both tables already
+                if (plan1 == null)
+                    throw new ParsingException("Unknown table in WHERE clause " + lj.t1Alias);
+                subplanMap.put(t1name, JoinOptimizer.instantiateJoinFilter(lj, plan1));
+                continue;
+            }
+
             if (isSubqueryJoin) {
                 plan2 = ((LogicalSubplanJoinNode) lj).subPlan;
                 if (plan2 == null)
@@ -405,9 +597,26 @@ public class LogicalPlan {
             if (plan2 == null)
                 throw new ParsingException("Unknown table in WHERE clause " + lj.t2Alias);
 
+            int card1 = subplanCards.getOrDefault(t1name, 0);
+            int card2 = isSubqueryJoin ? 0 : subplanCards.getOrDefault(t2name, 0);
+            double cost1 = subplanCosts.getOrDefault(t1name, 0.0);
+            double cost2 = isSubqueryJoin ? 0 : subplanCosts.getOrDefault(t2name, 0.0);
+
             OpIterator j;
-            j = JoinOptimizer.instantiateJoin(lj, plan1, plan2);
+            JoinOptimizer.JoinAlgorithm algorithm = jo.getJoinAlgorithm(lj);
+            if (algorithm != null) {
+                j = JoinOptimizer.instantiateJoin(lj, plan1, plan2, algorithm);
+            } else {
+                j = JoinOptimizer.instantiateJoin(lj, plan1, plan2, card1, card2, cost1, cost2);
+            }
             subplanMap.put(t1name, j);
+            // a key of a base table is no longer unique once the table is joined
+            boolean t1pkey = !joinedSubplans.contains(t1name) && isPrimaryKey(lj.t1Alias, lj.f1PureName);
+            boolean t2pkey = !isSubqueryJoin && !joinedSubplans.contains(t2name)
+                    && isPrimaryKey(lj.t2Alias, lj.f2PureName);
+            subplanCards.put(t1name, jo.estimateJoinCardinality(lj, card1, card2, t1pkey, t2pkey, statsMap));
+            joinedSubplans.add(t1name);
+            subplanCosts.put(t1name, jo.estimateJoinCost(lj, card1, card2, cost1, cost2));
 
             if (!isSubqueryJoin) {
                 subplanMap.remove(t2name);
@@ -430,7 +639,7 @@ public class LogicalPlan {
             throw new ParsingException("Query does not include join expressions joining all nodes!");
         }
 
-        OpIterator node = subplanMap.entrySet().iterator().next().getValue();
+        OpIterator node = parallelize(subplanMap.entrySet().iterator().next().getValue());
 
         //walk the select list, to determine order in which to project output fields
         List<Integer> outFields = new ArrayList<>();
@@ -438,7 +647,17 @@ public class LogicalPlan {
         for (int i = 0; i < selectList.size(); i++) {
             LogicalSelectListNode si = selectList.get(i);
             if (si.aggOp != null) {
-                outFields.add(groupByField != null ? 1 : 0);
+                // the aggregation outputs the group by fields, then the aggregates
+                int agg = -1;
+                for (int k = 0; k < aggOps.size(); k++) {
+                    if (aggOps.get(k).equalsIgnoreCase(si.aggOp) && aggFields.get(k).equals(si.fname)) {
+                        agg = k;
+                    }
+                }
+                if (agg < 0) {
+                    throw new ParsingException("Aggregate " + si.aggOp + "(" + si.fname + ") was not added to the query");
+                }
+                outFields.add(groupByFields.size() + agg);
                 TupleDesc td = node.getTupleDesc();
                 //                int  id;
                 try {
@@ -450,16 +669,17 @@ public class LogicalPlan {
                 outTypes.add(Type.INT_TYPE);  //the type of all aggregate functions is INT
 
             } else if (hasAgg) {
-                if (groupByField == null) {
+                int group = groupByFields.indexOf(si.fname);
+                if (group < 0) {
                     throw new ParsingException("Field " + si.fname + " does not appear in GROUP BY list");
                 }
-                outFields.add(0);
+                outFields.add(group);
                 TupleDesc td = node.getTupleDesc();
                 int id;
                 try {
-                    id = td.indexForFieldName(groupByField);
+                    id = td.indexForFieldName(si.fname);
                 } catch (NoSuchElementException e) {
-                    throw new ParsingException("Unknown field " + groupByField + " in GROUP BY statement");
+                    throw new ParsingException("Unknown field " + si.fname + " in GROUP BY statement");
                 }
                 outTypes.add(td.getFieldType(id));
             } else if (si.fname.equals("null.*")) {
@@ -486,10 +706,17 @@ public class LogicalPlan {
             TupleDesc td = node.getTupleDesc();
             Aggregate aggNode;
             try {
-                aggNode = new Aggregate(node,
-                        td.indexForFieldName(aggField),
-                        groupByField == null ? Aggregator.NO_GROUPING : td.indexForFieldName(groupByField),
-                        getAggOp(aggOp));
+                int[] afields = new int[aggFields.size()];
+                Aggregator.Op[] aops = new Aggregator.Op[aggOps.size()];
+                for (int k = 0; k < afields.length; k++) {
+                    afields[k] = td.indexForFieldName(aggFields.get(k));
+                    aops[k] = getAggOp(aggOps.get(k));
+                }
+                int[] gfields = new int[groupByFields.size()];
+                for (int k = 0; k < gfields.length; k++) {
+                    gfields[k] = td.indexForFieldName(groupByFields.get(k));
+                }
+                aggNode = new Aggregate(node, afields, gfields, aops, aggregateWorkers(node));
             } catch (NoSuchElementException | IllegalArgumentException e) {
                 throw new simpledb.ParsingException(e);
             }
@@ -497,10 +724,35 @@ public class LogicalPlan {
         }
 
         if (hasOrderBy) {
-            node = new OrderBy(node.getTupleDesc().indexForFieldName(oByField), oByAsc, node);
+            int[] fields = new int[oByFields.size()];
+            boolean[] ascs = new boolean[oByFields.size()];
+            for (int k = 0; k < fields.length; k++) {
+                try {
+                    fields[k] = node.getTupleDesc().indexForFieldName(oByFields.get(k));
+                } catch (NoSuchElementException e) {
+                    throw new ParsingException("Unknown field " + oByFields.get(k) + " in ORDER BY statement");
+                }
+                ascs[k] = oByAscs.get(k);
+            }
+            // with a LIMIT, the sort only has to keep the first limit + offset tuples
+            int sortLimit = limit == OrderBy.NO_LIMIT ? OrderBy.NO_LIMIT
+                    : (int) Math.min(Integer.MAX_VALUE, (long) limit + offset);
+            node = new OrderBy(fields, ascs, node, ExternalSort.DEFAULT_MEMORY_PAGES, sortLimit);
         }
 
-        return new Project(outFields, outTypes, node);
+        if (node instanceof CompiledScan) {
+            // a compiled scan already runs on batches
+            node = PipelineCompiler.compile(new Project(outFields, outTypes, node));
+        } else {
+            node = new Project(outFields, outTypes, node);
+            if (isBatchable(node) && readsBigHeapFile(node, BATCH_MIN_PAGES)) {
+                node = new BatchedPlan(node);
+            }
+        }
+        if (limit != OrderBy.NO_LIMIT) {
+            node = new Limit(limit, offset, node);
+        }
+        return node;
     }
 
     public static void main(String[] argv) {
@@ -23,14 +23,22 @@ public class OperatorCardinality {
         if (o instanceof Filter) {
             return updateFilterCardinality((Filter) o, tableAliasToId,
                     tableStats);
+        } else if (o instanceof CompiledScan) {
+            return updateCompiledScanCardinality((CompiledScan) o, tableStats);
         } else if (o instanceof Join) {
             return updateJoinCardinality((Join) o, tableAliasToId, tableStats);
         } else if (o instanceof HashEquiJoin) {
             return updateHashEquiJoinCardinality((HashEquiJoin) o,
                     tableAliasToId, tableStats);
+        } else if (o instanceof SortMergeJoin) {
+            return updateSortMergeJoinCardinality((SortMergeJoin) o,
+                    tableAliasToId, tableStats);
         } else if (o instanceof Aggregate) {
             return updateAggregateCardinality((Aggregate) o, tableAliasToId,
                     tableStats);
+        } else if (o instanceof Exchange) {
+            return updateExchangeCardinality((Exchange) o, tableAliasToId,
+                    tableStats);
         } else {
             OpIterator[] children = o.getChildren();
             int childC = 1;
@@ -51,6 +59,30 @@ public class OperatorCardinality {
         }
     }
 
+    private static boolean updateExchangeCardinality(Exchange e,
+                                                     Map<String, Integer> tableAliasToId,
+                                                     Map<String, TableStats> tableStats) {
+        // the fragments read partitions of the same input: they produce the
+        // tuples of the whole subtree together
+        boolean hasJoinPK = false;
+        int card = 0;
+        for (OpIterator fragment : e.getChildren()) {
+            if (fragment instanceof Operator) {
+                hasJoinPK = updateOperatorCardinality((Operator) fragment,
+                        tableAliasToId, tableStats);
+                card += ((Operator) fragment).getEstimatedCardinality();
+            } else if (fragment instanceof SeqScan) {
+                card += tableStats.get(((SeqScan) fragment).getTableName())
+                        .estimateTableCardinality(1.0) / e.getWorkers();
+            }
+        }
+        if (e.getMode() == Exchange.Mode.BROADCAST) {
+            card *= e.getOutputs();
+        }
+        e.setEstimatedCardinality(card);
+        return hasJoinPK;
+    }
+
     private static boolean updateFilterCardinality(Filter f,
                                                    Map<String, Integer> tableAliasToId,
                                                    Map<String, TableStats> tableStats) {
@@ -87,6 +119,25 @@ public class OperatorCardinality {
         return false;
     }
 
+    private static boolean updateCompiledScanCardinality(CompiledScan c,
+                                                         Map<String, TableStats> tableStats) {
+        // the predicates refer to the fields of the scanned table
+        OpIterator child = c.getChildren()[0];
+        if (child instanceof SeqScan) {
+            TableStats s = tableStats.get(((SeqScan) child).getTableName());
+            double selectivity = 1.0;
+            for (Predicate pred : c.getPredicates()) {
+                selectivity *= s.estimateSelectivity(pred.getField(),
+                        pred.getOp(), pred.getOperand());
+            }
+            c.setEstimatedCardinality((int) (s.estimateTableCardinality(1.0)
+                    * selectivity) + 1);
+            return false;
+        }
+        c.setEstimatedCardinality(1);
+        return false;
+    }
+
     private static boolean updateJoinCardinality(Join j,
                                                  Map<String, Integer> tableAliasToId,
                                                  Map<String, TableStats> tableStats) {
@@ -198,6 +249,61 @@ public class OperatorCardinality {
         return child1HasJoinPK || child2HasJoinPK;
     }
 
+    private static boolean updateSortMergeJoinCardinality(SortMergeJoin j,
+                                                          Map<String, Integer> tableAliasToId,
+                                                          Map<String, TableStats> tableStats) {
+
+        OpIterator[] children = j.getChildren();
+        OpIterator child1 = children[0];
+        OpIterator child2 = children[1];
+        int child1Card = 1;
+        int child2Card = 1;
+
+        String[] tmp1 = j.getJoinField1Name().split("[.]");
+        String tableAlias1 = tmp1[0];
+        String pureFieldName1 = tmp1[1];
+        String[] tmp2 = j.getJoinField2Name().split("[.]");
+        String tableAlias2 = tmp2[0];
+        String pureFieldName2 = tmp2[1];
+
+        boolean child1HasJoinPK = Database.getCatalog()
+                .getPrimaryKey(tableAliasToId.get(tableAlias1))
+                .equals(pureFieldName1);
+        boolean child2HasJoinPK = Database.getCatalog()
+                .getPrimaryKey(tableAliasToId.get(tableAlias2))
+                .equals(pureFieldName2);
+
+        if (child1 instanceof Operator) {
+            Operator child1O = (Operator) child1;
+            boolean pk = updateOperatorCardinality(child1O, tableAliasToId,
+                    tableStats);
+            child1HasJoinPK = pk || child1HasJoinPK;
+            child1Card = child1O.getEstimatedCardinality();
+            child1Card = child1Card > 0 ? child1Card : 1;
+        } else if (child1 instanceof SeqScan) {
+            child1Card = tableStats.get(((SeqScan) child1)
+                    .getTableName()).estimateTableCardinality(1.0);
+        }
+
+        if (child2 instanceof Operator) {
+            Operator child2O = (Operator) child2;
+            boolean pk = updateOperatorCardinality(child2O, tableAliasToId,
+                    tableStats);
+            child2HasJoinPK = pk || child2HasJoinPK;
+            child2Card = child2O.getEstimatedCardinality();
+            child2Card = child2Card > 0 ? child2Card : 1;
+        } else if (child2 instanceof SeqScan) {
+            child2Card = tableStats.get(((SeqScan) child2)
+                    .getTableName()).estimateTableCardinality(1.0);
+        }
+
+        j.setEstimatedCardinality(JoinOptimizer.estimateTableJoinCardinality(j
+                        .getJoinPredicate().getOperator(), tableAlias1, tableAlias2,
+                pureFieldName1, pureFieldName2, child1Card, child2Card,
+                child1HasJoinPK, child2HasJoinPK, tableStats, tableAliasToId));
+        return child1HasJoinPK || child2HasJoinPK;
+    }
+
     private static boolean updateAggregateCardinality(Aggregate a,
                                                       Map<String, Integer> tableAliasToId,
                                                       Map<String, TableStats> tableStats) {
@@ -221,24 +327,27 @@ public class OperatorCardinality {
                     .estimateTableCardinality(1.0);
         }
 
-        String[] tmp = a.groupFieldName().split("[.]");
-        String tableAlias = tmp[0];
-        String pureFieldName = tmp[1];
-        Integer tableId = tableAliasToId.get(tableAlias);
-
-        double groupFieldAvgSelectivity = 1.0;
-        if (tableId != null) {
-            groupFieldAvgSelectivity = tableStats.get(
+        // the number of groups is at most the product of the number of
+        // distinct values of every group by field
+        double groups = 1.0;
+        for (int gfield : a.groupFields()) {
+            String[] tmp = child.getTupleDesc().getFieldName(gfield).split("[.]");
+            String tableAlias = tmp[0];
+            String pureFieldName = tmp[1];
+            Integer tableId = tableAliasToId.get(tableAlias);
+            if (tableId == null) {
+                a.setEstimatedCardinality(childCard);
+                return hasJoinPK;
+            }
+            double groupFieldAvgSelectivity = tableStats.get(
                     Database.getCatalog().getTableName(tableId))
                     .avgSelectivity(
                             Database.getCatalog().getTupleDesc(tableId)
                                     .indexForFieldName(pureFieldName),
                             Predicate.Op.EQUALS);
-            a.setEstimatedCardinality((int) (Math.min(childCard,
-                    1.0 / groupFieldAvgSelectivity)));
-            return hasJoinPK;
+            groups *= 1.0 / groupFieldAvgSelectivity;
         }
-        a.setEstimatedCardinality(childCard);
+        a.setEstimatedCardinality((int) (Math.min(childCard, groups)));
         return hasJoinPK;
     }
 }
@@ -12,11 +12,15 @@ public class QueryPlanVisualizer {
 
     static final String JOIN = "⨝";
     static final String HASH_JOIN = "⨝(hash)";
+    static final String MERGE_JOIN = "⨝(merge)";
     static final String SELECT = "σ";
     static final String PROJECT = "π";
     static final String RENAME = "ρ";
     static final String SCAN = "scan";
+    static final String COMPILED = "compiled";
     static final String ORDERBY = "o";
+    static final String LIMIT = "limit";
+    static final String BATCHED = "batched";
     static final String GROUPBY = "g";
     static final String SPACE = "  ";
 
@@ -29,7 +33,7 @@ public class QueryPlanVisualizer {
         Operator o = (Operator) root;
         OpIterator[] children = o.getChildren();
 
-        if (o instanceof Join || o instanceof HashEquiJoin) {
+        if (o instanceof Join || o instanceof HashEquiJoin || o instanceof SortMergeJoin) {
             int d1 = this.calculateQueryPlanTreeDepth(children[0]);
             int d2 = this.calculateQueryPlanTreeDepth(children[1]);
             return Math.max(d1, d2) + 3;
@@ -164,21 +168,62 @@ public class QueryPlanVisualizer {
                 thisNode.leftChild = left;
                 thisNode.rightChild = right;
                 thisNode.height = currentDepth;
+            } else if (plan instanceof SortMergeJoin) {
+                SortMergeJoin j = (SortMergeJoin) plan;
+                JoinPredicate jp = j.getJoinPredicate();
+                TupleDesc td = j.getTupleDesc();
+                String field1 = td.getFieldName(jp.getField1());
+                String field2 = td.getFieldName(jp.getField2()
+                        + children[0].getTupleDesc().numFields());
+                thisNode.text = String.format("%1$s(%2$s),card:%3$d", MERGE_JOIN, field1
+                        + jp.getOperator() + field2, j.getEstimatedCardinality());
+                int upBarShift = parentUpperBarStartShift;
+                if (MERGE_JOIN.length() / 2 > parentUpperBarStartShift)
+                    upBarShift = MERGE_JOIN.length() / 2;
+                SubTreeDescriptor left = this.buildTree(queryPlanDepth,
+                        currentDepth + 3 + adjustDepth, children[0],
+                        currentStartPosition, upBarShift);
+                SubTreeDescriptor right = this.buildTree(queryPlanDepth,
+                        currentDepth + 3 + adjustDepth, children[1],
+                        currentStartPosition + left.width + SPACE.length(), 0);
+                thisNode.upBarPosition = (left.upBarPosition + right.upBarPosition) / 2;
+                thisNode.textStartPosition = thisNode.upBarPosition
+                        - MERGE_JOIN.length() / 2;
+                thisNode.width = Math.max(
+                        left.width + right.width + SPACE.length(),
+                        thisNode.textStartPosition + thisNode.text.length()
+                                - currentStartPosition);
+                thisNode.leftChild = left;
+                thisNode.rightChild = right;
+                thisNode.height = currentDepth;
             } else if (plan instanceof Aggregate) {
                 Aggregate a = (Aggregate) plan;
                 int upBarShift = parentUpperBarStartShift;
                 String alignTxt;
                 TupleDesc td = a.getTupleDesc();
                 int gfield = a.groupField();
+                TupleDesc childTd = children[0].getTupleDesc();
+                StringBuilder aggs = new StringBuilder();
+                for (int k = 0; k < a.aggregateFields().length; k++) {
+                    if (k > 0)
+                        aggs.append(", ");
+                    aggs.append(String.format("%1$s(%2$s)", a.aggregateOps()[k],
+                            childTd.getFieldName(a.aggregateFields()[k])));
+                }
 
                 if (gfield == Aggregator.NO_GROUPING) {
-                    thisNode.text = String.format("%1$s(%2$s),card:%3$d",
-                            a.aggregateOp(), a.aggregateFieldName(), a.getEstimatedCardinality());
+                    thisNode.text = String.format("%1$s,card:%2$d",
+                            aggs, a.getEstimatedCardinality());
                     alignTxt = td.getFieldName(0);
                 } else {
-                    thisNode.text = String.format("%1$s(%2$s), %3$s(%4$s),card:%5$d",
-                            GROUPBY, a.groupFieldName(), a.aggregateOp(),
-                            a.aggregateFieldName(), a.getEstimatedCardinality());
+                    StringBuilder groups = new StringBuilder();
+                    for (int k = 0; k < a.groupFields().length; k++) {
+                        if (k > 0)
+                            groups.append(",");
+                        groups.append(childTd.getFieldName(a.groupFields()[k]));
+                    }
+                    thisNode.text = String.format("%1$s(%2$s), %3$s,card:%4$d",
+                            GROUPBY, groups, aggs, a.getEstimatedCardinality());
                     alignTxt = GROUPBY;
                 }
                 if (alignTxt.length() / 2 > parentUpperBarStartShift)
@@ -216,6 +261,60 @@ public class QueryPlanVisualizer {
                                 - currentStartPosition);
                 thisNode.leftChild = child;
                 thisNode.height = currentDepth;
+            } else if (plan instanceof JoinFilter) {
+                JoinFilter f = (JoinFilter) plan;
+                JoinPredicate p = f.getJoinPredicate();
+                TupleDesc td = children[0].getTupleDesc();
+                thisNode.text = String.format("%1$s(%2$s),card:%3$d", SELECT, td.getFieldName(p.getField1())
+                        + p.getOperator() + td.getFieldName(p.getField2()), f.getEstimatedCardinality());
+                int upBarShift = parentUpperBarStartShift;
+                if (SELECT.length() / 2 > parentUpperBarStartShift)
+                    upBarShift = SELECT.length() / 2;
+                SubTreeDescriptor child = this.buildTree(queryPlanDepth,
+                        currentDepth + 2 + adjustDepth, children[0],
+                        currentStartPosition, upBarShift);
+                thisNode.upBarPosition = child.upBarPosition;
+                thisNode.textStartPosition = thisNode.upBarPosition
+                        - SELECT.length() / 2;
+                thisNode.width = Math.max(child.width,
+                        thisNode.textStartPosition + thisNode.text.length()
+                                - currentStartPosition);
+                thisNode.leftChild = child;
+                thisNode.height = currentDepth;
+            } else if (plan instanceof CompiledScan) {
+                CompiledScan c = (CompiledScan) plan;
+                TupleDesc scanTd = children[0].getTupleDesc();
+                StringBuilder conds = new StringBuilder();
+                for (Predicate p : c.getPredicates()) {
+                    if (conds.length() > 0)
+                        conds.append(" AND ");
+                    conds.append(scanTd.getFieldName(p.getField())).append(p.getOp()).append(p.getOperand());
+                }
+                String text = COMPILED + " " + SELECT + "(" + conds + ")";
+                if (c.getFields() != null) {
+                    StringBuilder fields = new StringBuilder();
+                    for (int f : c.getFields()) {
+                        if (fields.length() > 0)
+                            fields.append(",");
+                        fields.append(scanTd.getFieldName(f));
+                    }
+                    text += " " + PROJECT + "(" + fields + ")";
+                }
+                thisNode.text = String.format("%1$s,card:%2$d", text, c.getEstimatedCardinality());
+                int upBarShift = parentUpperBarStartShift;
+                if (COMPILED.length() / 2 > parentUpperBarStartShift)
+                    upBarShift = COMPILED.length() / 2;
+                SubTreeDescriptor child = this.buildTree(queryPlanDepth,
+                        currentDepth + 2 + adjustDepth, children[0],
+                        currentStartPosition, upBarShift);
+                thisNode.upBarPosition = child.upBarPosition;
+                thisNode.textStartPosition = thisNode.upBarPosition
+                        - COMPILED.length() / 2;
+                thisNode.width = Math.max(child.width,
+                        thisNode.textStartPosition + thisNode.text.length()
+                                - currentStartPosition);
+                thisNode.leftChild = child;
+                thisNode.height = currentDepth;
             } else if (plan instanceof OrderBy) {
                 OrderBy o = (OrderBy) plan;
                 thisNode.text = String.format(
@@ -259,6 +358,59 @@ public class QueryPlanVisualizer {
                                 - currentStartPosition);
                 thisNode.leftChild = child;
                 thisNode.height = currentDepth;
+            } else if (plan instanceof Limit) {
+                Limit l = (Limit) plan;
+                thisNode.text = String.format("%1$s(%2$d,%3$d),card:%4$d", LIMIT, l.getLimit(), l.getOffset(),
+                        l.getEstimatedCardinality());
+                int upBarShift = parentUpperBarStartShift;
+                if (LIMIT.length() / 2 > parentUpperBarStartShift)
+                    upBarShift = LIMIT.length() / 2;
+                SubTreeDescriptor child = this.buildTree(queryPlanDepth,
+                        currentDepth + 2 + adjustDepth, children[0],
+                        currentStartPosition, upBarShift);
+                thisNode.upBarPosition = child.upBarPosition;
+                thisNode.textStartPosition = thisNode.upBarPosition
+                        - LIMIT.length() / 2;
+                thisNode.width = Math.max(child.width,
+                        thisNode.textStartPosition + thisNode.text.length()
+                                - currentStartPosition);
+                thisNode.leftChild = child;
+                thisNode.height = currentDepth;
+            } else if (plan instanceof BatchedPlan) {
+                BatchedPlan b = (BatchedPlan) plan;
+                thisNode.text = String.format("%1$s,card:%2$d", BATCHED, b.getEstimatedCardinality());
+                int upBarShift = parentUpperBarStartShift;
+                if (BATCHED.length() / 2 > parentUpperBarStartShift)
+                    upBarShift = BATCHED.length() / 2;
+                SubTreeDescriptor child = this.buildTree(queryPlanDepth,
+                        currentDepth + 2 + adjustDepth, children[0],
+                        currentStartPosition, upBarShift);
+                thisNode.upBarPosition = child.upBarPosition;
+                thisNode.textStartPosition = thisNode.upBarPosition
+                        - BATCHED.length() / 2;
+                thisNode.width = Math.max(child.width,
+                        thisNode.textStartPosition + thisNode.text.length()
+                                - currentStartPosition);
+                thisNode.leftChild = child;
+                thisNode.height = currentDepth;
+            } else if (plan instanceof Exchange) {
+                Exchange e = (Exchange) plan;
+                thisNode.text = String.format("%1$s,card:%2$d", e.getName(), e.getEstimatedCardinality());
+                int upBarShift = parentUpperBarStartShift;
+                if (e.getName().length() / 2 > parentUpperBarStartShift)
+                    upBarShift = e.getName().length() / 2;
+                // all fragments are copies of the same subtree: show the first
+                SubTreeDescriptor child = this.buildTree(queryPlanDepth,
+                        currentDepth + 2 + adjustDepth, children[0],
+                        currentStartPosition, upBarShift);
+                thisNode.upBarPosition = child.upBarPosition;
+                thisNode.textStartPosition = thisNode.upBarPosition
+                        - e.getName().length() / 2;
+                thisNode.width = Math.max(child.width,
+                        thisNode.textStartPosition + thisNode.text.length()
+                                - currentStartPosition);
+                thisNode.leftChild = child;
+                thisNode.height = currentDepth;
             } else if (plan.getClass().getSuperclass().getSuperclass().getSimpleName().equals("Exchange")) {
                 String name = "Exchange";
                 int card = 0;
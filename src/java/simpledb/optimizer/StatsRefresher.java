@@ -0,0 +1,53 @@
+package simpledb.optimizer;
+
+import simpledb.common.WorkQueue;
+
+/**
+ * StatsRefresher rebuilds the statistics of tables in the background once
+ * enough of them has changed (see {@link TableStats#getRefreshFraction}),
+ * so that queries never wait for a table to be scanned. Until then,
+ * {@link TableStats#insertTuple} and {@link TableStats#deleteTuple} keep the
+ * statistics roughly up to date.
+ * <p>
+ * The new statistics are computed from the committed tuples of the table
+ * and replace the old ones only if those were not replaced meanwhile. A
+ * table is only read once no transaction has uncommitted changes to it (see
+ * {@link TableStats#transactionComplete}), and the changes made while it is
+ * read are carried over to the new statistics.
+ */
+class StatsRefresher extends WorkQueue<String> {
+
+    private StatsRefresher() {
+        super("simpledb-stats-refresher");
+    }
+
+    static StatsRefresher startRefresher() {
+        StatsRefresher refresher = new StatsRefresher();
+        refresher.start();
+        return refresher;
+    }
+
+    /**
+     * Rebuild the statistics of a table
+     */
+    @Override
+    protected void process(String tableName) {
+        TableStats old = TableStats.getTableStats(tableName);
+        if (old == null) {
+            return;
+        }
+        // a transaction may have started changing the table since the request
+        long[] seen = old.startRefresh();
+        if (seen == null) {
+            return;
+        }
+        try {
+            TableStats fresh = new TableStats(old.tableId, old.ioCostPerPage, TableStats.getSampleRate());
+            TableStats.replaceTableStats(tableName, old, fresh, seen);
+        } catch (RuntimeException e) {
+            // the table may have been dropped or the scan aborted; the old
+            // statistics stay, and are rebuilt on a later change
+            old.refreshFailed();
+        }
+    }
+}
@@ -2,6 +2,10 @@ package simpledb.optimizer;
 
 import simpledb.execution.Predicate;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 /**
  * A class to represent a fixed-width histogram over a single String-based
  * field.
@@ -21,6 +25,26 @@ public class StringHistogram {
         hist = new IntHistogram(buckets, minVal(), maxVal());
     }
 
+    private StringHistogram(IntHistogram hist) {
+        this.hist = hist;
+    }
+
+    /**
+     * Write the histogram to out
+     *
+     * @see IntHistogram#write
+     */
+    public void write(DataOutput out) throws IOException {
+        hist.write(out);
+    }
+
+    /**
+     * Read a histogram that was written with {@link #write}
+     */
+    public static StringHistogram read(DataInput in) throws IOException {
+        return new StringHistogram(IntHistogram.read(in));
+    }
+
     /**
      * Convert a string to an integer, with the property that if the return
      * value(s1) < return value(s2), then s1 < s2
@@ -72,6 +96,24 @@ public class StringHistogram {
         hist.addValue(val);
     }
 
+    /**
+     * Record that a value was added to the table
+     *
+     * @see IntHistogram#insertValue
+     */
+    public void insertValue(String s) {
+        hist.insertValue(stringToInt(s));
+    }
+
+    /**
+     * Record that a value was removed from the table
+     *
+     * @see IntHistogram#deleteValue
+     */
+    public void deleteValue(String s) {
+        hist.deleteValue(stringToInt(s));
+    }
+
     /**
      * Estimate the selectivity (as a double between 0 and 1) of the specified
      * predicate over the specified string
@@ -1,35 +1,216 @@
 package simpledb.optimizer;
 
 import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
 import simpledb.common.Type;
 import simpledb.execution.Predicate;
 import simpledb.execution.SeqScan;
+import simpledb.index.BTreeFile;
 import simpledb.storage.*;
 import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
 
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * TableStats represents statistics (e.g., histograms) about base tables in a
  * query.
  * <p>
  * This class is not needed in implementing lab1 and lab2.
+ * <p>
+ * The statistics of all tables may be saved to a statistics file with
+ * {@link #saveStatistics}. After {@link #loadStatistics}, the statistics of
+ * a table are read from that file when they are first needed, unless the
+ * file of the table has changed since they were saved, in which case they
+ * are computed again.
+ * <p>
+ * Columns that are correlated, such as a city and its zip code, may be
+ * declared as a column group with {@link #addColumnGroup}, in the schema
+ * file of the catalog, or with a CREATE STATISTICS statement. The statistics
+ * of a table then include {@link ColumnGroupStats} for each of its groups,
+ * which estimate the selectivity of several filters over the columns of a
+ * group together instead of assuming that they are independent. The
+ * statistics file keeps the declared groups, which loadStatistics declares
+ * again for the tables that have none.
  */
 public class TableStats {
 
-    private static final ConcurrentMap<String, TableStats> statsMap = new ConcurrentHashMap<>();
+    private static final StatsMap statsMap = new StatsMap();
+    // the same statistics by table id, for the buffer pool to report changes to
+    private static final ConcurrentMap<Integer, TableStats> statsById = new ConcurrentHashMap<>();
 
     static final int IOCOSTPERPAGE = 1000;
 
+    /**
+     * Magic number that statistics files start with, followed by their
+     * format version
+     */
+    private static final int STATS_FILE_MAGIC = 0x53444253;
+    static final int STATS_FILE_VERSION = 4;
+
+    // the statistics file that statistics are read from once they are
+    // needed, or null if loadStatistics was not called
+    private static volatile StatsFile statsFile = null;
+
+    /**
+     * The statistics of tables by name. Once loadStatistics was called, the
+     * statistics of a table that were not looked up before are read from
+     * the statistics file or computed.
+     */
+    private static class StatsMap extends ConcurrentHashMap<String, TableStats> {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public TableStats get(Object key) {
+            TableStats s = super.get(key);
+            if (s == null && statsFile != null && key instanceof String) {
+                s = loadTableStats((String) key);
+            }
+            return s;
+        }
+
+        /**
+         * @return the statistics of a table, if they were looked up already
+         */
+        TableStats getLoaded(String tablename) {
+            return super.get(tablename);
+        }
+    }
+
     public static TableStats getTableStats(String tablename) {
         return statsMap.get(tablename);
     }
 
+    /**
+     * Declare a group of correlated columns of a table in the catalog, whose
+     * statistics are kept together. If the table has statistics already, they
+     * are computed again.
+     *
+     * @param tablename  the name of the table
+     * @param fieldNames the names of at least two columns of the table
+     * @throws NoSuchElementException if there is no such table or column
+     */
+    public static void addColumnGroup(String tablename, String... fieldNames) throws NoSuchElementException {
+        if (fieldNames.length < 2) {
+            throw new IllegalArgumentException("a column group needs at least two columns");
+        }
+        int tableid = Database.getCatalog().getTableId(tablename);
+        TupleDesc td = Database.getCatalog().getTupleDesc(tableid);
+        int[] fields = new int[fieldNames.length];
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = td.indexForFieldName(fieldNames[i]);
+        }
+        Database.getCatalog().addColumnGroup(tableid, fields);
+        TableStats old = statsMap.getLoaded(tablename);
+        if (old != null) {
+            long[] seen = old.changes();
+            replaceTableStats(tablename, old, new TableStats(old.tableId, old.ioCostPerPage, sampleRate), seen);
+        }
+    }
+
+    /**
+     * @return the column groups declared for a table
+     */
+    private static List<int[]> columnGroups(int tableid) {
+        return Database.getCatalog().getColumnGroups(tableid);
+    }
+
     public static void setTableStats(String tablename, TableStats stats) {
         statsMap.put(tablename, stats);
+        statsById.put(stats.tableId, stats);
+    }
+
+    /**
+     * Replace the statistics of a table unless they were replaced already
+     *
+     * @return true if the statistics were replaced
+     */
+    static boolean replaceTableStats(String tablename, TableStats old, TableStats stats) {
+        if (!statsMap.replace(tablename, old, stats)) {
+            return false;
+        }
+        statsById.replace(stats.tableId, old, stats);
+        return true;
+    }
+
+    /**
+     * Replace the statistics of a table with statistics that were computed
+     * after the old ones had recorded the specified changes. The changes the
+     * old statistics recorded since then may be missing from the new ones,
+     * so they are carried over.
+     *
+     * @param seen the tuples inserted into and deleted from the table, as
+     *             recorded by old before the new statistics were computed
+     * @return true if the statistics were replaced
+     */
+    static boolean replaceTableStats(String tablename, TableStats old, TableStats stats, long[] seen) {
+        synchronized (old) {
+            stats.inserted.addAndGet(old.inserted.get() - seen[0]);
+            stats.deleted.addAndGet(old.deleted.get() - seen[1]);
+            stats.writers.addAll(old.writers);
+            return replaceTableStats(tablename, old, stats);
+        }
+    }
+
+    /**
+     * Update the statistics of a table, if it has any, with a tuple that a
+     * transaction inserted into it
+     *
+     * @see #insertTuple
+     */
+    public static void tupleInserted(TransactionId tid, int tableId, Tuple t) {
+        TableStats s = statsById.get(tableId);
+        if (s != null) {
+            s.addWriter(tid);
+            s.insertTuple(t);
+        }
+    }
+
+    /**
+     * Update the statistics of a table, if it has any, with a tuple that a
+     * transaction deleted from it
+     *
+     * @see #deleteTuple
+     */
+    public static void tupleDeleted(TransactionId tid, int tableId, Tuple t) {
+        TableStats s = statsById.get(tableId);
+        if (s != null) {
+            s.addWriter(tid);
+            s.deleteTuple(t);
+        }
+    }
+
+    /**
+     * Note that a transaction has committed or aborted. The statistics of the
+     * tables it changed may be rebuilt once no other transaction is changing
+     * them, since a rebuild only reads committed tuples.
+     */
+    public static void transactionComplete(TransactionId tid) {
+        for (TableStats s : statsById.values()) {
+            s.removeWriter(tid);
+        }
     }
 
     public static void setStatsMap(Map<String, TableStats> s) {
@@ -47,25 +228,387 @@ public class TableStats {
         return statsMap;
     }
 
+    /**
+     * Read the statistics of a table from the statistics file, or compute
+     * them if the file has none or the table has changed since
+     *
+     * @return the statistics, or null if there is no such table
+     */
+    private static TableStats loadTableStats(String tablename) {
+        int tableid;
+        try {
+            tableid = Database.getCatalog().getTableId(tablename);
+        } catch (NoSuchElementException e) {
+            return null;
+        }
+        statsFile.declareColumnGroups(tablename, tableid);
+        TableStats s = statsFile.read(tablename, tableid);
+        if (s == null) {
+            s = new TableStats(tableid, IOCOSTPERPAGE, sampleRate);
+        }
+        TableStats old = statsMap.putIfAbsent(tablename, s);
+        if (old != null) {
+            return old;
+        }
+        statsById.put(tableid, s);
+        return s;
+    }
+
+    /**
+     * Use a statistics file for the statistics of the tables in the catalog:
+     * the statistics of a table are read from it when they are first needed,
+     * so that a large catalog starts without reading any table. The column
+     * groups saved in the file are declared for the tables of the catalog
+     * that have none. A missing file, or one of another format, has no
+     * statistics.
+     */
+    public static void loadStatistics(File file) {
+        StatsFile f = new StatsFile(file);
+        if (file.exists()) {
+            try {
+                f.readIndex();
+            } catch (IOException e) {
+                System.out.println("Ignoring table stats file " + file + ": " + e.getMessage());
+                f = new StatsFile(file);
+            }
+        }
+        Iterator<Integer> tableIt = Database.getCatalog().tableIdIterator();
+        while (tableIt.hasNext()) {
+            int tableid = tableIt.next();
+            f.declareColumnGroups(Database.getCatalog().getTableName(tableid), tableid);
+        }
+        statsFile = f;
+    }
+
+    /**
+     * Save the statistics of the tables in the catalog to a statistics file,
+     * along with the size and modification time of the file of each table
+     * and the column groups declared for the tables in the catalog.
+     * Statistics that were not looked up since {@link #loadStatistics} are
+     * copied from the statistics file if they are still current. Tables
+     * without statistics are left out.
+     */
+    public static void saveStatistics(File file) throws IOException {
+        StatsFile old = statsFile;
+        ByteArrayOutputStream index = new ByteArrayOutputStream();
+        DataOutputStream indexOut = new DataOutputStream(index);
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        DataOutputStream recordsOut = new DataOutputStream(records);
+        List<String> names = new ArrayList<>();
+        List<long[]> versions = new ArrayList<>();
+        List<byte[]> saved = new ArrayList<>();
+        Map<String, List<int[]>> groups = new HashMap<>();
+        Iterator<Integer> tableIt = Database.getCatalog().tableIdIterator();
+        while (tableIt.hasNext()) {
+            int tableid = tableIt.next();
+            String name = Database.getCatalog().getTableName(tableid);
+            if (!columnGroups(tableid).isEmpty()) {
+                groups.put(name, columnGroups(tableid));
+            }
+            long[] version = fileVersion(tableid);
+            if (version == null) {
+                continue;
+            }
+            TableStats s = statsMap.getLoaded(name);
+            byte[] record = null;
+            if (s != null) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                s.write(new DataOutputStream(bytes));
+                record = bytes.toByteArray();
+            } else if (old != null) {
+                record = old.readRecord(name, version);
+            }
+            if (record != null) {
+                names.add(name);
+                versions.add(version);
+                saved.add(record);
+            }
+        }
+
+        indexOut.writeInt(names.size());
+        for (int i = 0; i < names.size(); i++) {
+            indexOut.writeUTF(names.get(i));
+            indexOut.writeLong(versions.get(i)[0]);
+            indexOut.writeLong(versions.get(i)[1]);
+            indexOut.writeLong(records.size());
+            indexOut.writeInt(saved.get(i).length);
+            recordsOut.write(saved.get(i));
+        }
+        indexOut.writeInt(groups.size());
+        for (Map.Entry<String, List<int[]>> entry : groups.entrySet()) {
+            indexOut.writeUTF(entry.getKey());
+            indexOut.writeInt(entry.getValue().size());
+            for (int[] fields : entry.getValue()) {
+                indexOut.writeInt(fields.length);
+                for (int field : fields) {
+                    indexOut.writeInt(field);
+                }
+            }
+        }
+
+        // write a new file and move it over the old one, which may still be
+        // read from meanwhile
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(STATS_FILE_MAGIC);
+            out.writeInt(STATS_FILE_VERSION);
+            out.writeInt(index.size());
+            index.writeTo(out);
+            records.writeTo(out);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        if (old != null && old.file.equals(file)) {
+            loadStatistics(file);
+        }
+    }
+
+    /**
+     * @return the size and modification time of the file of a table, or null
+     *         if it has no file on disk
+     */
+    private static long[] fileVersion(int tableid) {
+        DbFile f = Database.getCatalog().getDatabaseFile(tableid);
+        File disk = null;
+        if (f instanceof HeapFile) {
+            disk = ((HeapFile) f).getFile();
+        } else if (f instanceof BTreeFile) {
+            disk = ((BTreeFile) f).getFile();
+        }
+        if (disk == null || !disk.exists()) {
+            return null;
+        }
+        return new long[]{disk.length(), disk.lastModified()};
+    }
+
+    /**
+     * A statistics file: a header, an index of the tables it has statistics
+     * of and of the column groups of the tables, and a record with the
+     * statistics of each table. Records are read when they are needed.
+     */
+    private static class StatsFile {
+        final File file;
+        // the records by table name: size and modification time of the file
+        // of the table, offset from the first record, and length
+        final Map<String, long[]> index = new HashMap<>();
+        // the column groups of the tables by name
+        final Map<String, List<int[]>> groups = new HashMap<>();
+        long recordsStart;
+
+        StatsFile(File file) {
+            this.file = file;
+        }
+
+        void readIndex() throws IOException {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                if (raf.length() < 3 * Integer.BYTES || raf.readInt() != STATS_FILE_MAGIC) {
+                    throw new IOException("not a table stats file");
+                }
+                if (raf.readInt() != STATS_FILE_VERSION) {
+                    throw new IOException("unsupported format version");
+                }
+                byte[] bytes = new byte[raf.readInt()];
+                raf.readFully(bytes);
+                recordsStart = raf.getFilePointer();
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+                int tables = in.readInt();
+                for (int i = 0; i < tables; i++) {
+                    String name = in.readUTF();
+                    index.put(name, new long[]{in.readLong(), in.readLong(), in.readLong(), in.readInt()});
+                }
+                int grouped = in.readInt();
+                for (int i = 0; i < grouped; i++) {
+                    String name = in.readUTF();
+                    List<int[]> tableGroups = new ArrayList<>();
+                    for (int g = in.readInt(); g > 0; g--) {
+                        int[] fields = new int[in.readInt()];
+                        for (int f = 0; f < fields.length; f++) {
+                            fields[f] = in.readInt();
+                        }
+                        tableGroups.add(fields);
+                    }
+                    groups.put(name, tableGroups);
+                }
+            }
+        }
+
+        /**
+         * Declare the column groups saved for a table in the catalog, unless
+         * the table has column groups already. Groups of columns the table
+         * does not have are left out.
+         */
+        synchronized void declareColumnGroups(String tablename, int tableid) {
+            List<int[]> saved = groups.get(tablename);
+            if (saved == null || !columnGroups(tableid).isEmpty()) {
+                return;
+            }
+            int numFields = Database.getCatalog().getTupleDesc(tableid).numFields();
+            for (int[] fields : saved) {
+                if (Arrays.stream(fields).allMatch(f -> f < numFields)) {
+                    Database.getCatalog().addColumnGroup(tableid, fields);
+                }
+            }
+        }
+
+        /**
+         * @return the record of a table, or null if there is none or the
+         *         file of the table has changed since it was written
+         */
+        byte[] readRecord(String tablename, long[] version) {
+            long[] entry = index.get(tablename);
+            if (entry == null || version == null || entry[0] != version[0] || entry[1] != version[1]) {
+                return null;
+            }
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                byte[] record = new byte[(int) entry[3]];
+                raf.seek(recordsStart + entry[2]);
+                raf.readFully(record);
+                return record;
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        /**
+         * @return the statistics of a table, or null if they are not current
+         */
+        TableStats read(String tablename, int tableid) {
+            byte[] record = readRecord(tablename, fileVersion(tableid));
+            if (record == null) {
+                return null;
+            }
+            try {
+                TableStats s = new TableStats(tableid, IOCOSTPERPAGE,
+                        new DataInputStream(new ByteArrayInputStream(record)));
+                return s.isCurrent(Database.getCatalog().getTupleDesc(tableid)) ? s : null;
+            } catch (IOException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Compute the statistics of every table in the catalog, from a sample of
+     * {@link #getSampleRate} of its pages, on {@link #STATS_THREADS} threads.
+     */
     public static void computeStatistics() {
         Iterator<Integer> tableIt = Database.getCatalog().tableIdIterator();
+        double rate = sampleRate;
 
         System.out.println("Computing table stats.");
+        List<Callable<Void>> tasks = new ArrayList<>();
         while (tableIt.hasNext()) {
             int tableid = tableIt.next();
-            TableStats s = new TableStats(tableid, IOCOSTPERPAGE);
-            setTableStats(Database.getCatalog().getTableName(tableid), s);
+            tasks.add(() -> {
+                TableStats s = new TableStats(tableid, IOCOSTPERPAGE, rate);
+                setTableStats(Database.getCatalog().getTableName(tableid), s);
+                return null;
+            });
+        }
+        if (!tasks.isEmpty()) {
+            ExecutorService workers = Executors.newFixedThreadPool(Math.min(STATS_THREADS, tasks.size()));
+            try {
+                for (Future<Void> f : workers.invokeAll(tasks)) {
+                    f.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("interrupted while computing table stats", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException)
+                    throw (RuntimeException) e.getCause();
+                throw new RuntimeException(e.getCause());
+            } finally {
+                workers.shutdown();
+            }
         }
         System.out.println("Done.");
     }
 
+    /**
+     * Number of threads that compute the statistics of the tables
+     */
+    static final int STATS_THREADS = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Default fraction of the pages of a table that {@link #computeStatistics}
+     * reads
+     */
+    public static final double DEFAULT_SAMPLE_RATE = 0.1;
+
+    /**
+     * Tables with at most this many pages are read whole, however low the
+     * sample rate
+     */
+    static final int MIN_SAMPLE_PAGES = 128;
+
+    // the pages are sampled in the same way on every run and for every
+    // table, so that plans are repeatable
+    private static final long SAMPLE_SEED = 0x5EED;
+
+    /**
+     * Default fraction of a table that may change before its statistics are
+     * rebuilt
+     */
+    public static final double DEFAULT_REFRESH_FRACTION = 0.2;
+
+    /**
+     * Statistics are not rebuilt for fewer changes than this, however small
+     * the table
+     */
+    static final int MIN_REFRESH_CHANGES = 1000;
+
+    private static volatile double sampleRate = DEFAULT_SAMPLE_RATE;
+    private static volatile double refreshFraction = DEFAULT_REFRESH_FRACTION;
+
+    // started when statistics first need to be rebuilt
+    private static class RefresherHolder {
+        static final StatsRefresher REFRESHER = StatsRefresher.startRefresher();
+    }
+
+    public static double getRefreshFraction() {
+        return refreshFraction;
+    }
+
+    public static void setRefreshFraction(double fraction) {
+        refreshFraction = fraction;
+    }
+
+    public static double getSampleRate() {
+        return sampleRate;
+    }
+
+    public static void setSampleRate(double rate) {
+        sampleRate = rate;
+    }
+
     /**
      * Number of bins for the histogram. Feel free to increase this value over
      * 100, though our tests assume that you have at least 100 bins in your
-     * histograms.
+     * histograms. The most common values of a field take one bin each.
      */
     static final int NUM_HIST_BINS = 100;
 
+    final int tableId;
+    final int ioCostPerPage;
+    private final int tupleSize;
+    private final int numTuples;
+    private final int numPages;
+    // the number of tuples read to compute the statistics
+    private final int sampledTuples;
+    // the changes to the table since the statistics were computed
+    private final AtomicLong inserted = new AtomicLong();
+    private final AtomicLong deleted = new AtomicLong();
+    // the transactions with changes to the table that have not completed
+    private final Set<TransactionId> writers = new HashSet<>(); // protected by this
+    private volatile boolean refreshRequested = false;
+    // the histogram of every field, of the type of the field
+    private final IntHistogram[] intHistograms;
+    private final StringHistogram[] stringHistograms;
+    // the distinct values of every field, in the tuples read
+    private final HyperLogLog[] sketches;
+    // the statistics of the column groups of the table
+    private final ColumnGroupStats[] groups;
+
     /**
      * Create a new TableStats object, that keeps track of statistics on each
      * column of a table
@@ -75,6 +618,22 @@ public class TableStats {
      *                      sequential-scan IO and disk seeks.
      */
     public TableStats(int tableid, int ioCostPerPage) {
+        this(tableid, ioCostPerPage, 1.0);
+    }
+
+    /**
+     * Create a new TableStats object from a sample of the pages of a table.
+     * The pages are drawn at random (with a fixed seed, so that the
+     * statistics are repeatable) and read in file order; the tuple count and
+     * the number of distinct values are scaled up from the sample. Files
+     * other than heap files are read whole.
+     *
+     * @param tableid       The table over which to compute statistics
+     * @param ioCostPerPage The cost per page of IO
+     * @param sampleRate    The fraction of the pages to read; at least
+     *                      {@link #MIN_SAMPLE_PAGES} are read
+     */
+    public TableStats(int tableid, int ioCostPerPage, double sampleRate) {
         // For this function, you'll have to get the
         // DbFile for the table in question,
         // then scan through its tuples and calculate
@@ -82,7 +641,190 @@ public class TableStats {
         // You should try to do this reasonably efficiently, but you don't
         // necessarily have to (for example) do everything
         // in a single scan of the table.
-        // TODO: some code goes here
+        this.tableId = tableid;
+        this.ioCostPerPage = ioCostPerPage;
+        DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+        TupleDesc td = file.getTupleDesc();
+        this.tupleSize = td.getSize();
+        intHistograms = new IntHistogram[td.numFields()];
+        stringHistograms = new StringHistogram[td.numFields()];
+        sketches = new HyperLogLog[td.numFields()];
+        for (int i = 0; i < td.numFields(); i++) {
+            if (td.getFieldType(i) == Type.INT_TYPE) {
+                // the histograms find the range of the values themselves, so
+                // a single scan builds them
+                intHistograms[i] = new IntHistogram(NUM_HIST_BINS, Integer.MIN_VALUE, Integer.MAX_VALUE);
+            } else {
+                stringHistograms[i] = new StringHistogram(NUM_HIST_BINS);
+            }
+            sketches[i] = new HyperLogLog();
+        }
+        List<int[]> declared = columnGroups(tableid);
+        groups = new ColumnGroupStats[declared.size()];
+        for (int g = 0; g < groups.length; g++) {
+            int[] fields = declared.get(g);
+            Type[] types = new Type[fields.length];
+            for (int i = 0; i < fields.length; i++) {
+                types[i] = td.getFieldType(fields[i]);
+            }
+            groups[g] = new ColumnGroupStats(fields, types, groupSeed(tableid, g));
+        }
+        int pages = -1;
+        if (file instanceof HeapFile) {
+            pages = ((HeapFile) file).numPages();
+        } else if (file instanceof BTreeFile) {
+            pages = ((BTreeFile) file).numPages();
+        }
+
+        int tuples = 0;
+        int sampledPages = pages;
+        // a snapshot of the committed tuples, read without locks, so that
+        // computing statistics never blocks or aborts a query
+        Transaction t = new Transaction(true);
+        t.start();
+        try {
+            if (file instanceof HeapFile) {
+                sampledPages = Math.min(pages, Math.max(MIN_SAMPLE_PAGES, (int) Math.ceil(sampleRate * pages)));
+                Random random = new Random(SAMPLE_SEED);
+                // selection sampling: page i is read with probability
+                // (pages still needed) / (pages left)
+                for (int pgNo = 0, needed = sampledPages; pgNo < pages && needed > 0; pgNo++) {
+                    if (random.nextInt(pages - pgNo) < needed) {
+                        HeapPage page = (HeapPage) Database.getBufferPool().getPage(t.getId(),
+                                new HeapPageId(tableid, pgNo), Permissions.READ_ONLY);
+                        Iterator<Tuple> it = page.iterator();
+                        while (it.hasNext()) {
+                            addTuple(it.next());
+                            tuples++;
+                        }
+                        needed--;
+                    }
+                }
+            } else {
+                SeqScan scan = new SeqScan(t.getId(), tableid);
+                scan.open();
+                while (scan.hasNext()) {
+                    addTuple(scan.next());
+                    tuples++;
+                }
+                scan.close();
+            }
+            t.commit();
+        } catch (DbException | TransactionAbortedException | IOException e) {
+            throw new RuntimeException("cannot compute the statistics of table " + tableid, e);
+        }
+        this.sampledTuples = tuples;
+        if (sampledPages < pages) {
+            this.numTuples = (int) Math.round((double) tuples * pages / sampledPages);
+        } else {
+            this.numTuples = tuples;
+        }
+        if (pages < 0) {
+            pages = (int) Math.ceil((double) tuples * td.getSize() / BufferPool.getPageSize());
+        }
+        this.numPages = pages;
+    }
+
+    /**
+     * Read statistics that were written with {@link #write}
+     */
+    private TableStats(int tableid, int ioCostPerPage, DataInput in) throws IOException {
+        this.tableId = tableid;
+        this.ioCostPerPage = ioCostPerPage;
+        this.tupleSize = in.readInt();
+        this.numTuples = in.readInt();
+        this.numPages = in.readInt();
+        this.sampledTuples = in.readInt();
+        int fields = in.readInt();
+        intHistograms = new IntHistogram[fields];
+        stringHistograms = new StringHistogram[fields];
+        sketches = new HyperLogLog[fields];
+        for (int i = 0; i < fields; i++) {
+            if (in.readBoolean()) {
+                intHistograms[i] = IntHistogram.read(in);
+            } else {
+                stringHistograms[i] = StringHistogram.read(in);
+            }
+            sketches[i] = HyperLogLog.read(in);
+        }
+        groups = new ColumnGroupStats[in.readInt()];
+        for (int g = 0; g < groups.length; g++) {
+            groups[g] = ColumnGroupStats.read(in, groupSeed(tableid, g));
+        }
+    }
+
+    /**
+     * @return the seed of the sample of column group g of a table
+     */
+    private static long groupSeed(int tableid, int g) {
+        return tableid * 31L + g;
+    }
+
+    /**
+     * Write the statistics, with the changes to the table so far, to out
+     */
+    synchronized void write(DataOutput out) throws IOException {
+        out.writeInt(tupleSize);
+        out.writeInt(totalTuples());
+        out.writeInt((int) numPages());
+        out.writeInt((int) Math.min(Integer.MAX_VALUE, sampledTuples + inserted.get()));
+        out.writeInt(intHistograms.length);
+        for (int i = 0; i < intHistograms.length; i++) {
+            out.writeBoolean(intHistograms[i] != null);
+            if (intHistograms[i] != null) {
+                intHistograms[i].write(out);
+            } else {
+                stringHistograms[i].write(out);
+            }
+            sketches[i].write(out);
+        }
+        out.writeInt(groups.length);
+        for (ColumnGroupStats g : groups) {
+            g.write(out);
+        }
+    }
+
+    /**
+     * @return true if the statistics have a histogram of the right type for
+     *         every field of td, and statistics of the column groups that are
+     *         declared for the table
+     */
+    private boolean isCurrent(TupleDesc td) {
+        List<int[]> declared = columnGroups(tableId);
+        if (declared.size() != groups.length) {
+            return false;
+        }
+        for (int g = 0; g < groups.length; g++) {
+            if (!Arrays.equals(declared.get(g), groups[g].getFields())) {
+                return false;
+            }
+        }
+        if (td.numFields() != intHistograms.length || td.getSize() != tupleSize) {
+            return false;
+        }
+        for (int i = 0; i < intHistograms.length; i++) {
+            if ((td.getFieldType(i) == Type.INT_TYPE) != (intHistograms[i] != null)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void addTuple(Tuple tuple) {
+        for (int i = 0; i < intHistograms.length; i++) {
+            if (intHistograms[i] != null) {
+                int v = ((IntField) tuple.getField(i)).getValue();
+                intHistograms[i].addValue(v);
+                sketches[i].addInt(v);
+            } else {
+                String v = ((StringField) tuple.getField(i)).getValue();
+                stringHistograms[i].addValue(v);
+                sketches[i].addString(v);
+            }
+        }
+        for (ColumnGroupStats g : groups) {
+            g.addTuple(tuple);
+        }
     }
 
     /**
@@ -98,8 +840,17 @@ public class TableStats {
      * @return The estimated cost of scanning the table.
      */
     public double estimateScanCost() {
-        // TODO: some code goes here
-        return 0;
+        return (double) numPages() * ioCostPerPage;
+    }
+
+    /**
+     * @return the number of pages of the table
+     */
+    private long numPages() {
+        long added = inserted.get() - deleted.get();
+        // inserted tuples fill new pages; deleted ones leave their pages
+        return numPages + (added > 0 ? (added * tupleSize + BufferPool.getPageSize() - 1)
+                / BufferPool.getPageSize() : 0);
     }
 
     /**
@@ -111,8 +862,7 @@ public class TableStats {
      *         selectivityFactor
      */
     public int estimateTableCardinality(double selectivityFactor) {
-        // TODO: some code goes here
-        return 0;
+        return (int) (totalTuples() * selectivityFactor);
     }
 
     /**
@@ -125,8 +875,23 @@ public class TableStats {
      *              expected selectivity. You may estimate this value from the histograms.
      */
     public double avgSelectivity(int field, Predicate.Op op) {
-        // TODO: some code goes here
-        return 1.0;
+        // TODO: some code goes here (OK)
+        double equal = intHistograms[field] != null
+                ? intHistograms[field].avgSelectivity()
+                : stringHistograms[field].avgSelectivity();
+        switch (op) {
+            case EQUALS:
+            case LIKE:
+                return equal;
+            case NOT_EQUALS:
+                return 1 - equal;
+            case LESS_THAN:
+            case GREATER_THAN:
+                // half of the unequal values are on either side
+                return (1 - equal) / 2;
+            default:
+                return (1 + equal) / 2;
+        }
     }
 
     /**
@@ -140,16 +905,213 @@ public class TableStats {
      *         predicate
      */
     public double estimateSelectivity(int field, Predicate.Op op, Field constant) {
-        // TODO: some code goes here
-        return 1.0;
+        // TODO: some code goes here (OK)
+        if (intHistograms[field] != null) {
+            return intHistograms[field].estimateSelectivity(op, ((IntField) constant).getValue());
+        }
+        return stringHistograms[field].estimateSelectivity(op, ((StringField) constant).getValue());
+    }
+
+    /**
+     * Estimate the selectivity of a conjunction of predicates on the table.
+     * The predicates over the columns of a column group are estimated
+     * together from the statistics of the group, if they hit at least two of
+     * its columns; the others are assumed to be independent.
+     *
+     * @param preds the predicates, over the fields of the table
+     * @return The estimated selectivity (fraction of tuples that satisfy) the
+     *         conjunction of preds
+     */
+    public double estimateSelectivity(List<Predicate> preds) {
+        double selectivity = 1.0;
+        List<Predicate> rest = new ArrayList<>(preds);
+        for (ColumnGroupStats g : groups) {
+            Set<Integer> hitFields = new HashSet<>();
+            for (Predicate p : rest) {
+                if (g.hasField(p.getField())) {
+                    hitFields.add(p.getField());
+                }
+            }
+            if (hitFields.size() < 2) {
+                continue;
+            }
+            List<Predicate> covered = new ArrayList<>();
+            double independent = 1.0;
+            for (Iterator<Predicate> it = rest.iterator(); it.hasNext(); ) {
+                Predicate p = it.next();
+                if (g.hasField(p.getField())) {
+                    covered.add(p);
+                    independent *= estimateSelectivity(p.getField(), p.getOp(), p.getOperand());
+                    it.remove();
+                }
+            }
+            long distinct = scaleDistinct(g.numDistinct(), sampledTuples + inserted.get(), totalTuples());
+            selectivity *= g.estimateSelectivity(covered, independent, distinct);
+        }
+        for (Predicate p : rest) {
+            selectivity *= estimateSelectivity(p.getField(), p.getOp(), p.getOperand());
+        }
+        return selectivity;
     }
 
     /**
      * return the total number of tuples in this table
      */
     public int totalTuples() {
-        // TODO: some code goes here
-        return 0;
+        return (int) Math.max(0, numTuples + inserted.get() - deleted.get());
+    }
+
+    /**
+     * Update the statistics with a tuple that was inserted into the table:
+     * the tuple count, the histograms and the distinct value sketches. Once
+     * {@link #getRefreshFraction} of the table has changed, and the
+     * transactions that changed it have completed, the statistics are
+     * rebuilt in the background.
+     */
+    public synchronized void insertTuple(Tuple tuple) {
+        for (int i = 0; i < intHistograms.length; i++) {
+            if (intHistograms[i] != null) {
+                int v = ((IntField) tuple.getField(i)).getValue();
+                intHistograms[i].insertValue(v);
+                sketches[i].addInt(v);
+            } else {
+                String v = ((StringField) tuple.getField(i)).getValue();
+                stringHistograms[i].insertValue(v);
+                sketches[i].addString(v);
+            }
+        }
+        for (ColumnGroupStats g : groups) {
+            g.addTuple(tuple);
+        }
+        inserted.incrementAndGet();
+        checkRefresh();
+    }
+
+    /**
+     * Update the statistics with a tuple that was deleted from the table. The
+     * samples of the column groups keep the tuple until the statistics are
+     * rebuilt.
+     *
+     * @see #insertTuple
+     */
+    public synchronized void deleteTuple(Tuple tuple) {
+        for (int i = 0; i < intHistograms.length; i++) {
+            if (intHistograms[i] != null) {
+                intHistograms[i].deleteValue(((IntField) tuple.getField(i)).getValue());
+            } else {
+                stringHistograms[i].deleteValue(((StringField) tuple.getField(i)).getValue());
+            }
+        }
+        deleted.incrementAndGet();
+        checkRefresh();
+    }
+
+    /**
+     * @return the number of changes to the table since the statistics were
+     *         computed, as a fraction of its tuples then
+     */
+    public double changedFraction() {
+        return (double) (inserted.get() + deleted.get()) / Math.max(1, numTuples);
+    }
+
+    /**
+     * Let a later change request a rebuild again
+     */
+    void refreshFailed() {
+        refreshRequested = false;
+    }
+
+    private synchronized void addWriter(TransactionId tid) {
+        writers.add(tid);
+    }
+
+    private synchronized void removeWriter(TransactionId tid) {
+        if (writers.remove(tid)) {
+            checkRefresh();
+        }
+    }
+
+    /**
+     * Called by the refresher before it reads the table. If transactions that
+     * changed the table have not completed, the last of them requests the
+     * rebuild again.
+     *
+     * @return the changes recorded so far (see {@link #changes}), or null if
+     *         the table must not be read yet
+     */
+    synchronized long[] startRefresh() {
+        if (!writers.isEmpty()) {
+            refreshRequested = false;
+            return null;
+        }
+        return changes();
+    }
+
+    /**
+     * @return the number of tuples inserted into and deleted from the table
+     *         since the statistics were computed
+     */
+    synchronized long[] changes() {
+        return new long[]{inserted.get(), deleted.get()};
+    }
+
+    /**
+     * Request a rebuild once enough of the table has changed. A rebuild would
+     * miss the changes of transactions that have not completed, so it waits
+     * for the last of them.
+     */
+    private synchronized void checkRefresh() {
+        long changes = inserted.get() + deleted.get();
+        if (!refreshRequested && writers.isEmpty() && changes >= MIN_REFRESH_CHANGES
+                && changedFraction() >= refreshFraction) {
+            String name = Database.getCatalog().getTableName(tableId);
+            if (name != null) {
+                refreshRequested = true;
+                RefresherHolder.REFRESHER.request(name);
+            }
+        }
+    }
+
+    /**
+     * Estimate the number of distinct values of a field in the table
+     *
+     * @param field the index of the field
+     */
+    public long numDistinct(int field) {
+        return scaleDistinct(sketches[field].estimate(), sampledTuples + inserted.get(), totalTuples());
+    }
+
+    /**
+     * Scale the number of distinct values in a sample of a table up to the
+     * table, assuming that all values are equally common. A sample of a
+     * fraction q of the tuples misses a value that occurs N / D times with
+     * probability (1 - q)^(N / D), so the number of distinct values D of the
+     * N tuples is the solution of D * (1 - (1 - q)^(N / D)) = d.
+     *
+     * @param d            the number of distinct values in the sample
+     * @param sampleTuples the number of tuples in the sample
+     * @param tuples       the number of tuples in the table
+     */
+    static long scaleDistinct(long d, long sampleTuples, long tuples) {
+        if (sampleTuples >= tuples || d <= 0) {
+            return Math.min(d, Math.max(tuples, 0));
+        }
+        if (d >= sampleTuples) {
+            // every sampled value was unique
+            return tuples;
+        }
+        double q = (double) sampleTuples / tuples;
+        double low = d;
+        double high = tuples;
+        for (int i = 0; i < 64 && high - low > 0.5; i++) {
+            double mid = (low + high) / 2;
+            if (mid * (1 - Math.pow(1 - q, tuples / mid)) < d) {
+                low = mid;
+            } else {
+                high = mid;
+            }
+        }
+        return Math.round((low + high) / 2);
     }
 
 }
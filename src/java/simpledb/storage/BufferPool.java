@@ -4,6 +4,7 @@ import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.DeadlockException;
 import simpledb.common.Permissions;
+import simpledb.optimizer.TableStats;
 import simpledb.transaction.LockManager;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
@@ -20,7 +21,9 @@ import java.util.concurrent.ConcurrentMap;
  * <p>
  * The BufferPool is also responsible for locking; when a transaction fetches a
  * page, BufferPool checks that the transaction has the appropriate locks to
- * read/write the page.
+ * read/write the page. Read-only transactions that started a snapshot (see
+ * {@link #beginSnapshot}) read committed page versions instead and take no
+ * locks.
  *
  * @Threadsafe, all fields are final
  */
@@ -39,12 +42,38 @@ public class BufferPool {
      */
     public static final int DEFAULT_PAGES = 50;
 
+    /**
+     * Share of the frames that the background cleaner tries to keep clean (or
+     * free), so that eviction never has to write a page itself.
+     */
+    static final double CLEAN_FRAME_FRACTION = 0.25;
+
+    /**
+     * Longest time (ms) an eviction waits for the cleaner before giving up.
+     */
+    static final long EVICTION_WAIT_MS = 200;
+
+    /**
+     * Orders pages by table and then by page number, i.e. in file order.
+     */
+    static final Comparator<PageId> PAGE_ORDER =
+            Comparator.comparingInt(PageId::getTableId).thenComparingInt(PageId::getPageNumber);
+
     private int numPages;
 
+    private int cleanFrameTarget;
+
     private Map<PageId, Page> pageMap;
 
     private LockManager lockManager;
 
+    private PageCleaner cleaner;
+
+    private final VersionStore versions = new VersionStore();
+
+    // transactions some of whose uncommitted pages were written to disk
+    private final Set<TransactionId> stolen = ConcurrentHashMap.newKeySet();
+
     /**
      * Creates a BufferPool that caches up to numPages pages.
      *
@@ -53,8 +82,11 @@ public class BufferPool {
     public BufferPool(int numPages) {
         // TODO: some code goes here (OK)
         this.numPages = numPages;
-        pageMap = new HashMap<>(this.numPages);
+        cleanFrameTarget = Math.max(1, (int) Math.ceil(numPages * CLEAN_FRAME_FRACTION));
+        pageMap = new ConcurrentHashMap<>(this.numPages);
         lockManager = new LockManager();
+        cleaner = new PageCleaner(this);
+        cleaner.start();
     }
 
     public static int getPageSize() {
@@ -87,6 +119,18 @@ public class BufferPool {
     public Page getPage(TransactionId tid, PageId pid, Permissions perm)
             throws TransactionAbortedException, DbException {
         // TODO: some code goes here (OK)
+        Long snapshotTs = versions.getSnapshotTs(tid);
+        if (snapshotTs != null) {
+            if (perm == Permissions.READ_WRITE) {
+                throw new DbException("read-only transaction " + tid.getId() + " cannot write");
+            }
+            Page page = getSnapshotPage(pid, snapshotTs);
+            if (page != null) {
+                return page;
+            }
+            // pages without versions (e.g. B+ tree pages) are read under locks
+        }
+
         acquireLock(tid, pid, perm);
 
         Page page = pageMap.get(pid);
@@ -99,10 +143,53 @@ public class BufferPool {
                 return null;
 
             pageMap.put(pid, page);
+            if (pageMap.size() + cleanFrameTarget > numPages) {
+                cleaner.wakeUp();
+            }
         }
         return page;
     }
 
+    /**
+     * Start a snapshot for the read-only transaction tid. Until tid completes,
+     * getPage(tid, pid, READ_ONLY) returns a private copy of the page as it
+     * was committed when the snapshot started, without taking any locks, and
+     * writers never wait for tid.
+     *
+     * @param tid the read-only transaction
+     */
+    public void beginSnapshot(TransactionId tid) {
+        versions.beginSnapshot(tid);
+    }
+
+    /**
+     * Returns a private copy of the heap page pid as seen by a snapshot taken
+     * at snapshotTs, or null if pid is not a heap page.
+     */
+    private Page getSnapshotPage(PageId pid, long snapshotTs) throws DbException {
+        if (!(pid instanceof HeapPageId)) {
+            return null;
+        }
+        // under the version lock, so that the page cannot be committed or
+        // evicted between the lookups
+        synchronized (versions) {
+            byte[] data = versions.getImage(pid, snapshotTs);
+            if (data == null) {
+                // nobody committed the page since the snapshot started
+                Page page = pageMap.get(pid);
+                if (page == null) {
+                    return Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+                }
+                return page.getBeforeImage();
+            }
+            try {
+                return new HeapPage((HeapPageId) pid, data);
+            } catch (IOException e) {
+                throw new DbException("cannot read version of page " + pid.getPageNumber());
+            }
+        }
+    }
+
     /**
      * Releases the lock on a page. Calling this is very risky, and may result in
      * wrong behavior. Think hard about who needs to call this and why, and why they
@@ -150,6 +237,13 @@ public class BufferPool {
         // TODO: some code goes here (OK)
         // not necessary for lab1|lab2
 
+        if (versions.getSnapshotTs(tid) != null) {
+            // read-only snapshot: nothing to flush or restore
+            versions.endSnapshot(tid);
+            lockManager.releaseLock(tid);
+            return;
+        }
+
         if (commit) {
             // commit
             try {
@@ -157,21 +251,47 @@ public class BufferPool {
                 flushPages(tid);
             } catch (IOException ex) {
             }
+
+            // the committed content becomes the before image of later updates,
+            // and the old one a version for running snapshots
+            Set<PageId> pids = lockManager.getPageIdsFromTransactionId(tid);
+            Map<PageId, Page> pages = new HashMap<>();
+            if (pids != null) {
+                for (PageId pid : pids) {
+                    pages.put(pid, pageMap.get(pid));
+                }
+            }
+            versions.commit(pages);
         } else {
             // abort
             // restore the page in buffer pool to its on-disk state
-            Set<PageId> pids = lockManager.getPageIdsFromTransactionId(tid);
+            synchronized (this) {
+                LogFile log = Database.getLogFile();
+                if (stolen.contains(tid) && log.isLogged(tid)) {
+                    // the cleaner wrote some pages of tid, so the disk holds
+                    // uncommitted data: put the before images from the log back
+                    try {
+                        log.rollback(tid);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
 
-            if (pids != null) {
-                for (PageId pid : pids) {
-                    DbFile dbFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
-                    pageMap.put(pid, dbFile.readPage(pid));
+                Set<PageId> pids = lockManager.getPageIdsFromTransactionId(tid);
+                if (pids != null) {
+                    for (PageId pid : pids) {
+                        DbFile dbFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
+                        pageMap.put(pid, dbFile.readPage(pid));
+                    }
+                    versions.abort(pids);
                 }
             }
         }
+        stolen.remove(tid);
 
         // release lock
         lockManager.releaseLock(tid);
+        TableStats.transactionComplete(tid);
     }
 
     /**
@@ -183,7 +303,8 @@ public class BufferPool {
      * Marks any pages that were dirtied by the operation as dirty by calling their
      * markDirty bit, and adds versions of any pages that have been dirtied to the
      * cache (replacing any existing versions of those pages) so that future
-     * requests see up-to-date pages.
+     * requests see up-to-date pages. The statistics of the table, if any, are
+     * updated with the tuple.
      *
      * @param tid     the transaction adding the tuple
      * @param tableId the table to add the tuple to
@@ -204,6 +325,7 @@ public class BufferPool {
             page.markDirty(true, tid);
             pageMap.put(page.getId(), page);
         }
+        TableStats.tupleInserted(tid, tableId, t);
     }
 
     /**
@@ -214,7 +336,8 @@ public class BufferPool {
      * Marks any pages that were dirtied by the operation as dirty by calling their
      * markDirty bit, and adds versions of any pages that have been dirtied to the
      * cache (replacing any existing versions of those pages) so that future
-     * requests see up-to-date pages.
+     * requests see up-to-date pages. The statistics of the table, if any, are
+     * updated with the tuple.
      *
      * @param tid the transaction deleting the tuple.
      * @param t   the tuple to delete
@@ -233,6 +356,7 @@ public class BufferPool {
             page.markDirty(true, tid);
             pageMap.put(page.getId(), page);
         }
+        TableStats.tupleDeleted(tid, tableId, t);
     }
 
     /**
@@ -242,9 +366,7 @@ public class BufferPool {
     public synchronized void flushAllPages() throws IOException {
         // TODO: some code goes here (OK)
         // not necessary for lab1
-        for (PageId pid : pageMap.keySet()) {
-            flushPage(pid);
-        }
+        writeDirtyPages(new ArrayList<>(pageMap.values()));
     }
 
     /**
@@ -275,16 +397,7 @@ public class BufferPool {
         if (page == null)
             return;
 
-        TransactionId tid = page.isDirty();
-        if (tid != null) {
-            HeapFile file = (HeapFile) Database.getCatalog().getDatabaseFile(page.getId().getTableId());
-            if (file == null) {
-                return;
-            }
-
-            file.writePage(page);
-            page.markDirty(false, tid);
-        }
+        writeDirtyPages(Collections.singletonList(page));
     }
 
     /**
@@ -295,29 +408,143 @@ public class BufferPool {
         // not necessary for lab1|lab2
 
         Set<PageId> pids = lockManager.getPageIdsFromTransactionId(tid);
+        if (pids == null) {
+            return;
+        }
+        List<Page> pages = new ArrayList<>(pids.size());
         for (PageId pid : pids) {
-            flushPage(pid);
+            Page page = pageMap.get(pid);
+            if (page != null) {
+                pages.add(page);
+            }
+        }
+        writeDirtyPages(pages);
+    }
+
+    /**
+     * Writes the dirty pages among the given ones to disk and marks them clean.
+     * <p>
+     * Update records for all pages are appended to the log and forced to disk
+     * once, whatever the durability policy (write-ahead logging). The pages are then sorted by (table, page number)
+     * and handed to each file in one {@link DbFile#writePages} call, so
+     * adjacent pages are coalesced and every file is synced only once.
+     */
+    private synchronized void writeDirtyPages(List<Page> pages) throws IOException {
+        LogFile log = Database.getLogFile();
+        List<Page> dirtyPages = new ArrayList<>(pages.size());
+        Map<Page, TransactionId> dirtiers = new HashMap<>();
+        for (Page page : pages) {
+            // snapshot and clear the dirty bit under the page latch; an update
+            // that races with the write marks the page dirty again afterwards
+            synchronized (page) {
+                TransactionId dirtier = page.isDirty();
+                if (dirtier != null) {
+                    log.logWrite(dirtier, page.getBeforeImage(), page);
+                    page.markDirty(false, dirtier);
+                    dirtyPages.add(page);
+                    dirtiers.put(page, dirtier);
+                    stolen.add(dirtier);
+                }
+            }
+        }
+        if (dirtyPages.isEmpty()) {
+            return;
+        }
+        log.forceToDisk();
+
+        dirtyPages.sort((p1, p2) -> PAGE_ORDER.compare(p1.getId(), p2.getId()));
+        int start = 0;
+        while (start < dirtyPages.size()) {
+            int tableId = dirtyPages.get(start).getId().getTableId();
+            int end = start + 1;
+            while (end < dirtyPages.size() && dirtyPages.get(end).getId().getTableId() == tableId) {
+                end++;
+            }
+
+            List<Page> run = dirtyPages.subList(start, end);
+            DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+            try {
+                file.writePages(run);
+            } catch (IOException e) {
+                for (Page page : dirtyPages.subList(start, dirtyPages.size())) {
+                    page.markDirty(true, dirtiers.get(page));
+                }
+                throw e;
+            }
+            start = end;
         }
     }
 
     /**
-     * Discards a page from the buffer pool. Flushes the page to disk to ensure
-     * dirty pages are updated on disk.
-     * 
-     * No Steal -> not evict dirty page. If the transaction aborts, the dirty page
-     * should be cleaned
+     * Writes dirty pages to disk until at least cleanFrameTarget frames are
+     * clean or free. Called by the background {@link PageCleaner}.
+     * <p>
+     * Only pages dirtied by transactions with a BEGIN record in the log are
+     * written, since those can still be rolled back from the log if the
+     * transaction aborts.
+     */
+    synchronized void cleanPages() throws IOException {
+        LogFile log = Database.getLogFile();
+        int clean = numPages - pageMap.size();
+        List<Page> candidates = new ArrayList<>();
+        for (Page page : pageMap.values()) {
+            TransactionId dirtier = page.isDirty();
+            if (dirtier == null) {
+                clean++;
+            } else if (page instanceof HeapPage && log.isLogged(dirtier)) {
+                candidates.add(page);
+            }
+        }
+        if (clean >= cleanFrameTarget || candidates.isEmpty()) {
+            return;
+        }
+
+        candidates.sort((p1, p2) -> PAGE_ORDER.compare(p1.getId(), p2.getId()));
+        writeDirtyPages(candidates.subList(0, Math.min(candidates.size(), cleanFrameTarget - clean)));
+        notifyAll();
+    }
+
+    /**
+     * Discards a clean page from the buffer pool; dirty pages are never
+     * evicted here.
+     * <p>
+     * Dirty pages of logged transactions are written out (stolen) by the
+     * background cleaner, and restored from the before images in the log if
+     * their transaction aborts. So if no clean page is found we wake the
+     * cleaner up and wait for it rather than writing pages ourselves.
      */
     private synchronized void evictPage() throws DbException, IOException {
         // TODO: some code goes here (OK)
         // not necessary for lab1
 
-        for (Map.Entry<PageId, Page> entry : pageMap.entrySet()) {
-            PageId pid = entry.getKey();
-            Page p = entry.getValue();
-            if (p.isDirty() == null) {
-                flushPage(pid);
-                removePage(pid);
-                return;
+        long deadline = System.currentTimeMillis() + EVICTION_WAIT_MS;
+        while (true) {
+            boolean cleanable = false;
+            for (Map.Entry<PageId, Page> entry : pageMap.entrySet()) {
+                PageId pid = entry.getKey();
+                Page p = entry.getValue();
+                TransactionId dirtier = p.isDirty();
+                if (dirtier == null) {
+                    flushPage(pid);
+                    if (!stolen.isEmpty()) {
+                        // its before image may be needed by snapshots
+                        versions.saveEvicted(p);
+                    }
+                    removePage(pid);
+                    return;
+                }
+                cleanable |= p instanceof HeapPage && Database.getLogFile().isLogged(dirtier);
+            }
+
+            long remaining = deadline - System.currentTimeMillis();
+            if (!cleanable || remaining <= 0) {
+                break;
+            }
+            cleaner.wakeUp();
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                break;
             }
         }
 
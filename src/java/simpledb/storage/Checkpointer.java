@@ -0,0 +1,57 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+
+/**
+ * Checkpointer takes a checkpoint of a {@link LogFile} periodically (see
+ * {@link LogFile#setCheckpointInterval}), so that the log stays short,
+ * recovery only replays the updates since the last checkpoint, and under
+ * {@link DurabilityPolicy#CHECKPOINT_ONLY} at most one interval of commits
+ * can be lost.
+ * <p>
+ * The checkpointer only holds a weak reference to its log, and exits once the
+ * log has been shut down or is no longer the log of the database (e.g. after
+ * {@link Database#reset}). It is started while the log is created, so it
+ * waits for the log to become the log of the database first.
+ */
+class Checkpointer extends Thread {
+
+    private final WeakReference<LogFile> logRef;
+
+    Checkpointer(LogFile log) {
+        super("simpledb-checkpointer");
+        this.logRef = new WeakReference<>(log);
+        setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+        boolean installed = false;
+        while (true) {
+            try {
+                Thread.sleep(LogFile.getCheckpointInterval());
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            LogFile log = logRef.get();
+            if (log == null || (installed && log != Database.getLogFile())) {
+                return;
+            }
+            if (log != Database.getLogFile()) {
+                continue;
+            }
+            installed = true;
+            try {
+                if (!log.checkpointIfDue()) {
+                    return;
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
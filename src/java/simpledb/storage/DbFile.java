@@ -31,6 +31,20 @@ public interface DbFile {
      */
     void writePage(Page p) throws IOException;
 
+    /**
+     * Push several pages of this file to disk at once, e.g. when a
+     * transaction commits. Implementations may coalesce adjacent pages into
+     * fewer writes; the default simply writes them one at a time.
+     *
+     * @param pages The pages to write, sorted by page number.
+     * @throws IOException if the write fails
+     */
+    default void writePages(List<Page> pages) throws IOException {
+        for (Page p : pages) {
+            writePage(p);
+        }
+    }
+
     /**
      * Inserts the specified tuple to the file on behalf of transaction.
      * This method will acquire a lock on the affected pages of the file, and
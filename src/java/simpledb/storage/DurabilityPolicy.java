@@ -0,0 +1,53 @@
+package simpledb.storage;
+
+/**
+ * DurabilityPolicy decides when writes to data files and to the log are
+ * synced to stable storage. It is chosen per database, see
+ * {@link SyncManager#setPolicy}, or with the <tt>simpledb.durability</tt>
+ * system property.
+ */
+public enum DurabilityPolicy {
+    /**
+     * Never sync data files or commit records; commits and data writes may be
+     * lost from the OS cache on a crash. The log is still synced before any
+     * data page is written, so recovery can always undo what reached disk.
+     */
+    NONE("none"),
+
+    /**
+     * Sync every forced log write and every data file write, so a commit is
+     * durable once it has been reported.
+     */
+    COMMIT("commit"),
+
+    /**
+     * Only sync data files and commit records at checkpoints; commits since
+     * the last checkpoint may be lost. As with NONE, the log is still synced
+     * before any data page is written.
+     */
+    CHECKPOINT_ONLY("checkpoint-only");
+
+    private final String name;
+
+    DurabilityPolicy(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @return the policy with the specified name (e.g. "checkpoint-only")
+     * @throws IllegalArgumentException if no policy has that name
+     */
+    public static DurabilityPolicy getPolicy(String name) {
+        for (DurabilityPolicy p : values()) {
+            if (p.name.equalsIgnoreCase(name)) {
+                return p;
+            }
+        }
+        throw new IllegalArgumentException("Unknown durability policy " + name);
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
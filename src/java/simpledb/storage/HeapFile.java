@@ -11,13 +11,18 @@ import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * HeapFile is an implementation of a DbFile that stores a collection of tuples
@@ -115,9 +120,39 @@ public class HeapFile implements DbFile {
         // write page to file
         byte[] data = page.getPageData();
         raf.write(data);
+        Database.getSyncManager().sync(f, raf.getChannel());
         raf.close();
     }
 
+    // see DbFile.java for javadocs
+    // Runs of adjacent pages are written with one gathering write on a single
+    // channel, and the file is synced (per the durability policy) once at the end.
+    public void writePages(List<Page> pages) throws IOException {
+        int pageSize = BufferPool.getPageSize();
+        try (FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE)) {
+            int start = 0;
+            while (start < pages.size()) {
+                int firstPageNo = pages.get(start).getId().getPageNumber();
+                int end = start + 1;
+                while (end < pages.size() && pages.get(end).getId().getPageNumber() == firstPageNo + (end - start)) {
+                    end++;
+                }
+
+                ByteBuffer[] run = new ByteBuffer[end - start];
+                for (int i = 0; i < run.length; i++) {
+                    run[i] = ByteBuffer.wrap(pages.get(start + i).getPageData());
+                }
+                channel.position((long) firstPageNo * pageSize);
+                long remaining = (long) run.length * pageSize;
+                while (remaining > 0) {
+                    remaining -= channel.write(run);
+                }
+                start = end;
+            }
+            Database.getSyncManager().sync(f, channel);
+        }
+    }
+
     /**
      * Returns the number of pages in this HeapFile.
      */
@@ -141,8 +176,6 @@ public class HeapFile implements DbFile {
 
             if (page.getNumUnusedSlots() > 0) {
                 page.insertTuple(t);
-                // update disk
-                writePage(page);
 
                 modifiedPages.add(page);
                 return modifiedPages;
@@ -159,8 +192,6 @@ public class HeapFile implements DbFile {
         // update buffer/cache
         HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
         page.insertTuple(t);
-        // update disk
-        writePage(page);
 
         modifiedPages.add(page);
         return modifiedPages;
@@ -184,7 +215,76 @@ public class HeapFile implements DbFile {
     // iterate through through the tuples of each page in the HeapFile
     public DbFileIterator iterator(TransactionId tid) {
         // TODO: some code goes here (OK)
-        return new HeapFile.HeapFileIterator(this, tid);
+        return new HeapFile.HeapFileIterator(this, tid, 0, 1);
+    }
+
+    /**
+     * Returns an iterator over the tuples of one of numPartitions disjoint
+     * partitions of this file: the pages whose number modulo numPartitions is
+     * partition. Iterators over all partitions together return every tuple of
+     * the file once, so that they can scan it from several threads.
+     *
+     * @param tid           the transaction the pages are read for
+     * @param partition     the partition to scan, from 0 to numPartitions - 1
+     * @param numPartitions the number of partitions
+     */
+    public DbFileIterator iterator(TransactionId tid, int partition, int numPartitions) {
+        if (partition < 0 || partition >= numPartitions) {
+            throw new IllegalArgumentException("no partition " + partition + " of " + numPartitions);
+        }
+        return new HeapFile.HeapFileIterator(this, tid, partition, numPartitions);
+    }
+
+    /**
+     * Returns an iterator that reads morsels of consecutive pages of this
+     * file claimed from a cursor. Iterators sharing a cursor, typically on
+     * different threads, together return every tuple of the file once; a
+     * thread that is done with its morsel claims the next one, so that fast
+     * threads read more pages than slow ones.
+     *
+     * @param tid     the transaction the pages are read for
+     * @param morsels the cursor shared by the iterators
+     */
+    public DbFileIterator iterator(TransactionId tid, MorselCursor morsels) {
+        return new HeapFile.HeapFileIterator(this, tid, morsels);
+    }
+
+    /**
+     * A shared cursor over the pages of a heap file, from which iterators on
+     * several threads claim morsels of consecutive pages.
+     */
+    public static class MorselCursor implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final AtomicInteger nextPage = new AtomicInteger();
+        private final int morselPages;
+
+        /**
+         * @param morselPages the number of pages in a morsel
+         */
+        public MorselCursor(int morselPages) {
+            if (morselPages < 1) {
+                throw new IllegalArgumentException("a morsel needs at least one page");
+            }
+            this.morselPages = morselPages;
+        }
+
+        /**
+         * Claim the next morsel.
+         *
+         * @return the number of the first page of the morsel
+         */
+        int claim() {
+            return nextPage.getAndAdd(morselPages);
+        }
+
+        /**
+         * Start claiming morsels from the first page again, for another scan
+         * of the file. Must not be called while iterators use the cursor.
+         */
+        public void reset() {
+            nextPage.set(0);
+        }
     }
 
     private static class HeapFileIterator implements DbFileIterator {
@@ -192,18 +292,64 @@ public class HeapFile implements DbFile {
         private TransactionId tid;
         private Iterator<Tuple> tpIter;
         private int pgCursor;
+        private final int firstPage;
+        private final int pageStride;
+        private final MorselCursor morsels;
+        private int morselEnd;
+        private boolean morselsExhausted;
+
+        public HeapFileIterator(HeapFile heapFile, TransactionId tid, int firstPage, int pageStride) {
+            this.heapFile = heapFile;
+            this.tid = tid;
+            this.firstPage = firstPage;
+            this.pageStride = pageStride;
+            this.morsels = null;
+        }
 
-        public HeapFileIterator(HeapFile heapFile, TransactionId tid) {
+        public HeapFileIterator(HeapFile heapFile, TransactionId tid, MorselCursor morsels) {
             this.heapFile = heapFile;
             this.tid = tid;
+            this.firstPage = 0;
+            this.pageStride = 1;
+            this.morsels = morsels;
         }
 
         @Override
         public void open() throws DbException, TransactionAbortedException {
-            this.pgCursor = 0;
+            this.pgCursor = -1;
+            this.morselEnd = 0;
+            this.morselsExhausted = false;
+            tpIter = Collections.emptyIterator();
+            nextPage();
+        }
+
+        /**
+         * Move to the next page this iterator reads.
+         *
+         * @return false if there are no more pages
+         */
+        private boolean nextPage() throws DbException, TransactionAbortedException {
+            int next;
+            if (this.morselsExhausted) {
+                return false;
+            } else if (this.morsels == null) {
+                next = this.pgCursor < 0 ? this.firstPage : this.pgCursor + this.pageStride;
+            } else if (this.pgCursor >= 0 && this.pgCursor + 1 < this.morselEnd) {
+                next = this.pgCursor + 1;
+            } else {
+                next = this.morsels.claim();
+                this.morselEnd = next + this.morsels.morselPages;
+            }
+            if (next >= this.heapFile.numPages()) {
+                // the other iterators claimed all pages
+                this.morselsExhausted = this.morsels != null;
+                return false;
+            }
+            this.pgCursor = next;
             Page pg = Database.getBufferPool().getPage(this.tid, new HeapPageId(heapFile.getId(), this.pgCursor),
                     Permissions.READ_ONLY);
             tpIter = ((HeapPage) pg).iterator();
+            return true;
         }
 
         @Override
@@ -211,31 +357,21 @@ public class HeapFile implements DbFile {
             if (tpIter == null) {
                 return false;
             }
-
-            if (!tpIter.hasNext() && this.pgCursor < this.heapFile.numPages() - 1) {
-                // There are still more pages
-                return true;
+            // find the next non-empty page
+            while (!tpIter.hasNext()) {
+                if (!nextPage()) {
+                    return false;
+                }
             }
-            return tpIter.hasNext();
+            return true;
         }
 
         @Override
         public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
-            if (tpIter == null) {
-                throw new NoSuchElementException();
-            }
-            if (hasNext()) {
-                // find the next non-empty page
-                while (!tpIter.hasNext() && this.pgCursor < this.heapFile.numPages() - 1) {
-                    Page pg = Database.getBufferPool().getPage(this.tid,
-                            new HeapPageId(heapFile.getId(), ++this.pgCursor), Permissions.READ_ONLY);
-                    tpIter = ((HeapPage) pg).iterator();
-                }
-
-                return tpIter.next();
-            } else {
+            if (!hasNext()) {
                 throw new NoSuchElementException();
             }
+            return tpIter.next();
         }
 
         @Override
@@ -19,6 +19,9 @@ import java.util.stream.Collectors;
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * Tuple updates and {@link #getPageData()} synchronize on the page, so the
+ * BufferPool's background cleaner never writes out a half-updated page.
  *
  * @see HeapFile
  * @see BufferPool
@@ -179,7 +182,7 @@ public class HeapPage implements Page {
      * @return A byte array correspond to the bytes of this page.
      * @see #HeapPage
      */
-    public byte[] getPageData() {
+    public synchronized byte[] getPageData() {
         int len = BufferPool.getPageSize();
         ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
         DataOutputStream dos = new DataOutputStream(baos);
@@ -262,7 +265,7 @@ public class HeapPage implements Page {
      * @throws DbException if this tuple is not on this page, or tuple slot is
      *                     already empty.
      */
-    public void deleteTuple(Tuple t) throws DbException {
+    public synchronized void deleteTuple(Tuple t) throws DbException {
         // TODO: some code goes here (OK)
         // not necessary for lab1
 
@@ -291,7 +294,7 @@ public class HeapPage implements Page {
      * @throws DbException if the page is full (no empty slots) or tupledesc is
      *                     mismatch.
      */
-    public void insertTuple(Tuple t) throws DbException {
+    public synchronized void insertTuple(Tuple t) throws DbException {
         // TODO: some code goes here (OK)
         // not necessary for lab1
 
@@ -11,6 +11,11 @@ import java.io.RandomAccessFile;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /*
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -92,12 +97,27 @@ public class LogFile {
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
 
+    /**
+     * Number of worker threads used to redo pages during recovery
+     */
+    static final int REDO_THREADS = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Default time (ms) between two checkpoints taken by the {@link Checkpointer}
+     */
+    public static final long DEFAULT_CHECKPOINT_INTERVAL_MS = 60000;
+
+    private static volatile long checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL_MS;
+
     long currentOffset = -1;//protected by this
     //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
 
     final Map<Long, Long> tidToFirstLogRecord = new HashMap<>();
 
+    int recordsAtCheckpoint = 0; // protected by this
+    boolean closed = false; // protected by this
+
     /**
      * Constructor.
      * Initialize and back the log file with the specified file.
@@ -114,6 +134,7 @@ public class LogFile {
         this.logFile = f;
         raf = new RandomAccessFile(f, "rw");
         recoveryUndecided = true;
+        new Checkpointer(this).start();
 
         // install shutdown hook to force cleanup on close
         // Runtime.getRuntime().addShutdownHook(new Thread() {
@@ -145,6 +166,32 @@ public class LogFile {
         return totalRecords;
     }
 
+    /**
+     * @return the time (ms) between two periodic checkpoints
+     */
+    public static long getCheckpointInterval() {
+        return checkpointInterval;
+    }
+
+    /**
+     * Set the time (ms) between two periodic checkpoints. A running
+     * checkpointer uses it after its current wait.
+     */
+    public static void setCheckpointInterval(long ms) {
+        checkpointInterval = ms;
+    }
+
+    /**
+     * Return true if the specified transaction has a BEGIN record in the log,
+     * so that any page it dirties can be written out early and still be
+     * rolled back on abort or undone during recovery.
+     *
+     * @param tid The transaction to check
+     */
+    public synchronized boolean isLogged(TransactionId tid) {
+        return tidToFirstLogRecord.containsKey(tid.getId());
+    }
+
     /**
      * Write an abort record to the log for the specified tid, force
      * the log to disk, and perform a rollback
@@ -257,15 +304,21 @@ public class LogFile {
     }
 
     Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
+        return readPageImage(raf).toPage();
+    }
 
+    /**
+     * Read the serialized form of a page written by {@link #writePageData}
+     * without instantiating it, so that parsing the page can be deferred (e.g.,
+     * to the redo workers in {@link #recover}).
+     */
+    PageImage readPageImage(RandomAccessFile raf) throws IOException {
         String pageClassName = raf.readUTF();
         String idClassName = raf.readUTF();
 
+        PageId pid;
         try {
             Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
 
             Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
             int numIdArgs = raf.readInt();
@@ -274,26 +327,65 @@ public class LogFile {
                 idArgs[i] = raf.readInt();
             }
             pid = (PageId) idConsts[0].newInstance(idArgs);
+        } catch (ClassNotFoundException | InvocationTargetException | IllegalAccessException | InstantiationException e) {
+            e.printStackTrace();
+            throw new IOException();
+        }
 
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
-
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
+        int pageSize = raf.readInt();
+        byte[] pageData = new byte[pageSize];
+        raf.readFully(pageData);
 
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
+        return new PageImage(pageClassName, pid, pageData);
+    }
 
-            newPage = (Page) pageConsts[0].newInstance(pageArgs);
+    /**
+     * The serialized contents of a page as stored in an UPDATE record.
+     */
+    static class PageImage {
+        final String pageClassName;
+        final PageId pid;
+        final byte[] data;
+
+        PageImage(String pageClassName, PageId pid, byte[] data) {
+            this.pageClassName = pageClassName;
+            this.pid = pid;
+            this.data = data;
+        }
 
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException | InvocationTargetException | IllegalAccessException | InstantiationException e) {
-            e.printStackTrace();
-            throw new IOException();
+        Page toPage() throws IOException {
+            try {
+                Class<?> pageClass = Class.forName(pageClassName);
+                Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
+
+                Object[] pageArgs = new Object[2];
+                pageArgs[0] = pid;
+                pageArgs[1] = data;
+
+                //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
+                return (Page) pageConsts[0].newInstance(pageArgs);
+            } catch (ClassNotFoundException | InvocationTargetException | IllegalAccessException | InstantiationException e) {
+                e.printStackTrace();
+                throw new IOException();
+            }
         }
-        return newPage;
+    }
 
+    /**
+     * An UPDATE record read back from the log during rollback or recovery.
+     */
+    static class UpdateRecord {
+        final long offset;
+        final long tid;
+        final PageImage before;
+        final PageImage after;
+
+        UpdateRecord(long offset, long tid, PageImage before, PageImage after) {
+            this.offset = offset;
+            this.tid = tid;
+            this.before = before;
+            this.after = after;
+        }
     }
 
     /**
@@ -330,8 +422,11 @@ public class LogFile {
                 long startCpOffset, endCpOffset;
                 Set<Long> keys = tidToFirstLogRecord.keySet();
                 Iterator<Long> els = keys.iterator();
-                force();
+                forceToDisk();
                 Database.getBufferPool().flushAllPages();
+                // the data files must be on disk before the checkpoint record
+                // says so; this is also where CHECKPOINT_ONLY durability syncs
+                Database.getSyncManager().syncDeferred();
                 startCpOffset = raf.getFilePointer();
                 raf.writeInt(CHECKPOINT_RECORD);
                 raf.writeLong(-1); //no tid , but leave space for convenience
@@ -355,10 +450,35 @@ public class LogFile {
                 raf.writeLong(currentOffset);
                 currentOffset = raf.getFilePointer();
                 //Debug.log("CP OFFSET = " + currentOffset);
+
+                forceToDisk();
             }
         }
 
         logTruncate();
+        synchronized (this) {
+            recordsAtCheckpoint = totalRecords;
+        }
+    }
+
+    /**
+     * Take a checkpoint if records were appended to the log since the last
+     * one. Called periodically by the {@link Checkpointer}.
+     *
+     * @return false if the log has been shut down
+     */
+    boolean checkpointIfDue() throws IOException {
+        synchronized (Database.getBufferPool()) {
+            synchronized (this) {
+                if (closed) {
+                    return false;
+                }
+                if (!recoveryUndecided && totalRecords != recordsAtCheckpoint) {
+                    logCheckpoint();
+                }
+                return true;
+            }
+        }
     }
 
     /**
@@ -473,20 +593,88 @@ public class LogFile {
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
                 preAppend();
-                // TODO: some code goes here
+                Long firstRecord = tidToFirstLogRecord.get(tid.getId());
+                if (firstRecord == null) {
+                    throw new NoSuchElementException("no log records for transaction " + tid.getId());
+                }
+
+                // the earliest before image of each page is its state before tid touched it
+                Map<PageId, PageImage> beforeImages = new LinkedHashMap<>();
+                for (UpdateRecord r : readUpdateRecords(firstRecord, null, null)) {
+                    if (r.tid == tid.getId()) {
+                        beforeImages.putIfAbsent(r.before.pid, r.before);
+                    }
+                }
+
+                for (PageImage image : beforeImages.values()) {
+                    Database.getBufferPool().removePage(image.pid);
+                    Database.getCatalog().getDatabaseFile(image.pid.getTableId()).writePage(image.toPage());
+                }
+
+                raf.seek(currentOffset);
             }
         }
     }
 
+    /**
+     * Scan the log from the specified offset to its end, returning the UPDATE
+     * records in log order. The ids of transactions that committed or aborted
+     * are added to the (optional) committed and aborted sets.
+     */
+    private List<UpdateRecord> readUpdateRecords(long start, Set<Long> committed, Set<Long> aborted)
+            throws IOException {
+        List<UpdateRecord> updates = new ArrayList<>();
+        raf.seek(start);
+
+        while (true) {
+            try {
+                long offset = raf.getFilePointer();
+                int type = raf.readInt();
+                long recordTid = raf.readLong();
+
+                switch (type) {
+                    case UPDATE_RECORD:
+                        PageImage before = readPageImage(raf);
+                        PageImage after = readPageImage(raf);
+                        updates.add(new UpdateRecord(offset, recordTid, before, after));
+                        break;
+                    case COMMIT_RECORD:
+                        if (committed != null)
+                            committed.add(recordTid);
+                        break;
+                    case ABORT_RECORD:
+                        if (aborted != null)
+                            aborted.add(recordTid);
+                        break;
+                    case CHECKPOINT_RECORD:
+                        int numXactions = raf.readInt();
+                        raf.skipBytes(numXactions * 2 * LONG_SIZE);
+                        break;
+                }
+
+                //all xactions finish with a pointer
+                raf.readLong();
+            } catch (EOFException e) {
+                break;
+            }
+        }
+
+        return updates;
+    }
+
     /**
      * Shutdown the logging system, writing out whatever state
      * is necessary so that start up can happen quickly (without
      * extensive recovery.)
      */
-    public synchronized void shutdown() {
+    public void shutdown() {
+        // not synchronized: logCheckpoint needs the buffer pool lock first
         try {
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            synchronized (this) {
+                closed = true;
+                raf.close();
+            }
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -502,11 +690,136 @@ public class LogFile {
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
                 recoveryUndecided = false;
-                // TODO: some code goes here
+
+                if (raf.length() < LONG_SIZE) {
+                    // nothing was ever logged; start a fresh log
+                    raf.setLength(0);
+                    raf.writeLong(NO_CHECKPOINT_ID);
+                    currentOffset = raf.getFilePointer();
+                    return;
+                }
+
+                raf.seek(0);
+                long cpLoc = raf.readLong();
+
+                // the log must be read from the first record of any transaction
+                // that was still running when the last checkpoint was taken
+                long start = LONG_SIZE;
+                if (cpLoc != NO_CHECKPOINT_ID) {
+                    start = cpLoc;
+                    raf.seek(cpLoc);
+                    raf.readInt();
+                    raf.readLong();
+                    int numOutstanding = raf.readInt();
+                    for (int i = 0; i < numOutstanding; i++) {
+                        raf.readLong();
+                        start = Math.min(start, raf.readLong());
+                    }
+                }
+
+                Set<Long> committed = new HashSet<>();
+                List<UpdateRecord> updates = readUpdateRecords(start, committed, null);
+
+                // pages have no LSN of their own, but every update logged before
+                // the checkpoint was flushed by it, so the checkpoint offset is a
+                // safe on-disk LSN for every page
+                long redoFrom = cpLoc == NO_CHECKPOINT_ID ? LONG_SIZE : cpLoc;
+
+                // split records by page; log order is kept within each page
+                Map<PageId, List<UpdateRecord>> updatesByPage = new LinkedHashMap<>();
+                for (UpdateRecord r : updates) {
+                    updatesByPage.computeIfAbsent(r.after.pid, k -> new ArrayList<>()).add(r);
+                }
+
+                for (PageId pid : updatesByPage.keySet()) {
+                    Database.getBufferPool().removePage(pid);
+                }
+
+                replayPages(updatesByPage, committed, redoFrom);
+
+                tidToFirstLogRecord.clear();
+                raf.seek(raf.length());
+                currentOffset = raf.getFilePointer();
+            }
+        }
+    }
+
+    /**
+     * Replay the update records of each page on a pool of worker threads. All of
+     * the records of one page are handled by the same worker, in log order, so
+     * different pages are redone in parallel.
+     */
+    private void replayPages(Map<PageId, List<UpdateRecord>> updatesByPage, Set<Long> committed, long redoFrom)
+            throws IOException {
+        int numWorkers = Math.max(1, Math.min(REDO_THREADS, updatesByPage.size()));
+
+        List<List<List<UpdateRecord>>> partitions = new ArrayList<>();
+        for (int i = 0; i < numWorkers; i++) {
+            partitions.add(new ArrayList<>());
+        }
+        for (Map.Entry<PageId, List<UpdateRecord>> e : updatesByPage.entrySet()) {
+            int worker = (e.getKey().hashCode() & Integer.MAX_VALUE) % numWorkers;
+            partitions.get(worker).add(e.getValue());
+        }
+
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (List<List<UpdateRecord>> partition : partitions) {
+            tasks.add(() -> {
+                for (List<UpdateRecord> pageRecords : partition) {
+                    PageImage image = replayPage(pageRecords, committed, redoFrom);
+                    if (image != null) {
+                        Database.getCatalog().getDatabaseFile(image.pid.getTableId()).writePage(image.toPage());
+                    }
+                }
+                return null;
+            });
+        }
+
+        ExecutorService workers = Executors.newFixedThreadPool(numWorkers);
+        try {
+            for (Future<Void> f : workers.invokeAll(tasks)) {
+                f.get();
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted during redo", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        } finally {
+            workers.shutdown();
         }
     }
 
+    /**
+     * Compute the image a page must have on disk after recovery from its update
+     * records (in log order). Committed updates are redone unless they are
+     * older than redoFrom; updates of transactions that did not commit are undone
+     * by restoring the before image of the first of them.
+     *
+     * @return the image to write, or null if the page on disk is already correct
+     */
+    private static PageImage replayPage(List<UpdateRecord> pageRecords, Set<Long> committed, long redoFrom) {
+        PageImage image = null;
+        boolean prevCommitted = true;
+
+        for (UpdateRecord r : pageRecords) {
+            if (committed.contains(r.tid)) {
+                image = r.offset >= redoFrom ? r.after : null;
+                prevCommitted = true;
+            } else {
+                // strict 2PL: the before image is the last committed state
+                if (prevCommitted) {
+                    image = r.before;
+                }
+                prevCommitted = false;
+            }
+        }
+
+        return image;
+    }
+
     /**
      * Print out a human readable represenation of the log
      */
@@ -585,8 +898,20 @@ public class LogFile {
         raf.seek(curOffset);
     }
 
+    /**
+     * Force the log to disk as the durability policy asks for; used for
+     * commit and abort records.
+     */
     public synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+        Database.getSyncManager().sync(logFile, raf.getChannel());
+    }
+
+    /**
+     * Force the log to disk whatever the durability policy, as write-ahead
+     * logging requires before any data page is written.
+     */
+    public synchronized void forceToDisk() throws IOException {
+        Database.getSyncManager().syncNow(logFile, raf.getChannel());
     }
 
 }
@@ -0,0 +1,65 @@
+package simpledb.storage;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+
+/**
+ * PageCleaner is the background writer of a {@link BufferPool}. It wakes up
+ * periodically, or whenever the pool runs short of clean frames, and asks the
+ * pool to write out dirty pages so that foreground {@link BufferPool#getPage}
+ * calls always find a clean page to evict.
+ * <p>
+ * The cleaner only holds a weak reference to its pool, and exits once the pool
+ * has been discarded (e.g. by {@link simpledb.common.Database#resetBufferPool}).
+ */
+class PageCleaner extends Thread {
+
+    /**
+     * Milliseconds between two cleaning rounds when nobody wakes the cleaner up
+     */
+    static final long CLEAN_INTERVAL_MS = 20;
+
+    private final WeakReference<BufferPool> poolRef;
+
+    private boolean wakeUpRequested = false; // protected by this
+
+    PageCleaner(BufferPool pool) {
+        super("simpledb-page-cleaner");
+        this.poolRef = new WeakReference<>(pool);
+        setDaemon(true);
+    }
+
+    /**
+     * Ask the cleaner to start a cleaning round as soon as possible.
+     */
+    synchronized void wakeUp() {
+        wakeUpRequested = true;
+        notify();
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            synchronized (this) {
+                try {
+                    if (!wakeUpRequested) {
+                        wait(CLEAN_INTERVAL_MS);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                wakeUpRequested = false;
+            }
+
+            BufferPool pool = poolRef.get();
+            if (pool == null) {
+                return;
+            }
+            try {
+                pool.cleanPages();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
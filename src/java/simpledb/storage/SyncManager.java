@@ -0,0 +1,135 @@
+package simpledb.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * SyncManager applies the database's {@link DurabilityPolicy} to every file
+ * the database writes: data files call {@link #sync} after writing pages and
+ * the log calls it from {@link LogFile#force}. Files whose sync is postponed
+ * until the next checkpoint are remembered and synced by
+ * {@link #syncDeferred}.
+ * <p>
+ * Write-ahead logging does not depend on the policy: the log is synced with
+ * {@link #syncNow} before any data page is written and when a checkpoint
+ * record is written.
+ * <p>
+ * SyncManager also counts the fsyncs it issues and the time spent in them, so
+ * the cost of a policy can be measured.
+ *
+ * @Threadsafe
+ */
+public class SyncManager {
+
+    /**
+     * Name of the system property holding the default policy
+     */
+    public static final String POLICY_PROPERTY = "simpledb.durability";
+
+    private volatile DurabilityPolicy policy;
+
+    private final Set<File> deferredFiles = ConcurrentHashMap.newKeySet();
+
+    private final AtomicLong syncCount = new AtomicLong();
+    private final AtomicLong syncNanos = new AtomicLong();
+
+    public SyncManager() {
+        this(DurabilityPolicy.getPolicy(System.getProperty(POLICY_PROPERTY, DurabilityPolicy.COMMIT.toString())));
+    }
+
+    public SyncManager(DurabilityPolicy policy) {
+        this.policy = policy;
+    }
+
+    public DurabilityPolicy getPolicy() {
+        return policy;
+    }
+
+    public void setPolicy(DurabilityPolicy policy) {
+        this.policy = policy;
+    }
+
+    /**
+     * Called after writing to the specified file through channel. Syncs the
+     * file now, at the next checkpoint or never, depending on the policy.
+     *
+     * @param f       the file that was written
+     * @param channel an open channel on f
+     */
+    public void sync(File f, FileChannel channel) throws IOException {
+        switch (policy) {
+            case COMMIT:
+                force(f, channel);
+                break;
+            case CHECKPOINT_ONLY:
+                deferredFiles.add(f);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Sync the specified file now, whatever the policy.
+     *
+     * @param f       the file to sync
+     * @param channel an open channel on f
+     */
+    public void syncNow(File f, FileChannel channel) throws IOException {
+        deferredFiles.remove(f);
+        force(f, channel);
+    }
+
+    /**
+     * Sync every file whose sync was postponed by the CHECKPOINT_ONLY policy.
+     * Called when a checkpoint is taken.
+     */
+    public void syncDeferred() throws IOException {
+        for (File f : deferredFiles) {
+            deferredFiles.remove(f);
+            if (!f.exists()) {
+                continue;
+            }
+            try (FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.WRITE)) {
+                force(f, channel);
+            }
+        }
+    }
+
+    /**
+     * Sync the specified file through channel, counting the fsync.
+     */
+    protected void force(File f, FileChannel channel) throws IOException {
+        long start = System.nanoTime();
+        channel.force(true);
+        syncNanos.addAndGet(System.nanoTime() - start);
+        syncCount.incrementAndGet();
+    }
+
+    /**
+     * @return the number of fsyncs issued so far
+     */
+    public long getSyncCount() {
+        return syncCount.get();
+    }
+
+    /**
+     * @return the total time spent in fsync so far, in nanoseconds
+     */
+    public long getSyncNanos() {
+        return syncNanos.get();
+    }
+
+    /**
+     * Reset the fsync counters.
+     */
+    public void resetStats() {
+        syncCount.set(0);
+        syncNanos.set(0);
+    }
+}
@@ -0,0 +1,245 @@
+package simpledb.storage;
+
+import simpledb.common.Type;
+
+import java.util.NoSuchElementException;
+
+/**
+ * TupleBatch holds up to a fixed number of rows with the same TupleDesc, column
+ * by column: the values of an INT_TYPE column are kept in an int array, those
+ * of other columns as Fields. Operators that exchange batches (see
+ * {@link simpledb.execution.BatchIterator}) can thus process a whole column in
+ * a tight loop instead of paying for virtual calls and Field objects per tuple.
+ * <p>
+ * A batch may also be a view of the columns of another batch, restricted to
+ * some of its rows (see {@link #select}) or some of its columns (see
+ * {@link #project}); rows cannot be added to views. The rows of a view are
+ * listed in its selection vector. Rows keep the RecordId of the tuple they
+ * were added from, if any.
+ */
+public class TupleBatch {
+
+    /**
+     * Default number of rows of a batch
+     */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private final TupleDesc td;
+    private final int capacity;
+    // column i is in ints[i] if it is an INT_TYPE column, in others[i] otherwise
+    private final int[][] ints;
+    private final Field[][] others;
+    private final RecordId[] rids;
+    // the rows of a view, or null if the rows are 0 .. size - 1
+    private final int[] selection;
+    private final boolean view;
+    private int size;
+
+    /**
+     * Create an empty batch of {@link #DEFAULT_CAPACITY} rows.
+     *
+     * @param td the TupleDesc of the rows
+     */
+    public TupleBatch(TupleDesc td) {
+        this(td, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Create an empty batch.
+     *
+     * @param td       the TupleDesc of the rows
+     * @param capacity the maximum number of rows of the batch
+     */
+    public TupleBatch(TupleDesc td, int capacity) {
+        this.td = td;
+        this.capacity = capacity;
+        this.ints = new int[td.numFields()][];
+        this.others = new Field[td.numFields()][];
+        this.rids = new RecordId[capacity];
+        for (int i = 0; i < td.numFields(); i++) {
+            if (td.getFieldType(i) == Type.INT_TYPE) {
+                ints[i] = new int[capacity];
+            } else {
+                others[i] = new Field[capacity];
+            }
+        }
+        this.selection = null;
+        this.view = false;
+        this.size = 0;
+    }
+
+    private TupleBatch(TupleDesc td, int capacity, int[][] ints, Field[][] others, RecordId[] rids,
+                       int[] selection, int size) {
+        this.td = td;
+        this.capacity = capacity;
+        this.ints = ints;
+        this.others = others;
+        this.rids = rids;
+        this.selection = selection;
+        this.view = true;
+        this.size = size;
+    }
+
+    /**
+     * @return the TupleDesc of the rows
+     */
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * @return the number of rows of the batch
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return true if no more rows can be added to the batch
+     */
+    public boolean isFull() {
+        return view || size == capacity;
+    }
+
+    /**
+     * Return the selection vector of the batch: row i of the batch is at index
+     * getSelection()[i] of its columns.
+     *
+     * @return the selection vector, or null if row i is at index i
+     */
+    public int[] getSelection() {
+        return selection;
+    }
+
+    /**
+     * Return the values of an INT_TYPE column, indexed as described in
+     * {@link #getSelection()}.
+     *
+     * @param i the index of the column
+     * @throws IllegalArgumentException if the column is not of INT_TYPE
+     */
+    public int[] getIntColumn(int i) {
+        if (ints[i] == null) {
+            throw new IllegalArgumentException("field " + i + " is not an integer field");
+        }
+        return ints[i];
+    }
+
+    private int index(int row) {
+        if (row < 0 || row >= size) {
+            throw new NoSuchElementException("no row " + row + " in a batch of " + size);
+        }
+        return selection == null ? row : selection[row];
+    }
+
+    /**
+     * @return the value of an INT_TYPE column in a row
+     */
+    public int getInt(int i, int row) {
+        return getIntColumn(i)[index(row)];
+    }
+
+    /**
+     * @return the value of a column in a row
+     */
+    public Field getField(int i, int row) {
+        int r = index(row);
+        return ints[i] != null ? new IntField(ints[i][r]) : others[i][r];
+    }
+
+    /**
+     * @return a row of the batch as a Tuple
+     */
+    public Tuple getTuple(int row) {
+        int r = index(row);
+        Tuple t = new Tuple(td);
+        for (int i = 0; i < ints.length; i++) {
+            t.setField(i, ints[i] != null ? new IntField(ints[i][r]) : others[i][r]);
+        }
+        t.setRecordId(rids[r]);
+        return t;
+    }
+
+    private int addRow() {
+        if (isFull()) {
+            throw new IllegalStateException(view ? "cannot add rows to a view of a batch" : "batch is full");
+        }
+        return size++;
+    }
+
+    private void set(int i, int r, Field f) {
+        if (ints[i] != null) {
+            ints[i][r] = ((IntField) f).getValue();
+        } else {
+            others[i][r] = f;
+        }
+    }
+
+    /**
+     * Append a tuple to the batch.
+     *
+     * @throws IllegalStateException if the batch is full
+     */
+    public void add(Tuple t) {
+        int r = addRow();
+        for (int i = 0; i < ints.length; i++) {
+            set(i, r, t.getField(i));
+        }
+        rids[r] = t.getRecordId();
+    }
+
+    /**
+     * Append a row made of the fields of a tuple followed by the fields of a
+     * row of another batch, e.g. a row of a join. The row has no RecordId.
+     *
+     * @param prefix the tuple with the first fields of the row
+     * @param batch  the batch with the other fields of the row
+     * @param row    the row of batch
+     * @throws IllegalStateException if the batch is full
+     */
+    public void add(Tuple prefix, TupleBatch batch, int row) {
+        int r = addRow();
+        rids[r] = null;
+        int n = prefix.getTupleDesc().numFields();
+        for (int i = 0; i < n; i++) {
+            set(i, r, prefix.getField(i));
+        }
+        int from = batch.index(row);
+        for (int i = 0; i < batch.ints.length; i++) {
+            if (ints[n + i] != null) {
+                ints[n + i][r] = batch.ints[i][from];
+            } else {
+                others[n + i][r] = batch.others[i][from];
+            }
+        }
+    }
+
+    /**
+     * Return a view of some rows of this batch. The view shares the columns
+     * of this batch.
+     *
+     * @param rows the column indexes of the rows of the view, as described in
+     *             {@link #getSelection()}; the array is owned by the view
+     * @param n    the number of rows of the view
+     */
+    public TupleBatch select(int[] rows, int n) {
+        return new TupleBatch(td, capacity, ints, others, rids, rows, n);
+    }
+
+    /**
+     * Return a view of some columns of this batch. The view shares the
+     * columns and rows of this batch.
+     *
+     * @param fields the indexes of the columns of the view
+     * @param td     the TupleDesc of the view
+     */
+    public TupleBatch project(int[] fields, TupleDesc td) {
+        int[][] projectedInts = new int[fields.length][];
+        Field[][] projectedOthers = new Field[fields.length][];
+        for (int i = 0; i < fields.length; i++) {
+            projectedInts[i] = ints[fields[i]];
+            projectedOthers[i] = others[fields[i]];
+        }
+        return new TupleBatch(td, capacity, projectedInts, projectedOthers, rids, selection, size);
+    }
+}
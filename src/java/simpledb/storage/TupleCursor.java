@@ -0,0 +1,43 @@
+package simpledb.storage;
+
+import simpledb.common.DbException;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.Iterator;
+
+/**
+ * An iterator over tuples whose reads can fail, because they come from a
+ * file on disk or from a child operator. Unlike an {@link Iterator}, a cursor
+ * reports failures with the checked exceptions of the operators, so they reach
+ * the caller of {@link simpledb.execution.OpIterator#next} unchanged.
+ * <p>
+ * A cursor that holds files open releases them in {@link #close}, which must
+ * be called when the cursor is dropped before it is exhausted.
+ */
+public interface TupleCursor {
+
+    boolean hasNext() throws DbException, TransactionAbortedException;
+
+    Tuple next() throws DbException, TransactionAbortedException;
+
+    /**
+     * Release the resources held by the cursor; a no-op by default
+     */
+    default void close() {
+    }
+
+    /**
+     * @return a cursor over the tuples of an in-memory iterator
+     */
+    static TupleCursor of(Iterator<Tuple> it) {
+        return new TupleCursor() {
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            public Tuple next() {
+                return it.next();
+            }
+        };
+    }
+}
@@ -0,0 +1,160 @@
+package simpledb.storage;
+
+import simpledb.common.DbException;
+
+import java.io.*;
+import java.text.ParseException;
+import java.util.NoSuchElementException;
+
+/**
+ * TupleSpillFile is a temporary file of tuples that operators use to spill
+ * intermediate results that do not fit in memory (hash join partitions,
+ * sorted runs, ...).
+ * <p>
+ * Every tuple is stored as a fixed size record of {@link TupleDesc#getSize()}
+ * bytes, in the format used by HeapPage. Tuples can be read back any number
+ * of times, in order, with {@link #iterator()}, or from any position with
+ * {@link #iterator(long)}; a reader sees the tuples appended before it was
+ * created.
+ * The file is deleted by {@link #close()}. Record ids are not preserved.
+ */
+public class TupleSpillFile implements Closeable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final TupleDesc td;
+    private final File file;
+    private DataOutputStream out;
+    private long numTuples = 0;
+
+    /**
+     * Create an empty spill file for tuples of the specified TupleDesc in the
+     * default temporary-file directory.
+     */
+    public TupleSpillFile(TupleDesc td) throws IOException {
+        this(td, null);
+    }
+
+    /**
+     * Create an empty spill file for tuples of the specified TupleDesc in the
+     * specified directory, or in the default temporary-file directory if dir
+     * is null.
+     */
+    public TupleSpillFile(TupleDesc td, File dir) throws IOException {
+        this.td = td;
+        this.file = File.createTempFile("simpledb-spill", ".tmp", dir);
+        this.file.deleteOnExit();
+        this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * @return the number of tuples appended so far
+     */
+    public long size() {
+        return numTuples;
+    }
+
+    /**
+     * Append a tuple to the end of the file.
+     */
+    public void append(Tuple t) throws IOException {
+        if (out == null) {
+            // appending after finish(): reopen at the end of the file
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true), BUFFER_SIZE));
+        }
+        for (int i = 0; i < td.numFields(); i++) {
+            t.getField(i).serialize(out);
+        }
+        numTuples++;
+    }
+
+    /**
+     * Flush and stop writing; a later append reopens the file. Called
+     * implicitly by iterator().
+     */
+    public void finish() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+    }
+
+    /**
+     * Return an iterator over all tuples in the file, in the order they were
+     * appended. I/O errors while reading are reported as DbExceptions.
+     */
+    public TupleReader iterator() throws IOException {
+        return iterator(0);
+    }
+
+    /**
+     * Return an iterator over the tuples in the file starting at the tuple
+     * with the specified index (0 is the first tuple appended).
+     */
+    public TupleReader iterator(long from) throws IOException {
+        finish();
+        return new TupleReader(Math.min(Math.max(0, from), numTuples));
+    }
+
+    /**
+     * Delete the file.
+     */
+    public void close() {
+        try {
+            finish();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        file.delete();
+    }
+
+    /**
+     * Sequential reader over a spill file. Must be closed when done.
+     */
+    public class TupleReader implements TupleCursor, Closeable {
+        private final DataInputStream in;
+        private final byte[] record = new byte[td.getSize()];
+        private long remaining;
+
+        private TupleReader(long from) throws IOException {
+            FileInputStream fis = new FileInputStream(file);
+            fis.getChannel().position(from * td.getSize());
+            in = new DataInputStream(new BufferedInputStream(fis, BUFFER_SIZE));
+            remaining = numTuples - from;
+        }
+
+        public boolean hasNext() {
+            return remaining > 0;
+        }
+
+        public Tuple next() throws DbException {
+            if (remaining <= 0) {
+                throw new NoSuchElementException();
+            }
+            try {
+                in.readFully(record);
+                DataInputStream recordIn = new DataInputStream(new ByteArrayInputStream(record));
+                Tuple t = new Tuple(td);
+                for (int i = 0; i < td.numFields(); i++) {
+                    t.setField(i, td.getFieldType(i).parse(recordIn));
+                }
+                remaining--;
+                return t;
+            } catch (IOException | ParseException e) {
+                throw new DbException("cannot read spill file " + file + ": " + e.getMessage());
+            }
+        }
+
+        public void close() {
+            try {
+                in.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
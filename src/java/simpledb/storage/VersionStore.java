@@ -0,0 +1,157 @@
+package simpledb.storage;
+
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * VersionStore keeps the running snapshots (read-only transactions) and the
+ * older committed images of heap pages that they may still need to read.
+ * <p>
+ * The committed image of a page in the buffer pool is its before image (see
+ * {@link Page#getBeforeImage}), so nothing is copied while a transaction
+ * modifies pages. When a writer commits at commit timestamp c while snapshots
+ * are running, the before images of the pages it changed become versions that
+ * are valid for snapshots taken before c. A page with uncommitted changes that
+ * was written out early and is evicted from the buffer pool takes its before
+ * image with it, so that image is kept as <i>pending</i> until the writer
+ * completes.
+ * <p>
+ * Guarded by its own monitor, so snapshot readers never wait for the
+ * BufferPool lock. Callers that combine several calls with a lookup in the
+ * buffer pool synchronize on the VersionStore.
+ */
+class VersionStore {
+
+    /**
+     * The committed image of a page together with the first commit
+     * timestamp at which it is no longer current.
+     */
+    private static class Version {
+        final long supersededAt;
+        final byte[] data;
+
+        Version(long supersededAt, byte[] data) {
+            this.supersededAt = supersededAt;
+            this.data = data;
+        }
+    }
+
+    private long commitTs = 0;
+    private final Map<TransactionId, Long> snapshots = new ConcurrentHashMap<>();
+    private final Map<PageId, byte[]> pending = new HashMap<>();
+    private final Map<PageId, Deque<Version>> versions = new HashMap<>();
+
+    /**
+     * Start a snapshot for tid at the current commit timestamp.
+     */
+    synchronized void beginSnapshot(TransactionId tid) {
+        snapshots.put(tid, commitTs);
+    }
+
+    /**
+     * @return the commit timestamp of the snapshot of tid, or null if tid
+     * has no snapshot
+     */
+    Long getSnapshotTs(TransactionId tid) {
+        return snapshots.get(tid);
+    }
+
+    /**
+     * End the snapshot of tid and forget versions no snapshot can read anymore.
+     */
+    synchronized void endSnapshot(TransactionId tid) {
+        snapshots.remove(tid);
+        long oldestSnapshotTs = snapshots.isEmpty() ? Long.MAX_VALUE : Collections.min(snapshots.values());
+        Iterator<Deque<Version>> it = versions.values().iterator();
+        while (it.hasNext()) {
+            Deque<Version> chain = it.next();
+            while (!chain.isEmpty() && chain.peekFirst().supersededAt <= oldestSnapshotTs) {
+                chain.removeFirst();
+            }
+            if (chain.isEmpty()) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Called before a clean page leaves the buffer pool. If the page holds
+     * uncommitted changes that were written out early, its before image is
+     * kept as pending. Does nothing if an image of the page is already pending.
+     */
+    synchronized void saveEvicted(Page page) {
+        if (!(page instanceof HeapPage) || pending.containsKey(page.getId())) {
+            return;
+        }
+        byte[] before = page.getBeforeImage().getPageData();
+        if (!Arrays.equals(before, page.getPageData())) {
+            pending.put(page.getId(), before);
+        }
+    }
+
+    /**
+     * Return the image of the page as seen by a snapshot taken at
+     * snapshotTs, or null if the committed image of the page in the buffer
+     * pool, or else on disk, is the right one.
+     */
+    synchronized byte[] getImage(PageId pid, long snapshotTs) {
+        Deque<Version> chain = versions.get(pid);
+        if (chain != null) {
+            // versions are ordered by commit timestamp, oldest first
+            for (Version v : chain) {
+                if (v.supersededAt > snapshotTs) {
+                    return v.data;
+                }
+            }
+        }
+        return pending.get(pid);
+    }
+
+    /**
+     * Commit a transaction at a new commit timestamp. While snapshots are
+     * running, the committed images of the heap pages it changed become
+     * versions superseded at that timestamp. The current content of every
+     * page then becomes its before image.
+     *
+     * @param pages the pages locked by the transaction; null for pages that
+     *              are no longer in the buffer pool
+     */
+    synchronized void commit(Map<PageId, Page> pages) {
+        commitTs++;
+        for (Map.Entry<PageId, Page> entry : pages.entrySet()) {
+            PageId pid = entry.getKey();
+            Page page = entry.getValue();
+            byte[] before = pending.remove(pid);
+            if (!snapshots.isEmpty() && (page == null || page instanceof HeapPage)) {
+                if (before == null && page != null) {
+                    before = page.getBeforeImage().getPageData();
+                }
+                if (before != null && (page == null || !Arrays.equals(before, page.getPageData()))) {
+                    versions.computeIfAbsent(pid, k -> new ArrayDeque<>()).addLast(new Version(commitTs, before));
+                }
+            }
+            if (page != null) {
+                page.setBeforeImage();
+            }
+        }
+    }
+
+    /**
+     * Drop the pending images of the pages of an aborted transaction, once
+     * they have been restored.
+     */
+    synchronized void abort(Collection<PageId> pids) {
+        for (PageId pid : pids) {
+            pending.remove(pid);
+        }
+    }
+}
@@ -11,10 +11,22 @@ import java.io.IOException;
 
 public class Transaction {
     private final TransactionId tid;
+    private final boolean readOnly;
     volatile boolean started = false;
 
     public Transaction() {
+        this(false);
+    }
+
+    /**
+     * Create a transaction. A read-only transaction reads a snapshot of the
+     * database as of its start, takes no page locks and writes no log records.
+     *
+     * @param readOnly true if the transaction will never write
+     */
+    public Transaction(boolean readOnly) {
         tid = new TransactionId();
+        this.readOnly = readOnly;
     }
 
     /**
@@ -22,6 +34,10 @@ public class Transaction {
      */
     public void start() {
         started = true;
+        if (readOnly) {
+            Database.getBufferPool().beginSnapshot(tid);
+            return;
+        }
         try {
             Database.getLogFile().logXactionBegin(tid);
         } catch (IOException e) {
@@ -33,6 +49,10 @@ public class Transaction {
         return tid;
     }
 
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
     /**
      * Finish the transaction
      */
@@ -52,7 +72,11 @@ public class Transaction {
      */
     public void transactionComplete(boolean abort) throws IOException {
 
-        if (started) {
+        if (started && readOnly) {
+            // nothing was written: just end the snapshot
+            Database.getBufferPool().transactionComplete(tid, !abort);
+            started = false;
+        } else if (started) {
             //write abort log record and rollback transaction
             if (abort) {
                 Database.getLogFile().logAbort(tid); //does rollback too
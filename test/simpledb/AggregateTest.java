@@ -12,9 +12,25 @@ import simpledb.common.Type;
 import simpledb.common.Utility;
 import simpledb.execution.Aggregate;
 import simpledb.execution.Aggregator;
+import simpledb.common.Database;
+import simpledb.execution.MultiAggregator;
 import simpledb.execution.OpIterator;
+import simpledb.execution.SeqScan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 public class AggregateTest extends SimpleDbTestBase {
 
@@ -154,6 +170,193 @@ public class AggregateTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(min, op);
   }
 
+  /**
+   * Unit test for Aggregate.getNext() computing several aggregates in one pass
+   */
+  @Test
+  public void multipleAggregates() throws Exception {
+    Aggregate op = new Aggregate(scan1, new int[] { 1, 1, 1, 1 }, new int[] { 0 },
+        new Aggregator.Op[] { Aggregator.Op.MIN, Aggregator.Op.MAX, Aggregator.Op.COUNT, Aggregator.Op.SUM });
+    assertEquals(Utility.getTupleDesc(5), op.getTupleDesc());
+    op.open();
+    OpIterator expected = TestUtil.createTupleList(5,
+        new int[] { 1, 2, 6, 3, 12, 3, 2, 6, 3, 12, 5, 7, 7, 1, 7 });
+    expected.open();
+    TestUtil.matchAllTuples(expected, op);
+  }
+
+  /**
+   * Unit test for Aggregate.getNext() grouping by several fields
+   */
+  @Test
+  public void compositeGroupBy() throws Exception {
+    OpIterator scan = TestUtil.createTupleList(3, new int[] { 1, 1, 5, 1, 1, 7, 1, 2, 3, 2, 1, 4, 2, 1, 6 });
+    Aggregate op = new Aggregate(scan, new int[] { 2, 2 }, new int[] { 0, 1 },
+        new Aggregator.Op[] { Aggregator.Op.SUM, Aggregator.Op.COUNT });
+    op.open();
+    OpIterator expected = TestUtil.createTupleList(4, new int[] { 1, 1, 12, 2, 1, 2, 3, 1, 2, 1, 10, 2 });
+    expected.open();
+    TestUtil.matchAllTuples(expected, op);
+    op.rewind();
+    expected.rewind();
+    TestUtil.matchAllTuples(expected, op);
+  }
+
+  /**
+   * Unit test for MultiAggregator when the groups do not fit in memory
+   */
+  @Test
+  public void spillingMultiAggregate() throws Exception {
+    // 200 groups (i % 50, i % 40) of 25 tuples each; a page holds fewer
+    // than 200 groups
+    int[] values = new int[2 * 5000];
+    for (int i = 0; i < 5000; i++) {
+      values[2 * i] = i % 50;
+      values[2 * i + 1] = i % 40;
+    }
+    OpIterator scan = TestUtil.createTupleList(2, values);
+    MultiAggregator agg = new MultiAggregator(scan.getTupleDesc(), new int[] { 0, 1 }, new int[] { 0, 1 },
+        new Aggregator.Op[] { Aggregator.Op.COUNT, Aggregator.Op.MAX }, 1);
+    scan.open();
+    while (scan.hasNext()) {
+      agg.mergeTupleIntoGroup(scan.next());
+    }
+    OpIterator it = agg.iterator();
+    it.open();
+    Set<Integer> groups = new HashSet<>();
+    while (it.hasNext()) {
+      Tuple t = it.next();
+      int a = ((IntField) t.getField(0)).getValue();
+      int b = ((IntField) t.getField(1)).getValue();
+      assertTrue(groups.add(a * 100 + b));
+      assertEquals(25, ((IntField) t.getField(2)).getValue());
+      assertEquals(b, ((IntField) t.getField(3)).getValue());
+    }
+    assertEquals(200, groups.size());
+    it.close();
+    agg.close();
+  }
+
+  /**
+   * Unit test for queries with several aggregates and GROUP BY fields
+   */
+  @Test
+  public void parsedMultipleAggregates() throws Exception {
+    List<List<Integer>> tuples = new ArrayList<>();
+    HeapFile f = SystemTestUtil.createRandomHeapFile(3, 1000, 4, new HashMap<>(), tuples, "c");
+    Database.getCatalog().addTable(f, "agg_test");
+    Map<List<Integer>, int[]> groups = new HashMap<>();
+    for (List<Integer> t : tuples) {
+      int[] agg = groups.computeIfAbsent(t.subList(0, 2), k -> new int[] { 0, Integer.MIN_VALUE });
+      agg[0]++;
+      agg[1] = Math.max(agg[1], t.get(2));
+    }
+
+    TransactionId tid = new TransactionId();
+    Parser p = new Parser();
+    OpIterator plan = p.generateLogicalPlan(tid,
+        "SELECT MAX(t.c2), t.c1, COUNT(t.c2), t.c0 FROM agg_test t GROUP BY t.c0, t.c1;")
+        .physicalPlan(tid, TableStats.getStatsMap(), false);
+    plan.open();
+    int count = 0;
+    while (plan.hasNext()) {
+      Tuple t = plan.next();
+      List<Integer> key = new ArrayList<>();
+      key.add(((IntField) t.getField(3)).getValue());
+      key.add(((IntField) t.getField(1)).getValue());
+      int[] agg = groups.get(key);
+      assertNotNull(agg);
+      assertEquals(agg[1], ((IntField) t.getField(0)).getValue());
+      assertEquals(agg[0], ((IntField) t.getField(2)).getValue());
+      count++;
+    }
+    assertEquals(groups.size(), count);
+    plan.close();
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * Unit test for a parallel Aggregate, both over a heap file scanned in
+   * partitions and over a child read by the calling thread
+   */
+  @Test
+  public void parallelAggregate() throws Exception {
+    List<List<Integer>> tuples = new ArrayList<>();
+    HeapFile f = SystemTestUtil.createRandomHeapFile(3, 5000, 20, new HashMap<>(), tuples);
+    int[] values = new int[3 * tuples.size()];
+    for (int i = 0; i < tuples.size(); i++) {
+      for (int j = 0; j < 3; j++) {
+        values[3 * i + j] = tuples.get(i).get(j);
+      }
+    }
+    int[] afields = new int[] { 2, 2, 2, 2, 2 };
+    int[] gfields = new int[] { 0 };
+    Aggregator.Op[] aops = new Aggregator.Op[] { Aggregator.Op.MIN, Aggregator.Op.MAX, Aggregator.Op.SUM,
+        Aggregator.Op.COUNT, Aggregator.Op.AVG };
+
+    Aggregate serial = new Aggregate(TestUtil.createTupleList(3, values), afields, gfields, aops);
+    TransactionId tid = new TransactionId();
+    OpIterator[] children = new OpIterator[] { new SeqScan(tid, f.getId()), TestUtil.createTupleList(3, values) };
+    for (OpIterator child : children) {
+      Aggregate parallel = new Aggregate(child, afields, gfields, aops, 4);
+      parallel.open();
+      serial.open();
+      TestUtil.matchAllTuples(serial, parallel);
+      parallel.rewind();
+      serial.rewind();
+      TestUtil.matchAllTuples(serial, parallel);
+      parallel.close();
+      serial.close();
+    }
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * Unit test for a parallel MultiAggregator when the merged groups do not
+   * fit in memory
+   */
+  @Test
+  public void spillingParallelAggregate() throws Exception {
+    // 2000 groups of 10 tuples each, with negative values
+    int[] values = new int[2 * 20000];
+    Map<Integer, long[]> expected = new HashMap<>();
+    for (int i = 0; i < 20000; i++) {
+      int g = i % 2000;
+      int v = (i * 7919) % 20001 - 10000;
+      values[2 * i] = g;
+      values[2 * i + 1] = v;
+      long[] agg = expected.computeIfAbsent(g, k -> new long[] { 0, 0, Integer.MAX_VALUE, Integer.MIN_VALUE });
+      agg[0]++;
+      agg[1] += v;
+      agg[2] = Math.min(agg[2], v);
+      agg[3] = Math.max(agg[3], v);
+    }
+    OpIterator scan = TestUtil.createTupleList(2, values);
+    MultiAggregator agg = new MultiAggregator(scan.getTupleDesc(), new int[] { 0 }, new int[] { 1, 1, 1, 1, 1 },
+        new Aggregator.Op[] { Aggregator.Op.COUNT, Aggregator.Op.SUM, Aggregator.Op.MIN, Aggregator.Op.MAX,
+            Aggregator.Op.AVG }, 1);
+    scan.open();
+    agg.mergeTuplesInParallel(scan, 4);
+    scan.close();
+    OpIterator it = agg.iterator();
+    it.open();
+    Set<Integer> groups = new HashSet<>();
+    while (it.hasNext()) {
+      Tuple t = it.next();
+      int g = ((IntField) t.getField(0)).getValue();
+      assertTrue(groups.add(g));
+      long[] e = expected.get(g);
+      assertEquals(e[0], ((IntField) t.getField(1)).getValue());
+      assertEquals(e[1], ((IntField) t.getField(2)).getValue());
+      assertEquals(e[2], ((IntField) t.getField(3)).getValue());
+      assertEquals(e[3], ((IntField) t.getField(4)).getValue());
+      assertEquals(e[1] / e[0], ((IntField) t.getField(5)).getValue());
+    }
+    assertEquals(2000, groups.size());
+    it.close();
+    agg.close();
+  }
+
   /**
    * JUnit suite target
    */
@@ -0,0 +1,199 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Type;
+import simpledb.common.Utility;
+import simpledb.execution.Aggregate;
+import simpledb.execution.Aggregator;
+import simpledb.execution.BatchIterator;
+import simpledb.execution.BatchedPlan;
+import simpledb.execution.Filter;
+import simpledb.execution.HashEquiJoin;
+import simpledb.execution.JoinPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Predicate;
+import simpledb.execution.Project;
+import simpledb.execution.SeqScan;
+import simpledb.execution.TupleBatcher;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.storage.TupleBatch;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+public class BatchTest extends SimpleDbTestBase {
+
+  HeapFile big;
+  HeapFile small;
+  TransactionId tid;
+
+  /**
+   * Initialize each unit test
+   */
+  @Before
+  public void createTables() throws Exception {
+    big = SystemTestUtil.createRandomHeapFile(3, 6000, 50, new HashMap<>(), new ArrayList<>());
+    small = SystemTestUtil.createRandomHeapFile(2, 600, 50, new HashMap<>(), new ArrayList<>());
+    tid = new TransactionId();
+  }
+
+  @After
+  public void tearDown() {
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * @return the tuples of an operator as sorted strings
+   */
+  private static List<String> rows(OpIterator it) throws Exception {
+    List<String> rows = new ArrayList<>();
+    it.open();
+    while (it.hasNext()) {
+      rows.add(it.next().toString());
+    }
+    it.close();
+    rows.sort(null);
+    return rows;
+  }
+
+  /**
+   * Check that a plan returns the same tuples when it runs on batches
+   */
+  private static void checkBatched(OpIterator plan) throws Exception {
+    List<String> expected = rows(plan);
+    assertFalse(expected.isEmpty());
+    assertEquals(expected, rows(new BatchedPlan(plan)));
+  }
+
+  /**
+   * Unit test for the rows, selections and projections of a TupleBatch
+   */
+  @Test
+  public void tupleBatch() throws Exception {
+    TupleBatch batch = new TupleBatch(Utility.getTupleDesc(2), 3);
+    for (int i = 0; i < 3; i++) {
+      batch.add(Utility.getHeapTuple(new int[] { i, 10 * i }));
+    }
+    assertTrue(batch.isFull());
+    assertEquals(20, batch.getInt(1, 2));
+
+    TupleBatch selected = batch.select(new int[] { 2, 0 }, 2);
+    assertEquals(2, selected.size());
+    assertEquals(new IntField(2), selected.getField(0, 0));
+    assertTrue(selected.isFull());
+
+    TupleBatch projected = selected.project(new int[] { 1 }, Utility.getTupleDesc(1));
+    assertEquals(Arrays.asList(20, 0), Arrays.asList(projected.getInt(0, 0), projected.getInt(0, 1)));
+    assertTrue(TestUtil.compareTuples(Utility.getHeapTuple(new int[] { 0 }), projected.getTuple(1)));
+  }
+
+  /**
+   * Unit test for the adapter from tuples to batches
+   */
+  @Test
+  public void tupleBatcher() throws Exception {
+    OpIterator scan = TestUtil.createTupleList(1, new int[] { 1, 2, 3, 4, 5, 6, 7, 8 });
+    BatchIterator batches = new TupleBatcher(scan, 3);
+    batches.open();
+    assertEquals(3, batches.nextBatch().size());
+    assertEquals(3, batches.nextBatch().size());
+    TupleBatch last = batches.nextBatch();
+    assertEquals(2, last.size());
+    assertEquals(8, last.getInt(0, 1));
+    assertNull(batches.nextBatch());
+    batches.rewind();
+    assertEquals(1, batches.nextBatch().getInt(0, 0));
+    batches.close();
+  }
+
+  /**
+   * Filters and projections over a scan return the same tuples on batches
+   */
+  @Test
+  public void filterProject() throws Exception {
+    for (Predicate.Op op : Predicate.Op.values()) {
+      checkBatched(new Filter(new Predicate(1, op, new IntField(20)), new SeqScan(tid, big.getId())));
+    }
+    OpIterator filter = new Filter(new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(10)),
+        new Filter(new Predicate(1, Predicate.Op.LESS_THAN, new IntField(30)), new SeqScan(tid, big.getId())));
+    checkBatched(new Project(Arrays.asList(2, 0), new Type[] { Type.INT_TYPE, Type.INT_TYPE }, filter));
+  }
+
+  /**
+   * Aggregates return the same groups on batches
+   */
+  @Test
+  public void aggregate() throws Exception {
+    checkBatched(new Aggregate(new SeqScan(tid, big.getId()), new int[] { 1, 2, 1 }, new int[] { 0 },
+        new Aggregator.Op[] { Aggregator.Op.SUM, Aggregator.Op.COUNT, Aggregator.Op.MAX }));
+    OpIterator filter = new Filter(new Predicate(2, Predicate.Op.LESS_THAN_OR_EQ, new IntField(25)),
+        new SeqScan(tid, big.getId()));
+    checkBatched(new Aggregate(filter, new int[] { 0, 1, 2 }, new int[0],
+        new Aggregator.Op[] { Aggregator.Op.MIN, Aggregator.Op.AVG, Aggregator.Op.COUNT }));
+    checkBatched(new Aggregate(new SeqScan(tid, small.getId()), 1, 0, Aggregator.Op.AVG));
+  }
+
+  /**
+   * Hash joins return the same tuples on batches, also when they spill
+   */
+  @Test
+  public void hashJoin() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 1);
+    checkBatched(new HashEquiJoin(pred, new SeqScan(tid, small.getId()), new SeqScan(tid, big.getId())));
+    checkBatched(new HashEquiJoin(pred, new SeqScan(tid, small.getId()), new SeqScan(tid, big.getId()), 1));
+  }
+
+  /**
+   * Query plans whose operators all have batch implementations run on
+   * batches
+   */
+  @Test
+  public void parsedQuery() throws Exception {
+    List<List<Integer>> tuples = new ArrayList<>();
+    HeapFile f = SystemTestUtil.createRandomHeapFile(3, 6000, 50, new HashMap<>(), tuples, "c");
+    Database.getCatalog().addTable(f, "batch_test");
+    TableStats.computeStatistics();
+
+    Parser p = new Parser();
+    OpIterator plan = p.generateLogicalPlan(tid, "SELECT t.c2, t.c0 FROM batch_test t WHERE t.c1 < 20;")
+        .physicalPlan(tid, TableStats.getStatsMap(), false);
+    assertTrue(plan instanceof BatchedPlan);
+    List<String> expected = new ArrayList<>();
+    for (List<Integer> t : tuples) {
+      if (t.get(1) < 20) {
+        expected.add(t.get(2) + " " + t.get(0) + " ");
+      }
+    }
+    expected.sort(null);
+    assertEquals(expected, rows(plan));
+
+    // a plan with an operator without batch implementation runs on tuples
+    plan = p.generateLogicalPlan(tid, "SELECT t.c2, t.c0 FROM batch_test t WHERE t.c1 < 20 ORDER BY t.c2;")
+        .physicalPlan(tid, TableStats.getStatsMap(), false);
+    assertFalse(plan instanceof BatchedPlan);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(BatchTest.class);
+  }
+}
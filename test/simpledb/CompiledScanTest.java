@@ -0,0 +1,182 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Type;
+import simpledb.execution.CompiledScan;
+import simpledb.execution.Exchange;
+import simpledb.execution.Filter;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Operator;
+import simpledb.execution.PipelineCompiler;
+import simpledb.execution.Predicate;
+import simpledb.execution.Project;
+import simpledb.execution.SeqScan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+public class CompiledScanTest extends SimpleDbTestBase {
+
+  HeapFile f;
+  List<List<Integer>> tuples;
+  TransactionId tid;
+
+  /**
+   * Initialize each unit test
+   */
+  @Before
+  public void createTable() throws Exception {
+    tuples = new ArrayList<>();
+    f = SystemTestUtil.createRandomHeapFile(3, 6000, 50, new HashMap<>(), tuples);
+    tid = new TransactionId();
+  }
+
+  @After
+  public void tearDown() {
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * @return the tuples of an operator as sorted strings
+   */
+  private static List<String> rows(OpIterator it) throws Exception {
+    List<String> rows = new ArrayList<>();
+    it.open();
+    while (it.hasNext()) {
+      rows.add(it.next().toString());
+    }
+    it.close();
+    rows.sort(null);
+    return rows;
+  }
+
+  /**
+   * Unit test for filters fused into a CompiledScan
+   */
+  @Test
+  public void compiledFilters() throws Exception {
+    for (Predicate.Op op : Predicate.Op.values()) {
+      OpIterator filter = new Filter(new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(10)),
+          new Filter(new Predicate(1, op, new IntField(20)), new SeqScan(tid, f.getId())));
+      OpIterator compiled = PipelineCompiler.compile(filter);
+      assertTrue(compiled instanceof CompiledScan);
+      assertEquals(2, ((CompiledScan) compiled).getPredicates().length);
+      assertEquals(filter.getTupleDesc(), compiled.getTupleDesc());
+      assertEquals(rows(filter), rows(compiled));
+    }
+
+    // the scans of the fragments of an exchange share the pages of the table
+    OpIterator compiled = PipelineCompiler.compile(
+        new Filter(new Predicate(2, Predicate.Op.LESS_THAN_OR_EQ, new IntField(30)), new SeqScan(tid, f.getId())));
+    assertEquals(rows(compiled), rows(new Exchange(Exchange.partition(compiled, 2))));
+  }
+
+  /**
+   * Projections and filters over a CompiledScan are fused into it
+   */
+  @Test
+  public void compiledProjection() throws Exception {
+    OpIterator compiled = PipelineCompiler.compile(new Project(Arrays.asList(2, 0),
+        new Type[] { Type.INT_TYPE, Type.INT_TYPE },
+        new Filter(new Predicate(1, Predicate.Op.LESS_THAN, new IntField(25)), new SeqScan(tid, f.getId()))));
+    assertTrue(compiled instanceof CompiledScan);
+    assertArrayEquals(new int[] { 2, 0 }, ((CompiledScan) compiled).getFields());
+
+    // field 0 of the projection is field 2 of the scan
+    OpIterator twice = PipelineCompiler.compile(new Project(Arrays.asList(1), new Type[] { Type.INT_TYPE },
+        new Filter(new Predicate(0, Predicate.Op.NOT_EQUALS, new IntField(7)), compiled)));
+    CompiledScan fused = (CompiledScan) twice;
+    assertEquals(2, fused.getPredicates()[1].getField());
+    assertArrayEquals(new int[] { 0 }, fused.getFields());
+    assertTrue(fused.getChildren()[0] instanceof SeqScan);
+
+    List<String> expected = new ArrayList<>();
+    for (List<Integer> t : tuples) {
+      if (t.get(1) < 25 && t.get(2) != 7) {
+        expected.add(t.get(0) + " ");
+      }
+    }
+    expected.sort(null);
+    assertEquals(expected, rows(twice));
+
+    // a scan without filters is not compiled
+    OpIterator scan = new SeqScan(tid, f.getId());
+    assertTrue(PipelineCompiler.compile(scan) == scan);
+  }
+
+  /**
+   * A CompiledScan interprets its filters until their loop is compiled in
+   * the background, and then runs the compiled loop
+   */
+  @Test
+  public void backgroundCompilation() throws Exception {
+    OpIterator filter = new Filter(new Predicate(2, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(17)),
+        new Filter(new Predicate(0, Predicate.Op.NOT_EQUALS, new IntField(3)), new SeqScan(tid, f.getId())));
+    CompiledScan compiled = (CompiledScan) PipelineCompiler.compile(filter);
+    List<String> expected = rows(filter);
+    assertEquals(expected, rows(compiled));
+
+    long deadline = System.currentTimeMillis() + 60000;
+    while (!PipelineCompiler.isCompiled(compiled.getPredicates(), f.getTupleDesc())) {
+      assertTrue(System.currentTimeMillis() < deadline);
+      Thread.sleep(10);
+    }
+    assertEquals(expected, rows(compiled));
+  }
+
+  /**
+   * The filters over a big table are compiled in query plans
+   */
+  @Test
+  public void parsedQuery() throws Exception {
+    List<List<Integer>> bigTuples = new ArrayList<>();
+    HeapFile big = SystemTestUtil.createRandomHeapFile(3, 25000, 100, new HashMap<>(), bigTuples, "c");
+    Database.getCatalog().addTable(big, "compiled_test");
+    TableStats.computeStatistics();
+
+    Parser p = new Parser();
+    OpIterator plan = p.generateLogicalPlan(tid,
+        "SELECT t.c0 FROM compiled_test t WHERE t.c1 < 20 AND t.c2 >= 50;")
+        .physicalPlan(tid, TableStats.getStatsMap(), false);
+    OpIterator node = plan;
+    while (!(node instanceof CompiledScan)) {
+      assertTrue(node instanceof Operator);
+      node = ((Operator) node).getChildren()[0];
+    }
+    assertNotNull(node);
+
+    List<String> expected = new ArrayList<>();
+    for (List<Integer> t : bigTuples) {
+      if (t.get(1) < 20 && t.get(2) >= 50) {
+        expected.add(t.get(0) + " ");
+      }
+    }
+    expected.sort(null);
+    assertEquals(expected, rows(plan));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(CompiledScanTest.class);
+  }
+}
@@ -0,0 +1,232 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.execution.Aggregate;
+import simpledb.execution.Aggregator;
+import simpledb.execution.Exchange;
+import simpledb.execution.Filter;
+import simpledb.execution.Join;
+import simpledb.execution.JoinPredicate;
+import simpledb.execution.Limit;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Predicate;
+import simpledb.execution.SeqScan;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+public class ExchangeTest extends SimpleDbTestBase {
+
+  HeapFile big;
+  List<List<Integer>> bigTuples;
+  HeapFile small;
+  List<List<Integer>> smallTuples;
+  TransactionId tid;
+
+  /**
+   * Initialize each unit test
+   */
+  @Before
+  public void createTables() throws Exception {
+    bigTuples = new ArrayList<>();
+    big = SystemTestUtil.createRandomHeapFile(3, 6000, 50, new HashMap<>(), bigTuples);
+    smallTuples = new ArrayList<>();
+    small = SystemTestUtil.createRandomHeapFile(2, 600, 50, new HashMap<>(), smallTuples);
+    tid = new TransactionId();
+  }
+
+  @After
+  public void tearDown() {
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  private static int count(OpIterator it) throws Exception {
+    int count = 0;
+    while (it.hasNext()) {
+      it.next();
+      count++;
+    }
+    return count;
+  }
+
+  private int joinCount() {
+    int expected = 0;
+    for (List<Integer> t1 : bigTuples) {
+      for (List<Integer> t2 : smallTuples) {
+        if (t1.get(1).equals(t2.get(0))) {
+          expected++;
+        }
+      }
+    }
+    return expected;
+  }
+
+  /**
+   * Unit test for a gathering Exchange over copies of a filter
+   */
+  @Test
+  public void gather() throws Exception {
+    Filter filter = new Filter(new Predicate(0, Predicate.Op.LESS_THAN, new IntField(10)),
+        new SeqScan(tid, big.getId()));
+    Exchange op = new Exchange(Exchange.partition(filter, 4));
+    assertEquals(4, op.getWorkers());
+    assertEquals(filter.getTupleDesc(), op.getTupleDesc());
+
+    int expected = 0;
+    for (List<Integer> t : bigTuples) {
+      if (t.get(0) < 10) {
+        expected++;
+      }
+    }
+    op.open();
+    assertEquals(expected, count(op));
+    op.rewind();
+    assertEquals(expected, count(op));
+    op.close();
+  }
+
+  /**
+   * Unit test for a gathering Exchange over copies of a join, which only
+   * partition the outer side
+   */
+  @Test
+  public void partitionedJoin() throws Exception {
+    Join join = new Join(new JoinPredicate(1, Predicate.Op.EQUALS, 0), new SeqScan(tid, big.getId()),
+        new SeqScan(tid, small.getId()));
+    Exchange op = new Exchange(Exchange.partition(join, 3));
+    op.open();
+    assertEquals(joinCount(), count(op));
+    op.close();
+  }
+
+  /**
+   * Unit test for an Exchange that repartitions tuples by hash to parallel
+   * aggregates
+   */
+  @Test
+  public void repartition() throws Exception {
+    Exchange shuffle = new Exchange(Exchange.partition(new SeqScan(tid, big.getId()), 3),
+        Exchange.Mode.REPARTITION, 0, 2);
+    OpIterator[] aggregates = new OpIterator[2];
+    for (int i = 0; i < 2; i++) {
+      aggregates[i] = new Aggregate(shuffle.getOutput(i), new int[] { 1, 2 }, new int[] { 0 },
+          new Aggregator.Op[] { Aggregator.Op.SUM, Aggregator.Op.COUNT });
+    }
+    Exchange op = new Exchange(aggregates);
+
+    Aggregate expected = new Aggregate(new SeqScan(tid, big.getId()), new int[] { 1, 2 }, new int[] { 0 },
+        new Aggregator.Op[] { Aggregator.Op.SUM, Aggregator.Op.COUNT });
+    expected.open();
+    op.open();
+    int groups = count(expected);
+    expected.rewind();
+    // every group is aggregated by exactly one of the parallel aggregates
+    TestUtil.matchAllTuples(expected, op);
+    op.close();
+    op.open();
+    assertEquals(groups, count(op));
+    op.close();
+  }
+
+  /**
+   * Unit test for an Exchange that broadcasts the inner side of joins,
+   * which rewind it
+   */
+  @Test
+  public void broadcast() throws Exception {
+    Exchange inner = new Exchange(Exchange.partition(new SeqScan(tid, small.getId()), 2),
+        Exchange.Mode.BROADCAST, -1, 3);
+    OpIterator[] outer = Exchange.partition(new SeqScan(tid, big.getId()), 3);
+    OpIterator[] joins = new OpIterator[3];
+    for (int i = 0; i < 3; i++) {
+      joins[i] = new Join(new JoinPredicate(1, Predicate.Op.EQUALS, 0), outer[i], inner.getOutput(i));
+    }
+    Exchange op = new Exchange(joins);
+    op.open();
+    assertEquals(joinCount(), count(op));
+    op.close();
+  }
+
+  /**
+   * Exchange.partition refuses subtrees whose result is not the union of
+   * their results over partitions of the input
+   */
+  @Test(expected = IllegalArgumentException.class)
+  public void partitionAggregate() {
+    Aggregate agg = new Aggregate(new SeqScan(tid, big.getId()), 1, 0, Aggregator.Op.SUM);
+    Exchange.partition(agg, 2);
+  }
+
+  /**
+   * The outputs of a repartitioning Exchange cannot be rewound
+   */
+  @Test
+  public void repartitionRewind() throws Exception {
+    Exchange shuffle = new Exchange(Exchange.partition(new SeqScan(tid, small.getId()), 2),
+        Exchange.Mode.REPARTITION, 0, 1);
+    OpIterator out = shuffle.getOutput(0);
+    out.open();
+    assertEquals(smallTuples.size(), count(out));
+    try {
+      out.rewind();
+      assertTrue("expected exception", false);
+    } catch (simpledb.common.DbException expected) {
+    }
+    out.close();
+  }
+
+  /**
+   * @return the number of exchange worker threads still alive; a stopped
+   * pool may take a moment to let its threads exit
+   */
+  private static int liveWorkers() throws InterruptedException {
+    int n = 0;
+    for (Thread t : Thread.getAllStackTraces().keySet()) {
+      if (t.getName().equals("simpledb-exchange-worker")) {
+        t.join(1000);
+        if (t.isAlive()) {
+          n++;
+        }
+      }
+    }
+    return n;
+  }
+
+  /**
+   * Closing an Exchange before its workers have finished, as a Limit above
+   * it does, stops the workers blocked on the full queue right away
+   */
+  @Test
+  public void closeUnderLimit() throws Exception {
+    // far more tuples than the queue holds, so every worker blocks on it
+    HeapFile huge = SystemTestUtil.createRandomHeapFile(1, 100000, 50, null, null);
+    Limit limit = new Limit(10, 0, new Exchange(Exchange.partition(new SeqScan(tid, huge.getId()), 4)));
+    limit.open();
+    assertEquals(10, count(limit));
+    long start = System.currentTimeMillis();
+    limit.close();
+    assertTrue(System.currentTimeMillis() - start < 5000);
+    assertEquals(0, liveWorkers());
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(ExchangeTest.class);
+  }
+}
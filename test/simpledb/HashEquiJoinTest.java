@@ -0,0 +1,130 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.execution.HashEquiJoin;
+import simpledb.execution.JoinPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Predicate;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class HashEquiJoinTest extends SimpleDbTestBase {
+
+  OpIterator scan1;
+  OpIterator scan2;
+  OpIterator eqJoin;
+
+  /**
+   * Initialize each unit test
+   */
+  @Before
+  public void createTupleLists() {
+    this.scan1 = TestUtil.createTupleList(2, new int[] { 1, 2, 3, 4, 5, 6, 7, 8 });
+    this.scan2 = TestUtil.createTupleList(3, new int[] { 1, 2, 3, 2, 3, 4, 3, 4, 5, 4, 5, 6, 5, 6, 7 });
+    this.eqJoin = TestUtil.createTupleList(5, new int[] { 1, 2, 1, 2, 3, 3, 4, 3, 4, 5, 5, 6, 5, 6, 7 });
+  }
+
+  /**
+   * Build a two column relation with n tuples whose first column is i % keys
+   * and second column is i.
+   */
+  private static OpIterator createRelation(int n, int keys) {
+    int[] data = new int[2 * n];
+    for (int i = 0; i < n; i++) {
+      data[2 * i] = i % keys;
+      data[2 * i + 1] = i;
+    }
+    return TestUtil.createTupleList(2, data);
+  }
+
+  /**
+   * Count the tuples of a join, checking that the join keys match.
+   */
+  private static int countJoin(OpIterator op) throws Exception {
+    int count = 0;
+    op.open();
+    while (op.hasNext()) {
+      Tuple t = op.next();
+      assertEquals(((IntField) t.getField(0)).getValue(), ((IntField) t.getField(2)).getValue());
+      count++;
+    }
+    op.close();
+    return count;
+  }
+
+  /**
+   * Unit test for HashEquiJoin.getNext() when everything fits in memory
+   */
+  @Test
+  public void eqJoin() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    HashEquiJoin op = new HashEquiJoin(pred, scan1, scan2);
+    op.open();
+    eqJoin.open();
+    TestUtil.matchAllTuples(eqJoin, op);
+  }
+
+  /**
+   * Unit test for HashEquiJoin.rewind()
+   */
+  @Test
+  public void rewind() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    HashEquiJoin op = new HashEquiJoin(pred, createRelation(3000, 500), createRelation(2000, 700), 1);
+    op.open();
+    int count = 0;
+    while (op.hasNext()) {
+      op.next();
+      count++;
+    }
+    assertTrue(TestUtil.checkExhausted(op));
+    op.rewind();
+    while (op.hasNext()) {
+      op.next();
+      count--;
+    }
+    assertEquals(0, count);
+  }
+
+  /**
+   * The build input is much larger than the memory budget, so partitions are
+   * spilled and joined in later passes.
+   */
+  @Test
+  public void spillingJoin() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    // 5000 build tuples, 512 fit on one page; keys 0..999 appear 5 times on
+    // the left and 0..699 appear 4 or 5 times on the right
+    OpIterator op = new HashEquiJoin(pred, createRelation(5000, 1000), createRelation(3000, 700), 1);
+    int expected = 0;
+    for (int key = 0; key < 700; key++) {
+      expected += 5 * (3000 / 700 + (key < 3000 % 700 ? 1 : 0));
+    }
+    assertEquals(expected, countJoin(op));
+  }
+
+  /**
+   * All build tuples share one key, so re-partitioning never helps and the
+   * join falls back to joining the partition chunk by chunk.
+   */
+  @Test
+  public void skewedJoin() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    OpIterator op = new HashEquiJoin(pred, createRelation(2000, 1), createRelation(3, 1), 1);
+    assertEquals(6000, countJoin(op));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(HashEquiJoinTest.class);
+  }
+}
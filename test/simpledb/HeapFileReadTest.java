@@ -124,6 +124,89 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         it.close();
     }
 
+    /**
+     * Unit test for HeapFile.iterator() over partitions of the pages
+     */
+    @Test
+    public void testPartitionedIterator() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile fourPageFile = SystemTestUtil.createRandomHeapFile(2, 2000, null, tuples);
+        assertEquals(4, fourPageFile.numPages());
+
+        List<List<Integer>> scanned = new ArrayList<>();
+        for (int partition = 0; partition < 3; partition++) {
+            DbFileIterator it = fourPageFile.iterator(tid, partition, 3);
+            it.open();
+            while (it.hasNext()) {
+                scanned.add(SystemTestUtil.tupleToList(it.next()));
+            }
+            it.close();
+        }
+        assertEquals(tuples.size(), scanned.size());
+        Collections.sort(tuples, Comparator.comparing(Object::toString));
+        Collections.sort(scanned, Comparator.comparing(Object::toString));
+        assertEquals(tuples, scanned);
+
+        // partitions beyond the last page are empty
+        DbFileIterator it = fourPageFile.iterator(tid, 5, 6);
+        it.open();
+        assertFalse(it.hasNext());
+    }
+
+    /**
+     * Unit test for HeapFile.iterator() over morsels claimed from a shared
+     * cursor by several threads
+     */
+    @Test
+    public void testMorselIterator() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile file = SystemTestUtil.createRandomHeapFile(2, 10000, null, tuples);
+        HeapFile.MorselCursor cursor = new HeapFile.MorselCursor(2);
+
+        List<List<List<Integer>>> scanned = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            List<List<Integer>> part = Collections.synchronizedList(new ArrayList<>());
+            scanned.add(part);
+            DbFileIterator it = file.iterator(tid, cursor);
+            threads.add(new Thread(() -> {
+                try {
+                    it.open();
+                    while (it.hasNext()) {
+                        part.add(SystemTestUtil.tupleToList(it.next()));
+                    }
+                    it.close();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }));
+        }
+        for (Thread t : threads) {
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        List<List<Integer>> all = new ArrayList<>();
+        for (List<List<Integer>> part : scanned) {
+            all.addAll(part);
+        }
+        Collections.sort(tuples, Comparator.comparing(Object::toString));
+        Collections.sort(all, Comparator.comparing(Object::toString));
+        assertEquals(tuples, all);
+
+        // after a reset, the cursor hands out all pages again
+        cursor.reset();
+        DbFileIterator it = file.iterator(tid, cursor);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        assertEquals(tuples.size(), count);
+    }
+
     /**
      * JUnit suite target
      */
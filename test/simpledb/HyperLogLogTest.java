@@ -0,0 +1,44 @@
+package simpledb;
+
+import org.junit.Test;
+import org.junit.Assert;
+
+import simpledb.optimizer.HyperLogLog;
+
+public class HyperLogLogTest {
+
+	/**
+	 * Make sure that small counts are about exact and large ones are within a
+	 * few standard errors.
+	 */
+	@Test public void estimateTest() {
+		HyperLogLog h = new HyperLogLog();
+		Assert.assertEquals(0, h.estimate());
+
+		for (int c = 0; c < 100; c++) {
+			h.addInt(c);
+			h.addInt(c);
+		}
+		Assert.assertEquals(100, h.estimate(), 3);
+
+		for (int c = 0; c < 1000000; c++) {
+			h.addInt(c * 7919);
+		}
+		Assert.assertEquals(1000000, h.estimate(), 1000000 * 0.07);
+	}
+
+	/**
+	 * Make sure that repeated strings are counted once.
+	 */
+	@Test public void stringTest() {
+		HyperLogLog h = new HyperLogLog();
+		for (int c = 0; c < 20000; c++) {
+			h.addString("value" + c);
+		}
+		Assert.assertEquals(20000, h.estimate(), 20000 * 0.07);
+		for (int c = 10000; c < 30000; c++) {
+			h.addString("value" + c);
+		}
+		Assert.assertEquals(30000, h.estimate(), 30000 * 0.07);
+	}
+}
@@ -3,6 +3,8 @@ package simpledb;
 import org.junit.Test;
 import org.junit.Assert;
 
+import java.util.Random;
+
 import simpledb.execution.Predicate.Op;
 import simpledb.optimizer.IntHistogram;
 
@@ -175,4 +177,56 @@ public class IntHistogramTest {
 		Assert.assertTrue(h.estimateSelectivity(Op.NOT_EQUALS, 3) < 0.001);
 		Assert.assertTrue(h.estimateSelectivity(Op.NOT_EQUALS, 8) > 0.01);
 	}
+
+	/**
+	 * Make sure that a value that is far more common than the others is
+	 * estimated on its own, and does not skew the estimates of its neighbors.
+	 */
+	@Test public void mostCommonValueTest() {
+		IntHistogram h = new IntHistogram(100, 0, 10000);
+		Random r = new Random(1);
+		for (int c = 0; c < 100000; c++) {
+			h.addValue(c % 2 == 0 ? 7 : r.nextInt(10000));
+		}
+
+		Assert.assertEquals(0.5, h.estimateSelectivity(Op.EQUALS, 7), 0.02);
+		Assert.assertTrue(h.estimateSelectivity(Op.EQUALS, 8) < 0.001);
+		Assert.assertTrue(h.estimateSelectivity(Op.EQUALS, 8) > 0.00001);
+		Assert.assertEquals(0.75, h.estimateSelectivity(Op.LESS_THAN, 5000), 0.03);
+		Assert.assertEquals(0.25, h.estimateSelectivity(Op.GREATER_THAN, 5000), 0.03);
+		// about 1/4 of the pairs are pairs of 7s
+		Assert.assertEquals(0.25, h.avgSelectivity(), 0.02);
+	}
+
+	/**
+	 * Make sure that dense ranges of values get narrow buckets.
+	 */
+	@Test public void skewedRangeTest() {
+		IntHistogram h = new IntHistogram(100, 0, 1000000);
+		Random r = new Random(1);
+		for (int c = 0; c < 100000; c++) {
+			h.addValue(c % 10 == 0 ? r.nextInt(1000000) : r.nextInt(100));
+		}
+
+		// an equi-width histogram would put all of [0, 100) into one bucket
+		Assert.assertEquals(0.45, h.estimateSelectivity(Op.LESS_THAN, 50), 0.05);
+		Assert.assertEquals(0.95, h.estimateSelectivity(Op.LESS_THAN, 500000), 0.05);
+		Assert.assertEquals(0.009, h.estimateSelectivity(Op.EQUALS, 10), 0.005);
+	}
+
+	/**
+	 * Make sure that the distinct values of a bucket are counted among all
+	 * values, not only among the sampled ones.
+	 */
+	@Test public void uniqueValuesTest() {
+		IntHistogram h = new IntHistogram(100, 0, 1000000);
+		// every value in [0, 1000000) once, in a scrambled order
+		for (int c = 0; c < 1000000; c++) {
+			h.addValue((int) ((c * 7919L) % 1000000));
+		}
+
+		Assert.assertEquals(1e-6, h.estimateSelectivity(Op.EQUALS, 123456), 2e-7);
+		Assert.assertEquals(1e-6, h.avgSelectivity(), 2e-7);
+		Assert.assertEquals(0.5, h.estimateSelectivity(Op.LESS_THAN, 500000), 0.05);
+	}
 }
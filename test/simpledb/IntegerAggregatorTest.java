@@ -1,6 +1,7 @@
 package simpledb;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 
 import java.util.NoSuchElementException;
 
@@ -13,6 +14,8 @@ import simpledb.common.Type;
 import simpledb.execution.Aggregator;
 import simpledb.execution.IntegerAggregator;
 import simpledb.execution.OpIterator;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
 import simpledb.systemtest.SimpleDbTestBase;
 
 public class IntegerAggregatorTest extends SimpleDbTestBase {
@@ -161,6 +164,57 @@ public class IntegerAggregatorTest extends SimpleDbTestBase {
     }
   }
 
+  /**
+   * Test IntegerAggregator with more groups than fit in its memory budget,
+   * so that groups are spilled to disk
+   */
+  @Test
+  public void spillingGroups() throws Exception {
+    // one page holds the accumulators of about 40 groups
+    int groups = 3000;
+    int[] values = new int[2 * 3 * groups];
+    for (int i = 0; i < 3 * groups; i++) {
+      values[2 * i] = (i * 7) % groups;
+      values[2 * i + 1] = i;
+    }
+    OpIterator scan = TestUtil.createTupleList(width1, values);
+    IntegerAggregator sumAgg = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.SUM, 1);
+    IntegerAggregator countAgg = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.COUNT, 1);
+    scan.open();
+    long[] expectedSums = new long[groups];
+    while (scan.hasNext()) {
+      Tuple t = scan.next();
+      sumAgg.mergeTupleIntoGroup(t);
+      countAgg.mergeTupleIntoGroup(t);
+      expectedSums[((IntField) t.getField(0)).getValue()] += ((IntField) t.getField(1)).getValue();
+    }
+
+    for (int pass = 0; pass < 2; pass++) {
+      OpIterator it = sumAgg.iterator();
+      it.open();
+      boolean[] seen = new boolean[groups];
+      int n = 0;
+      while (it.hasNext()) {
+        Tuple t = it.next();
+        int g = ((IntField) t.getField(0)).getValue();
+        assertFalse(seen[g]);
+        seen[g] = true;
+        assertEquals(expectedSums[g], ((IntField) t.getField(1)).getValue());
+        n++;
+      }
+      assertEquals(groups, n);
+      it.close();
+    }
+
+    OpIterator it = countAgg.iterator();
+    it.open();
+    while (it.hasNext()) {
+      assertEquals(3, ((IntField) it.next().getField(1)).getValue());
+    }
+    sumAgg.close();
+    countAgg.close();
+  }
+
   /**
    * JUnit suite target
    */
@@ -11,7 +11,13 @@ import org.junit.Test;
 import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Utility;
+import simpledb.execution.HashEquiJoin;
+import simpledb.execution.Join;
+import simpledb.execution.JoinPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Operator;
 import simpledb.execution.Predicate;
+import simpledb.execution.SortMergeJoin;
 import simpledb.optimizer.JoinOptimizer;
 import simpledb.optimizer.LogicalJoinNode;
 import simpledb.optimizer.TableStats;
@@ -629,4 +635,239 @@ public class JoinOptimizerTest extends SimpleDbTestBase {
         Assert.assertTrue(result.get(result.size() - 1).t2Alias.equals("a")
                 || result.get(result.size() - 1).t1Alias.equals("a"));
     }
+
+    /**
+     * @return an optimizer for a chain of equality joins of tables t0, t1,
+     *         ..., with 100, 200, 300 or 400 tuples, given in random order
+     */
+    private static JoinOptimizer chainJoinOptimizer(int tables, Map<String, TableStats> stats,
+            Map<String, Double> filterSelectivities) throws IOException, ParsingException {
+        final int IO_COST = 103;
+
+        List<LogicalJoinNode> nodes = new ArrayList<>();
+        List<List<Integer>> tuples = new ArrayList<>();
+        SystemTestUtil.createRandomHeapFile(2, 400, Integer.MAX_VALUE, null, tuples, "c");
+        StringBuilder from = new StringBuilder();
+        StringBuilder where = new StringBuilder();
+        for (int i = 0; i < tables; i++) {
+            String name = "t" + i;
+            HeapFile f = createDuplicateHeapFile(tuples.subList(0, 100 * (i % 4 + 1)), 2, "c");
+            Database.getCatalog().addTable(f, name);
+            stats.put(name, new TableStats(f.getId(), IO_COST));
+            filterSelectivities.put(name, 1.0);
+            from.append(i == 0 ? "" : ", ").append(name);
+            if (i > 0) {
+                String field = "c" + (i % 2);
+                nodes.add(new LogicalJoinNode("t" + (i - 1), name, field, field, Predicate.Op.EQUALS));
+                where.append(i == 1 ? "" : " AND ").append("t").append(i - 1).append(".").append(field)
+                        .append(" = ").append(name).append(".").append(field);
+            }
+        }
+        Collections.shuffle(nodes);
+
+        Parser p = new Parser();
+        return new JoinOptimizer(p.generateLogicalPlan(new TransactionId(),
+                "SELECT COUNT(t0.c0) FROM " + from + " WHERE " + where + ";"), nodes);
+    }
+
+    /**
+     * Assert that every join of an order joins a table to the tables joined
+     * before it
+     */
+    private static void assertConnected(JoinOptimizer j, List<LogicalJoinNode> result, int tables) {
+        Set<String> joined = new HashSet<>();
+        for (LogicalJoinNode lj : result) {
+            Assert.assertTrue(joined.isEmpty() || joined.contains(lj.t1Alias) != joined.contains(lj.t2Alias));
+            Assert.assertNotNull(j.getJoinAlgorithm(lj));
+            joined.add(lj.t1Alias);
+            joined.add(lj.t2Alias);
+        }
+        Assert.assertEquals(tables, joined.size());
+    }
+
+    /**
+     * Joins of many tables are ordered quickly, and every join of the order
+     * joins a table to the tables joined before it
+     */
+    @Test(timeout = 30000)
+    public void longChainOrderJoinsTest() throws IOException, ParsingException {
+        final int TABLES = 40;
+
+        Map<String, TableStats> stats = new HashMap<>();
+        Map<String, Double> filterSelectivities = new HashMap<>();
+        JoinOptimizer j = chainJoinOptimizer(TABLES, stats, filterSelectivities);
+        List<LogicalJoinNode> result = j.orderJoins(stats, filterSelectivities, false);
+
+        Assert.assertEquals(TABLES - 1, result.size());
+        assertConnected(j, result, TABLES);
+    }
+
+    /**
+     * The heuristic join order of a query that dynamic programming can also
+     * order is not much costlier than the exact one
+     */
+    @Test(timeout = 30000)
+    public void heuristicOrderJoinsTest() throws IOException, ParsingException {
+        final int TABLES = 12;
+
+        Map<String, TableStats> stats = new HashMap<>();
+        Map<String, Double> filterSelectivities = new HashMap<>();
+        JoinOptimizer j = chainJoinOptimizer(TABLES, stats, filterSelectivities);
+        Assert.assertTrue(TABLES <= JoinOptimizer.getMaxExactTables());
+        j.orderJoins(stats, filterSelectivities, false);
+        double exactCost = j.getPlanCost();
+        Assert.assertTrue(exactCost > 0);
+
+        try {
+            JoinOptimizer.setMaxExactTables(2);
+            List<LogicalJoinNode> result = j.orderJoins(stats, filterSelectivities, false);
+            Assert.assertEquals(TABLES - 1, result.size());
+            assertConnected(j, result, TABLES);
+            double heuristicCost = j.getPlanCost();
+            Assert.assertTrue(heuristicCost >= exactCost * 0.999);
+            Assert.assertTrue(heuristicCost <= exactCost * 1.5);
+        } finally {
+            JoinOptimizer.setMaxExactTables(JoinOptimizer.DEFAULT_MAX_EXACT_TABLES);
+        }
+    }
+
+    /**
+     * Joins of tables that other joins have connected already, as in a
+     * cyclic join graph, are ordered by both the exact and the heuristic
+     * search, and are evaluated as filters
+     */
+    @Test
+    public void cyclicOrderJoinsTest() throws Exception {
+        List<List<Integer>> tuples3 = new ArrayList<>();
+        HeapFile f3 = SystemTestUtil.createRandomHeapFile(10, 100, 20, null, tuples3, "c");
+        Database.getCatalog().addTable(f3, "TC");
+        Map<String, TableStats> stats = new HashMap<>();
+        stats.put(tableName1, stats1);
+        stats.put(tableName2, stats2);
+        stats.put("TC", new TableStats(f3.getId(), 19));
+        Map<String, Double> filterSelectivities = new HashMap<>();
+        filterSelectivities.put(tableName1, 1.0);
+        filterSelectivities.put(tableName2, 1.0);
+        filterSelectivities.put("TC", 1.0);
+
+        String query = "SELECT * FROM TA, TB, TC WHERE TA.c0 = TB.c0 AND TB.c1 = TC.c1 AND TC.c2 = TA.c2"
+                + " AND TA.c3 = TB.c3;";
+        List<LogicalJoinNode> nodes = new ArrayList<>();
+        nodes.add(new LogicalJoinNode("TA", "TB", "c0", "c0", Predicate.Op.EQUALS));
+        nodes.add(new LogicalJoinNode("TB", "TC", "c1", "c1", Predicate.Op.EQUALS));
+        nodes.add(new LogicalJoinNode("TC", "TA", "c2", "c2", Predicate.Op.EQUALS));
+        nodes.add(new LogicalJoinNode("TA", "TB", "c3", "c3", Predicate.Op.EQUALS));
+        TransactionId tid = new TransactionId();
+        Parser p = new Parser();
+        JoinOptimizer j = new JoinOptimizer(p.generateLogicalPlan(tid, query), nodes);
+        Assert.assertEquals(nodes.size(), j.orderJoins(stats, filterSelectivities, false).size());
+        Assert.assertTrue(j.getPlanCost() > 0);
+        try {
+            JoinOptimizer.setMaxExactTables(2);
+            List<LogicalJoinNode> result = j.orderJoins(stats, filterSelectivities, false);
+            Assert.assertEquals(nodes.size(), result.size());
+            Assert.assertTrue(j.getPlanCost() > 0);
+            for (LogicalJoinNode lj : result) {
+                Assert.assertNotNull(j.getJoinAlgorithm(lj));
+            }
+        } finally {
+            JoinOptimizer.setMaxExactTables(JoinOptimizer.DEFAULT_MAX_EXACT_TABLES);
+        }
+
+        Map<List<Integer>, Integer> tcKeys = new HashMap<>();
+        for (List<Integer> t : tuples3) {
+            tcKeys.merge(Arrays.asList(t.get(1), t.get(2)), 1, Integer::sum);
+        }
+        int expected = 0;
+        for (List<Integer> a : tuples1) {
+            for (List<Integer> b : tuples2) {
+                if (a.get(0).equals(b.get(0)) && a.get(3).equals(b.get(3))) {
+                    expected += tcKeys.getOrDefault(Arrays.asList(b.get(1), a.get(2)), 0);
+                }
+            }
+        }
+        OpIterator plan = p.generateLogicalPlan(tid, query).physicalPlan(tid, stats, false);
+        int count = 0;
+        plan.open();
+        while (plan.hasNext()) {
+            plan.next();
+            count++;
+        }
+        plan.close();
+        Assert.assertEquals(expected, count);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * @return the topmost join of a physical plan
+     */
+    private static Operator topJoin(OpIterator plan) {
+        OpIterator node = plan;
+        while (!(node instanceof Join || node instanceof HashEquiJoin || node instanceof SortMergeJoin)) {
+            Assert.assertTrue(node instanceof Operator);
+            node = ((Operator) node).getChildren()[0];
+        }
+        return (Operator) node;
+    }
+
+    /**
+     * Big equality joins are evaluated as hash joins, and sort-merge joins
+     * are chosen for big inequality joins, passing their sorted output on
+     * to the next sort-merge join on the same field
+     */
+    @Test
+    public void joinAlgorithmTest() throws Exception {
+        final int IO_COST = 1000;
+
+        List<List<Integer>> bigTuples1 = new ArrayList<>();
+        HeapFile big1 = SystemTestUtil.createRandomHeapFile(10, 20000, 20000, null, bigTuples1, "c");
+        List<List<Integer>> bigTuples2 = new ArrayList<>();
+        HeapFile big2 = SystemTestUtil.createRandomHeapFile(10, 20000, 20000, null, bigTuples2, "c");
+        HeapFile big3 = SystemTestUtil.createRandomHeapFile(2, 20000, 20000, null, new ArrayList<>(), "c");
+        Database.getCatalog().addTable(big1, "big1");
+        Database.getCatalog().addTable(big2, "big2");
+        Database.getCatalog().addTable(big3, "big3");
+        Map<String, TableStats> stats = new HashMap<>();
+        stats.put("big1", new TableStats(big1.getId(), IO_COST));
+        stats.put("big2", new TableStats(big2.getId(), IO_COST));
+        stats.put("big3", new TableStats(big3.getId(), IO_COST));
+
+        TransactionId tid = new TransactionId();
+        Parser p = new Parser();
+        OpIterator plan = p.generateLogicalPlan(tid,
+                "SELECT * FROM big1, big2 WHERE big1.c0 = big2.c1;").physicalPlan(tid, stats, false);
+        Assert.assertTrue(topJoin(plan) instanceof HashEquiJoin);
+
+        Map<Integer, Integer> keys = new HashMap<>();
+        for (List<Integer> t : bigTuples2) {
+            keys.merge(t.get(1), 1, Integer::sum);
+        }
+        int expected = 0;
+        for (List<Integer> t : bigTuples1) {
+            expected += keys.getOrDefault(t.get(0), 0);
+        }
+        int count = 0;
+        plan.open();
+        while (plan.hasNext()) {
+            plan.next();
+            count++;
+        }
+        plan.close();
+        Assert.assertEquals(expected, count);
+
+        plan = p.generateLogicalPlan(tid,
+                "SELECT * FROM big1, big2, big3 WHERE big1.c0 < big2.c0 AND big1.c0 < big3.c1;")
+                .physicalPlan(tid, stats, false);
+        Operator top = topJoin(plan);
+        Assert.assertTrue(top instanceof SortMergeJoin);
+        // the first join is not sorted again, whichever input of the second
+        // join it is
+        JoinPredicate pred = ((SortMergeJoin) top).getJoinPredicate();
+        OpIterator[] children = top.getChildren();
+        Assert.assertTrue(children[0] instanceof SortMergeJoin || children[1] instanceof SortMergeJoin);
+        Assert.assertTrue(children[0] instanceof SortMergeJoin
+                ? SortMergeJoin.isSortedOn(children[0], pred.getField1())
+                : SortMergeJoin.isSortedOn(children[1], pred.getField2()));
+        Database.getBufferPool().transactionComplete(tid);
+    }
 }
@@ -96,6 +96,52 @@ public class JoinTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(eqJoin, op);
   }
 
+  /**
+   * Unit test for Join.getNext() when the outer relation spans several blocks
+   */
+  @Test
+  public void multiBlockJoin() throws Exception {
+    // 2000 outer tuples of 8 bytes fill 4 one-page blocks
+    int[] outer = new int[2 * 2000];
+    for (int i = 0; i < 2000; i++) {
+      outer[2 * i] = outer[2 * i + 1] = i % 100;
+    }
+    int[] inner = new int[2 * 50];
+    for (int i = 0; i < 50; i++) {
+      inner[2 * i] = inner[2 * i + 1] = 2 * i;
+    }
+
+    JoinPredicate eq = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    Join op = new Join(eq, TestUtil.createTupleList(2, outer), TestUtil.createTupleList(2, inner), 1);
+    op.open();
+    int count = 0;
+    while (op.hasNext()) {
+      Tuple t = op.next();
+      assertEquals(t.getField(0), t.getField(2));
+      count++;
+    }
+    // every even key below 100 matches 20 outer tuples
+    assertEquals(50 * 20, count);
+
+    JoinPredicate lt = new JoinPredicate(0, Predicate.Op.LESS_THAN, 0);
+    op = new Join(lt, TestUtil.createTupleList(2, outer), TestUtil.createTupleList(2, inner), 1);
+    op.open();
+    count = 0;
+    while (op.hasNext()) {
+      op.next();
+      count++;
+    }
+    int expected = 0;
+    for (int i = 0; i < 2000; i++) {
+      for (int j = 0; j < 50; j++) {
+        if (i % 100 < 2 * j) {
+          expected++;
+        }
+      }
+    }
+    assertEquals(expected, count);
+  }
+
   /**
    * JUnit suite target
    */
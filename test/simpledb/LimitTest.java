@@ -0,0 +1,206 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.execution.Limit;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Operator;
+import simpledb.execution.OrderBy;
+import simpledb.execution.SeqScan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+public class LimitTest extends SimpleDbTestBase {
+
+  OpIterator scan;
+
+  /**
+   * Initialize each unit test
+   */
+  @Before
+  public void createTupleList() {
+    this.scan = TestUtil.createTupleList(1, new int[] { 1, 2, 3, 4, 5, 6, 7, 8 });
+  }
+
+  /**
+   * Counts the tuples its child returns
+   */
+  private static class CountingIterator implements OpIterator {
+    private static final long serialVersionUID = 1L;
+    private final OpIterator child;
+    int pulled = 0;
+
+    CountingIterator(OpIterator child) {
+      this.child = child;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+      child.open();
+    }
+
+    public boolean hasNext() throws DbException, TransactionAbortedException {
+      return child.hasNext();
+    }
+
+    public Tuple next() throws DbException, TransactionAbortedException {
+      pulled++;
+      return child.next();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+      child.rewind();
+    }
+
+    public TupleDesc getTupleDesc() {
+      return child.getTupleDesc();
+    }
+
+    public void close() {
+      child.close();
+    }
+  }
+
+  /**
+   * Unit test for Limit.getNext() with and without an offset
+   */
+  @Test
+  public void limitAndOffset() throws Exception {
+    Limit op = new Limit(3, 0, scan);
+    op.open();
+    TestUtil.compareDbIterators(TestUtil.createTupleList(1, new int[] { 1, 2, 3 }), op);
+    op.close();
+
+    op = new Limit(3, 6, scan);
+    op.open();
+    TestUtil.compareDbIterators(TestUtil.createTupleList(1, new int[] { 7, 8 }), op);
+    op.rewind();
+    TestUtil.compareDbIterators(TestUtil.createTupleList(1, new int[] { 7, 8 }), op);
+    op.close();
+
+    op = new Limit(0, 0, scan);
+    op.open();
+    assertTrue(TestUtil.checkExhausted(op));
+  }
+
+  /**
+   * Limit stops pulling tuples from its child once it has enough
+   */
+  @Test
+  public void earlyTermination() throws Exception {
+    CountingIterator child = new CountingIterator(scan);
+    Limit op = new Limit(2, 1, child);
+    op.open();
+    while (op.hasNext()) {
+      op.next();
+    }
+    assertEquals(3, child.pulled);
+  }
+
+  /**
+   * Unit test for LIMIT ... OFFSET in queries
+   */
+  @Test
+  public void parsedLimit() throws Exception {
+    List<List<Integer>> tuples = new ArrayList<>();
+    HeapFile f = SystemTestUtil.createRandomHeapFile(2, 1000, 100000, new HashMap<>(), tuples, "c");
+    Database.getCatalog().addTable(f, "limit_test");
+    List<Integer> values = new ArrayList<>();
+    for (List<Integer> t : tuples) {
+      values.add(t.get(1));
+    }
+    values.sort(null);
+
+    TransactionId tid = new TransactionId();
+    Parser p = new Parser();
+    OpIterator plan = p.generateLogicalPlan(tid,
+        "SELECT * FROM limit_test t ORDER BY t.c1 DESC LIMIT 5 OFFSET 2;")
+        .physicalPlan(tid, TableStats.getStatsMap(), false);
+    assertTrue(plan instanceof Limit);
+    plan.open();
+    for (int i = 0; i < 5; i++) {
+      assertTrue(plan.hasNext());
+      assertEquals(values.get(values.size() - 3 - i).intValue(),
+          ((IntField) plan.next().getField(1)).getValue());
+    }
+    assertTrue(TestUtil.checkExhausted(plan));
+    plan.close();
+
+    // the sort below the limit keeps only limit + offset tuples
+    OpIterator sort = ((Limit) plan).getChildren()[0];
+    while (!(sort instanceof OrderBy)) {
+      sort = ((Operator) sort).getChildren()[0];
+    }
+    assertEquals(7, ((OrderBy) sort).getLimit());
+
+    plan = p.generateLogicalPlan(tid, "SELECT * FROM limit_test t limit 10;")
+        .physicalPlan(tid, TableStats.getStatsMap(), false);
+    plan.open();
+    int count = 0;
+    while (plan.hasNext()) {
+      plan.next();
+      count++;
+    }
+    assertEquals(10, count);
+    plan.close();
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * Statements that cannot apply a LIMIT clause reject it instead of
+   * ignoring it
+   */
+  @Test
+  public void limitRejectedOutsideQueries() throws Exception {
+    HeapFile f = SystemTestUtil.createRandomHeapFile(2, 100, null, null);
+    Database.getCatalog().addTable(f, "limit_delete");
+    Parser p = new Parser();
+    for (String statement : new String[] { "DELETE FROM limit_delete LIMIT 5;",
+        "INSERT INTO limit_delete VALUES (1, 2) LIMIT 5;" }) {
+      try {
+        p.processNextStatementForTest(statement);
+        fail("expected " + statement + " to be rejected");
+      } catch (RuntimeException e) {
+        assertTrue(e.getCause() instanceof ParsingException);
+      }
+    }
+
+    // neither statement changed the table
+    TransactionId tid = new TransactionId();
+    SeqScan scan = new SeqScan(tid, f.getId());
+    scan.open();
+    int count = 0;
+    while (scan.hasNext()) {
+      scan.next();
+      count++;
+    }
+    scan.close();
+    Database.getBufferPool().transactionComplete(tid);
+    assertEquals(100, count);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(LimitTest.class);
+  }
+}
@@ -0,0 +1,184 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import com.sun.management.UnixOperatingSystemMXBean;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.execution.OpIterator;
+import simpledb.execution.OrderBy;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+public class OrderByTest extends SimpleDbTestBase {
+
+  OpIterator scan;
+
+  /**
+   * Initialize each unit test
+   */
+  @Before
+  public void createTupleList() {
+    this.scan = TestUtil.createTupleList(2, new int[] { 3, 1, 1, 2, 2, 9, 1, 1, 3, 0, 2, 4 });
+  }
+
+  private static int getInt(Tuple t, int i) {
+    return ((IntField) t.getField(i)).getValue();
+  }
+
+  /**
+   * Shuffled pairs (i % 100, i) for 0 &lt;= i &lt; n
+   */
+  private static OpIterator bigTupleList(int n) {
+    int[] values = new int[2 * n];
+    for (int i = 0; i < n; i++) {
+      int v = (int) ((i * 7919L) % n);
+      values[2 * i] = v % 100;
+      values[2 * i + 1] = v;
+    }
+    return TestUtil.createTupleList(2, values);
+  }
+
+  /**
+   * Unit test for OrderBy.getNext() on a single field
+   */
+  @Test
+  public void singleField() throws Exception {
+    OrderBy op = new OrderBy(1, false, scan);
+    op.open();
+    TestUtil.compareDbIterators(TestUtil.createTupleList(2, new int[] { 2, 9, 2, 4, 1, 2, 3, 1, 1, 1, 3, 0 }), op);
+  }
+
+  /**
+   * Unit test for OrderBy.getNext() on several fields
+   */
+  @Test
+  public void multipleFields() throws Exception {
+    OrderBy op = new OrderBy(new int[] { 0, 1 }, new boolean[] { true, false }, scan);
+    op.open();
+    TestUtil.compareDbIterators(TestUtil.createTupleList(2, new int[] { 1, 2, 1, 1, 2, 9, 2, 4, 3, 1, 3, 0 }), op);
+    op.rewind();
+    assertEquals(1, getInt(op.next(), 0));
+  }
+
+  /**
+   * Unit test for OrderBy.getNext() when the tuples are sorted in runs on
+   * disk and merged
+   */
+  @Test
+  public void spillingSort() throws Exception {
+    // 3 pages hold 1536 tuples of 8 bytes, so 20000 tuples make 14 runs,
+    // which are merged two at a time
+    int n = 20000;
+    OrderBy op = new OrderBy(new int[] { 0, 1 }, new boolean[] { true, true }, bigTupleList(n), 3, OrderBy.NO_LIMIT);
+    op.open();
+    for (int rewinds = 0; rewinds < 2; rewinds++) {
+      int count = 0;
+      int last0 = -1, last1 = -1;
+      while (op.hasNext()) {
+        Tuple t = op.next();
+        int f0 = getInt(t, 0), f1 = getInt(t, 1);
+        assertTrue(f0 > last0 || (f0 == last0 && f1 > last1));
+        last0 = f0;
+        last1 = f1;
+        count++;
+      }
+      assertEquals(n, count);
+      op.rewind();
+    }
+    op.close();
+  }
+
+  /**
+   * @return the number of files the JVM holds open
+   */
+  private static long openFiles() {
+    OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+    Assume.assumeTrue(os instanceof UnixOperatingSystemMXBean);
+    return ((UnixOperatingSystemMXBean) os).getOpenFileDescriptorCount();
+  }
+
+  /**
+   * Unit test for OrderBy.rewind() part way through a merge of runs: the
+   * readers of the abandoned merge are closed
+   */
+  @Test
+  public void rewindClosesRuns() throws Exception {
+    OrderBy op = new OrderBy(new int[] { 0, 1 }, new boolean[] { true, true }, bigTupleList(20000), 3, OrderBy.NO_LIMIT);
+    op.open();
+    long before = openFiles();
+    for (int rewinds = 0; rewinds < 50; rewinds++) {
+      assertEquals(0, getInt(op.next(), 0));
+      op.rewind();
+    }
+    assertTrue(openFiles() <= before);
+    op.close();
+  }
+
+  /**
+   * Unit test for OrderBy.getNext() with a limit, both when the limit fits in
+   * memory and when it does not
+   */
+  @Test
+  public void topN() throws Exception {
+    int n = 20000;
+    for (int limit : new int[] { 0, 10, 5000 }) {
+      OrderBy op = new OrderBy(new int[] { 1 }, new boolean[] { false }, bigTupleList(n), 3, limit);
+      op.open();
+      List<Integer> values = new ArrayList<>();
+      while (op.hasNext()) {
+        values.add(getInt(op.next(), 1));
+      }
+      assertEquals(limit, values.size());
+      for (int i = 0; i < limit; i++) {
+        assertEquals(n - 1 - i, (int) values.get(i));
+      }
+      op.rewind();
+      assertEquals(limit > 0, op.hasNext());
+      op.close();
+    }
+  }
+
+  /**
+   * OrderBy requires one sort order per field
+   */
+  @Test(expected = IllegalArgumentException.class)
+  public void mismatchedOrders() {
+    new OrderBy(new int[] { 0, 1 }, new boolean[] { true }, scan);
+  }
+
+  /**
+   * An OrderBy can be closed and opened again
+   */
+  @Test
+  public void reopen() throws Exception {
+    OrderBy op = new OrderBy(0, true, scan);
+    op.open();
+    assertTrue(op.hasNext());
+    op.close();
+    op.open();
+    assertEquals(1, getInt(op.next(), 0));
+    while (op.hasNext()) {
+      op.next();
+    }
+    assertFalse(op.hasNext());
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(OrderByTest.class);
+  }
+}
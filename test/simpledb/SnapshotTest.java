@@ -0,0 +1,156 @@
+package simpledb;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionId;
+
+import java.util.Iterator;
+
+public class SnapshotTest extends TestUtil.CreateHeapFile {
+  private PageId p0;
+  private TransactionId writer, reader;
+
+  // just so we have a pointer shorter than Database.getBufferPool()
+  private BufferPool bp;
+
+  /**
+   * Set up initial resources for each unit test.
+   */
+  @Before
+  public void setUp() throws Exception {
+    super.setUp();
+
+    bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+    // populate one page with 10 tuples and make them durable
+    TransactionId tid = new TransactionId();
+    for (int i = 0; i < 10; ++i) {
+      empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+    }
+    this.p0 = new HeapPageId(empty.getId(), 0);
+    bp.getPage(tid, p0, Permissions.READ_WRITE).markDirty(true, tid);
+    bp.flushAllPages();
+    bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+    this.writer = new TransactionId();
+    this.reader = new TransactionId();
+  }
+
+  private static int countTuples(Page p) {
+    int count = 0;
+    Iterator<Tuple> it = ((HeapPage) p).iterator();
+    while (it.hasNext()) {
+      it.next();
+      count++;
+    }
+    return count;
+  }
+
+  private void insertTuple(TransactionId tid) throws Exception {
+    HeapPage p = (HeapPage) bp.getPage(tid, p0, Permissions.READ_WRITE);
+    p.insertTuple(Utility.getHeapTuple(new int[] { 6, 830 }));
+    p.markDirty(true, tid);
+  }
+
+  /**
+   * A snapshot reader neither waits for nor blocks a writer of the same page.
+   */
+  @Test
+  public void readerTakesNoLocks() throws Exception {
+    bp.getPage(writer, p0, Permissions.READ_WRITE);
+
+    bp.beginSnapshot(reader);
+    bp.getPage(reader, p0, Permissions.READ_ONLY);
+    assertFalse(bp.holdsLock(reader, p0));
+
+    // the writer can still get its X lock again
+    bp.getPage(writer, p0, Permissions.READ_WRITE);
+    bp.transactionComplete(writer, true);
+    bp.transactionComplete(reader, true);
+  }
+
+  /**
+   * A snapshot never sees uncommitted data, and keeps seeing the same data
+   * after a concurrent writer commits.
+   */
+  @Test
+  public void snapshotIsStable() throws Exception {
+    bp.beginSnapshot(reader);
+    insertTuple(writer);
+    assertEquals(10, countTuples(bp.getPage(reader, p0, Permissions.READ_ONLY)));
+
+    bp.transactionComplete(writer, true);
+    assertEquals(10, countTuples(bp.getPage(reader, p0, Permissions.READ_ONLY)));
+
+    // a snapshot started after the commit sees the new tuple
+    TransactionId later = new TransactionId();
+    bp.beginSnapshot(later);
+    assertEquals(11, countTuples(bp.getPage(later, p0, Permissions.READ_ONLY)));
+
+    bp.transactionComplete(reader, true);
+    bp.transactionComplete(later, true);
+  }
+
+  /**
+   * A snapshot does not see the updates of an aborted writer.
+   */
+  @Test
+  public void abortedWriteIsInvisible() throws Exception {
+    insertTuple(writer);
+    bp.beginSnapshot(reader);
+    assertEquals(10, countTuples(bp.getPage(reader, p0, Permissions.READ_ONLY)));
+
+    bp.transactionComplete(writer, false);
+    assertEquals(10, countTuples(bp.getPage(reader, p0, Permissions.READ_ONLY)));
+    bp.transactionComplete(reader, true);
+  }
+
+  /**
+   * A snapshot keeps reading the committed image of a page whose uncommitted
+   * changes were written out and which was then evicted, even if the snapshot
+   * started only afterwards.
+   */
+  @Test
+  public void stolenPageEvicted() throws Exception {
+    HeapPageId p1 = new HeapPageId(empty.getId(), 1);
+    empty.writePage(new HeapPage(p1, HeapPage.createEmptyPageData()));
+    bp = Database.resetBufferPool(1);
+
+    insertTuple(writer);
+    bp.flushAllPages();
+    bp.getPage(writer, p1, Permissions.READ_ONLY); // evicts p0
+    assertEquals(11, countTuples(empty.readPage(p0)));
+
+    bp.beginSnapshot(reader);
+    assertEquals(10, countTuples(bp.getPage(reader, p0, Permissions.READ_ONLY)));
+
+    bp.transactionComplete(writer, true);
+    assertEquals(10, countTuples(bp.getPage(reader, p0, Permissions.READ_ONLY)));
+    bp.transactionComplete(reader, true);
+  }
+
+  /**
+   * Read-only transactions cannot get pages for writing.
+   */
+  @Test(expected = DbException.class)
+  public void readerCannotWrite() throws Exception {
+    bp.beginSnapshot(reader);
+    bp.getPage(reader, p0, Permissions.READ_WRITE);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(SnapshotTest.class);
+  }
+
+}
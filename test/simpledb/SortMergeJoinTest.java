@@ -0,0 +1,219 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.DbException;
+import simpledb.common.Utility;
+import simpledb.execution.JoinPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Predicate;
+import simpledb.execution.SortMergeJoin;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class SortMergeJoinTest extends SimpleDbTestBase {
+
+  final int width1 = 2;
+  final int width2 = 3;
+  OpIterator scan1;
+  OpIterator scan2;
+  OpIterator eqJoin;
+  OpIterator gtJoin;
+
+  /**
+   * Initialize each unit test
+   */
+  @Before
+  public void createTupleLists() {
+    // unsorted inputs, so that the join has to sort them
+    this.scan1 = TestUtil.createTupleList(width1, new int[] { 5, 6, 1, 2, 8, 9, 3, 4, 7, 8, 2, 3 });
+    this.scan2 = TestUtil.createTupleList(width2, new int[] { 4, 5, 6, 1, 2, 3, 5, 6, 7, 3, 4, 5, 2, 3, 4 });
+    this.eqJoin = TestUtil.createTupleList(width1 + width2, new int[] { 1, 2, 1, 2, 3, 2, 3, 2, 3, 4,
+        3, 4, 3, 4, 5, 5, 6, 5, 6, 7 });
+    this.gtJoin = TestUtil.createTupleList(width1 + width2, new int[] { 2, 3, 1, 2, 3,
+        3, 4, 1, 2, 3, 3, 4, 2, 3, 4,
+        5, 6, 1, 2, 3, 5, 6, 2, 3, 4, 5, 6, 3, 4, 5, 5, 6, 4, 5, 6,
+        7, 8, 1, 2, 3, 7, 8, 2, 3, 4, 7, 8, 3, 4, 5, 7, 8, 4, 5, 6, 7, 8, 5, 6, 7,
+        8, 9, 1, 2, 3, 8, 9, 2, 3, 4, 8, 9, 3, 4, 5, 8, 9, 4, 5, 6, 8, 9, 5, 6, 7 });
+  }
+
+  private static int count(OpIterator it) throws Exception {
+    int count = 0;
+    while (it.hasNext()) {
+      assertNotNull(it.next());
+      count++;
+    }
+    return count;
+  }
+
+  /**
+   * Unit test for SortMergeJoin.getTupleDesc()
+   */
+  @Test
+  public void getTupleDesc() {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    SortMergeJoin op = new SortMergeJoin(pred, scan1, scan2);
+    TupleDesc expected = Utility.getTupleDesc(width1 + width2);
+    TupleDesc actual = op.getTupleDesc();
+    assertEquals(expected, actual);
+  }
+
+  /**
+   * SortMergeJoin rejects predicates it cannot merge on
+   */
+  @Test(expected = IllegalArgumentException.class)
+  public void unsupportedPredicate() {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.NOT_EQUALS, 0);
+    new SortMergeJoin(pred, scan1, scan2);
+  }
+
+  /**
+   * Unit test for SortMergeJoin.getNext() using an = predicate
+   */
+  @Test
+  public void eqJoin() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    SortMergeJoin op = new SortMergeJoin(pred, scan1, scan2);
+    op.open();
+    eqJoin.open();
+    TestUtil.matchAllTuples(eqJoin, op);
+    op.rewind();
+    assertEquals(4, count(op));
+  }
+
+  /**
+   * Unit test for SortMergeJoin.getNext() using a &gt; predicate
+   */
+  @Test
+  public void gtJoin() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.GREATER_THAN, 0);
+    SortMergeJoin op = new SortMergeJoin(pred, scan1, scan2);
+    op.open();
+    gtJoin.open();
+    TestUtil.matchAllTuples(gtJoin, op);
+    op.rewind();
+    assertEquals(17, count(op));
+  }
+
+  /**
+   * Unit test for SortMergeJoin.getNext() using &lt; and &lt;= predicates
+   */
+  @Test
+  public void ltJoin() throws Exception {
+    // outer keys 5, 1, 8, 3, 7, 2 against inner keys 4, 1, 5, 3, 2
+    JoinPredicate lt = new JoinPredicate(0, Predicate.Op.LESS_THAN, 0);
+    SortMergeJoin op = new SortMergeJoin(lt, scan1, scan2);
+    op.open();
+    assertEquals(0 + 4 + 0 + 2 + 0 + 3, count(op));
+    op.close();
+
+    JoinPredicate lte = new JoinPredicate(0, Predicate.Op.LESS_THAN_OR_EQ, 0);
+    op = new SortMergeJoin(lte, scan1, scan2);
+    op.open();
+    assertEquals(1 + 5 + 0 + 3 + 0 + 4, count(op));
+  }
+
+  /**
+   * Unit test for SortMergeJoin.rewind()
+   */
+  @Test
+  public void rewind() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    SortMergeJoin op = new SortMergeJoin(pred, scan1, scan2);
+    op.open();
+    while (op.hasNext()) {
+      assertNotNull(op.next());
+    }
+    assertTrue(TestUtil.checkExhausted(op));
+    op.rewind();
+
+    eqJoin.open();
+    Tuple expected = eqJoin.next();
+    Tuple actual = op.next();
+    assertTrue(TestUtil.compareTuples(expected, actual));
+  }
+
+  /**
+   * Unit test for SortMergeJoin.getNext() when the inputs are sorted in
+   * several runs on disk
+   */
+  @Test
+  public void spillingJoin() throws Exception {
+    // 5000 outer tuples of 8 bytes do not fit in 3 pages
+    int[] outer = new int[2 * 5000];
+    for (int i = 0; i < 5000; i++) {
+      outer[2 * i] = outer[2 * i + 1] = (i * 37) % 500;
+    }
+    int[] inner = new int[2 * 2000];
+    for (int i = 0; i < 2000; i++) {
+      inner[2 * i] = inner[2 * i + 1] = (i * 13) % 1000;
+    }
+
+    JoinPredicate eq = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    SortMergeJoin op = new SortMergeJoin(eq, TestUtil.createTupleList(2, outer),
+        TestUtil.createTupleList(2, inner), 3);
+    op.open();
+    int count = 0;
+    int last = Integer.MIN_VALUE;
+    while (op.hasNext()) {
+      Tuple t = op.next();
+      assertEquals(t.getField(0), t.getField(2));
+      // the output is ordered by the join field
+      int key = Integer.parseInt(t.getField(0).toString());
+      assertTrue(key >= last);
+      last = key;
+      count++;
+    }
+    // each of the 500 outer keys occurs 10 times, each inner key below 500 twice
+    assertEquals(500 * 10 * 2, count);
+    op.close();
+
+    JoinPredicate gte = new JoinPredicate(0, Predicate.Op.GREATER_THAN_OR_EQ, 0);
+    op = new SortMergeJoin(gte, TestUtil.createTupleList(2, outer), TestUtil.createTupleList(2, inner), 3);
+    op.open();
+    int expected = 0;
+    for (int i = 0; i < 5000; i++) {
+      for (int j = 0; j < 2000; j++) {
+        if (outer[2 * i] >= inner[2 * j]) {
+          expected++;
+        }
+      }
+    }
+    assertEquals(expected, count(op));
+  }
+
+  /**
+   * A failure of an input that is already sorted reaches the caller as the
+   * original DbException
+   */
+  @Test(expected = DbException.class)
+  public void sortedInputFailure() throws Exception {
+    JoinPredicate eq = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    // a join is sorted on its join field, so the outer join streams it
+    SortMergeJoin broken = new SortMergeJoin(eq, scan1, scan2) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected Tuple fetchNext() throws DbException {
+        throw new DbException("broken input");
+      }
+    };
+    SortMergeJoin op = new SortMergeJoin(eq, broken, TestUtil.createTupleList(width1, new int[] { 1, 2 }));
+    op.open();
+    op.next();
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(SortMergeJoinTest.class);
+  }
+}
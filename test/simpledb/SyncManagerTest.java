@@ -0,0 +1,173 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.storage.DurabilityPolicy;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.SyncManager;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.Transaction;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SyncManagerTest extends SimpleDbTestBase {
+
+    private HeapFile hf;
+    private HeapPage page;
+
+    @Before public void setUp() throws Exception {
+        File f = File.createTempFile("synctest", ".dat");
+        f.deleteOnExit();
+        hf = Utility.createEmptyHeapFile(f.getAbsolutePath(), 2);
+        page = new HeapPage(new HeapPageId(hf.getId(), 0), HeapPage.createEmptyPageData());
+    }
+
+    /**
+     * Unit test for DurabilityPolicy.getPolicy()
+     */
+    @Test public void parsePolicy() {
+        assertEquals(DurabilityPolicy.NONE, DurabilityPolicy.getPolicy("none"));
+        assertEquals(DurabilityPolicy.COMMIT, DurabilityPolicy.getPolicy("commit"));
+        assertEquals(DurabilityPolicy.CHECKPOINT_ONLY, DurabilityPolicy.getPolicy("checkpoint-only"));
+    }
+
+    @Test(expected = IllegalArgumentException.class) public void parseBadPolicy() {
+        DurabilityPolicy.getPolicy("sometimes");
+    }
+
+    /**
+     * Under COMMIT every data file write is synced
+     */
+    @Test public void commitSyncsEveryWrite() throws Exception {
+        SyncManager sm = Database.getSyncManager();
+        sm.setPolicy(DurabilityPolicy.COMMIT);
+        sm.resetStats();
+        hf.writePage(page);
+        hf.writePage(page);
+        assertEquals(2, sm.getSyncCount());
+        assertTrue(sm.getSyncNanos() > 0);
+    }
+
+    /**
+     * Under NONE nothing is ever synced
+     */
+    @Test public void noneNeverSyncs() throws Exception {
+        SyncManager sm = Database.getSyncManager();
+        sm.setPolicy(DurabilityPolicy.NONE);
+        sm.resetStats();
+        hf.writePage(page);
+        sm.syncDeferred();
+        assertEquals(0, sm.getSyncCount());
+    }
+
+    /**
+     * Under CHECKPOINT_ONLY writes are synced once, at the checkpoint
+     */
+    @Test public void checkpointOnlyDefersSyncs() throws Exception {
+        SyncManager sm = Database.getSyncManager();
+        sm.setPolicy(DurabilityPolicy.CHECKPOINT_ONLY);
+        sm.resetStats();
+        hf.writePage(page);
+        hf.writePage(page);
+        assertEquals(0, sm.getSyncCount());
+        sm.syncDeferred();
+        assertEquals(1, sm.getSyncCount());
+    }
+
+    /**
+     * Records the writes and fsyncs of the data file and of the log, in order
+     */
+    private static class RecordingSyncManager extends SyncManager {
+        final List<String> events = new ArrayList<>();
+        final File dataFile;
+        File logFile;
+        // the checkpoint pointer of the log when the data file was last synced
+        long checkpointAtDataSync = Long.MIN_VALUE;
+
+        RecordingSyncManager(DurabilityPolicy policy, File dataFile) {
+            super(policy);
+            this.dataFile = dataFile;
+        }
+
+        @Override public synchronized void sync(File f, FileChannel channel) throws IOException {
+            events.add("write " + (f.equals(dataFile) ? "data" : "log"));
+            super.sync(f, channel);
+        }
+
+        @Override protected synchronized void force(File f, FileChannel channel) throws IOException {
+            if (f.equals(dataFile)) {
+                events.add("sync data");
+                if (logFile != null) {
+                    try (RandomAccessFile raf = new RandomAccessFile(logFile, "r")) {
+                        checkpointAtDataSync = raf.readLong();
+                    }
+                }
+            } else {
+                events.add("sync log");
+                logFile = f;
+            }
+            super.force(f, channel);
+        }
+    }
+
+    /**
+     * Whatever the policy, the log is synced before a data page is written
+     */
+    @Test public void logSyncedBeforeDataWrite() throws Exception {
+        for (DurabilityPolicy policy : DurabilityPolicy.values()) {
+            RecordingSyncManager sm = new RecordingSyncManager(policy, hf.getFile());
+            Database.resetSyncManager(sm);
+            Transaction t = new Transaction();
+            t.start();
+            Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(1, 2));
+            Database.getBufferPool().flushAllPages();
+
+            int logSync = sm.events.indexOf("sync log");
+            int dataWrite = sm.events.indexOf("write data");
+            assertTrue(policy + ": " + sm.events, dataWrite >= 0);
+            assertTrue(policy + ": " + sm.events, logSync >= 0 && logSync < dataWrite);
+            t.commit();
+        }
+    }
+
+    /**
+     * A checkpoint syncs the data files before it writes and syncs its record
+     */
+    @Test public void checkpointSyncsDataFirst() throws Exception {
+        RecordingSyncManager sm = new RecordingSyncManager(DurabilityPolicy.CHECKPOINT_ONLY, hf.getFile());
+        Database.resetSyncManager(sm);
+        Transaction t = new Transaction();
+        t.start();
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(1, 2));
+        t.commit();
+        assertFalse(sm.events.contains("sync data"));
+
+        Database.getLogFile().logCheckpoint();
+        int dataSync = sm.events.indexOf("sync data");
+        assertTrue(sm.events.toString(), dataSync >= 0);
+        assertTrue(sm.events.toString(), sm.events.lastIndexOf("sync log") > dataSync);
+        // no checkpoint record was in the log yet when the data was synced
+        assertEquals(-1, sm.checkpointAtDataSync);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SyncManagerTest.class);
+    }
+}
@@ -1,8 +1,12 @@
 package simpledb;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -15,9 +19,11 @@ import simpledb.optimizer.TableStats;
 import simpledb.storage.Field;
 import simpledb.storage.HeapFile;
 import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
 import simpledb.systemtest.SimpleDbTestBase;
 import simpledb.systemtest.SystemTestUtil;
 import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
 
 public class TableStatsTest extends SimpleDbTestBase {
 	public static final int IO_COST = 71;
@@ -160,4 +166,262 @@ public class TableStatsTest extends SimpleDbTestBase {
 			Assert.assertEquals(0.0, s.estimateSelectivity(col, Predicate.Op.LESS_THAN_OR_EQ, belowMin), 0.001);
 		}
 	}
+
+	/**
+	 * Verify that statistics from a sample of the pages of a table are close
+	 * to the exact ones, and that distinct counts are scaled up to the table.
+	 */
+	@Test public void sampledStatsTest() throws IOException {
+		// 2 random columns: few distinct values, and almost all distinct
+		List<List<Integer>> rows = new ArrayList<>();
+		Random r = new Random(1);
+		for (int i = 0; i < 150000; i++) {
+			rows.add(Arrays.asList(r.nextInt(32), r.nextInt(1 << 30)));
+		}
+		HeapFile hf = JoinOptimizerTest.createDuplicateHeapFile(rows, 2, "c");
+		Database.getCatalog().addTable(hf, "sampled");
+		int id = hf.getId();
+		Assert.assertTrue(hf.numPages() > 200);
+
+		TableStats exact = new TableStats(id, IO_COST);
+		TableStats sampled = new TableStats(id, IO_COST, 0.2);
+		Assert.assertEquals(150000, exact.totalTuples());
+		Assert.assertEquals(150000, sampled.totalTuples(), 150000 * 0.02);
+		Assert.assertEquals(exact.estimateScanCost(), sampled.estimateScanCost(), 0.001);
+
+		Assert.assertEquals(32, exact.numDistinct(0), 2);
+		Assert.assertEquals(32, sampled.numDistinct(0), 2);
+		Assert.assertEquals(150000, exact.numDistinct(1), 150000 * 0.07);
+		Assert.assertEquals(150000, sampled.numDistinct(1), 150000 * 0.1);
+
+		Field half = new IntField(16);
+		Assert.assertEquals(1.0 / 32, sampled.estimateSelectivity(0, Predicate.Op.EQUALS, half), 0.01);
+		Assert.assertEquals(0.5, sampled.estimateSelectivity(0, Predicate.Op.LESS_THAN, half), 0.05);
+	}
+
+	/**
+	 * Verify that inserts and deletes update the statistics of a table, and
+	 * that the statistics are rebuilt once enough of the table has changed.
+	 */
+	@Test(timeout = 60000) public void incrementalStatsTest() throws Exception {
+		List<List<Integer>> rows = new ArrayList<>();
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 2000, 32, null, rows);
+		Database.getCatalog().addTable(hf, "changing");
+		TableStats.setTableStats("changing", new TableStats(hf.getId(), IO_COST));
+		TableStats s = TableStats.getTableStats("changing");
+		Field hundred = new IntField(100);
+		Assert.assertEquals(0.0, s.estimateSelectivity(0, Predicate.Op.EQUALS, hundred), 0.001);
+
+		TransactionId tid = new TransactionId();
+		List<Tuple> added = insertTuples(tid, hf, 300);
+		for (Tuple t : added.subList(0, 100)) {
+			Database.getBufferPool().deleteTuple(tid, t);
+		}
+		Database.getBufferPool().transactionComplete(tid);
+		Assert.assertEquals(2200, s.totalTuples());
+		Assert.assertEquals(200.0 / 2200, s.estimateSelectivity(0, Predicate.Op.EQUALS, hundred), 0.01);
+		Assert.assertEquals(2000.0 / 2200, s.estimateSelectivity(0, Predicate.Op.LESS_THAN, hundred), 0.01);
+
+		try {
+			TableStats.setRefreshFraction(1000);
+			tid = new TransactionId();
+			insertTuples(tid, hf, 800);
+			Database.getBufferPool().transactionComplete(tid);
+			Assert.assertEquals(3000, s.totalTuples());
+			Assert.assertSame(s, TableStats.getTableStats("changing"));
+		} finally {
+			TableStats.setRefreshFraction(TableStats.DEFAULT_REFRESH_FRACTION);
+		}
+
+		// once the transaction of the next change completes, new statistics
+		// are computed from the committed tuples in the background
+		tid = new TransactionId();
+		insertTuples(tid, hf, 1);
+		Assert.assertSame(s, TableStats.getTableStats("changing"));
+		Database.getBufferPool().transactionComplete(tid);
+		while (TableStats.getTableStats("changing") == s) {
+			Thread.sleep(10);
+		}
+		TableStats fresh = TableStats.getTableStats("changing");
+		Assert.assertEquals(3001, fresh.totalTuples());
+		Assert.assertEquals(1001.0 / 3001, fresh.estimateSelectivity(0, Predicate.Op.EQUALS, hundred), 0.01);
+	}
+
+	/**
+	 * Verify that the statistics of a table loaded in one transaction are
+	 * rebuilt after the load commits, and include the loaded tuples.
+	 */
+	@Test(timeout = 120000) public void bulkLoadStatsTest() throws Exception {
+		// the load does not fit into the default buffer pool
+		Database.resetBufferPool(1000);
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 5000, 32, null, null);
+		Database.getCatalog().addTable(hf, "loaded");
+		TableStats.setTableStats("loaded", new TableStats(hf.getId(), IO_COST));
+		TableStats s = TableStats.getTableStats("loaded");
+
+		TransactionId tid = new TransactionId();
+		insertTuples(tid, hf, 50000);
+		// a rebuild now would miss the uncommitted tuples
+		Assert.assertSame(s, TableStats.getTableStats("loaded"));
+		Database.getBufferPool().transactionComplete(tid);
+		while (TableStats.getTableStats("loaded") == s) {
+			Thread.sleep(10);
+		}
+		TableStats fresh = TableStats.getTableStats("loaded");
+		Assert.assertEquals(55000, fresh.totalTuples(), 55000 * 0.01);
+		Assert.assertEquals(50000.0 / 55000, fresh.estimateSelectivity(0, Predicate.Op.EQUALS, new IntField(100)), 0.02);
+	}
+
+	/**
+	 * Verify that saved statistics are read back lazily, and computed again
+	 * once the table has changed.
+	 */
+	@Test public void persistedStatsTest() throws Exception {
+		File statsFile = File.createTempFile("table", ".stats");
+		statsFile.deleteOnExit();
+		TableStats s = new TableStats(tableId, IO_COST);
+		TableStats.setTableStats(tableName, s);
+		TableStats.saveStatistics(statsFile);
+
+		TableStats.getStatsMap().clear();
+		TableStats.loadStatistics(statsFile);
+		Assert.assertTrue(TableStats.getStatsMap().isEmpty());
+		TableStats loaded = TableStats.getTableStats(tableName);
+		Assert.assertNotSame(s, loaded);
+		Assert.assertEquals(s.totalTuples(), loaded.totalTuples());
+		Assert.assertEquals(s.numDistinct(3), loaded.numDistinct(3));
+		for (int v = 0; v <= 32; v += 4) {
+			Field c = new IntField(v);
+			Assert.assertEquals(s.estimateSelectivity(3, Predicate.Op.EQUALS, c),
+					loaded.estimateSelectivity(3, Predicate.Op.EQUALS, c), 1e-9);
+			Assert.assertEquals(s.estimateSelectivity(3, Predicate.Op.LESS_THAN, c),
+					loaded.estimateSelectivity(3, Predicate.Op.LESS_THAN, c), 1e-9);
+		}
+
+		// a changed table has its statistics computed again
+		TransactionId tid = new TransactionId();
+		Tuple t = new Tuple(f.getTupleDesc());
+		for (int i = 0; i < f.getTupleDesc().numFields(); i++) {
+			t.setField(i, new IntField(i));
+		}
+		Database.getBufferPool().insertTuple(tid, tableId, t);
+		Database.getBufferPool().transactionComplete(tid);
+		Database.getBufferPool().flushAllPages();
+		f.getFile().setLastModified(f.getFile().lastModified() + 10000);
+		TableStats.getStatsMap().clear();
+		TableStats.loadStatistics(statsFile);
+		Assert.assertEquals(10201, TableStats.getTableStats(tableName).totalTuples());
+	}
+
+	/**
+	 * Verify that filters over the columns of a column group are estimated
+	 * from the joint distribution of the columns.
+	 */
+	@Test public void columnGroupTest() throws Exception {
+		// c0 is a city, c1 its zip code (determined by the city), c2 random
+		List<List<Integer>> rows = new ArrayList<>();
+		Random r = new Random(2);
+		for (int i = 0; i < 20000; i++) {
+			int city = r.nextInt(100);
+			rows.add(Arrays.asList(city, 10000 + city, r.nextInt(100)));
+		}
+		HeapFile hf = JoinOptimizerTest.createDuplicateHeapFile(rows, 3, "c");
+		Database.getCatalog().addTable(hf, "cities");
+		TableStats.setTableStats("cities", new TableStats(hf.getId(), IO_COST));
+
+		List<Predicate> sameCity = Arrays.asList(
+				new Predicate(0, Predicate.Op.EQUALS, new IntField(5)),
+				new Predicate(1, Predicate.Op.EQUALS, new IntField(10005)));
+		List<Predicate> otherCity = Arrays.asList(
+				new Predicate(0, Predicate.Op.EQUALS, new IntField(5)),
+				new Predicate(1, Predicate.Op.EQUALS, new IntField(10006)));
+		List<Predicate> range = Arrays.asList(
+				new Predicate(0, Predicate.Op.LESS_THAN, new IntField(50)),
+				new Predicate(1, Predicate.Op.LESS_THAN, new IntField(10050)),
+				new Predicate(2, Predicate.Op.LESS_THAN, new IntField(50)));
+
+		// without a group the columns are assumed to be independent
+		TableStats s = TableStats.getTableStats("cities");
+		Assert.assertEquals(0.0001, s.estimateSelectivity(sameCity), 0.00005);
+		Assert.assertEquals(0.125, s.estimateSelectivity(range), 0.02);
+
+		TableStats.addColumnGroup("cities", "c0", "c1");
+		s = TableStats.getTableStats("cities");
+		Assert.assertEquals(0.01, s.estimateSelectivity(sameCity), 0.005);
+		Assert.assertEquals(0.0001, s.estimateSelectivity(otherCity), 0.00005);
+		Assert.assertEquals(0.25, s.estimateSelectivity(range), 0.03);
+		// a single filter on the group is estimated from its histogram
+		Assert.assertEquals(0.01, s.estimateSelectivity(sameCity.subList(0, 1)), 0.005);
+
+		// the statistics of the group are saved with the table
+		File statsFile = File.createTempFile("cities", ".stats");
+		statsFile.deleteOnExit();
+		TableStats.saveStatistics(statsFile);
+		TableStats.getStatsMap().clear();
+		TableStats.loadStatistics(statsFile);
+		Assert.assertEquals(s.estimateSelectivity(sameCity),
+				TableStats.getTableStats("cities").estimateSelectivity(sameCity), 1e-9);
+	}
+
+	/**
+	 * Verify that column groups can be declared in the schema of the catalog
+	 * and with CREATE STATISTICS, and are declared again from the statistics
+	 * file after a restart.
+	 */
+	@Test public void columnGroupDeclarationTest() throws Exception {
+		File schema = File.createTempFile("schema", ".txt");
+		schema.deleteOnExit();
+		Files.write(schema.toPath(),
+				Arrays.asList("places (city int, zip int, state int) group (city, zip) group (zip, state)"));
+		Database.getCatalog().loadSchema(schema.getAbsolutePath());
+		List<int[]> groups = Database.getCatalog().getColumnGroups(Database.getCatalog().getTableId("places"));
+		Assert.assertEquals(2, groups.size());
+		Assert.assertArrayEquals(new int[] { 0, 1 }, groups.get(0));
+		Assert.assertArrayEquals(new int[] { 1, 2 }, groups.get(1));
+
+		// c0 is a city, c1 its zip code
+		List<List<Integer>> rows = new ArrayList<>();
+		Random r = new Random(2);
+		for (int i = 0; i < 20000; i++) {
+			int city = r.nextInt(100);
+			rows.add(Arrays.asList(city, 10000 + city, r.nextInt(100)));
+		}
+		HeapFile hf = JoinOptimizerTest.createDuplicateHeapFile(rows, 3, "c");
+		Database.getCatalog().addTable(hf, "cities");
+		new Parser().processNextStatementForTest("CREATE STATISTICS ON c0, c1 FROM cities;");
+		Assert.assertArrayEquals(new int[] { 0, 1 }, Database.getCatalog().getColumnGroups(hf.getId()).get(0));
+		TableStats.setTableStats("cities", new TableStats(hf.getId(), IO_COST));
+		List<Predicate> sameCity = Arrays.asList(
+				new Predicate(0, Predicate.Op.EQUALS, new IntField(5)),
+				new Predicate(1, Predicate.Op.EQUALS, new IntField(10005)));
+		double selectivity = TableStats.getTableStats("cities").estimateSelectivity(sameCity);
+		Assert.assertEquals(0.01, selectivity, 0.005);
+		File statsFile = File.createTempFile("cities", ".stats");
+		statsFile.deleteOnExit();
+		TableStats.saveStatistics(statsFile);
+
+		// a new catalog has no column groups until the statistics are loaded
+		Database.reset();
+		Database.getCatalog().addTable(hf, "cities");
+		Assert.assertTrue(Database.getCatalog().getColumnGroups(hf.getId()).isEmpty());
+		TableStats.getStatsMap().clear();
+		TableStats.loadStatistics(statsFile);
+		Assert.assertEquals(1, Database.getCatalog().getColumnGroups(hf.getId()).size());
+		Assert.assertEquals(selectivity, TableStats.getTableStats("cities").estimateSelectivity(sameCity), 1e-9);
+	}
+
+	/**
+	 * Insert tuples (100, i) into a table
+	 */
+	private static List<Tuple> insertTuples(TransactionId tid, HeapFile hf, int count) throws Exception {
+		List<Tuple> added = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			Tuple t = new Tuple(hf.getTupleDesc());
+			t.setField(0, new IntField(100));
+			t.setField(1, new IntField(i));
+			Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+			added.add(t);
+		}
+		return added;
+	}
 }
@@ -435,6 +435,86 @@ public class LogTest extends SimpleDbTestBase {
         t.commit();
     }
 
+    // check whether the specified tuple is on page 0 of the file on disk
+    boolean onDisk(HeapFile hf, int v1) {
+        HeapPage p = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), 0));
+        Iterator<Tuple> it = p.iterator();
+        while (it.hasNext()) {
+            if (((IntField) it.next().getField(0)).getValue() == v1)
+                return true;
+        }
+        return false;
+    }
+
+    @Test public void TestCleanerStealAbort()
+            throws IOException, DbException, TransactionAbortedException, InterruptedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // T1 inserts, the page cleaner writes the dirty page to disk,
+        // T1 aborts in the BufferPool without rolling back itself:
+        // the before image must come back from the log, not from disk
+
+        Database.resetBufferPool(1); // no clean frame left: the cleaner steals
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 30);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!onDisk(hf1, 30) && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertTrue("page was not stolen", onDisk(hf1, 30));
+
+        Database.getBufferPool().transactionComplete(t1.getId(), false);
+        assertFalse(onDisk(hf1, 30));
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 30, false);
+        t.commit();
+
+        // *** Test:
+        // crash and recover: data should still not be there
+
+        crash();
+
+        t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 30, false);
+        t.commit();
+    }
+
+    @Test public void TestPeriodicCheckpoint()
+            throws IOException, DbException, TransactionAbortedException, InterruptedException {
+        // *** Test:
+        // a checkpoint is taken on its own after records were logged,
+        // and recovery still finds the committed data
+
+        LogFile.setCheckpointInterval(20);
+        try {
+            setup();
+            doInsert(hf1, 1, 2);
+            int records = Database.getLogFile().getTotalRecords();
+            long deadline = System.currentTimeMillis() + 5000;
+            while (Database.getLogFile().getTotalRecords() == records && System.currentTimeMillis() < deadline)
+                Thread.sleep(10);
+            assertTrue("no checkpoint taken", Database.getLogFile().getTotalRecords() > records);
+        } finally {
+            LogFile.setCheckpointInterval(LogFile.DEFAULT_CHECKPOINT_INTERVAL_MS);
+        }
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        t.commit();
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(LogTest.class);